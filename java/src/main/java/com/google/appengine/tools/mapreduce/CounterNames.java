@@ -73,5 +73,20 @@ public final class CounterNames {
    */
   public static final String IO_READ_MILLIS = "io-read-msec";
 
+  /**
+   * Number of lookups answered by the cache of a {@link DatastoreLookupPool}.
+   */
+  public static final String DATASTORE_LOOKUP_CACHE_HITS = "datastore-lookup-cache-hits";
+
+  /**
+   * Number of lookups not answered by the cache of a {@link DatastoreLookupPool}.
+   */
+  public static final String DATASTORE_LOOKUP_CACHE_MISSES = "datastore-lookup-cache-misses";
+
+  /**
+   * Number of batched gets sent by a {@link DatastoreLookupPool}.
+   */
+  public static final String DATASTORE_LOOKUP_CALLS = "datastore-lookup-calls";
+
   private CounterNames() {}
 }
@@ -0,0 +1,450 @@
+package com.google.appengine.tools.mapreduce;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.cloudstorage.ExceptionHandler;
+import com.google.appengine.tools.cloudstorage.RetryHelper;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+import com.google.appengine.tools.mapreduce.impl.EntityCache;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DatastoreLookupPool allows you to look entities up by key in batches, requiring fewer datastore
+ * API calls than one {@code get} per key. Lookups are accumulated until they reach a count limit,
+ * or until their result is needed, and are then sent as one asynchronous get. Up to a limit of
+ * gets are in flight at the same time, so that they overlap with the processing of the following
+ * records. Recent results are kept in an LRU cache bounded by their number and their estimated
+ * size, which can optionally be shared by all the pools of the JVM.
+ *
+ * Results are delivered either as a {@link Future}, or to a {@link Callback} that is called by the
+ * thread using the pool, during a later call to {@link #get} or {@link #flush}.
+ *
+ * A typical use would be: <pre>   {@code
+ *   class Example extends Mapper<...> {
+ *     ...
+ *     private transient DatastoreLookupPool lookups;
+ *     ...
+ *
+ *     public void beginSlice() {
+ *       lookups = DatastoreLookupPool.create(getContext());
+ *     }
+ *
+ *     public void endSlice() {
+ *       lookups.flush();
+ *     }
+ *
+ *     public void map(final ... value) {
+ *       ...
+ *       lookups.get(key, new DatastoreLookupPool.Callback() {
+ *         public void onResult(Key key, Entity entity) {
+ *           emit(...);
+ *         }
+ *       });
+ *     }
+ *   }
+ * }</pre>
+ *
+ * When created with a context, the pool counts its cache hits and misses in the counters
+ * {@link CounterNames#DATASTORE_LOOKUP_CACHE_HITS} and
+ * {@link CounterNames#DATASTORE_LOOKUP_CACHE_MISSES}, and its gets in
+ * {@link CounterNames#DATASTORE_LOOKUP_CALLS}.
+ *
+ * This class is not thread safe.
+ */
+public class DatastoreLookupPool {
+
+  public static final int DEFAULT_COUNT_LIMIT = 100;
+  public static final int DEFAULT_MAX_PENDING_BATCHES = 4;
+  public static final int DEFAULT_CACHE_SIZE = 1000;
+  public static final long DEFAULT_CACHE_MEMORY = 4 * 1024 * 1024;
+  private static final ExceptionHandler EXCEPTION_HANDLER = new ExceptionHandler.Builder()
+      .retryOn(ApiProxyException.class, DatastoreTimeoutException.class,
+          DatastoreFailureException.class)
+      .build();
+  public static final Params DEFAULT_PARAMS = new Params.Builder().build();
+
+  private final Params params;
+  private final AsyncDatastoreService ds;
+  private final ShardContext context;
+  private final String jobId;
+  private final EntityCache cache;
+  private Batch current = new Batch();
+  private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+
+  /**
+   * Receives the result of a lookup.
+   */
+  public interface Callback {
+
+    /**
+     * @param key the key that was looked up.
+     * @param entity the entity with that key, or {@code null} if there is none. Entities are
+     *        copies that the callback may modify.
+     */
+    void onResult(Key key, Entity entity);
+  }
+
+  /**
+   * DatastoreLookupPool params.
+   */
+  public static class Params implements Serializable {
+
+    private static final long serialVersionUID = 3217469151416950463L;
+
+    private final RetryParams retryParams;
+    private final int countLimit;
+    private final int maxPendingBatches;
+    private final int cacheSize;
+    private final long cacheMemory;
+    private final boolean useJvmCache;
+
+    private Params(Builder builder) {
+      retryParams = builder.retryParams;
+      countLimit = builder.countLimit;
+      maxPendingBatches = builder.maxPendingBatches;
+      cacheSize = builder.cacheSize;
+      cacheMemory = builder.cacheMemory;
+      useJvmCache = builder.useJvmCache;
+    }
+
+    public RetryParams getRetryParams() {
+      return retryParams;
+    }
+
+    public int getCountLimit() {
+      return countLimit;
+    }
+
+    public int getMaxPendingBatches() {
+      return maxPendingBatches;
+    }
+
+    public int getCacheSize() {
+      return cacheSize;
+    }
+
+    public long getCacheMemory() {
+      return cacheMemory;
+    }
+
+    public boolean useJvmCache() {
+      return useJvmCache;
+    }
+
+    /**
+     * DatastoreLookupPool Params builder.
+     */
+    public static class Builder {
+
+      private int countLimit = DEFAULT_COUNT_LIMIT;
+      private int maxPendingBatches = DEFAULT_MAX_PENDING_BATCHES;
+      private int cacheSize = DEFAULT_CACHE_SIZE;
+      private long cacheMemory = DEFAULT_CACHE_MEMORY;
+      private boolean useJvmCache;
+      private RetryParams retryParams = RetryParams.getDefaultInstance();
+
+      /**
+       * @param countLimit the number of keys looked up by one get.
+       */
+      public Builder countLimit(int countLimit) {
+        checkArgument(countLimit > 0, "countLimit must be positive");
+        this.countLimit = countLimit;
+        return this;
+      }
+
+      /**
+       * @param maxPendingBatches the number of gets that can be in flight at the same time.
+       */
+      public Builder maxPendingBatches(int maxPendingBatches) {
+        checkArgument(maxPendingBatches > 0, "maxPendingBatches must be positive");
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+      }
+
+      /**
+       * @param cacheSize the number of recent results that are kept, 0 for no cache.
+       */
+      public Builder cacheSize(int cacheSize) {
+        checkArgument(cacheSize >= 0, "cacheSize must not be negative");
+        this.cacheSize = cacheSize;
+        return this;
+      }
+
+      /**
+       * @param cacheMemory the estimated number of bytes the recent results that are kept may
+       *        take, 0 for no cache.
+       */
+      public Builder cacheMemory(long cacheMemory) {
+        checkArgument(cacheMemory >= 0, "cacheMemory must not be negative");
+        this.cacheMemory = cacheMemory;
+        return this;
+      }
+
+      /**
+       * @param useJvmCache if true, results are cached in a cache shared by all the pools of the
+       *        JVM that use it, rather than by this pool only. Each job only sees the results it
+       *        looked up, but entities that are modified while the job runs may be returned stale
+       *        by its later slices. The shared cache is as large as the largest
+       *        {@link #cacheSize} and {@link #cacheMemory} of the pools that use it. Its memory is
+       *        claimed from the memory of the workers, and the cache is dropped when a slice needs
+       *        that memory. A pool that is created while that memory cannot be claimed uses a
+       *        cache of its own. Requires the pool to be created with a context.
+       */
+      public Builder useJvmCache(boolean useJvmCache) {
+        this.useJvmCache = useJvmCache;
+        return this;
+      }
+
+      public Builder retryParams(RetryParams retryParams) {
+        this.retryParams = checkNotNull(retryParams);
+        return this;
+      }
+
+      public Params build() {
+        return new Params(this);
+      }
+    }
+  }
+
+  /**
+   * The keys looked up by one get.
+   */
+  private final class Batch {
+    private final Map<Key, List<Callback>> callbacks = new LinkedHashMap<>();
+    private Future<Map<Key, Entity>> future;
+    private Map<Key, Entity> result;
+
+    private void send() {
+      future = ds.get(new ArrayList<>(callbacks.keySet()));
+      incrementCounter(CounterNames.DATASTORE_LOOKUP_CALLS);
+    }
+
+    private void complete() {
+      if (future == null) {
+        send();
+      }
+      result = RetryHelper.runWithRetries(new Callable<Map<Key, Entity>>() {
+        private boolean retry;
+
+        @Override
+        public Map<Key, Entity> call() throws Exception {
+          if (retry) {
+            send();
+          }
+          retry = true;
+          try {
+            return future.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+              throw (Exception) e.getCause();
+            }
+            throw e;
+          }
+        }
+      }, params.getRetryParams(), EXCEPTION_HANDLER);
+      for (Key key : callbacks.keySet()) {
+        putInCache(key, result.get(key));
+      }
+      for (Map.Entry<Key, List<Callback>> entry : callbacks.entrySet()) {
+        for (Callback callback : entry.getValue()) {
+          callback.onResult(entry.getKey(), copy(result.get(entry.getKey())));
+        }
+      }
+      callbacks.clear();
+    }
+  }
+
+  /**
+   * The result of a lookup that was added to a batch.
+   */
+  private final class LookupFuture implements Future<Entity> {
+    private final Key key;
+    private final Batch batch;
+
+    private LookupFuture(Key key, Batch batch) {
+      this.key = key;
+      this.batch = batch;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return batch.result != null;
+    }
+
+    @Override
+    public Entity get() {
+      if (batch == current) {
+        sendCurrent();
+      }
+      if (batch.result == null) {
+        inFlight.remove(batch);
+        batch.complete();
+      }
+      return copy(batch.result.get(key));
+    }
+
+    /**
+     * Same as {@link #get()}, the timeout is ignored.
+     */
+    @Override
+    public Entity get(long timeout, TimeUnit unit) {
+      return get();
+    }
+  }
+
+  private DatastoreLookupPool(AsyncDatastoreService ds, Params params, ShardContext context) {
+    this.ds = checkNotNull(ds, "Null ds");
+    this.params = checkNotNull(params, "Null params");
+    this.context = context;
+    checkArgument(context != null || !params.useJvmCache(), "useJvmCache requires a context");
+    jobId = context == null ? "" : context.getJobId();
+    EntityCache jvmCache = null;
+    if (params.useJvmCache() && params.getCacheSize() > 0 && params.getCacheMemory() > 0) {
+      jvmCache = EntityCache.getJvmInstance(params.getCacheSize(), params.getCacheMemory());
+    }
+    cache = jvmCache != null ? jvmCache
+        : new EntityCache(params.getCacheSize(), params.getCacheMemory());
+  }
+
+  /**
+   * @param context used to count cache hits and misses, or {@code null}.
+   */
+  public static DatastoreLookupPool create(AsyncDatastoreService ds, Params params,
+      ShardContext context) {
+    return new DatastoreLookupPool(ds, params, context);
+  }
+
+  public static DatastoreLookupPool create(ShardContext context) {
+    return create(DatastoreServiceFactory.getAsyncDatastoreService(), DEFAULT_PARAMS, context);
+  }
+
+  public static DatastoreLookupPool create() {
+    return create(null);
+  }
+
+  /**
+   * Looks up the entity with the given key. The result is delivered to {@code callback} by this
+   * thread, in a later call to this method or to {@link #flush}, or right away if it is cached.
+   */
+  public void get(Key key, Callback callback) {
+    checkNotNull(callback, "Null callback");
+    Optional<Entity> cached = getFromCache(key);
+    if (cached != null) {
+      callback.onResult(key, copy(cached.orNull()));
+      return;
+    }
+    addToBatch(key).callbacks.get(key).add(callback);
+  }
+
+  /**
+   * Looks up the entity with the given key. Calling {@link Future#get} on the result sends the
+   * lookup right away if it was not yet sent, and returns {@code null} if there is no such entity.
+   */
+  public Future<Entity> get(Key key) {
+    Optional<Entity> cached = getFromCache(key);
+    if (cached != null) {
+      return Futures.immediateFuture(copy(cached.orNull()));
+    }
+    return new LookupFuture(key, addToBatch(key));
+  }
+
+  /**
+   * Waits for all the pending lookups and delivers their results.
+   */
+  public void flush() {
+    if (!current.callbacks.isEmpty()) {
+      sendCurrent();
+    }
+    while (!inFlight.isEmpty()) {
+      inFlight.removeFirst().complete();
+    }
+  }
+
+  /**
+   * Returns the batch that {@code key} was added to, which may be a batch that was already sent
+   * for the same key.
+   */
+  private Batch addToBatch(Key key) {
+    for (Batch batch : inFlight) {
+      if (batch.callbacks.containsKey(key)) {
+        return batch;
+      }
+    }
+    Batch batch = current;
+    if (!batch.callbacks.containsKey(key)) {
+      batch.callbacks.put(key, new ArrayList<Callback>(1));
+      if (batch.callbacks.size() >= params.getCountLimit()) {
+        sendCurrent();
+      }
+    }
+    return batch;
+  }
+
+  private void sendCurrent() {
+    current.send();
+    inFlight.addLast(current);
+    current = new Batch();
+    while (inFlight.size() > params.getMaxPendingBatches()) {
+      inFlight.removeFirst().complete();
+    }
+  }
+
+  private Optional<Entity> getFromCache(Key key) {
+    if (params.getCacheSize() == 0 || params.getCacheMemory() == 0) {
+      return null;
+    }
+    Optional<Entity> cached = cache.get(jobId, key);
+    if (cached != null) {
+      incrementCounter(CounterNames.DATASTORE_LOOKUP_CACHE_HITS);
+    } else {
+      incrementCounter(CounterNames.DATASTORE_LOOKUP_CACHE_MISSES);
+    }
+    return cached;
+  }
+
+  private void putInCache(Key key, Entity entity) {
+    if (params.getCacheSize() > 0 && params.getCacheMemory() > 0) {
+      cache.put(jobId, key, entity);
+    }
+  }
+
+  private void incrementCounter(String name) {
+    if (context != null) {
+      context.incrementCounter(name);
+    }
+  }
+
+  private static Entity copy(Entity entity) {
+    return entity == null ? null : entity.clone();
+  }
+}
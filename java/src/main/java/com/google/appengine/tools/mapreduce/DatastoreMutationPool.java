@@ -1,26 +1,41 @@
 // Copyright 2011 Google Inc. All Rights Reserved.
 package com.google.appengine.tools.mapreduce;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.Executors.callable;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.CommittedButStillApplyingException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityTranslator;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.cloudstorage.ExceptionHandler;
 import com.google.appengine.tools.cloudstorage.RetryHelper;
 import com.google.appengine.tools.cloudstorage.RetryParams;
+import com.google.appengine.tools.mapreduce.impl.util.EntitySizeEstimator;
 import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * DatastoreMutationPool allows you to pool datastore operations such that they
@@ -52,9 +67,28 @@ import java.util.ConcurrentModificationException;
  *   }
  * }</pre>
  *
+ * By default each batch is applied before the mutation that triggered it returns. With
+ * {@link Params.Builder#maxInFlightBatches} the batches are sent with the
+ * {@link AsyncDatastoreService} instead, so that the caller keeps working while they are applied,
+ * and up to that many batches are in flight at the same time. A batch that fails is retried when
+ * it is waited for. {@link #flush} waits for all of them, so the mutations are applied when it
+ * returns, as in the default mode. A batch is not sent while a batch in flight mutates one of the
+ * same keys, which preserves the order of the mutations of each key. The keys of put entities that
+ * had incomplete keys are only assigned once their batch completes.
+ *
+ * Mutations of entities of the same entity group contend with each other when they are applied at
+ * the same time. {@link Params.Builder#maxMutationsPerEntityGroup} limits the number of mutations
+ * of an entity group in each batch; the others are held back for later batches, in their original
+ * order, and in asynchronous mode a batch is not sent while a batch in flight mutates one of the
+ * same entity groups. {@link Params.Builder#writesPerSecond} limits the rate of the mutations of
+ * the pool, and {@link #getNextWriteTimeMillis} carries that rate over to the pool of a later
+ * slice.
+ *
  */
 public class DatastoreMutationPool {
 
+  private static final Logger log = Logger.getLogger(DatastoreMutationPool.class.getName());
+
   public static final int DEFAULT_COUNT_LIMIT = 100;
   public static final int DEFAULT_BYTES_LIMIT = 256 * 1024;
   private static final ExceptionHandler EXCEPTION_HANDLER = new ExceptionHandler.Builder()
@@ -65,10 +99,17 @@ public class DatastoreMutationPool {
 
   private final Params params;
   private final DatastoreService ds;
+  private AsyncDatastoreService asyncDs;
+  private long nextWriteTimeMillis;
+  private final ArrayDeque<PendingBatch> inFlight = new ArrayDeque<>();
+  private final Multiset<Key> inFlightKeys = HashMultiset.create();
+  private final Multiset<Key> inFlightGroups = HashMultiset.create();
   private final Collection<Entity> puts = Lists.newArrayList();
   private int putsBytes;
+  private final GroupSpreader<Entity> putSpreader;
   private final Collection<Key> deletes = Lists.newArrayList();
   private int deletesBytes;
+  private final GroupSpreader<Key> deleteSpreader;
 
   /**
    * DatastoreMutationPool params.
@@ -80,11 +121,17 @@ public class DatastoreMutationPool {
     private final RetryParams retryParams;
     private final int countLimit;
     private final int bytesLimit;
+    private final int maxInFlightBatches;
+    private final int maxMutationsPerEntityGroup;
+    private final double writesPerSecond;
 
     private Params(Builder builder) {
       retryParams = builder.retryParams;
       countLimit = builder.countLimit;
       bytesLimit = builder.bytesLimit;
+      maxInFlightBatches = builder.maxInFlightBatches;
+      maxMutationsPerEntityGroup = builder.maxMutationsPerEntityGroup;
+      writesPerSecond = builder.writesPerSecond;
     }
 
     public RetryParams getRetryParams() {
@@ -99,6 +146,18 @@ public class DatastoreMutationPool {
       return bytesLimit;
     }
 
+    public int getMaxInFlightBatches() {
+      return maxInFlightBatches;
+    }
+
+    public int getMaxMutationsPerEntityGroup() {
+      return maxMutationsPerEntityGroup;
+    }
+
+    public double getWritesPerSecond() {
+      return writesPerSecond;
+    }
+
     /**
      * DatastoreMutationPool Params builder.
      */
@@ -106,8 +165,25 @@ public class DatastoreMutationPool {
 
       private int bytesLimit = DEFAULT_BYTES_LIMIT;
       private int countLimit = DEFAULT_COUNT_LIMIT;
+      private int maxInFlightBatches;
+      private int maxMutationsPerEntityGroup;
+      private double writesPerSecond;
       private RetryParams retryParams = RetryParams.getDefaultInstance();
 
+      public Builder() {}
+
+      /**
+       * Creates a builder with the values of {@code params}.
+       */
+      public Builder(Params params) {
+        bytesLimit = params.bytesLimit;
+        countLimit = params.countLimit;
+        maxInFlightBatches = params.maxInFlightBatches;
+        maxMutationsPerEntityGroup = params.maxMutationsPerEntityGroup;
+        writesPerSecond = params.writesPerSecond;
+        retryParams = params.retryParams;
+      }
+
       public Builder bytesLimit(int bytesLimit) {
         this.bytesLimit = bytesLimit;
         return this;
@@ -118,6 +194,39 @@ public class DatastoreMutationPool {
         return this;
       }
 
+      /**
+       * @param maxInFlightBatches the number of batches that can be applied asynchronously at the
+       *        same time, or 0 (the default) to apply each batch synchronously. Asynchronous
+       *        batches are sent with the default {@link AsyncDatastoreService}.
+       */
+      public Builder maxInFlightBatches(int maxInFlightBatches) {
+        checkArgument(maxInFlightBatches >= 0, "maxInFlightBatches must not be negative");
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+      }
+
+      /**
+       * @param maxMutationsPerEntityGroup the number of mutations of the same entity group that a
+       *        batch can hold, or 0 (the default) to batch mutations in the order they are added.
+       *        Further mutations of the entity group are held back for the following batches.
+       */
+      public Builder maxMutationsPerEntityGroup(int maxMutationsPerEntityGroup) {
+        checkArgument(maxMutationsPerEntityGroup >= 0,
+            "maxMutationsPerEntityGroup must not be negative");
+        this.maxMutationsPerEntityGroup = maxMutationsPerEntityGroup;
+        return this;
+      }
+
+      /**
+       * @param writesPerSecond the number of mutations per second that the pool can apply, or 0
+       *        (the default) for no limit. Batches are held until the pool is within the rate.
+       */
+      public Builder writesPerSecond(double writesPerSecond) {
+        checkArgument(writesPerSecond >= 0, "writesPerSecond must not be negative");
+        this.writesPerSecond = writesPerSecond;
+        return this;
+      }
+
       public Builder retryParams(RetryParams retryParams) {
         this.retryParams = checkNotNull(retryParams);
         return this;
@@ -129,9 +238,194 @@ public class DatastoreMutationPool {
     }
   }
 
+  /**
+   * A batch of puts or deletes that was sent asynchronously.
+   */
+  private final class PendingBatch {
+    private final List<Entity> puts;
+    private final List<Key> deletes;
+    private final List<Key> keys;
+    private final Set<Key> groups = new HashSet<>();
+    private Future<?> future;
+
+    private PendingBatch(List<Entity> puts, List<Key> deletes) {
+      this.puts = puts;
+      this.deletes = deletes;
+      if (puts != null) {
+        ImmutableList.Builder<Key> putKeys = ImmutableList.builder();
+        for (Entity entity : puts) {
+          if (entity.getKey().isComplete()) {
+            putKeys.add(entity.getKey());
+          }
+          addGroup(entity.getKey());
+        }
+        keys = putKeys.build();
+      } else {
+        keys = deletes;
+        for (Key key : deletes) {
+          addGroup(key);
+        }
+      }
+    }
+
+    private void addGroup(Key key) {
+      if (params.getMaxMutationsPerEntityGroup() > 0) {
+        Key group = getEntityGroup(key);
+        if (group != null) {
+          groups.add(group);
+        }
+      }
+    }
+
+    private void send() {
+      future = puts != null ? asyncDs.put(puts) : asyncDs.delete(deletes);
+    }
+
+    /**
+     * Waits for the batch to be applied, and applies it synchronously with retries if it failed.
+     */
+    private void complete() {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for " + this, e);
+      } catch (ExecutionException e) {
+        log.log(Level.INFO, "Asynchronous " + this + " failed, retrying", e.getCause());
+        RetryHelper.runWithRetries(callable(new Runnable() {
+          @Override public void run() {
+            if (puts != null) {
+              ds.put(puts);
+            } else {
+              ds.delete(deletes);
+            }
+          }
+        }), params.getRetryParams(), EXCEPTION_HANDLER);
+      } finally {
+        for (Key key : keys) {
+          inFlightKeys.remove(key);
+        }
+        for (Key group : groups) {
+          inFlightGroups.remove(group);
+        }
+      }
+    }
+
+    private int size() {
+      return puts != null ? puts.size() : deletes.size();
+    }
+
+    @Override
+    public String toString() {
+      return puts != null ? "put of " + puts.size() + " entities"
+          : "delete of " + deletes.size() + " keys";
+    }
+  }
+
+  /**
+   * A mutation held back from the current batch because of its entity group.
+   */
+  private static final class HeldMutation<T> {
+    private final T mutation;
+    private final Key group;
+    private final int bytes;
+
+    private HeldMutation(T mutation, Key group, int bytes) {
+      this.mutation = mutation;
+      this.group = group;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Limits the number of mutations of each entity group in the current batch, and holds back the
+   * other mutations of the entity group, in order, for the following batches.
+   */
+  private static final class GroupSpreader<T> {
+    private final int maxPerGroup;
+    private final Multiset<Key> batchGroups = HashMultiset.create();
+    private final Multiset<Key> heldGroups = HashMultiset.create();
+    private final ArrayDeque<HeldMutation<T>> held = new ArrayDeque<>();
+    private int heldBytes;
+
+    private GroupSpreader(int maxPerGroup) {
+      this.maxPerGroup = maxPerGroup;
+    }
+
+    /**
+     * Returns whether a mutation of {@code group} can be added to the current batch. Mutations
+     * of entity groups that have mutations held back cannot, so that their order is preserved.
+     */
+    private boolean canAdd(Key group) {
+      return group == null
+          || (batchGroups.count(group) < maxPerGroup && !heldGroups.contains(group));
+    }
+
+    private void added(Key group) {
+      if (group != null) {
+        batchGroups.add(group);
+      }
+    }
+
+    private void hold(T mutation, Key group, int bytes) {
+      held.addLast(new HeldMutation<>(mutation, group, bytes));
+      heldGroups.add(group);
+      heldBytes += bytes;
+    }
+
+    private boolean hasHeld() {
+      return !held.isEmpty();
+    }
+
+    private boolean isFull(Params params) {
+      return held.size() >= params.getCountLimit() || heldBytes >= params.getBytesLimit();
+    }
+
+    /**
+     * Starts a new batch, and removes and returns the held mutations that can go in it, up to
+     * {@code maxCount} mutations and {@code maxBytes} bytes, or one mutation if it is larger.
+     */
+    private List<HeldMutation<T>> startBatch(int maxCount, int maxBytes) {
+      batchGroups.clear();
+      List<HeldMutation<T>> result = Lists.newArrayList();
+      Set<Key> skipped = new HashSet<>();
+      int bytes = 0;
+      for (Iterator<HeldMutation<T>> iter = held.iterator(); iter.hasNext()
+          && result.size() < maxCount;) {
+        HeldMutation<T> mutation = iter.next();
+        if (skipped.contains(mutation.group) || batchGroups.count(mutation.group) >= maxPerGroup
+            || (!result.isEmpty() && bytes + mutation.bytes >= maxBytes)) {
+          skipped.add(mutation.group);
+          continue;
+        }
+        iter.remove();
+        heldGroups.remove(mutation.group);
+        heldBytes -= mutation.bytes;
+        batchGroups.add(mutation.group);
+        bytes += mutation.bytes;
+        result.add(mutation);
+      }
+      return result;
+    }
+  }
+
   private DatastoreMutationPool(DatastoreService ds, Params params) {
     this.ds = ds;
     this.params = params;
+    int maxPerGroup = params.getMaxMutationsPerEntityGroup();
+    putSpreader = maxPerGroup > 0 ? new GroupSpreader<Entity>(maxPerGroup) : null;
+    deleteSpreader = maxPerGroup > 0 ? new GroupSpreader<Key>(maxPerGroup) : null;
+  }
+
+  /**
+   * Returns the root key of the entity group of {@code key}, or null if it is a new entity group.
+   */
+  private static Key getEntityGroup(Key key) {
+    Key root = key;
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    return root.isComplete() ? root : null;
   }
 
   public static DatastoreMutationPool create(DatastoreService ds, Params params) {
@@ -146,20 +440,33 @@ public class DatastoreMutationPool {
   }
 
   /**
-   * Adds a mutation to put the given entity to the datastore.
+   * Adds a mutation deleting the entity with the given key.
    */
   public void delete(Key key) {
-    // This is probably a serious overestimation, but I can't see a good
-    // way to find the size in the public API.
-    int bytesHere = KeyFactory.keyToString(key).length();
+    int bytesHere = EntitySizeEstimator.estimateSize(key);
+    Key group = null;
+    if (deleteSpreader != null) {
+      group = getEntityGroup(key);
+      if (!deleteSpreader.canAdd(group)) {
+        deleteSpreader.hold(key, group, bytesHere);
+        if (deleteSpreader.isFull(params)) {
+          flushDeletes();
+        }
+        return;
+      }
+    }
 
     // Do this before the add so that we guarantee that size is never > sizeLimit
-    if (deletesBytes + bytesHere >= params.getBytesLimit()) {
+    while ((deletesBytes + bytesHere >= params.getBytesLimit()
+        || deletes.size() >= params.getCountLimit()) && !deletes.isEmpty()) {
       flushDeletes();
     }
 
     deletesBytes += bytesHere;
     deletes.add(key);
+    if (deleteSpreader != null) {
+      deleteSpreader.added(group);
+    }
 
     if (deletes.size() >= params.getCountLimit()) {
       flushDeletes();
@@ -167,18 +474,45 @@ public class DatastoreMutationPool {
   }
 
   /**
-   * Adds a mutation deleting the entity with the given key.
+   * Adds a mutation to put the given entity to the datastore.
    */
   public void put(Entity entity) {
-    int bytesHere = EntityTranslator.convertToPb(entity).getSerializedSize();
+    put(entity, EntitySizeEstimator.estimateSize(entity));
+  }
+
+  /**
+   * Adds a mutation to put the given entity to the datastore, for callers that already know the
+   * size of its encoding, such as entities that were read from their serialized form. This saves
+   * estimating the size of the entity.
+   *
+   * @param serializedSize the size of the encoding of the entity, as returned by
+   *        {@code EntityTranslator.convertToPb(entity).getSerializedSize()}.
+   */
+  public void put(Entity entity, int serializedSize) {
+    int bytesHere = serializedSize;
+    Key group = null;
+    if (putSpreader != null) {
+      group = getEntityGroup(entity.getKey());
+      if (!putSpreader.canAdd(group)) {
+        putSpreader.hold(entity, group, bytesHere);
+        if (putSpreader.isFull(params)) {
+          flushPuts();
+        }
+        return;
+      }
+    }
 
     // Do this before the add so that we guarantee that size is never > sizeLimit
-    if (putsBytes + bytesHere >= params.getBytesLimit()) {
+    while ((putsBytes + bytesHere >= params.getBytesLimit()
+        || puts.size() >= params.getCountLimit()) && !puts.isEmpty()) {
       flushPuts();
     }
 
     putsBytes += bytesHere;
     puts.add(entity);
+    if (putSpreader != null) {
+      putSpreader.added(group);
+    }
 
     if (puts.size() >= params.getCountLimit()) {
       flushPuts();
@@ -186,18 +520,110 @@ public class DatastoreMutationPool {
   }
 
   /**
-   * Performs all pending mutations.
+   * Performs all pending mutations, including the ones held back because of their entity group,
+   * and waits for the ones that are in flight.
    */
   public void flush() {
-    if (!puts.isEmpty()) {
+    while (!puts.isEmpty() || (putSpreader != null && putSpreader.hasHeld())) {
       flushPuts();
     }
-    if (!deletes.isEmpty()) {
+    while (!deletes.isEmpty() || (deleteSpreader != null && deleteSpreader.hasHeld())) {
       flushDeletes();
     }
+    while (!inFlight.isEmpty()) {
+      inFlight.removeFirst().complete();
+    }
+  }
+
+  private boolean conflictsWithInFlight(PendingBatch batch) {
+    for (Key key : batch.keys) {
+      if (inFlightKeys.contains(key)) {
+        return true;
+      }
+    }
+    for (Key group : batch.groups) {
+      if (inFlightGroups.contains(group)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Waits until {@code count} mutations can be sent within the rate, and charges them to the
+   * mutations that are sent after them.
+   */
+  private void acquireWrites(int count) {
+    if (params.getWritesPerSecond() > 0 && count > 0) {
+      long now = System.currentTimeMillis();
+      if (nextWriteTimeMillis > now) {
+        Uninterruptibles.sleepUninterruptibly(nextWriteTimeMillis - now, TimeUnit.MILLISECONDS);
+        now = nextWriteTimeMillis;
+      }
+      nextWriteTimeMillis = now + (long) Math.ceil(count * 1000 / params.getWritesPerSecond());
+    }
+  }
+
+  /**
+   * Returns the time, in milliseconds since the epoch, before which the mutations that were sent
+   * use up the {@link Params#getWritesPerSecond writesPerSecond} of this pool. A pool that
+   * continues the work of this one, such as the pool of the next slice, should be given this time
+   * with {@link #setNextWriteTimeMillis}, as the rate of the last batch that was sent is otherwise
+   * not accounted for.
+   */
+  public long getNextWriteTimeMillis() {
+    return nextWriteTimeMillis;
+  }
+
+  /**
+   * Sets the time, in milliseconds since the epoch, before which this pool does not send
+   * mutations, as returned by {@link #getNextWriteTimeMillis} of the pool whose work this one
+   * continues.
+   */
+  public void setNextWriteTimeMillis(long nextWriteTimeMillis) {
+    this.nextWriteTimeMillis = nextWriteTimeMillis;
+  }
+
+  private void sendAsync(PendingBatch batch) {
+    if (conflictsWithInFlight(batch)) {
+      while (!inFlight.isEmpty()) {
+        inFlight.removeFirst().complete();
+      }
+    }
+    if (asyncDs == null) {
+      asyncDs = DatastoreServiceFactory.getAsyncDatastoreService();
+    }
+    acquireWrites(batch.size());
+    batch.send();
+    inFlight.addLast(batch);
+    inFlightKeys.addAll(batch.keys);
+    inFlightGroups.addAll(batch.groups);
+    while (inFlight.size() > params.getMaxInFlightBatches()) {
+      inFlight.removeFirst().complete();
+    }
   }
 
   private void flushDeletes() {
+    if (!deletes.isEmpty()) {
+      sendDeletes();
+    }
+    if (deleteSpreader != null) {
+      for (HeldMutation<Key> held :
+          deleteSpreader.startBatch(params.getCountLimit(), params.getBytesLimit())) {
+        deletes.add(held.mutation);
+        deletesBytes += held.bytes;
+      }
+    }
+  }
+
+  private void sendDeletes() {
+    if (params.getMaxInFlightBatches() > 0) {
+      sendAsync(new PendingBatch(null, ImmutableList.copyOf(deletes)));
+      deletes.clear();
+      deletesBytes = 0;
+      return;
+    }
+    acquireWrites(deletes.size());
     RetryHelper.runWithRetries(callable(new Runnable() {
       @Override public void run() {
         ds.delete(deletes);
@@ -208,6 +634,26 @@ public class DatastoreMutationPool {
   }
 
   private void flushPuts() {
+    if (!puts.isEmpty()) {
+      sendPuts();
+    }
+    if (putSpreader != null) {
+      for (HeldMutation<Entity> held :
+          putSpreader.startBatch(params.getCountLimit(), params.getBytesLimit())) {
+        puts.add(held.mutation);
+        putsBytes += held.bytes;
+      }
+    }
+  }
+
+  private void sendPuts() {
+    if (params.getMaxInFlightBatches() > 0) {
+      sendAsync(new PendingBatch(ImmutableList.copyOf(puts), null));
+      puts.clear();
+      putsBytes = 0;
+      return;
+    }
+    acquireWrites(puts.size());
     RetryHelper.runWithRetries(callable(new Runnable() {
       @Override public void run() {
         ds.put(puts);
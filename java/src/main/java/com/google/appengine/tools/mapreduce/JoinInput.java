@@ -0,0 +1,99 @@
+package com.google.appengine.tools.mapreduce;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The input of a MapReduce built by {@link MapReduceSpecification.JoinBuilder}. Creates the
+ * readers of all the inputs being joined, and tags each value they read with the index of its
+ * input, so that {@link JoinMapper} can pass it to the mapper of that input.
+ */
+final class JoinInput extends Input<KeyValue<Integer, Object>> {
+
+  private static final long serialVersionUID = -2178513328458398214L;
+
+  private final List<Input<?>> inputs;
+
+  JoinInput(List<Input<?>> inputs) {
+    this.inputs = ImmutableList.copyOf(checkNotNull(inputs, "Null inputs"));
+  }
+
+  @Override
+  void setContext(Context context) {
+    super.setContext(context);
+    for (Input<?> input : inputs) {
+      input.setContext(context);
+    }
+  }
+
+  @Override
+  public List<? extends InputReader<KeyValue<Integer, Object>>> createReaders()
+      throws IOException {
+    ImmutableList.Builder<TaggingInputReader> result = ImmutableList.builder();
+    for (int tag = 0; tag < inputs.size(); tag++) {
+      for (InputReader<?> reader : inputs.get(tag).createReaders()) {
+        result.add(new TaggingInputReader(tag, reader));
+      }
+    }
+    return result.build();
+  }
+
+  private static final class TaggingInputReader extends InputReader<KeyValue<Integer, Object>> {
+
+    private static final long serialVersionUID = 2614542379385283613L;
+
+    private final Integer tag;
+    private final InputReader<?> reader;
+
+    private TaggingInputReader(Integer tag, InputReader<?> reader) {
+      this.tag = tag;
+      this.reader = checkNotNull(reader, "Null reader");
+    }
+
+    @Override
+    public KeyValue<Integer, Object> next() throws IOException, NoSuchElementException {
+      return KeyValue.<Integer, Object>of(tag, reader.next());
+    }
+
+    @Override
+    public Double getProgress() {
+      return reader.getProgress();
+    }
+
+    @Override
+    public void beginShard() throws IOException {
+      reader.beginShard();
+    }
+
+    @Override
+    public void beginSlice() throws IOException {
+      reader.beginSlice();
+    }
+
+    @Override
+    public void endSlice() throws IOException {
+      reader.endSlice();
+    }
+
+    @Override
+    public void endShard() throws IOException {
+      reader.endShard();
+    }
+
+    @Override
+    public long estimateMemoryRequirement() {
+      return reader.estimateMemoryRequirement();
+    }
+
+    @Override
+    public void setContext(ShardContext context) {
+      super.setContext(context);
+      reader.setContext(context);
+    }
+  }
+}
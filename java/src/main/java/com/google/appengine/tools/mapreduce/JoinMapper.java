@@ -0,0 +1,180 @@
+package com.google.appengine.tools.mapreduce;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The mapper of a MapReduce built by {@link MapReduceSpecification.JoinBuilder}. Passes each value
+ * read by {@link JoinInput} to the mapper of its input, and tags the values that mapper emits with
+ * the index of the input.
+ *
+ * As {@link JoinInput} reads a single input per shard, only the mapper of that input is started,
+ * once the shard reads its first value. A shard whose input is empty starts no mapper.
+ *
+ * @param <K> type of intermediate keys
+ * @param <V> type of intermediate values, before tagging
+ */
+final class JoinMapper<K, V> extends Mapper<KeyValue<Integer, Object>, K, KeyValue<Integer, V>> {
+
+  private static final long serialVersionUID = 6953394860283766317L;
+
+  private final List<Mapper<?, K, V>> mappers;
+  private Integer tag;
+
+  JoinMapper(List<Mapper<?, K, V>> mappers) {
+    this.mappers = ImmutableList.copyOf(checkNotNull(mappers, "Null mappers"));
+  }
+
+  @Override
+  public void setContext(MapperContext<K, KeyValue<Integer, V>> context) {
+    super.setContext(context);
+    for (int tag = 0; tag < mappers.size(); tag++) {
+      mappers.get(tag).setContext(new TaggingContext<>(tag, context));
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void map(KeyValue<Integer, Object> value) {
+    if (tag == null) {
+      tag = value.getKey();
+      mappers.get(tag).beginShard();
+      mappers.get(tag).beginSlice();
+    }
+    checkState(tag.equals(value.getKey()), "Value of input %s in a shard of input %s",
+        value.getKey(), tag);
+    ((Mapper<Object, K, V>) mappers.get(tag)).map(value.getValue());
+  }
+
+  @Override
+  public void beginShard() {
+    tag = null;
+  }
+
+  @Override
+  public void beginSlice() {
+    if (tag != null) {
+      mappers.get(tag).beginSlice();
+    }
+  }
+
+  @Override
+  public void endSlice() {
+    if (tag != null) {
+      mappers.get(tag).endSlice();
+    }
+  }
+
+  @Override
+  public void endShard() {
+    if (tag != null) {
+      mappers.get(tag).endShard();
+    }
+  }
+
+  /**
+   * Until the input of the shard is known, any one of the mappers may be started.
+   */
+  @Override
+  public long estimateMemoryRequirement() {
+    if (tag != null) {
+      return mappers.get(tag).estimateMemoryRequirement();
+    }
+    long memory = 0;
+    for (Mapper<?, K, V> mapper : mappers) {
+      memory = Math.max(memory, mapper.estimateMemoryRequirement());
+    }
+    return memory;
+  }
+
+  @Override
+  public boolean allowSliceRetry() {
+    for (Mapper<?, K, V> mapper : mappers) {
+      if (!mapper.allowSliceRetry()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    for (Mapper<?, K, V> mapper : mappers) {
+      if (!mapper.allowConcurrentSliceAttempts()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[tag=" + tag + ", mappers=" + mappers + "]";
+  }
+
+  private static final class TaggingContext<K, V> implements MapperContext<K, V> {
+
+    private final Integer tag;
+    private final MapperContext<K, KeyValue<Integer, V>> context;
+
+    private TaggingContext(Integer tag, MapperContext<K, KeyValue<Integer, V>> context) {
+      this.tag = tag;
+      this.context = context;
+    }
+
+    @Override
+    public void emit(K key, V value) {
+      context.emit(key, KeyValue.of(tag, value));
+    }
+
+    @Override
+    public void emit(KeyValue<K, V> value) {
+      emit(value.getKey(), value.getValue());
+    }
+
+    @Override
+    public int getShardCount() {
+      return context.getShardCount();
+    }
+
+    @Override
+    public int getShardNumber() {
+      return context.getShardNumber();
+    }
+
+    @Override
+    public Counters getCounters() {
+      return context.getCounters();
+    }
+
+    @Override
+    public Counter getCounter(String name) {
+      return context.getCounter(name);
+    }
+
+    @Override
+    public void incrementCounter(String name, long delta) {
+      context.incrementCounter(name, delta);
+    }
+
+    @Override
+    public void incrementCounter(String name) {
+      context.incrementCounter(name);
+    }
+
+    @Override
+    public String getJobId() {
+      return context.getJobId();
+    }
+
+    @Override
+    public <SK, SV> Map<SK, SV> getSideInput(SideInput<SK, SV> sideInput) {
+      return context.getSideInput(sideInput);
+    }
+  }
+}
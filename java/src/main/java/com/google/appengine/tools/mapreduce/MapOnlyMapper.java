@@ -2,6 +2,8 @@
 
 package com.google.appengine.tools.mapreduce;
 
+import java.util.Map;
+
 /**
  * Map function for Map only jobs.  A map function processes input
  * values one at a time and generates zero or more output values.
@@ -71,6 +73,11 @@ public abstract class MapOnlyMapper<I, O> extends BaseMapper<I, O, MapOnlyMapper
       return context.getJobId();
     }
 
+    @Override
+    public <SK, SV> Map<SK, SV> getSideInput(SideInput<SK, SV> sideInput) {
+      return context.getSideInput(sideInput);
+    }
+
     @Override
     public void emit(K key, V value) {
       context.emit(value);
@@ -2,6 +2,7 @@
 
 package com.google.appengine.tools.mapreduce;
 
+import java.util.Map;
 
 /**
  * Context for {@link MapOnlyMapper} execution.
@@ -9,4 +10,10 @@ package com.google.appengine.tools.mapreduce;
  * @param <O> type of output values produced by the mapper
  */
 public interface MapOnlyMapperContext<O> extends WorkerContext<O> {
+
+  /**
+   * Returns a read-only map of the entries of {@code sideInput}.
+   * See {@link MapperContext#getSideInput}.
+   */
+  <K, V> Map<K, V> getSideInput(SideInput<K, V> sideInput);
 }
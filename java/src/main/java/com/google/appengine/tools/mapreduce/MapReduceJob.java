@@ -8,8 +8,10 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.mapreduce.impl.BaseContext;
+import com.google.appengine.tools.mapreduce.impl.CompositeKeySharder;
 import com.google.appengine.tools.mapreduce.impl.CountersImpl;
 import com.google.appengine.tools.mapreduce.impl.FilesByShard;
+import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageHashGroupInput;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageMapOutput;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageMergeInput;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageMergeOutput;
@@ -17,10 +19,12 @@ import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageReduceInput;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageSortInput;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageSortOutput;
 import com.google.appengine.tools.mapreduce.impl.HashingSharder;
+import com.google.appengine.tools.mapreduce.impl.MapReduceResultImpl;
 import com.google.appengine.tools.mapreduce.impl.MapShardTask;
 import com.google.appengine.tools.mapreduce.impl.ReduceShardTask;
 import com.google.appengine.tools.mapreduce.impl.WorkerController;
 import com.google.appengine.tools.mapreduce.impl.WorkerShardTask;
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
 import com.google.appengine.tools.mapreduce.impl.pipeline.CleanupPipelineJob;
 import com.google.appengine.tools.mapreduce.impl.pipeline.ExamineStatusAndReturnResult;
 import com.google.appengine.tools.mapreduce.impl.pipeline.ResultAndStatus;
@@ -122,7 +126,8 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
      * Starts a shardedJob for each map worker. The format of the files and output is defined by
      * {@link GoogleCloudStorageMapOutput}.
      *
-     * @returns A future containing the FilesByShard for the sortJob
+     * @returns A future containing the FilesByShard for the sortJob, or the sorted FilesByShard for
+     *          the mergeJob if the sort stage is pipelined
      */
     @Override
     public Value<MapReduceResult<FilesByShard>> run() {
@@ -140,7 +145,9 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
               mrJobId,
               mrSpec.getKeyMarshaller(),
               mrSpec.getValueMarshaller(),
-              new HashingSharder(getNumOutputFiles(readers.size())));
+              new HashingSharder(getNumOutputFiles(readers.size())),
+              settings.isCompressIntermediateData(),
+              mrSpec.getValueOrdering());
       output.setContext(context);
 
       List<? extends OutputWriter<KeyValue<K, V>>> writers = output.createWriters(readers.size());
@@ -152,6 +159,10 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
         mapTasks.add(new MapShardTask<>(mrJobId, i, readers.size(), readers.get(i),
             mrSpec.getMapper(), writers.get(i), settings.getMillisPerSlice()));
       }
+      if (settings.getPipelinedSortBatches() > 1 && !useHashGrouping(mrSpec, settings)) {
+        return runPipelined(output, mapTasks.build(),
+            Math.min(settings.getPipelinedSortBatches(), readers.size()));
+      }
       ShardedJobSettings shardedJobSettings =
           settings.toShardedJobSettings(shardedJobId, getPipelineKey());
 
@@ -166,7 +177,55 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
               statusConsoleUrl(shardedJobSettings.getMapReduceStatusUrl())));
     }
 
+    /**
+     * Runs the map tasks as {@code batches} sharded jobs, and starts a {@link SortJob} for the
+     * output of each one as soon as it completes, while the other ones may still be running.
+     *
+     * @returns A future containing the sorted FilesByShard of all batches for the mergeJob
+     */
+    private Value<MapReduceResult<FilesByShard>> runPipelined(
+        Output<KeyValue<K, V>, FilesByShard> output,
+        ImmutableList<WorkerShardTask<I, KeyValue<K, V>, MapperContext<K, V>>> mapTasks,
+        int batches) {
+      List<FutureValue<MapReduceResult<FilesByShard>>> sortResults = new ArrayList<>(batches);
+      for (int batch = 0; batch < batches; batch++) {
+        String batchJobId = getBatchJobId(batch);
+        ImmutableList<WorkerShardTask<I, KeyValue<K, V>, MapperContext<K, V>>> batchTasks =
+            mapTasks.subList(batch * mapTasks.size() / batches,
+                (batch + 1) * mapTasks.size() / batches);
+        ShardedJobSettings shardedJobSettings =
+            settings.toShardedJobSettings(batchJobId, getPipelineKey());
+
+        PromisedValue<ResultAndStatus<FilesByShard>> resultAndStatus = newPromise();
+        WorkerController<I, KeyValue<K, V>, FilesByShard, MapperContext<K, V>> workerController =
+            new WorkerController<>(mrJobId, new CountersImpl(), output,
+                resultAndStatus.getHandle());
+        ShardedJob<?> shardedJob =
+            new ShardedJob<>(batchJobId, batchTasks, workerController, shardedJobSettings);
+        FutureValue<Void> shardedJobResult = futureCall(shardedJob, settings.toJobSettings());
+        FutureValue<MapReduceResult<FilesByShard>> mapResult = futureCall(
+            new ExamineStatusAndReturnResult<FilesByShard>(batchJobId), resultAndStatus,
+            settings.toJobSettings(waitFor(shardedJobResult),
+                statusConsoleUrl(shardedJobSettings.getMapReduceStatusUrl())));
+        FutureValue<MapReduceResult<FilesByShard>> sortResult = futureCall(
+            new SortJob(mrJobId, mrSpec, settings, batch), mapResult,
+            settings.toJobSettings(maxAttempts(1)));
+        futureCall(new Cleanup(settings), mapResult, waitFor(sortResult));
+        sortResults.add(sortResult);
+      }
+      return futureCall(new CombineSortResults(), futureList(sortResults),
+          settings.toJobSettings(maxAttempts(1)));
+    }
+
+    private String getBatchJobId(int batch) {
+      return shardedJobId + "-" + batch;
+    }
+
     private int getNumOutputFiles(int mapShards) {
+      if (useHashGrouping(mrSpec, settings)) {
+        // Each reduce shard reads the files of its own consecutive map output shards.
+        return mrSpec.getNumReducers() * getHashGroupPartitions(mrSpec, settings);
+      }
       return Math.min(settings.getMapFanout(), Math.max(mapShards, mrSpec.getNumReducers()));
     }
 
@@ -174,6 +233,9 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     public Value<MapReduceResult<FilesByShard>> handleException(
         CancellationException ex) {
       ShardedJobServiceFactory.getShardedJobService().abortJob(shardedJobId);
+      for (int batch = 0; batch < settings.getPipelinedSortBatches(); batch++) {
+        ShardedJobServiceFactory.getShardedJobService().abortJob(getBatchJobId(batch));
+      }
       return null;
     }
   }
@@ -191,13 +253,25 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     private final MapReduceSpecification<?, ?, ?, ?, ?> mrSpec;
     private final MapReduceSettings settings;
     private final String shardedJobId;
+    /** Only null if not pipelined or as a result of an old version. */
+    private final Integer batch;
 
     private SortJob(
         String mrJobId, MapReduceSpecification<?, ?, ?, ?, ?> mrSpec, MapReduceSettings settings) {
+      this(mrJobId, mrSpec, settings, null);
+    }
+
+    /**
+     * @param batch the batch of map shards whose output is sorted by a pipelined map stage (see
+     *        {@link MapReduceSettings.Builder#setPipelinedSortBatches}), or null if not pipelined.
+     */
+    private SortJob(String mrJobId, MapReduceSpecification<?, ?, ?, ?, ?> mrSpec,
+        MapReduceSettings settings, Integer batch) {
       this.mrJobId = checkNotNull(mrJobId, "Null mrJobId");
       this.mrSpec = checkNotNull(mrSpec, "Null mrSpec");
       this.settings = checkNotNull(settings, "Null settings");
-      shardedJobId = "sort-" + mrJobId;
+      this.batch = batch;
+      shardedJobId = "sort-" + mrJobId + (batch == null ? "" : "-" + batch);
     }
 
     @Override
@@ -221,9 +295,16 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
       GoogleCloudStorageSortInput input = new GoogleCloudStorageSortInput(filesByShard);
       ((Input<?>) input).setContext(context);
       List<? extends InputReader<KeyValue<ByteBuffer, ByteBuffer>>> readers = input.createReaders();
+      Sharder sharder = new HashingSharder(reduceShards);
+      if (mrSpec.getValueOrdering() != null) {
+        sharder = new CompositeKeySharder(sharder);
+      }
+      // The files of each batch go to a directory of their own, as sort shards of different
+      // batches have the same numbers.
       Output<KeyValue<ByteBuffer, List<ByteBuffer>>, FilesByShard> output =
-          new GoogleCloudStorageSortOutput(settings.getBucketName(), mrJobId,
-              new HashingSharder(reduceShards));
+          new GoogleCloudStorageSortOutput(settings.getBucketName(),
+              batch == null ? mrJobId : mrJobId + "-" + batch, sharder,
+              settings.isCompressIntermediateData(), settings.isPrefixCompressSortedKeys());
       output.setContext(context);
 
       List<? extends OutputWriter<KeyValue<ByteBuffer, List<ByteBuffer>>>> writers =
@@ -266,6 +347,33 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     }
   }
 
+  /**
+   * Combines the results of the sort jobs of a pipelined map stage, so that the merge stage reads
+   * the files of all of them for each reduce shard.
+   */
+  private static class CombineSortResults extends
+      Job1<MapReduceResult<FilesByShard>, List<MapReduceResult<FilesByShard>>> {
+
+    private static final long serialVersionUID = -2587946416296437207L;
+
+    @Override
+    public Value<MapReduceResult<FilesByShard>> run(List<MapReduceResult<FilesByShard>> results) {
+      FilesByShard first = results.get(0).getOutputResult();
+      FilesByShard combined = new FilesByShard(first.getShardCount(), first.getBucket());
+      CountersImpl counters = new CountersImpl();
+      for (MapReduceResult<FilesByShard> result : results) {
+        FilesByShard files = result.getOutputResult();
+        for (int shard = 0; shard < files.getShardCount(); shard++) {
+          combined.addFilesToShard(shard, files.getFilesForShard(shard).getFileNames());
+        }
+        counters.addAll(result.getCounters());
+      }
+      MapReduceResult<FilesByShard> combinedResult =
+          new MapReduceResultImpl<>(combined, counters);
+      return immediate(combinedResult);
+    }
+  }
+
   /**
    * The pipeline job to execute the optional Merge stage of the MapReduce. (For all shards)
    */
@@ -317,7 +425,8 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
           input.createReaders();
 
       Output<KeyValue<ByteBuffer, List<ByteBuffer>>, FilesByShard> output =
-          new GoogleCloudStorageMergeOutput(settings.getBucketName(), mrJobId, tier);
+          new GoogleCloudStorageMergeOutput(settings.getBucketName(), mrJobId, tier,
+              settings.isCompressIntermediateData(), settings.isPrefixCompressSortedKeys());
       output.setContext(context);
 
       List<? extends OutputWriter<KeyValue<ByteBuffer, List<ByteBuffer>>>> writers =
@@ -400,16 +509,25 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     /**
      * Takes in the output from merge, and creates a sharded task to call the reducer with the
      * ordered input.
-     * The way the data is read in is defined by {@link GoogleCloudStorageReduceInput}
+     * The way the data is read in is defined by {@link GoogleCloudStorageReduceInput}, or by
+     * {@link GoogleCloudStorageHashGroupInput} when grouping the unsorted output of the map stage.
      */
     @Override
     public Value<MapReduceResult<R>> run(MapReduceResult<FilesByShard> mergeResult) {
       Context context = new BaseContext(mrJobId);
       Output<O, R> output = mrSpec.getOutput();
       output.setContext(context);
-      GoogleCloudStorageReduceInput<K, V> input = new GoogleCloudStorageReduceInput<>(
-          mergeResult.getOutputResult(), mrSpec.getKeyMarshaller(), mrSpec.getValueMarshaller());
-      ((Input<?>) input).setContext(context);
+      Input<KeyValue<K, Iterator<V>>> input;
+      if (useHashGrouping(mrSpec, settings)) {
+        input = new GoogleCloudStorageHashGroupInput<>(settings.getBucketName(), mrJobId,
+            mergeResult.getOutputResult(), getHashGroupPartitions(mrSpec, settings),
+            mrSpec.getKeyMarshaller(), mrSpec.getValueMarshaller(), getHashGroupMemory(settings));
+      } else {
+        input = new GoogleCloudStorageReduceInput<>(mergeResult.getOutputResult(),
+            mrSpec.getKeyMarshaller(), mrSpec.getValueMarshaller(),
+            mrSpec.getValueOrdering() != null);
+      }
+      input.setContext(context);
       List<? extends InputReader<KeyValue<K, Iterator<V>>>> readers = input.createReaders();
 
       List<? extends OutputWriter<O>> writers = output.createWriters(mrSpec.getNumReducers());
@@ -442,6 +560,32 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     }
   }
 
+  /**
+   * Returns true if the reduce stage should group the unsorted output of the map stage by hashing
+   * its keys, skipping the sort and merge stages. This requires a reducer that does not need sorted
+   * keys or values, and the map stage to write at least a file per reduce shard.
+   */
+  private static boolean useHashGrouping(MapReduceSpecification<?, ?, ?, ?, ?> mrSpec,
+      MapReduceSettings settings) {
+    return !mrSpec.getReducer().requiresSortedKeys() && mrSpec.getValueOrdering() == null
+        && mrSpec.getNumReducers() <= settings.getMapFanout();
+  }
+
+  /**
+   * Returns the number of partitions the map stage writes for each reduce shard when grouping by
+   * hashing, using the whole of the map fanout so that a reduce slice reads as little as possible.
+   */
+  private static int getHashGroupPartitions(MapReduceSpecification<?, ?, ?, ?, ?> mrSpec,
+      MapReduceSettings settings) {
+    return Math.max(1, settings.getMapFanout() / mrSpec.getNumReducers());
+  }
+
+  private static long getHashGroupMemory(MapReduceSettings settings) {
+    long available = MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB * 1024L * 1024L / 4;
+    Long maxMemory = settings.getMaxSortMemory();
+    return Math.max(1, maxMemory == null ? available : Math.min(maxMemory, available));
+  }
+
   private static class Cleanup extends Job1<Void, MapReduceResult<FilesByShard>> {
 
     private static final long serialVersionUID = 4559443543355672948L;
@@ -482,16 +626,28 @@ public class MapReduceJob<I, K, V, O, R> extends Job0<MapReduceResult<R>> {
     FutureValue<MapReduceResult<FilesByShard>> mapResult = futureCall(
         new MapJob<>(mrJobId, specification, settings), settings.toJobSettings(maxAttempts(1)));
 
-    FutureValue<MapReduceResult<FilesByShard>> sortResult = futureCall(
-        new SortJob(mrJobId, specification, settings), mapResult,
-        settings.toJobSettings(maxAttempts(1)));
+    if (useHashGrouping(specification, settings)) {
+      FutureValue<MapReduceResult<R>> reduceResult = futureCall(
+          new ReduceJob<>(mrJobId, specification, settings), mapResult,
+          settings.toJobSettings(maxAttempts(1)));
+      futureCall(new Cleanup(settings), mapResult, waitFor(reduceResult));
+      return reduceResult;
+    }
+    FutureValue<MapReduceResult<FilesByShard>> sortResult;
+    if (settings.getPipelinedSortBatches() > 1) {
+      // The map stage sorted its output, and cleaned up the unsorted files.
+      sortResult = mapResult;
+    } else {
+      sortResult = futureCall(new SortJob(mrJobId, specification, settings), mapResult,
+          settings.toJobSettings(maxAttempts(1)));
+      futureCall(new Cleanup(settings), mapResult, waitFor(sortResult));
+    }
     FutureValue<MapReduceResult<FilesByShard>> mergeResult = futureCall(
         new MergeJob(mrJobId, specification, settings, 1), sortResult,
         settings.toJobSettings(maxAttempts(1)));
     FutureValue<MapReduceResult<R>> reduceResult = futureCall(
         new ReduceJob<>(mrJobId, specification, settings), mergeResult,
         settings.toJobSettings(maxAttempts(1)));
-    futureCall(new Cleanup(settings), mapResult, waitFor(sortResult));
     futureCall(new Cleanup(settings), mergeResult, waitFor(reduceResult));
     return reduceResult;
   }
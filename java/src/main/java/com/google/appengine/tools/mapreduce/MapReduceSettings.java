@@ -36,6 +36,7 @@ public class MapReduceSettings extends MapSettings {
   public static final int DEFAULT_SORT_BATCH_PER_EMIT_BYTES = 32 * 1024;
   public static final int DEFAULT_SORT_READ_TIME_MILLIS = 180000;
   public static final int DEFAULT_MERGE_FANIN = 32;
+  public static final int DEFAULT_PIPELINED_SORT_BATCHES = 1;
 
 
   private final String bucketName;
@@ -44,6 +45,10 @@ public class MapReduceSettings extends MapSettings {
   private final int sortReadTimeMillis;
   private final int sortBatchPerEmitBytes;
   private final int mergeFanin;
+  private final boolean compressIntermediateData;
+  private final boolean prefixCompressSortedKeys;
+  /** Only 0 as a result of an old version. */
+  private final int pipelinedSortBatches;
 
   public static class Builder extends BaseBuilder<Builder> {
 
@@ -53,6 +58,9 @@ public class MapReduceSettings extends MapSettings {
     private int sortReadTimeMillis = DEFAULT_SORT_READ_TIME_MILLIS;
     private int sortBatchPerEmitBytes = DEFAULT_SORT_BATCH_PER_EMIT_BYTES;
     private int mergeFanin = DEFAULT_MERGE_FANIN;
+    private boolean compressIntermediateData;
+    private boolean prefixCompressSortedKeys;
+    private int pipelinedSortBatches = DEFAULT_PIPELINED_SORT_BATCHES;
 
     public Builder() {}
 
@@ -64,6 +72,9 @@ public class MapReduceSettings extends MapSettings {
       this.sortReadTimeMillis = settings.sortReadTimeMillis;
       this.sortBatchPerEmitBytes = settings.sortBatchPerEmitBytes;
       this.mergeFanin = settings.mergeFanin;
+      this.compressIntermediateData = settings.compressIntermediateData;
+      this.prefixCompressSortedKeys = settings.prefixCompressSortedKeys;
+      this.pipelinedSortBatches = settings.getPipelinedSortBatches();
     }
 
     public Builder(MapSettings settings) {
@@ -89,6 +100,10 @@ public class MapReduceSettings extends MapSettings {
      * increase the speed of the job at the expense of more memory used during the map and sort
      * phases and more intermediate files created.
      *
+     * Each map shard buffers its output in up to 16 MB, shared by the files it writes to. Above
+     * a fanout of about 50 this grows by 320 KB per file, so that each file is written in parts of
+     * at least 256 KB, and the memory needed by a map shard grows linearly with the fanout.
+     *
      * Using the default is recommended.
      */
     public Builder setMapFanout(int mapFanout) {
@@ -102,6 +117,9 @@ public class MapReduceSettings extends MapSettings {
      * amount of memory it will use. Regardless of this setting it will not exhaust available
      * memory. Null or unset will use the default (no maximum)
      *
+     * When the reducer does not require sorted keys, this also limits the memory each reduce shard
+     * uses to group its values, see {@link Reducer#requiresSortedKeys}.
+     *
      * Using the default is recommended.
      */
     public Builder setMaxSortMemory(Long maxMemory) {
@@ -145,6 +163,43 @@ public class MapReduceSettings extends MapSettings {
       return this;
     }
 
+    /**
+     * If true the intermediate files written by the map, sort and merge stages are block
+     * compressed. This reduces the amount of data written to and read from GCS at the expense of
+     * CPU, so it is worthwhile when keys and values are compressible (such as text). Defaults to
+     * false.
+     */
+    public Builder setCompressIntermediateData(boolean compressIntermediateData) {
+      this.compressIntermediateData = compressIntermediateData;
+      return this;
+    }
+
+    /**
+     * If true the keys in the files written by the sort and merge stages are stored as the length
+     * of the prefix they share with the previous key followed by the rest of the key. This reduces
+     * the size of these files when keys have long common prefixes (such as URLs or composite keys).
+     * Defaults to false.
+     */
+    public Builder setPrefixCompressSortedKeys(boolean prefixCompressSortedKeys) {
+      this.prefixCompressSortedKeys = prefixCompressSortedKeys;
+      return this;
+    }
+
+    /**
+     * If greater than 1 the map shards are run as this many groups, and the output of each group
+     * is sorted as soon as all of its shards complete, while the shards of the other groups may
+     * still be running. This hides most of the sort stage behind the map stage, at the expense of
+     * more sorted files for the merge stage to combine. All groups run at the same time, so the
+     * sort of a group overlaps with the map shards of the groups that take longer. Defaults to
+     * {@value #DEFAULT_PIPELINED_SORT_BATCHES}, which sorts the map output only after all the map
+     * shards complete.
+     */
+    public Builder setPipelinedSortBatches(int pipelinedSortBatches) {
+      Preconditions.checkArgument(pipelinedSortBatches > 0);
+      this.pipelinedSortBatches = pipelinedSortBatches;
+      return this;
+    }
+
     public MapReduceSettings build() {
       return new MapReduceSettings(this);
     }
@@ -158,6 +213,9 @@ public class MapReduceSettings extends MapSettings {
     sortReadTimeMillis = builder.sortReadTimeMillis;
     sortBatchPerEmitBytes = builder.sortBatchPerEmitBytes;
     mergeFanin = builder.mergeFanin;
+    compressIntermediateData = builder.compressIntermediateData;
+    prefixCompressSortedKeys = builder.prefixCompressSortedKeys;
+    pipelinedSortBatches = builder.pipelinedSortBatches;
   }
 
   String getBucketName() {
@@ -184,11 +242,26 @@ public class MapReduceSettings extends MapSettings {
     return mergeFanin;
   }
 
+  boolean isCompressIntermediateData() {
+    return compressIntermediateData;
+  }
+
+  boolean isPrefixCompressSortedKeys() {
+    return prefixCompressSortedKeys;
+  }
+
+  int getPipelinedSortBatches() {
+    return Math.max(1, pipelinedSortBatches);
+  }
+
   @Override
   public String toString() {
     return "MapReduceSettings [bucketName=" + bucketName + ", mapFanout=" + mapFanout
         + ", maxSortMemory=" + maxSortMemory + ", sortReadTimeMillis=" + sortReadTimeMillis
-        + ", sortBatchPerEmitBytes=" + sortBatchPerEmitBytes + ", mergeFanin=" + mergeFanin + "]";
+        + ", sortBatchPerEmitBytes=" + sortBatchPerEmitBytes + ", mergeFanin=" + mergeFanin
+        + ", compressIntermediateData=" + compressIntermediateData
+        + ", prefixCompressSortedKeys=" + prefixCompressSortedKeys
+        + ", pipelinedSortBatches=" + pipelinedSortBatches + "]";
   }
 
   private static String verifyAndSetBucketName(String bucket) {
@@ -6,8 +6,14 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.appengine.tools.mapreduce.impl.MapReduceConstants;
+import com.google.appengine.tools.mapreduce.impl.TaggedValueMarshaller;
+import com.google.appengine.tools.mapreduce.reducers.JoinReducer;
 import com.google.common.base.Optional;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Specification for a MapReduce job. The values here affect what computation is performed in the
  * MapReduce and its side-effects, but not how it is executed; see {@link MapReduceSettings} for
@@ -33,6 +39,7 @@ public final class MapReduceSpecification<I, K, V, O, R> extends BaseSpecificati
     private Marshaller<V> valueMarshaller;
     private Reducer<K, V, ? extends O> reducer;
     private Integer numReducers;
+    private ValueOrdering<V> valueOrdering;
 
     public Builder() {
       jobName = "MapReduceJob";
@@ -96,16 +103,140 @@ public final class MapReduceSpecification<I, K, V, O, R> extends BaseSpecificati
       return this;
     }
 
+    /**
+     * @param valueOrdering if set, the values of each key are passed to the {@code reducer} in the
+     *        order it defines, rather than in an unspecified order. Values are sorted by the sort
+     *        stage, so this does not require holding the values of a key in memory.
+     */
+    public Builder<I, K, V, O, R> setValueOrdering(ValueOrdering<V> valueOrdering) {
+      this.valueOrdering = valueOrdering;
+      return this;
+    }
+
     public MapReduceSpecification<I, K, V, O, R> build() {
       return new MapReduceSpecification<>(this);
     }
   }
 
+  /**
+   * Builds the specification of a MapReduce that joins several inputs by key. Each input has its
+   * own mapper, and all the mappers emit the same types of keys and values. The values are tagged
+   * with the index of the input they come from (in the order of {@link #addInput}) and, within each
+   * key, are sorted by that index using a {@link ValueOrdering}. A
+   * {@link com.google.appengine.tools.mapreduce.reducers.JoinReducer} receives them as one
+   * {@link ReducerInput} per input.
+   *
+   * @param <K> type of intermediate keys
+   * @param <V> type of intermediate values
+   * @param <O> type of output values
+   * @param <R> type of result returned by the {@link Output}
+   */
+  public static class JoinBuilder<K, V, O, R> {
+
+    private final List<Input<?>> inputs = new ArrayList<>();
+    private final List<Mapper<?, K, V>> mappers = new ArrayList<>();
+    private final Builder<KeyValue<Integer, Object>, K, KeyValue<Integer, V>, O, R> builder =
+        new Builder<>();
+    private Marshaller<V> valueMarshaller;
+    private JoinReducer<K, V, ? extends O> reducer;
+
+    /**
+     * Adds an input to join, and the mapper that processes it.
+     */
+    public <T> JoinBuilder<K, V, O, R> addInput(Input<T> input, Mapper<T, K, V> mapper) {
+      checkArgument(inputs.size() < TaggedValueMarshaller.MAX_TAGS,
+          "At most %s inputs can be joined", TaggedValueMarshaller.MAX_TAGS);
+      inputs.add(checkNotNull(input, "Null input"));
+      mappers.add(checkNotNull(mapper, "Null mapper"));
+      return this;
+    }
+
+    /**
+     * @param jobName descriptive name for the job (human readable, does not have to be unique).
+     */
+    public JoinBuilder<K, V, O, R> setJobName(String jobName) {
+      builder.setJobName(jobName);
+      return this;
+    }
+
+    /**
+     * @param marshaller turns intermediate keys into bytes and back.
+     */
+    public JoinBuilder<K, V, O, R> setKeyMarshaller(Marshaller<K> marshaller) {
+      builder.setKeyMarshaller(marshaller);
+      return this;
+    }
+
+    /**
+     * @param marshaller turns intermediate values into bytes and back. defaults to
+     *        {@link Marshallers#getSerializationMarshaller}.
+     */
+    public JoinBuilder<K, V, O, R> setValueMarshaller(Marshaller<V> marshaller) {
+      valueMarshaller = marshaller;
+      return this;
+    }
+
+    /**
+     * @param reducer processes the values of each key, grouped by input.
+     */
+    public JoinBuilder<K, V, O, R> setReducer(JoinReducer<K, V, ? extends O> reducer) {
+      this.reducer = reducer;
+      builder.setReducer(reducer);
+      return this;
+    }
+
+    /**
+     * @param output specifies what to do with output values.
+     */
+    public JoinBuilder<K, V, O, R> setOutput(Output<? super O, ? extends R> output) {
+      builder.setOutput(output);
+      return this;
+    }
+
+    /**
+     * @param numReducers specify the number of reducers
+     */
+    public JoinBuilder<K, V, O, R> setNumReducers(int numReducers) {
+      builder.setNumReducers(numReducers);
+      return this;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public MapReduceSpecification<KeyValue<Integer, Object>, K, KeyValue<Integer, V>, O, R>
+        build() {
+      checkArgument(!inputs.isEmpty(), "No inputs");
+      checkNotNull(reducer, "Null reducer");
+      checkArgument(reducer.getInputCount() == inputs.size(),
+          "Reducer joins %s inputs but %s were added", reducer.getInputCount(), inputs.size());
+      Marshaller<V> marshaller = Optional.fromNullable(valueMarshaller)
+          .or((Marshaller) Marshallers.getSerializationMarshaller());
+      return builder.setInput(new JoinInput(inputs))
+          .setMapper(new JoinMapper<>(mappers))
+          .setValueMarshaller(new TaggedValueMarshaller<>(marshaller))
+          .setValueOrdering(new TagOrdering<V>())
+          .build();
+    }
+  }
+
+  /**
+   * Sorts the values of a join by the index of their input.
+   */
+  private static final class TagOrdering<V> extends ValueOrdering<KeyValue<Integer, V>> {
+
+    private static final long serialVersionUID = 1788461232467418095L;
+
+    @Override
+    public ByteBuffer getSortKey(KeyValue<Integer, V> value) {
+      return TaggedValueMarshaller.encodeTag(value.getKey());
+    }
+  }
+
   private final Mapper<I, K, V> mapper;
   private final Marshaller<K> keyMarshaller;
   private final Marshaller<V> valueMarshaller;
   private final Reducer<K, V, O> reducer;
   private final int numReducers;
+  private final ValueOrdering<V> valueOrdering;
 
   @SuppressWarnings({"rawtypes", "unchecked"})
   private MapReduceSpecification(Builder builder) {
@@ -119,6 +250,7 @@ public final class MapReduceSpecification<I, K, V, O, R> extends BaseSpecificati
     reducer = checkNotNull(builder.reducer, "Null reducer");
     numReducers = checkNumShards("reduce", Optional.fromNullable(builder.numReducers).or(1),
         MapReduceConstants.MAX_REDUCE_SHARDS);
+    valueOrdering = builder.valueOrdering;
   }
 
   private static int checkNumShards(String stage, int shards, int maxShards) {
@@ -147,6 +279,10 @@ public final class MapReduceSpecification<I, K, V, O, R> extends BaseSpecificati
     return numReducers;
   }
 
+  ValueOrdering<V> getValueOrdering() {
+    return valueOrdering;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(" + getJobName() + ", " + getInput() + ", " + mapper
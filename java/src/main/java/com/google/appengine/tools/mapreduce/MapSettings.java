@@ -49,6 +49,7 @@ public class MapSettings implements Serializable {
   public static final String WORKER_PATH = "workerCallback";
   public static final int DEFAULT_MILLIS_PER_SLICE = 180_000;
   public static final double DEFAULT_SLICE_TIMEOUT_RATIO = 1.1;
+  public static final double DEFAULT_SPECULATIVE_SLICE_RATIO = 0;
   public static final int DEFAULT_SHARD_RETRIES = 4;
   public static final int DEFAULT_SLICE_RETRIES = 20;
 
@@ -58,6 +59,8 @@ public class MapSettings implements Serializable {
   private final String workerQueueName;
   private final int millisPerSlice;
   private final double sliceTimeoutRatio;
+  /** Only 0 if disabled or as a result of an old version. */
+  private final double speculativeSliceRatio;
   private final int maxShardRetries;
   private final int maxSliceRetries;
 
@@ -69,6 +72,7 @@ public class MapSettings implements Serializable {
     protected String workerQueueName;
     protected int millisPerSlice = DEFAULT_MILLIS_PER_SLICE;
     protected double sliceTimeoutRatio = DEFAULT_SLICE_TIMEOUT_RATIO;
+    protected double speculativeSliceRatio = DEFAULT_SPECULATIVE_SLICE_RATIO;
     protected int maxShardRetries = DEFAULT_SHARD_RETRIES;
     protected int maxSliceRetries = DEFAULT_SLICE_RETRIES;
 
@@ -81,6 +85,7 @@ public class MapSettings implements Serializable {
       backend = settings.getBackend();
       workerQueueName = settings.getWorkerQueueName();
       millisPerSlice = settings.getMillisPerSlice();
+      speculativeSliceRatio = settings.getSpeculativeSliceRatio();
       maxShardRetries = settings.getMaxShardRetries();
       maxSliceRetries = settings.getMaxSliceRetries();
     }
@@ -142,6 +147,19 @@ public class MapSettings implements Serializable {
       return self();
     }
 
+    /**
+     * Sets how many times longer than the median slice of the job a slice has to run before a
+     * duplicate attempt of it is started on another request. Whichever attempt finishes first is
+     * committed. This is only done for slices whose worker and output writer allow concurrent
+     * attempts (see {@link Worker#allowConcurrentSliceAttempts} and
+     * {@link OutputWriter#allowConcurrentSliceAttempts}). Use 0 to disable, which is the default.
+     */
+    public B setSpeculativeSliceRatio(double speculativeSliceRatio) {
+      Preconditions.checkArgument(speculativeSliceRatio == 0 || speculativeSliceRatio > 1.0);
+      this.speculativeSliceRatio = speculativeSliceRatio;
+      return self();
+    }
+
     /**
      * The number of times a Shard can fail before it gives up and fails the whole job.
      */
@@ -190,6 +208,7 @@ public class MapSettings implements Serializable {
     workerQueueName = checkQueueSettings(builder.workerQueueName);
     millisPerSlice = builder.millisPerSlice;
     sliceTimeoutRatio = builder.sliceTimeoutRatio;
+    speculativeSliceRatio = builder.speculativeSliceRatio;
     maxShardRetries = builder.maxShardRetries;
     maxSliceRetries = builder.maxSliceRetries;
   }
@@ -218,6 +237,10 @@ public class MapSettings implements Serializable {
     return sliceTimeoutRatio;
   }
 
+  double getSpeculativeSliceRatio() {
+    return speculativeSliceRatio;
+  }
+
   int getMaxShardRetries() {
     return maxShardRetries;
   }
@@ -235,6 +258,7 @@ public class MapSettings implements Serializable {
         + workerQueueName + ", "
         + millisPerSlice + ", "
         + sliceTimeoutRatio + ", "
+        + speculativeSliceRatio + ", "
         + maxSliceRetries + ", "
         + maxShardRetries + ")";
   }
@@ -303,7 +327,8 @@ public class MapSettings implements Serializable {
         .setMaxShardRetries(maxShardRetries)
         .setMaxSliceRetries(maxSliceRetries)
         .setSliceTimeoutMillis(
-            Math.max(DEFAULT_SLICE_TIMEOUT_MILLIS, (int) (millisPerSlice * sliceTimeoutRatio)));
+            Math.max(DEFAULT_SLICE_TIMEOUT_MILLIS, (int) (millisPerSlice * sliceTimeoutRatio)))
+        .setSpeculativeSliceRatio(speculativeSliceRatio);
     return runWithRetries(new Callable<ShardedJobSettings>() {
       @Override public ShardedJobSettings call() {
         return builder.build();
@@ -1,6 +1,7 @@
 // Copyright 2011 Google Inc. All Rights Reserved.
 package com.google.appengine.tools.mapreduce;
 
+import java.util.Map;
 
 /**
  * A context for mapper execution. Provides everything that might be needed by a mapper function.
@@ -15,4 +16,10 @@ public interface MapperContext<K, V> extends WorkerContext<KeyValue<K, V>> {
    * Emits a key and a value to the output.
    */
   void emit(K key, V value);
+
+  /**
+   * Returns a read-only map of the entries of {@code sideInput}, which is read only if it is not
+   * already cached in this JVM. The map must not be used after the current slice ends.
+   */
+  <SK, SV> Map<SK, SV> getSideInput(SideInput<SK, SV> sideInput);
 }
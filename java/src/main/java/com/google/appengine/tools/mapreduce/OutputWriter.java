@@ -115,6 +115,15 @@ public abstract class OutputWriter<O> implements Serializable {
     return false;
   }
 
+  /**
+   * Returns true if two attempts of the same slice may write to copies of this writer at the same
+   * time. Only the attempt that finishes first is committed, so the output written by the other
+   * attempt must neither be visible nor overwrite the output of the committed one.
+   */
+  public boolean allowConcurrentSliceAttempts() {
+    return false;
+  }
+
   /**
    * called after shards completes for any necessary cleanup.
    */
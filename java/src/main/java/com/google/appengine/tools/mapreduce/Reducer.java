@@ -29,6 +29,18 @@ public abstract class Reducer<K, V, O> extends Worker<ReducerContext<O>> {
    */
   public abstract void reduce(K key, ReducerInput<V> values);
 
+  /**
+   * Returns whether {@link #reduce} must be called with the keys of each shard in sorted order.
+   *
+   * A reducer that does not depend on the order of its keys can return false, which allows the
+   * MapReduce to skip the sort and merge stages and to group the values of each reduce shard by
+   * hashing their keys instead. The values of a key are still all passed in a single call, but
+   * their order, and the order of the keys, is unspecified.
+   */
+  public boolean requiresSortedKeys() {
+    return true;
+  }
+
   /**
    * Syntactic sugar for {@code getContext().emit(value)}
    */
@@ -0,0 +1,66 @@
+package com.google.appengine.tools.mapreduce;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A named, read-only table of keys and values that mappers look values up in, obtained with
+ * {@link MapperContext#getSideInput}. It is read once per JVM and version, and shared by all the
+ * slices that run concurrently or later in the same JVM until it is evicted to free memory.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public abstract class SideInput<K, V> implements Serializable {
+
+  private static final long serialVersionUID = 4178208390474291263L;
+
+  private final String name;
+  private final Marshaller<K> keyMarshaller;
+  private final Marshaller<V> valueMarshaller;
+
+  /**
+   * @param name identifies the data of this side input in the JVM.
+   * @param keyMarshaller serializes the keys of the table and the keys it is queried with, so it
+   *        must serialize equal keys to the same bytes.
+   * @param valueMarshaller serializes the values of the table.
+   */
+  protected SideInput(String name, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) {
+    this.name = checkNotNull(name, "Null name");
+    this.keyMarshaller = checkNotNull(keyMarshaller, "Null keyMarshaller");
+    this.valueMarshaller = checkNotNull(valueMarshaller, "Null valueMarshaller");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Marshaller<K> getKeyMarshaller() {
+    return keyMarshaller;
+  }
+
+  public Marshaller<V> getValueMarshaller() {
+    return valueMarshaller;
+  }
+
+  /**
+   * Returns the version of the data, such as the etag of the file it is read from. It is called
+   * at the start of every slice that uses this side input, and a copy read with a different
+   * version is not used again.
+   */
+  public abstract String getVersion() throws IOException;
+
+  /**
+   * Returns a reader of the entries of the table, in any order. The reader is taken through its
+   * whole lifecycle ({@link InputReader#beginShard} to {@link InputReader#endShard}) within one
+   * slice. Each key must appear only once.
+   */
+  public abstract InputReader<KeyValue<K, V>> createReader() throws IOException;
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(" + name + ")";
+  }
+}
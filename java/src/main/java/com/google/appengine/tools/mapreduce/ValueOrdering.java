@@ -0,0 +1,37 @@
+package com.google.appengine.tools.mapreduce;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Defines the order in which the values of a key are passed to the {@link Reducer}, see
+ * {@link MapReduceSpecification.Builder#setValueOrdering}.
+ *
+ * The sort key of each value is computed when the value is emitted by the mapper, and is sorted
+ * together with the key of the value by the sort stage, so that the reducer receives the values
+ * of a key in order without having to hold them in memory.
+ *
+ * @param <V> type of intermediate values
+ */
+public abstract class ValueOrdering<V> implements Serializable {
+
+  private static final long serialVersionUID = -1403590286233843264L;
+
+  /**
+   * Returns the sort key of {@code value}. Values are passed to the reducer in the unsigned
+   * lexicographical order of their sort keys. The order of values with equal sort keys is
+   * unspecified.
+   */
+  public abstract ByteBuffer getSortKey(V value);
+
+  /**
+   * Returns a sort key for {@code value} that orders longs numerically, such as for sorting values
+   * by a timestamp.
+   */
+  public static ByteBuffer toSortKey(long value) {
+    ByteBuffer result = ByteBuffer.allocate(8);
+    // Flipping the sign bit makes negative numbers sort before positive ones.
+    result.putLong(0, value ^ Long.MIN_VALUE);
+    return result;
+  }
+}
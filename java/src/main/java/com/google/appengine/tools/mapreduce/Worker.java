@@ -105,4 +105,13 @@ public abstract class Worker<C extends WorkerContext<?>> implements Serializable
   public boolean allowSliceRetry() {
     return true;
   }
+
+  /**
+   * Indicate if a second attempt of a slice may run while the previous attempt is still running.
+   * Only the attempt that finishes first is committed, so this should only return true if the
+   * worker has no side effects other than its output.
+   */
+  public boolean allowConcurrentSliceAttempts() {
+    return false;
+  }
 }
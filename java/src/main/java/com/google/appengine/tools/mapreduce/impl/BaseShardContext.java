@@ -5,9 +5,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.appengine.tools.mapreduce.Counter;
 import com.google.appengine.tools.mapreduce.Counters;
 import com.google.appengine.tools.mapreduce.OutputWriter;
+import com.google.appengine.tools.mapreduce.SideInput;
 import com.google.appengine.tools.mapreduce.WorkerContext;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RecoverableException;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
@@ -22,6 +26,7 @@ public abstract class BaseShardContext<O> extends BaseContext implements WorkerC
   private final Counters counters;
   private final OutputWriter<O> outputWriter;
   private boolean emitCalled;
+  private final Map<String, SideInputCache.Reference> sideInputs = new HashMap<>();
 
   public BaseShardContext(IncrementalTaskContext taskContext, OutputWriter<O> outputWriter) {
     super(taskContext.getJobId());
@@ -74,4 +79,29 @@ public abstract class BaseShardContext<O> extends BaseContext implements WorkerC
   boolean emitCalled() {
     return emitCalled;
   }
+
+  /**
+   * Returns the entries of {@code sideInput} from the {@link SideInputCache}. The table is
+   * referenced until {@link #releaseSideInputs} is called at the end of the slice.
+   */
+  public <K, V> Map<K, V> getSideInput(SideInput<K, V> sideInput) {
+    SideInputCache.Reference reference = sideInputs.get(sideInput.getName());
+    if (reference == null) {
+      try {
+        reference = SideInputCache.getInstance().acquire(sideInput);
+      } catch (IOException e) {
+        throw new RecoverableException("Failed to read " + sideInput, e);
+      }
+      sideInputs.put(sideInput.getName(), reference);
+    }
+    return reference.getTable().asMap(sideInput.getKeyMarshaller(),
+        sideInput.getValueMarshaller());
+  }
+
+  void releaseSideInputs() {
+    for (SideInputCache.Reference reference : sideInputs.values()) {
+      reference.release();
+    }
+    sideInputs.clear();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,35 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.Sharder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shards composite keys (see {@link CompositeKeys}) by the key they were encoded from, so that all
+ * the values of a key go to the same shard regardless of their sort keys.
+ */
+public class CompositeKeySharder implements Sharder {
+
+  private static final long serialVersionUID = -3208536046424730416L;
+
+  private final Sharder sharder;
+
+  /**
+   * @param sharder used to shard the keys that the composite keys were encoded from.
+   */
+  public CompositeKeySharder(Sharder sharder) {
+    this.sharder = checkNotNull(sharder, "Null sharder");
+  }
+
+  @Override
+  public int getNumShards() {
+    return sharder.getNumShards();
+  }
+
+  @Override
+  public int getShardForKey(ByteBuffer key) {
+    return sharder.getShardForKey(CompositeKeys.decodeKey(key));
+  }
+}
@@ -0,0 +1,50 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Marshalls KeyValue pairs like {@link KeyValueMarshaller}, except that the key is written as a
+ * composite key (see {@link CompositeKeys}) that includes the sort key of the value. Used by the
+ * Mapper when the values of a key are to be passed to the Reducer in order.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CompositeKeyValueMarshaller<K, V> extends Marshaller<KeyValue<K, V>> {
+
+  private static final long serialVersionUID = 6361934573474436226L;
+
+  private final Marshaller<K> keyMarshaller;
+  private final ValueOrdering<V> valueOrdering;
+  private final KeyValueMarshaller<ByteBuffer, V> marshaller;
+
+  public CompositeKeyValueMarshaller(Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller,
+      ValueOrdering<V> valueOrdering) {
+    this.keyMarshaller = checkNotNull(keyMarshaller, "Null keyMarshaller");
+    this.valueOrdering = checkNotNull(valueOrdering, "Null valueOrdering");
+    marshaller = new KeyValueMarshaller<>(Marshallers.getByteBufferMarshaller(), valueMarshaller);
+  }
+
+  @Override
+  public ByteBuffer toBytes(KeyValue<K, V> keyValue) {
+    ByteBuffer key = CompositeKeys.encode(keyMarshaller.toBytes(keyValue.getKey()),
+        valueOrdering.getSortKey(keyValue.getValue()));
+    return marshaller.toBytes(KeyValue.of(key, keyValue.getValue()));
+  }
+
+  @Override
+  public KeyValue<K, V> fromBytes(ByteBuffer input) {
+    KeyValue<ByteBuffer, V> keyValue = marshaller.fromBytes(input);
+    K key = keyMarshaller.fromBytes(CompositeKeys.decodeKey(keyValue.getKey()));
+    return KeyValue.of(key, keyValue.getValue());
+  }
+}
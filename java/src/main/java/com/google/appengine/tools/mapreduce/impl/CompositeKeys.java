@@ -0,0 +1,76 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the serialized key of a value together with the sort key given to the value by a
+ * {@link ValueOrdering}, so that sorting the resulting composite keys lexicographically sorts them
+ * by key and then by sort key.
+ *
+ * The key is written first, with each 0 byte escaped as 0 0xFF and followed by the terminator
+ * 0 1. This keeps the composite keys of a key together, as the terminator compares lower than any
+ * byte of a longer key at the same position. The sort key follows the terminator unchanged.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class CompositeKeys {
+
+  private static final byte ESCAPE = 0;
+  private static final byte ESCAPED_ZERO = (byte) 0xFF;
+  private static final byte TERMINATOR = 1;
+
+  private CompositeKeys() {}
+
+  /**
+   * Returns the composite key for {@code key} and {@code sortKey}. The buffers are not modified.
+   */
+  public static ByteBuffer encode(ByteBuffer key, ByteBuffer sortKey) {
+    int zeros = 0;
+    for (int i = key.position(); i < key.limit(); i++) {
+      if (key.get(i) == ESCAPE) {
+        zeros++;
+      }
+    }
+    ByteBuffer result = ByteBuffer.allocate(key.remaining() + zeros + 2 + sortKey.remaining());
+    for (int i = key.position(); i < key.limit(); i++) {
+      byte b = key.get(i);
+      result.put(b);
+      if (b == ESCAPE) {
+        result.put(ESCAPED_ZERO);
+      }
+    }
+    result.put(ESCAPE).put(TERMINATOR);
+    result.put(sortKey.duplicate());
+    result.flip();
+    return result;
+  }
+
+  /**
+   * Returns the key that was encoded in {@code compositeKey}, which is not modified.
+   *
+   * @throws CorruptDataException if {@code compositeKey} was not returned by {@link #encode}.
+   */
+  public static ByteBuffer decodeKey(ByteBuffer compositeKey) {
+    ByteBuffer result = ByteBuffer.allocate(compositeKey.remaining());
+    for (int i = compositeKey.position(); i < compositeKey.limit() - 1; i++) {
+      byte b = compositeKey.get(i);
+      if (b != ESCAPE) {
+        result.put(b);
+        continue;
+      }
+      byte next = compositeKey.get(++i);
+      if (next == TERMINATOR) {
+        result.flip();
+        return result;
+      }
+      if (next != ESCAPED_ZERO) {
+        break;
+      }
+      result.put(ESCAPE);
+    }
+    throw new CorruptDataException("Invalid composite key");
+  }
+}
@@ -0,0 +1,217 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.mapreduce.DatastoreLookupPool;
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RejectRequestException;
+import com.google.appengine.tools.mapreduce.impl.util.EntitySizeEstimator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the results of the lookups of {@link DatastoreLookupPool}s, which evicts the least
+ * recently used results once it holds more than a number of them or more than a number of bytes.
+ * The size of a result is estimated from the size of the encoding of its entity.
+ * <p>
+ * Results are cached by the job that looked them up as well as by key, so that the JVM wide
+ * instance, which is shared by the pools of all the jobs that run in the JVM, never returns an
+ * entity that was cached by another job. The bounds of the JVM wide instance are the largest ones
+ * that were asked for, and its memory is claimed from the {@link MemoryLimiter} of the workers.
+ * The instance is dropped to release that memory when a slice needs it, and created again by the
+ * next pool that asks for it.
+ * <p>
+ * This class is thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class EntityCache {
+
+  private static final Logger log = Logger.getLogger(EntityCache.class.getName());
+
+  /**
+   * The estimated size of the objects that hold a result, besides its key and entity.
+   */
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private static EntityCache jvmInstance;
+
+  private final MemoryLimiter limiter;
+  private final LinkedHashMap<ScopedKey, Optional<Entity>> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private int maxCount;
+  private long maxBytes;
+  private long bytes;
+  private long claimedMb;
+  private boolean dropped;
+
+  private static final class ScopedKey {
+    private final String jobId;
+    private final Key key;
+    private final int size;
+
+    private ScopedKey(String jobId, Key key) {
+      this.jobId = jobId;
+      this.key = key;
+      size = ENTRY_OVERHEAD + jobId.length() + EntitySizeEstimator.estimateSize(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * jobId.hashCode() + key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ScopedKey)) {
+        return false;
+      }
+      ScopedKey other = (ScopedKey) obj;
+      return jobId.equals(other.jobId) && key.equals(other.key);
+    }
+  }
+
+  /**
+   * Creates a cache whose memory is not claimed, such as one that is used by a single pool.
+   */
+  public EntityCache(int maxCount, long maxBytes) {
+    this(null, maxCount, maxBytes);
+  }
+
+  private EntityCache(MemoryLimiter limiter, int maxCount, long maxBytes) {
+    checkArgument(maxCount >= 0, "Invalid maxCount: %s", maxCount);
+    checkArgument(maxBytes >= 0, "Invalid maxBytes: %s", maxBytes);
+    this.limiter = limiter;
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the JVM wide cache, after growing it to the given bounds if they are larger than its
+   * own, or {@code null} if the memory of a new instance cannot be claimed.
+   */
+  public static EntityCache getJvmInstance(int maxCount, long maxBytes) {
+    return getJvmInstance(WorkerShardTask.LIMITER, maxCount, maxBytes);
+  }
+
+  @VisibleForTesting
+  static synchronized EntityCache getJvmInstance(MemoryLimiter limiter, int maxCount,
+      long maxBytes) {
+    if (jvmInstance == null) {
+      EntityCache cache = new EntityCache(limiter, 0, 0);
+      if (!cache.grow(maxCount, maxBytes)) {
+        return null;
+      }
+      jvmInstance = cache;
+    } else {
+      jvmInstance.grow(maxCount, maxBytes);
+    }
+    return jvmInstance;
+  }
+
+  /**
+   * Drops the JVM wide cache, if any. Pools that still use it no longer cache results in it.
+   *
+   * @return the number of megabytes that were released to the {@link MemoryLimiter}.
+   */
+  public static synchronized long dropJvmInstance() {
+    if (jvmInstance == null) {
+      return 0;
+    }
+    long released = jvmInstance.drop();
+    jvmInstance = null;
+    return released;
+  }
+
+  /**
+   * Raises the bounds of this cache to the given ones, claiming the memory they need.
+   *
+   * @return false if the memory could not be claimed, in which case the bounds are unchanged.
+   */
+  private synchronized boolean grow(int maxCount, long maxBytes) {
+    if (maxCount <= this.maxCount && maxBytes <= this.maxBytes) {
+      return true;
+    }
+    long newMaxBytes = Math.max(maxBytes, this.maxBytes);
+    long toClaimMb = ((newMaxBytes + (1 << 20) - 1) >> 20) - claimedMb;
+    if (toClaimMb > 0) {
+      try {
+        claimedMb += limiter.claim(toClaimMb);
+      } catch (RejectRequestException e) {
+        log.warning("Not enough memory for " + newMaxBytes + " bytes of cached entities, keeping "
+            + this.maxBytes + ": " + e.getMessage());
+        return false;
+      }
+    }
+    this.maxCount = Math.max(maxCount, this.maxCount);
+    this.maxBytes = newMaxBytes;
+    return true;
+  }
+
+  private synchronized long drop() {
+    dropped = true;
+    entries.clear();
+    bytes = 0;
+    long released = claimedMb;
+    limiter.release(claimedMb);
+    claimedMb = 0;
+    return released;
+  }
+
+  /**
+   * Returns the cached result of looking up {@code key} for the job {@code jobId}, which is absent
+   * if there is no such entity, or {@code null} if it is not cached. The entity must not be
+   * modified.
+   */
+  public synchronized Optional<Entity> get(String jobId, Key key) {
+    return entries.get(new ScopedKey(checkNotNull(jobId, "Null jobId"), key));
+  }
+
+  /**
+   * Caches the result of looking up {@code key} for the job {@code jobId}. {@code entity} is
+   * {@code null} if there is no such entity, and must not be modified afterwards.
+   */
+  public synchronized void put(String jobId, Key key, Entity entity) {
+    if (dropped) {
+      return;
+    }
+    ScopedKey scopedKey = new ScopedKey(checkNotNull(jobId, "Null jobId"), key);
+    int size = sizeOf(scopedKey, entity);
+    if (size > maxBytes || maxCount == 0) {
+      return;
+    }
+    Optional<Entity> previous = entries.put(scopedKey, Optional.fromNullable(entity));
+    if (previous != null) {
+      bytes -= sizeOf(scopedKey, previous.orNull());
+    }
+    bytes += size;
+    Iterator<Map.Entry<ScopedKey, Optional<Entity>>> eldest = entries.entrySet().iterator();
+    while (entries.size() > maxCount || bytes > maxBytes) {
+      Map.Entry<ScopedKey, Optional<Entity>> entry = eldest.next();
+      bytes -= sizeOf(entry.getKey(), entry.getValue().orNull());
+      eldest.remove();
+    }
+  }
+
+  private static int sizeOf(ScopedKey key, Entity entity) {
+    return key.size + (entity == null ? 0 : EntitySizeEstimator.estimateSize(entity));
+  }
+
+  @VisibleForTesting
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+}
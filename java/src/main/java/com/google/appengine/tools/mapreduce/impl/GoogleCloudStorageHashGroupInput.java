@@ -0,0 +1,99 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.DEFAULT_IO_BUFFER_SIZE;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.mapreduce.GoogleCloudStorageFileSet;
+import com.google.appengine.tools.mapreduce.Input;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.VerifiedChecksums;
+import com.google.appengine.tools.mapreduce.inputs.GoogleCloudStorageLevelDbInputReader;
+import com.google.appengine.tools.mapreduce.inputs.UnmarshallingInputReader;
+import com.google.common.collect.ImmutableList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Defines the way the data is read in by a reducer that does not require sorted keys. This
+ * consists of the unsorted files written by the map stage for each reduce shard, whose values are
+ * grouped by key by a {@link HashGroupingReader} rather than being sorted and merged.
+ *
+ * The map stage writes the files of each reduce shard as a number of partitions, the consecutive
+ * shards of its output, so that a reader holds the groups of a single partition at a time and
+ * reads only the files of that partition in a slice. The groups a slice read but did not return are
+ * spilled to files in {@code bucket}.
+ *
+ * @param <K> type of intermediate keys
+ * @param <V> type of intermediate values
+ */
+public class GoogleCloudStorageHashGroupInput<K, V> extends Input<KeyValue<K, Iterator<V>>> {
+
+  private static final long serialVersionUID = -6243177730459186230L;
+
+  private final String bucket;
+  private final String mrJobId;
+  private final FilesByShard filesByShard;
+  private final Marshaller<K> keyMarshaller;
+  private final Marshaller<V> valueMarshaller;
+  private final int partitionsPerShard;
+  private final long maxMemory;
+
+  /**
+   * @param bucket the bucket of the spill files of the readers.
+   * @param partitionsPerShard the number of consecutive shards of {@code files} read by each
+   *        reader, one after the other.
+   * @param maxMemory the number of bytes each reader may use to hold the groups.
+   */
+  public GoogleCloudStorageHashGroupInput(String bucket, String mrJobId, FilesByShard files,
+      int partitionsPerShard, Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller,
+      long maxMemory) {
+    this.bucket = checkNotNull(bucket, "Null bucket");
+    this.mrJobId = checkNotNull(mrJobId, "Null mrJobId");
+    this.filesByShard = checkNotNull(files, "Null files");
+    checkArgument(partitionsPerShard > 0
+        && files.getShardCount() % partitionsPerShard == 0,
+        "Invalid partitionsPerShard %s for %s shards", partitionsPerShard,
+        files.getShardCount());
+    this.partitionsPerShard = partitionsPerShard;
+    this.keyMarshaller = checkNotNull(keyMarshaller, "Null keyMarshaller");
+    this.valueMarshaller = checkNotNull(valueMarshaller, "Null valueMarshaller");
+    checkArgument(maxMemory > 0, "Invalid maxMemory: %s", maxMemory);
+    this.maxMemory = maxMemory;
+  }
+
+  @Override
+  public List<? extends InputReader<KeyValue<K, Iterator<V>>>> createReaders() {
+    Marshaller<ByteBuffer> identity = Marshallers.getByteBufferMarshaller();
+    Marshaller<KeyValue<ByteBuffer, ByteBuffer>> marshaller =
+        new KeyValueMarshaller<>(identity, identity);
+    ImmutableList.Builder<HashGroupingReader<K, V>> result = ImmutableList.builder();
+    for (int shard = 0; shard < filesByShard.getShardCount() / partitionsPerShard; shard++) {
+      List<List<InputReader<KeyValue<ByteBuffer, ByteBuffer>>>> partitions = new ArrayList<>();
+      for (int partition = 0; partition < partitionsPerShard; partition++) {
+        List<InputReader<KeyValue<ByteBuffer, ByteBuffer>>> inputs = new ArrayList<>();
+        GoogleCloudStorageFileSet files =
+            filesByShard.getFilesForShard(shard * partitionsPerShard + partition);
+        for (GcsFilename file : files.getFiles()) {
+          // The files of a partition are read once per pass of the reader over it, which
+          // benefits from skipping the verification of checksums that were already verified on
+          // this instance.
+          inputs.add(new UnmarshallingInputReader<>(new GoogleCloudStorageLevelDbInputReader(
+              file, DEFAULT_IO_BUFFER_SIZE,
+              VerifiedChecksums.isFirstReadOnlyForIntermediateFiles()), marshaller));
+        }
+        partitions.add(inputs);
+      }
+      result.add(new HashGroupingReader<>(partitions, keyMarshaller, valueMarshaller, maxMemory,
+          bucket, String.format(MapReduceConstants.HASH_GROUP_SPILL_DIR_FORMAT, mrJobId, shard)));
+    }
+    return result.build();
+  }
+}
@@ -10,6 +10,7 @@ import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Output;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.Sharder;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
 import com.google.appengine.tools.mapreduce.impl.GoogleCloudStorageMapOutputWriter.MapOutputWriter;
 
 import java.io.IOException;
@@ -35,15 +36,39 @@ public class GoogleCloudStorageMapOutput<K, V> extends Output<KeyValue<K, V>, Fi
   private final Marshaller<K> keyMarshaller;
   private final Marshaller<V> valueMarshaller;
   private final Sharder sharder;
+  private final boolean compress;
+  // Only null if not ordering values or as a result of an old version.
+  private final ValueOrdering<V> valueOrdering;
 
   public GoogleCloudStorageMapOutput(String bucket, String mrJobId, Marshaller<K> keyMarshaller,
       Marshaller<V> valueMarshaller, Sharder sharder) {
+    this(bucket, mrJobId, keyMarshaller, valueMarshaller, sharder, false);
+  }
+
+  /**
+   * @param compress if true the files are block compressed using
+   *        {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter}.
+   */
+  public GoogleCloudStorageMapOutput(String bucket, String mrJobId, Marshaller<K> keyMarshaller,
+      Marshaller<V> valueMarshaller, Sharder sharder, boolean compress) {
+    this(bucket, mrJobId, keyMarshaller, valueMarshaller, sharder, compress, null);
+  }
+
+  /**
+   * @param valueOrdering if not null, the keys are written as composite keys (see
+   *        {@link CompositeKeys}) that also sort the values of each key by it.
+   */
+  public GoogleCloudStorageMapOutput(String bucket, String mrJobId, Marshaller<K> keyMarshaller,
+      Marshaller<V> valueMarshaller, Sharder sharder, boolean compress,
+      ValueOrdering<V> valueOrdering) {
     this.bucket = checkNotNull(bucket, "Null bucket");
     this.sharder = checkNotNull(sharder, "Null sharder");
     this.mrJobId = checkNotNull(mrJobId, "Null mrJobId");
     checkArgument(sharder.getNumShards() >= 0);
     this.keyMarshaller = checkNotNull(keyMarshaller, "Null keyMarshaller");
     this.valueMarshaller = checkNotNull(valueMarshaller, "Null valueMarshaller");
+    this.compress = compress;
+    this.valueOrdering = valueOrdering;
   }
 
   @Override
@@ -52,7 +77,8 @@ public class GoogleCloudStorageMapOutput<K, V> extends Output<KeyValue<K, V>, Fi
     for (int i = 0; i < shards; i++) {
       String fileNamePattern = String.format(MAP_OUTPUT_DIR_FORMAT, mrJobId, i);
       OutputWriter<KeyValue<K, V>> writer = new GoogleCloudStorageMapOutputWriter<>(
-          bucket, fileNamePattern, keyMarshaller, valueMarshaller, sharder);
+          bucket, fileNamePattern, keyMarshaller, valueMarshaller, sharder, compress,
+          valueOrdering);
       result.add(writer);
     }
     return result;
@@ -11,23 +11,31 @@ import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.GcsServiceOptions;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.Sharder;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
+import com.google.appengine.tools.mapreduce.impl.util.BufferArena;
+import com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.LevelDbOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.MarshallingOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.ShardingOutputWriter;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableMap;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -38,7 +46,16 @@ import java.util.logging.Logger;
  * An {@link OutputWriter} that is used by the map stage and writes bytes to GCS,
  * later to be used by the sort/merge stages.
  * Content is written in a LevelDb log Format and then using the {@link KeyValueMarshaller}
- * to marshall the individual record.
+ * to marshall the individual record, or the {@link CompositeKeyValueMarshaller} if the values are
+ * to be sorted by a {@link ValueOrdering}.
+ *
+ * The writers of the sort shards buffer their output in a {@link BufferArena} that they share,
+ * rather than in a GCS channel each. When the arena is full the sort shard that buffers the most
+ * is written out as a part file, so sort shards that receive little data do not hold a write
+ * buffer. As every part file costs several GCS requests, the arena is large enough for parts of at
+ * least {@link #MIN_PART_SIZE} bytes. So beyond about 50 sort shards the memory needed grows
+ * linearly with their number, by {@link #MIN_PART_SIZE} and a block each, which is still much less
+ * than a write buffer each.
  *
  *
  * @param <K> type of intermediate keys
@@ -50,17 +67,45 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
   private static final long serialVersionUID = 739934506831898405L;
   private static final Logger logger =
       Logger.getLogger(GoogleCloudStorageMapOutputWriter.class.getName());
+  @VisibleForTesting
+  static final int ARENA_BLOCK_SIZE = 64 * 1024;
+  private static final long MAX_ARENA_SIZE = 16L * DEFAULT_IO_BUFFER_SIZE;
+  /**
+   * The smallest part file written when the arena is full, a single upload request to GCS.
+   */
+  @VisibleForTesting
+  static final int MIN_PART_SIZE = 256 * 1024;
 
   private final String fileNamePattern;
   private final String bucket;
-  private final KeyValueMarshaller<K, V> keyValueMarshaller;
+  private final Marshaller<KeyValue<K, V>> keyValueMarshaller;
+  private final boolean compress;
+  private transient BufferArena arena;
 
   public GoogleCloudStorageMapOutputWriter(String bucket, String fileNamePattern,
       Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, Sharder sharder) {
+    this(bucket, fileNamePattern, keyMarshaller, valueMarshaller, sharder, false);
+  }
+
+  public GoogleCloudStorageMapOutputWriter(String bucket, String fileNamePattern,
+      Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, Sharder sharder,
+      boolean compress) {
+    this(bucket, fileNamePattern, keyMarshaller, valueMarshaller, sharder, compress, null);
+  }
+
+  /**
+   * @param valueOrdering if not null, the values of each key are sorted by it.
+   */
+  public GoogleCloudStorageMapOutputWriter(String bucket, String fileNamePattern,
+      Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, Sharder sharder,
+      boolean compress, ValueOrdering<V> valueOrdering) {
     super(keyMarshaller, sharder);
     this.bucket =  checkNotNull(bucket, "Null bucket");
     this.fileNamePattern = checkNotNull(fileNamePattern, "Null fileNamePattern");
-    keyValueMarshaller = new KeyValueMarshaller<>(keyMarshaller, valueMarshaller);
+    keyValueMarshaller = valueOrdering == null
+        ? new KeyValueMarshaller<>(keyMarshaller, valueMarshaller)
+        : new CompositeKeyValueMarshaller<>(keyMarshaller, valueMarshaller, valueOrdering);
+    this.compress = compress;
   }
 
   @Override
@@ -68,10 +113,56 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
     return true;
   }
 
+  /**
+   * Each attempt of a slice writes files of its own, and the files of the attempts that are not
+   * committed are deleted by {@link #cleanup}.
+   */
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return true;
+  }
+
+  @Override
+  public void cleanup() {
+    for (MapOutputWriter<K, V> writer : getShardsToWriterMap().values()) {
+      writer.cleanup();
+    }
+  }
+
   @Override
   public MapOutputWriter<K, V> createWriter(int sortShard) {
     String namePrefix = String.format(fileNamePattern, sortShard);
-    return new MapOutputWriter<>(new GcsFileOutputWriter(bucket, namePrefix), keyValueMarshaller);
+    MapOutputWriter<K, V> writer = new MapOutputWriter<>(
+        new GcsFileOutputWriter(bucket, namePrefix), keyValueMarshaller, compress);
+    writer.setArena(arena);
+    return writer;
+  }
+
+  @Override
+  public void beginSlice() throws IOException {
+    arena = new BufferArena(ARENA_BLOCK_SIZE, getArenaBlockCount(sharder.getNumShards()));
+    for (MapOutputWriter<K, V> writer : getShardsToWriterMap().values()) {
+      writer.setArena(arena);
+    }
+    super.beginSlice();
+  }
+
+  @Override
+  public void endSlice() throws IOException {
+    super.endSlice();
+    arena.release();
+    arena = null;
+  }
+
+  /**
+   * The arena holds up to one write buffer per sort shard, and no more than
+   * {@link #MAX_ARENA_SIZE} bytes unless more are needed for parts of {@link #MIN_PART_SIZE}.
+   */
+  @VisibleForTesting
+  static int getArenaBlockCount(int sortShards) {
+    long size = Math.min(MAX_ARENA_SIZE, (long) sortShards * DEFAULT_IO_BUFFER_SIZE);
+    return (int) Math.max(size / ARENA_BLOCK_SIZE,
+        BufferArena.getBlockCount(ARENA_BLOCK_SIZE, sortShards, MIN_PART_SIZE));
   }
 
   @Override
@@ -81,7 +172,8 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
 
   @Override
   public long estimateMemoryRequirement() {
-    return sharder.getNumShards() * GcsFileOutputWriter.MEMORY_REQUIRED;
+    return (long) getArenaBlockCount(sharder.getNumShards()) * ARENA_BLOCK_SIZE
+        + GcsFileOutputWriter.MEMORY_REQUIRED;
   }
 
   static class MapOutputWriter<K, V> extends MarshallingOutputWriter<KeyValue<K, V>> {
@@ -89,17 +181,30 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
     private static final long serialVersionUID = 6056683766896574858L;
     private final GcsFileOutputWriter gcsWriter;
 
-    public MapOutputWriter(GcsFileOutputWriter gcsWriter, KeyValueMarshaller<K, V> marshaller) {
-      super(new LevelDbOutputWriter(gcsWriter), marshaller);
+    public MapOutputWriter(GcsFileOutputWriter gcsWriter, Marshaller<KeyValue<K, V>> marshaller,
+        boolean compress) {
+      // Compressed frames are self delimiting so the slice parts can still be composed.
+      super(new LevelDbOutputWriter(
+          compress ? new BlockCompressingOutputWriter(gcsWriter) : gcsWriter), marshaller);
       this.gcsWriter = gcsWriter;
     }
 
     Iterable<String> getFiles() {
       return gcsWriter.getFiles();
     }
+
+    void setArena(BufferArena arena) {
+      gcsWriter.setArena(arena);
+    }
+
+    @Override
+    public void cleanup() {
+      gcsWriter.cleanup();
+    }
   }
 
-  private static class GcsFileOutputWriter extends OutputWriter<ByteBuffer> {
+  private static class GcsFileOutputWriter extends OutputWriter<ByteBuffer>
+      implements BufferArena.Sink {
 
     private static final long serialVersionUID = 1864188391798776210L;
     private static final String MAX_COMPONENTS_PER_COMPOSE = "com.google.appengine.tools.mapreduce"
@@ -114,6 +219,9 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
         .build());
     private static final GcsFileOptions FILE_OPTIONS =
         new GcsFileOptions.Builder().mimeType(MAP_OUTPUT_MIME_TYPE).build();
+    /**
+     * A single channel is open at a time, while a part is written.
+     */
     private static final long MEMORY_REQUIRED = MapReduceConstants.DEFAULT_IO_BUFFER_SIZE * 2;
 
 
@@ -124,10 +232,10 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
     private final Set<String> toDelete = new HashSet<>();
     private final Set<String> sliceParts = new LinkedHashSet();
     private final Set<String> compositeParts = new LinkedHashSet<>();
+    private final List<String> files = new ArrayList<>();
     private String filePrefix;
-    private int fileCount;
 
-    private transient GcsOutputChannel channel;
+    private transient BufferArena.Partition partition;
 
     public GcsFileOutputWriter(String bucket, String namePrefix) {
       this.bucket = bucket;
@@ -139,8 +247,29 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
       Preconditions.checkArgument(maxComponentsPerCompose > 0);
     }
 
+    /**
+     * Deletes all the files with the name prefix of the writer that are not part of its output,
+     * which includes the files written by the attempts of its slices that were not committed and
+     * by previous attempts of its shard.
+     */
     @Override
     public void cleanup() {
+      try {
+        ListResult list = GCS_SERVICE.list(bucket,
+            new ListOptions.Builder().setPrefix(namePrefix + "-").setRecursive(true).build());
+        while (list.hasNext()) {
+          String name = list.next().getName();
+          if (!files.contains(name)) {
+            toDelete.add(name);
+          }
+        }
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Could not list the temporary files of " + namePrefix, ex);
+      }
+      deleteTempFiles();
+    }
+
+    private void deleteTempFiles() {
       for (String name : toDelete) {
         try {
           GCS_SERVICE.delete(new GcsFilename(bucket, name));
@@ -155,56 +284,83 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
     public void beginShard() {
       toDelete.addAll(sliceParts);
       toDelete.addAll(compositeParts);
-      cleanup();
+      toDelete.addAll(files);
+      deleteTempFiles();
       sliceParts.clear();
       compositeParts.clear();
-      fileCount = 0;
-      channel = null;
+      files.clear();
       filePrefix = namePrefix + "-" + new Random().nextLong();
     }
 
+    void setArena(BufferArena arena) {
+      partition = arena == null ? null : arena.newPartition(this);
+    }
+
     @Override
     public void beginSlice() throws IOException {
-      cleanup();
-      if (sliceParts.size() >= maxFilesPerCompose) {
+      deleteTempFiles();
+      composeSliceParts(false);
+    }
+
+    /**
+     * Composes the slice parts into composite parts, {@code maxFilesPerCompose} at a time, and
+     * the composite parts into a file once it would reach {@code maxComponentsPerCompose}
+     * components.
+     *
+     * @param all whether to also compose the last parts if they are fewer than
+     *        {@code maxFilesPerCompose}.
+     */
+    private void composeSliceParts(boolean all) throws IOException {
+      while (sliceParts.size() >= maxFilesPerCompose || (all && !sliceParts.isEmpty())) {
+        Set<String> parts = new LinkedHashSet<>();
+        for (Iterator<String> iter = sliceParts.iterator();
+            iter.hasNext() && parts.size() < maxFilesPerCompose;) {
+          parts.add(iter.next());
+          iter.remove();
+        }
         String tempFile = generateTempFileName();
-        compose(sliceParts, tempFile);
+        compose(parts, tempFile);
         compositeParts.add(tempFile);
-      }
-      if (compositeParts.size() * maxFilesPerCompose >= maxComponentsPerCompose) {
-        compose(compositeParts, getFileName(fileCount++));
+        if (compositeParts.size() * maxFilesPerCompose >= maxComponentsPerCompose) {
+          composeFile();
+        }
       }
     }
 
     @Override
     public void write(ByteBuffer bytes) throws IOException {
-      if (channel == null) {
-        GcsFilename sliceFile = new GcsFilename(bucket, generateTempFileName());
-        channel = GCS_SERVICE.createOrReplace(sliceFile, FILE_OPTIONS);
-      }
-      while (bytes.hasRemaining()) {
-        channel.write(bytes);
+      Preconditions.checkState(partition != null, "%s: arena was not set", this);
+      partition.write(bytes);
+    }
+
+    /**
+     * Writes the bytes flushed from the arena to a new slice part.
+     */
+    @Override
+    public void writeBlocks(List<ByteBuffer> blocks) throws IOException {
+      GcsFilename sliceFile = new GcsFilename(bucket, generateTempFileName());
+      try (GcsOutputChannel channel = GCS_SERVICE.createOrReplace(sliceFile, FILE_OPTIONS)) {
+        for (ByteBuffer block : blocks) {
+          while (block.hasRemaining()) {
+            channel.write(block);
+          }
+        }
       }
+      sliceParts.add(sliceFile.getObjectName());
     }
 
     @Override
     public void endSlice() throws IOException {
-      if (channel != null) {
-        channel.close();
-        sliceParts.add(channel.getFilename().getObjectName());
-        channel = null;
+      if (partition != null) {
+        partition.flush();
       }
     }
 
     @Override
     public void endShard() throws IOException {
-      if (!sliceParts.isEmpty()) {
-        String tempFile = generateTempFileName();
-        compose(sliceParts, tempFile);
-        compositeParts.add(tempFile);
-      }
+      composeSliceParts(true);
       if (!compositeParts.isEmpty()) {
-        compose(compositeParts, getFileName(fileCount++));
+        composeFile();
       }
     }
 
@@ -217,8 +373,14 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
       }
     }
 
-    private String getFileName(int part) {
-      return filePrefix + "@" + part;
+    /**
+     * Composes the composite parts into a file of the output. Its name is unique to the attempt of
+     * the slice, so an attempt that is not committed does not overwrite the output.
+     */
+    private void composeFile() throws IOException {
+      String file = filePrefix + "@" + files.size() + "-" + new Random().nextLong();
+      compose(compositeParts, file);
+      files.add(file);
     }
 
     private void compose(Collection<String> source, String target) throws IOException {
@@ -237,21 +399,7 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
     }
 
     private Iterable<String> getFiles() {
-      return new Iterable<String>() {
-        @Override public Iterator<String> iterator() {
-          return new AbstractIterator<String>() {
-            private int index = 0;
-
-            @Override
-            protected String computeNext() {
-              if (index < fileCount) {
-                return getFileName(index++);
-              }
-              return endOfData();
-            }
-          };
-        }
-      };
+      return Collections.unmodifiableList(files);
     }
 
     @Override
@@ -259,7 +407,7 @@ public class GoogleCloudStorageMapOutputWriter<K, V>
       return getClass().getSimpleName()
           + " [bucket=" + bucket + ", maxComponentsPerCompose=" + maxComponentsPerCompose
           + ", maxFilesPerCompose=" + maxFilesPerCompose + ", namePrefix=" + namePrefix
-          + ", filePrefix=" + filePrefix + ", fileCount=" + fileCount
+          + ", filePrefix=" + filePrefix + ", files=" + files
           + ", toDelete=" + toDelete + ", sliceParts=" + sliceParts
           + ", compositeParts=" + compositeParts + "]";
     }
@@ -11,6 +11,7 @@ import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.VerifiedChecksums;
 import com.google.appengine.tools.mapreduce.inputs.ConcatenatingInputReader;
 import com.google.appengine.tools.mapreduce.inputs.GoogleCloudStorageLevelDbInput;
 import com.google.appengine.tools.mapreduce.inputs.PeekingInputReader;
@@ -49,9 +50,6 @@ public class GoogleCloudStorageMergeInput extends
    */
   @Override
   public List<? extends InputReader<KeyValue<ByteBuffer, Iterator<ByteBuffer>>>> createReaders() {
-    Marshaller<ByteBuffer> byteBufferMarshaller = Marshallers.getByteBufferMarshaller();
-    Marshaller<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> marshaller =
-        Marshallers.getKeyValuesMarshaller(byteBufferMarshaller, byteBufferMarshaller);
     ImmutableList.Builder<InputReader<KeyValue<ByteBuffer, Iterator<ByteBuffer>>>> result =
         ImmutableList.builder();
     for (int shard = 0; shard < filesByShard.getShardCount(); shard++) {
@@ -60,7 +58,7 @@ public class GoogleCloudStorageMergeInput extends
           mergeFanin)) {
         GoogleCloudStorageFileSet fileSet =
             new GoogleCloudStorageFileSet(filesByShard.getBucket(), group);
-        readers.add(createReaderForShard(marshaller, fileSet));
+        readers.add(createReaderForShard(fileSet));
       }
       result.add(new ConcatenatingInputReader<>(readers));
     }
@@ -79,14 +77,17 @@ public class GoogleCloudStorageMergeInput extends
    * @returns a reader producing key-sorted input for a shard.
    */
   private MergingReader<ByteBuffer, ByteBuffer> createReaderForShard(
-      Marshaller<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> marshaller,
       GoogleCloudStorageFileSet inputFileSet) {
+    Marshaller<ByteBuffer> byteBufferMarshaller = Marshallers.getByteBufferMarshaller();
     ArrayList<PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>>> inputFiles =
         new ArrayList<>();
     GoogleCloudStorageLevelDbInput reducerInput =
-        new GoogleCloudStorageLevelDbInput(inputFileSet, DEFAULT_IO_BUFFER_SIZE);
+        new GoogleCloudStorageLevelDbInput(inputFileSet, DEFAULT_IO_BUFFER_SIZE,
+            VerifiedChecksums.isFirstReadOnlyForIntermediateFiles());
     for (InputReader<ByteBuffer> in : reducerInput.createReaders()) {
-      inputFiles.add(new PeekingInputReader<>(in, marshaller));
+      // Each file needs its own marshaller, as it holds the key used to decode prefix compression.
+      inputFiles.add(new PeekingInputReader<>(in,
+          PrefixCompressedKeyValuesMarshaller.forReading(byteBufferMarshaller)));
     }
     return new MergingReader<>(inputFiles, Marshallers.getByteBufferMarshaller(), false);
   }
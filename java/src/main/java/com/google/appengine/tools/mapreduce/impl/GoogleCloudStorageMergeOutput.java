@@ -10,9 +10,11 @@ import com.google.appengine.tools.mapreduce.Output;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.impl.sort.LexicographicalComparator;
 import com.google.appengine.tools.mapreduce.impl.util.SerializableValue;
+import com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.GoogleCloudStorageFileOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.GoogleCloudStorageLevelDbOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.ItemSegmentingOutputWriter;
+import com.google.appengine.tools.mapreduce.outputs.LevelDbOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.MarshallingOutputWriter;
 import com.google.common.collect.ImmutableList;
 
@@ -35,11 +37,31 @@ public class GoogleCloudStorageMergeOutput extends
   private final String bucket;
   private final String mrJobId;
   private final Integer tier;
+  private final boolean compress;
+  private final boolean prefixCompressKeys;
 
   public GoogleCloudStorageMergeOutput(String bucket, String mrJobId, Integer tier) {
+    this(bucket, mrJobId, tier, false);
+  }
+
+  public GoogleCloudStorageMergeOutput(String bucket, String mrJobId, Integer tier,
+      boolean compress) {
+    this(bucket, mrJobId, tier, compress, false);
+  }
+
+  /**
+   * @param compress if true the files are block compressed using
+   *        {@link BlockCompressingOutputWriter}.
+   * @param prefixCompressKeys if true the keys are written using
+   *        {@link PrefixCompressedKeyValuesMarshaller}.
+   */
+  public GoogleCloudStorageMergeOutput(String bucket, String mrJobId, Integer tier,
+      boolean compress, boolean prefixCompressKeys) {
     this.tier = checkNotNull(tier, "Null tier");
     this.bucket = checkNotNull(bucket, "Null bucket");
     this.mrJobId = checkNotNull(mrJobId, "Null mrJobId");
+    this.compress = compress;
+    this.prefixCompressKeys = prefixCompressKeys;
   }
 
   private static class OrderSlicingOutputWriter extends
@@ -50,16 +72,23 @@ public class GoogleCloudStorageMergeOutput extends
     private final String bucket;
     private final String fileNamePattern;
     private final List<String> fileNames;
+    private final boolean compress;
+    private final boolean prefixCompressKeys;
     private SerializableValue<ByteBuffer> lastKey;
 
     /**
      * @param fileNamePattern a Java format string {@link java.util.Formatter} containing one int
      *        argument for the slice number.
+     * @param compress if true the files are block compressed.
+     * @param prefixCompressKeys if true the keys are prefix compressed.
      */
-    public OrderSlicingOutputWriter(String bucket, String fileNamePattern) {
+    public OrderSlicingOutputWriter(String bucket, String fileNamePattern, boolean compress,
+        boolean prefixCompressKeys) {
       this.bucket = checkNotNull(bucket, "Null bucket");
       this.fileNamePattern = checkNotNull(fileNamePattern, "Null fileNamePattern");
       this.fileNames = new ArrayList<>();
+      this.compress = compress;
+      this.prefixCompressKeys = prefixCompressKeys;
     }
 
     @Override
@@ -68,13 +97,20 @@ public class GoogleCloudStorageMergeOutput extends
       Marshaller<ByteBuffer> identity = Marshallers.getByteBufferMarshaller();
       String fileName = String.format(fileNamePattern, sliceNumber);
       fileNames.add(fileName);
-      return new MarshallingOutputWriter<>(
-          new GoogleCloudStorageLevelDbOutputWriter(
-              new GoogleCloudStorageFileOutputWriter(
-                  new GcsFilename(bucket, fileName),
-                  MapReduceConstants.REDUCE_INPUT_MIME_TYPE,
-                  false)),
-          Marshallers.getKeyValuesMarshaller(identity, identity));
+      GoogleCloudStorageFileOutputWriter fileWriter = new GoogleCloudStorageFileOutputWriter(
+          new GcsFilename(bucket, fileName),
+          MapReduceConstants.REDUCE_INPUT_MIME_TYPE,
+          false);
+      // Padding to GCS write boundaries does not apply to compressed output, whose size is not a
+      // multiple of the LevelDb block size.
+      LevelDbOutputWriter levelDbWriter = compress
+          ? new LevelDbOutputWriter(new BlockCompressingOutputWriter(fileWriter))
+          : new GoogleCloudStorageLevelDbOutputWriter(fileWriter);
+      // A new marshaller for each file, as the prefix compressed one holds per file state.
+      Marshaller<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> marshaller =
+          prefixCompressKeys ? PrefixCompressedKeyValuesMarshaller.forWriting(identity)
+              : Marshallers.getKeyValuesMarshaller(identity, identity);
+      return new MarshallingOutputWriter<>(levelDbWriter, marshaller);
     }
 
     public List<String> getFilesCreated() {
@@ -108,8 +144,10 @@ public class GoogleCloudStorageMergeOutput extends
     ImmutableList.Builder<OutputWriter<KeyValue<ByteBuffer, List<ByteBuffer>>>> result =
         new ImmutableList.Builder<>();
     for (int i = 0; i < shards; i++) {
-      result.add(new OrderSlicingOutputWriter(bucket,
-          String.format(MapReduceConstants.MERGE_OUTPUT_DIR_FORMAT, mrJobId, tier, i)));
+      String fileNamePattern =
+          String.format(MapReduceConstants.MERGE_OUTPUT_DIR_FORMAT, mrJobId, tier, i);
+      result.add(
+          new OrderSlicingOutputWriter(bucket, fileNamePattern, compress, prefixCompressKeys));
     }
     return result.build();
   }
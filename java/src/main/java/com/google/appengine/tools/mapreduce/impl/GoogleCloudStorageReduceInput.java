@@ -10,7 +10,7 @@ import com.google.appengine.tools.mapreduce.Input;
 import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Marshaller;
-import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.VerifiedChecksums;
 import com.google.appengine.tools.mapreduce.inputs.GoogleCloudStorageLevelDbInput;
 import com.google.appengine.tools.mapreduce.inputs.PeekingInputReader;
 import com.google.common.collect.ImmutableList;
@@ -37,21 +37,31 @@ public class GoogleCloudStorageReduceInput<K, V> extends Input<KeyValue<K, Itera
   private final Marshaller<K> keyMarshaller;
   private final Marshaller<V> valueMarshaller;
   private final FilesByShard filesByShard;
+  private final boolean compositeKeys;
 
   public GoogleCloudStorageReduceInput(FilesByShard files,
       Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) {
+    this(files, keyMarshaller, valueMarshaller, false);
+  }
+
+  /**
+   * @param compositeKeys true if the keys of the files are composite keys (see
+   *        {@link CompositeKeys}), in which case the values of each key are read in the order of
+   *        their sort keys.
+   */
+  public GoogleCloudStorageReduceInput(FilesByShard files,
+      Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, boolean compositeKeys) {
     this.filesByShard = checkNotNull(files, "Null files");
     this.keyMarshaller = checkNotNull(keyMarshaller, "Null keyMarshaller");
     this.valueMarshaller = checkNotNull(valueMarshaller, "Null valueMarshaller");
+    this.compositeKeys = compositeKeys;
   }
 
   @Override
   public List<? extends InputReader<KeyValue<K, Iterator<V>>>> createReaders() {
-    Marshaller<KeyValue<ByteBuffer, ? extends Iterable<V>>> marshaller =
-        Marshallers.getKeyValuesMarshaller(Marshallers.getByteBufferMarshaller(), valueMarshaller);
     ImmutableList.Builder<MergingReader<K, V>> result = ImmutableList.builder();
     for (int shard = 0; shard < filesByShard.getShardCount(); shard++) {
-      result.add(createReaderForShard(marshaller, filesByShard.getFilesForShard(shard)));
+      result.add(createReaderForShard(filesByShard.getFilesForShard(shard)));
     }
     return result.build();
   }
@@ -69,15 +79,17 @@ public class GoogleCloudStorageReduceInput<K, V> extends Input<KeyValue<K, Itera
    * @returns a reader producing key-sorted input for a shard.
    */
   private MergingReader<K, V> createReaderForShard(
-      Marshaller<KeyValue<ByteBuffer, ? extends Iterable<V>>> marshaller,
       GoogleCloudStorageFileSet reducerInputFileSet) {
     ArrayList<PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>>> inputFiles =
         new ArrayList<>();
     GoogleCloudStorageLevelDbInput reducerInput =
-        new GoogleCloudStorageLevelDbInput(reducerInputFileSet, DEFAULT_IO_BUFFER_SIZE);
+        new GoogleCloudStorageLevelDbInput(reducerInputFileSet, DEFAULT_IO_BUFFER_SIZE,
+            VerifiedChecksums.isFirstReadOnlyForIntermediateFiles());
     for (InputReader<ByteBuffer> in : reducerInput.createReaders()) {
-      inputFiles.add(new PeekingInputReader<>(in, marshaller));
+      // Each file needs its own marshaller, as it holds the key used to decode prefix compression.
+      inputFiles.add(new PeekingInputReader<>(in,
+          PrefixCompressedKeyValuesMarshaller.forReading(valueMarshaller)));
     }
-    return new MergingReader<>(inputFiles, keyMarshaller, true);
+    return new MergingReader<>(inputFiles, keyMarshaller, true, compositeKeys);
   }
 }
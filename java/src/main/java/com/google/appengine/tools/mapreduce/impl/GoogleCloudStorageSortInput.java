@@ -11,6 +11,7 @@ import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.VerifiedChecksums;
 import com.google.appengine.tools.mapreduce.inputs.ConcatenatingInputReader;
 import com.google.appengine.tools.mapreduce.inputs.ForwardingInputReader;
 import com.google.appengine.tools.mapreduce.inputs.GoogleCloudStorageLevelDbInputReader;
@@ -44,7 +45,8 @@ public class GoogleCloudStorageSortInput extends Input<KeyValue<ByteBuffer, Byte
       Marshaller<KeyValue<ByteBuffer, ByteBuffer>> marshaller =
           new KeyValueMarshaller<>(identity, identity);
       GoogleCloudStorageLevelDbInputReader in =
-          new GoogleCloudStorageLevelDbInputReader(file, DEFAULT_IO_BUFFER_SIZE);
+          new GoogleCloudStorageLevelDbInputReader(file, DEFAULT_IO_BUFFER_SIZE,
+              VerifiedChecksums.isFirstReadOnlyForIntermediateFiles());
       reader = new UnmarshallingInputReader<>(in, marshaller);
     }
 
@@ -10,6 +10,7 @@ import com.google.appengine.tools.mapreduce.Marshallers;
 import com.google.appengine.tools.mapreduce.Output;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.Sharder;
+import com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.GoogleCloudStorageFileOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.LevelDbOutputWriter;
 import com.google.appengine.tools.mapreduce.outputs.MarshallingOutputWriter;
@@ -38,6 +39,8 @@ public class GoogleCloudStorageSortOutput extends
   private final String bucket;
   private final String mrJobId;
   private final Sharder sharder;
+  private final boolean compress;
+  private final boolean prefixCompressKeys;
 
   private static class ShardingOutputWriterImpl extends
       ShardingOutputWriter<ByteBuffer, List<ByteBuffer>, SlicingOutputWriterImpl> {
@@ -46,19 +49,25 @@ public class GoogleCloudStorageSortOutput extends
     private final String mrJobId;
     private final int shard;
     private final String bucket;
+    private final boolean compress;
+    private final boolean prefixCompressKeys;
 
-    ShardingOutputWriterImpl(String mrJobId, String bucket, int shard, Sharder sharder) {
+    ShardingOutputWriterImpl(String mrJobId, String bucket, int shard, Sharder sharder,
+        boolean compress, boolean prefixCompressKeys) {
       super(Marshallers.getByteBufferMarshaller(), sharder);
       this.mrJobId = mrJobId;
       this.bucket = bucket;
       this.shard = shard;
+      this.compress = compress;
+      this.prefixCompressKeys = prefixCompressKeys;
     }
 
     @Override
     public SlicingOutputWriterImpl createWriter(int number) {
       String formatStringForShard =
           String.format(MapReduceConstants.SORT_OUTPUT_DIR_FORMAT, mrJobId, shard, number);
-      return new SlicingOutputWriterImpl(bucket, formatStringForShard);
+      return new SlicingOutputWriterImpl(bucket, formatStringForShard, compress,
+          prefixCompressKeys);
     }
 
     @Override
@@ -82,15 +91,22 @@ public class GoogleCloudStorageSortOutput extends
     private final String bucket;
     private final String fileNamePattern;
     private final List<String> fileNames;
+    private final boolean compress;
+    private final boolean prefixCompressKeys;
 
     /**
      * @param fileNamePattern a Java format string {@link java.util.Formatter} containing one int
      *        argument for the slice number.
+     * @param compress if true the files are block compressed.
+     * @param prefixCompressKeys if true the keys are prefix compressed.
      */
-    public SlicingOutputWriterImpl(String bucket, String fileNamePattern) {
+    public SlicingOutputWriterImpl(String bucket, String fileNamePattern, boolean compress,
+        boolean prefixCompressKeys) {
       this.bucket = checkNotNull(bucket, "Null bucket");
       this.fileNamePattern = checkNotNull(fileNamePattern, "Null fileNamePattern");
       this.fileNames = new ArrayList<>();
+      this.compress = compress;
+      this.prefixCompressKeys = prefixCompressKeys;
     }
 
     @Override
@@ -103,10 +119,15 @@ public class GoogleCloudStorageSortOutput extends
       // Uses LevelDbOutputWriter wrapping GoogleCloudStorageFileOutputWriter rather than
       // GoogleCloudStorageLevelDbOutputWriter because the padding at the end of the slice is
       // unneeded as the file is being finalized.
-      return new MarshallingOutputWriter<>(
-          new LevelDbOutputWriter(new GoogleCloudStorageFileOutputWriter(
-              new GcsFilename(bucket, fileName), MapReduceConstants.REDUCE_INPUT_MIME_TYPE, false)),
-          Marshallers.getKeyValuesMarshaller(identity, identity));
+      OutputWriter<ByteBuffer> fileWriter = new GoogleCloudStorageFileOutputWriter(
+          new GcsFilename(bucket, fileName), MapReduceConstants.REDUCE_INPUT_MIME_TYPE, false);
+      if (compress) {
+        fileWriter = new BlockCompressingOutputWriter(fileWriter);
+      }
+      Marshaller<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> marshaller =
+          prefixCompressKeys ? PrefixCompressedKeyValuesMarshaller.forWriting(identity)
+              : Marshallers.getKeyValuesMarshaller(identity, identity);
+      return new MarshallingOutputWriter<>(new LevelDbOutputWriter(fileWriter), marshaller);
     }
 
     @Override
@@ -120,9 +141,27 @@ public class GoogleCloudStorageSortOutput extends
   }
 
   public GoogleCloudStorageSortOutput(String bucket, String mrJobId, Sharder sharder) {
+    this(bucket, mrJobId, sharder, false);
+  }
+
+  public GoogleCloudStorageSortOutput(String bucket, String mrJobId, Sharder sharder,
+      boolean compress) {
+    this(bucket, mrJobId, sharder, compress, false);
+  }
+
+  /**
+   * @param compress if true the files are block compressed using
+   *        {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter}.
+   * @param prefixCompressKeys if true the keys are written using
+   *        {@link PrefixCompressedKeyValuesMarshaller}.
+   */
+  public GoogleCloudStorageSortOutput(String bucket, String mrJobId, Sharder sharder,
+      boolean compress, boolean prefixCompressKeys) {
     this.bucket = checkNotNull(bucket, "Null bucket");
     this.mrJobId = checkNotNull(mrJobId, "Null mrJobId");
     this.sharder = checkNotNull(sharder, "Null sharder");
+    this.compress = compress;
+    this.prefixCompressKeys = prefixCompressKeys;
   }
 
   @Override
@@ -131,7 +170,7 @@ public class GoogleCloudStorageSortOutput extends
     List<OutputWriter<KeyValue<ByteBuffer, List<ByteBuffer>>>> result = new ArrayList<>(shards);
     for (int i = 0; i < shards; i++) {
       OutputWriter<KeyValue<ByteBuffer, List<ByteBuffer>>> shardingWriter =
-          new ShardingOutputWriterImpl(mrJobId, bucket, i, sharder);
+          new ShardingOutputWriterImpl(mrJobId, bucket, i, sharder, compress, prefixCompressKeys);
       result.add(shardingWriter);
     }
     return result;
@@ -0,0 +1,112 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Groups serialized values by their serialized keys, using open addressing with linear probing.
+ * Groups are numbered in the order their keys were first added, so that adding the same sequence
+ * of key-value pairs always produces the same numbering.
+ *
+ * The memory used by the table is estimated as it grows, so that the caller can stop before
+ * running out of memory.
+ */
+final class HashGroupTable {
+
+  private static final int INITIAL_SLOTS = 64;
+  // Estimates of the memory used per group and per value, besides the serialized bytes
+  private static final int GROUP_OVERHEAD = 96;
+  private static final int VALUE_OVERHEAD = 24;
+
+  // For each slot, 0 if it is empty, or the number of the group in it plus one
+  private int[] slots = new int[INITIAL_SLOTS];
+  private int[] hashes = new int[INITIAL_SLOTS / 2];
+  private final List<byte[]> keys = new ArrayList<>();
+  private final List<List<byte[]>> values = new ArrayList<>();
+  private long memoryUsed = INITIAL_SLOTS * 6L;
+
+  /**
+   * Adds {@code value} to the group of {@code key}, creating the group if needed.
+   *
+   * @param hash the hash of the key, which must be the same for equal keys.
+   */
+  void add(int hash, ByteBuffer key, ByteBuffer value) {
+    int mask = slots.length - 1;
+    int slot = hash & mask;
+    int group;
+    while (true) {
+      group = slots[slot] - 1;
+      if (group < 0) {
+        group = addGroup(slot, hash, SerializationUtil.getBytes(key));
+        break;
+      }
+      if (hashes[group] == hash && ByteBuffer.wrap(keys.get(group)).equals(key)) {
+        break;
+      }
+      slot = (slot + 1) & mask;
+    }
+    byte[] bytes = SerializationUtil.getBytes(value);
+    values.get(group).add(bytes);
+    memoryUsed += bytes.length + VALUE_OVERHEAD;
+  }
+
+  private int addGroup(int slot, int hash, byte[] key) {
+    int group = keys.size();
+    if (group == hashes.length) {
+      hashes = Arrays.copyOf(hashes, group * 2);
+    }
+    hashes[group] = hash;
+    keys.add(key);
+    values.add(new ArrayList<byte[]>(1));
+    slots[slot] = group + 1;
+    memoryUsed += key.length + GROUP_OVERHEAD;
+    // Keeping the load factor at most 1/2, so that probe sequences stay short.
+    if (keys.size() * 2 > slots.length) {
+      rehash();
+    }
+    return group;
+  }
+
+  private void rehash() {
+    int[] newSlots = new int[slots.length * 2];
+    int mask = newSlots.length - 1;
+    for (int group = 0; group < keys.size(); group++) {
+      int slot = hashes[group] & mask;
+      while (newSlots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newSlots[slot] = group + 1;
+    }
+    memoryUsed += (newSlots.length - slots.length) * 6L;
+    slots = newSlots;
+  }
+
+  /**
+   * Returns the number of groups, which are numbered from 0.
+   */
+  int size() {
+    return keys.size();
+  }
+
+  ByteBuffer getKey(int group) {
+    return ByteBuffer.wrap(keys.get(group));
+  }
+
+  /**
+   * Returns the values of the group in the order they were added.
+   */
+  List<byte[]> getValues(int group) {
+    return values.get(group);
+  }
+
+  /**
+   * Returns an estimate of the number of bytes of memory used by the table.
+   */
+  long getMemoryUsed() {
+    return memoryUsed;
+  }
+}
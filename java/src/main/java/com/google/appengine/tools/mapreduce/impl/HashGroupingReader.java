@@ -0,0 +1,382 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.DEFAULT_IO_BUFFER_SIZE;
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.GCS_RETRY_PARAMETERS;
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.REDUCE_INPUT_MIME_TYPE;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.OutputWriter;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.appengine.tools.mapreduce.inputs.GoogleCloudStorageLevelDbInputReader;
+import com.google.appengine.tools.mapreduce.inputs.UnmarshallingInputReader;
+import com.google.appengine.tools.mapreduce.outputs.GoogleCloudStorageFileOutputWriter;
+import com.google.appengine.tools.mapreduce.outputs.LevelDbOutputWriter;
+import com.google.appengine.tools.mapreduce.outputs.MarshallingOutputWriter;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reader that groups the values of unsorted key-value pairs by key, for reducers that do not
+ * require their keys to be sorted. The input of a shard is divided into partitions, each holding
+ * all the pairs of its keys, which the map stage writes to files of their own. The partitions are
+ * grouped one at a time: the pairs of a partition are added to a {@link HashGroupTable}, and its
+ * groups are returned once all of them have been read.
+ *
+ * If the groups of a partition do not fit in {@code maxMemory}, its keys are further divided into
+ * ranges of their hash values and the partition is read once for each range, keeping only the
+ * pairs whose keys fall in it. Each time a range turns out to be too large it is halved, and the
+ * ranges after it are given the same size, or twice the size if the groups of the range used less
+ * than half of the memory. A range is not halved if it holds a single key, whose values must be
+ * held at once regardless.
+ *
+ * Groups that do not fit in memory are thus never spilled: the input of the partition is read
+ * again once for each range, and once more each time a range is halved.
+ *
+ * The groups of a range are only held in memory by the slice that read them. If the slice ends
+ * before returning all of them, the rest are written to a spill file in GCS, which the next slices
+ * read from where the previous one stopped, rather than reading the partition again. The work of a
+ * slice that does not read a range is thus bounded by the groups it returns. A spill file is
+ * deleted by the slice after the one that finished reading it, and the files left by failed slice
+ * attempts are deleted at the end of the shard.
+ *
+ * @param <K> The type of the key to be returned in the key Value pair.
+ * @param <V> The type of the value
+ */
+final class HashGroupingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
+
+  private static final long serialVersionUID = -2430184659713823405L;
+  private static final Logger log = Logger.getLogger(HashGroupingReader.class.getName());
+
+  private static final long HASH_RANGE = 1L << 32;
+  // Different from the one used by HashingSharder, as all the keys of a shard share a part of
+  // its hash range.
+  private static final HashFunction HASH = Hashing.murmur3_32(0x5eed);
+  private static final GcsService GCS_SERVICE =
+      GcsServiceFactory.createGcsService(GCS_RETRY_PARAMETERS);
+  private static final Marshaller<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>>
+      SPILL_MARSHALLER = Marshallers.getKeyValuesMarshaller(
+          Marshallers.getByteBufferMarshaller(), Marshallers.getByteBufferMarshaller());
+
+  // The readers of the files of each partition. Used as prototypes: the input is read by copies of
+  // them on which beginShard was never called.
+  private final List<List<InputReader<KeyValue<ByteBuffer, ByteBuffer>>>> partitions;
+  private final Marshaller<K> keyMarshaller;
+  private final Marshaller<V> valueMarshaller;
+  private final long maxMemory;
+  private final String bucket;
+  private final String spillDir;
+  private int partition;
+  // The keys with hash values in [rangeStart, rangeStart + rangeSize) are grouped by this pass.
+  private long rangeStart;
+  private long rangeSize;
+  // Whether the groups of the current range were read, in which case those not returned yet are
+  // held by the table in the slice that read them, and by the spill file in later slices.
+  private boolean rangeRead;
+  private int groupCount;
+  private long rangeMemoryUsed;
+  private int groupsReturned;
+  private String spillFile;
+  private InputReader<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> spill;
+  private final List<String> toDelete = new ArrayList<>();
+  private transient HashGroupTable table;
+
+  /**
+   * @param bucket the bucket of the spill files.
+   * @param spillDir the prefix of the names of the spill files, which is used by this reader only.
+   */
+  HashGroupingReader(
+      List<? extends List<? extends InputReader<KeyValue<ByteBuffer, ByteBuffer>>>> partitions,
+      Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller, long maxMemory, String bucket,
+      String spillDir) {
+    ImmutableList.Builder<List<InputReader<KeyValue<ByteBuffer, ByteBuffer>>>> builder =
+        ImmutableList.builder();
+    for (List<? extends InputReader<KeyValue<ByteBuffer, ByteBuffer>>> inputs :
+        Preconditions.checkNotNull(partitions)) {
+      builder.add(ImmutableList.<InputReader<KeyValue<ByteBuffer, ByteBuffer>>>copyOf(inputs));
+    }
+    this.partitions = builder.build();
+    this.keyMarshaller = Preconditions.checkNotNull(keyMarshaller);
+    this.valueMarshaller = Preconditions.checkNotNull(valueMarshaller);
+    Preconditions.checkArgument(maxMemory > 0, "Invalid maxMemory: %s", maxMemory);
+    this.maxMemory = maxMemory;
+    this.bucket = Preconditions.checkNotNull(bucket, "Null bucket");
+    this.spillDir = Preconditions.checkNotNull(spillDir, "Null spillDir");
+  }
+
+  @Override
+  public void beginShard() {
+    // Spill files of an earlier attempt of the shard
+    deleteSpillFiles();
+    partition = 0;
+    rangeStart = 0;
+    rangeSize = HASH_RANGE;
+    rangeRead = false;
+    groupCount = 0;
+    rangeMemoryUsed = 0;
+    groupsReturned = 0;
+    spillFile = null;
+    spill = null;
+    toDelete.clear();
+    table = null;
+  }
+
+  @Override
+  public void beginSlice() throws IOException {
+    table = null;
+    for (String name : toDelete) {
+      delete(name);
+    }
+    toDelete.clear();
+    if (spill != null) {
+      spill.setContext(getContext());
+      spill.beginSlice();
+    }
+  }
+
+  @Override
+  public void endSlice() throws IOException {
+    if (spill != null) {
+      spill.endSlice();
+    }
+    if (table != null && groupsReturned < groupCount) {
+      writeSpill();
+    }
+    table = null;
+  }
+
+  @Override
+  public void endShard() throws IOException {
+    deleteSpillFiles();
+    toDelete.clear();
+  }
+
+  @Override
+  public KeyValue<K, Iterator<V>> next() throws IOException {
+    while (!rangeRead || groupsReturned == groupCount) {
+      if (rangeRead) {
+        nextRange();
+      }
+      if (partition >= partitions.size()) {
+        throw new NoSuchElementException();
+      }
+      table = readRange();
+      rangeRead = true;
+      groupCount = table.size();
+      rangeMemoryUsed = table.getMemoryUsed();
+      groupsReturned = 0;
+    }
+    ByteBuffer key;
+    Iterable<ByteBuffer> values;
+    if (table != null) {
+      key = table.getKey(groupsReturned);
+      values = Iterables.transform(table.getValues(groupsReturned),
+          new Function<byte[], ByteBuffer>() {
+            @Override
+            public ByteBuffer apply(byte[] value) {
+              return ByteBuffer.wrap(value);
+            }
+          });
+    } else {
+      Preconditions.checkState(spill != null, "No groups of range %s+%s of partition %s",
+          rangeStart, rangeSize, partition);
+      KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>> group = spill.next();
+      key = group.getKey();
+      values = group.getValue();
+    }
+    groupsReturned++;
+    return KeyValue.of(keyMarshaller.fromBytes(key), Iterators.transform(values.iterator(),
+        new Function<ByteBuffer, V>() {
+          @Override
+          public V apply(ByteBuffer value) {
+            return valueMarshaller.fromBytes(value);
+          }
+        }));
+  }
+
+  /**
+   * Moves on from the current range, whose groups were all returned, to the next one.
+   */
+  private void nextRange() throws IOException {
+    if (spill != null) {
+      spill.endSlice();
+      spill.endShard();
+      spill = null;
+      // Deleted by the next slice, as this one may be retried
+      toDelete.add(spillFile);
+      spillFile = null;
+    }
+    table = null;
+    rangeRead = false;
+    rangeStart += rangeSize;
+    if (rangeMemoryUsed < maxMemory / 2) {
+      rangeSize = Math.min(HASH_RANGE, rangeSize * 2);
+    }
+    if (rangeStart >= HASH_RANGE) {
+      partition++;
+      rangeStart = 0;
+      rangeSize = HASH_RANGE;
+    }
+  }
+
+  /**
+   * Writes the groups of the table that were not returned yet to a new spill file, from which the
+   * next slices read them.
+   */
+  private void writeSpill() throws IOException {
+    // A new name for each attempt, as attempts of the same slice may return different groups
+    spillFile = spillDir + "spill-" + new Random().nextLong();
+    GcsFilename file = new GcsFilename(bucket, spillFile);
+    OutputWriter<KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>>> writer =
+        new MarshallingOutputWriter<>(new LevelDbOutputWriter(
+            new GoogleCloudStorageFileOutputWriter(file, REDUCE_INPUT_MIME_TYPE, false)),
+            SPILL_MARSHALLER);
+    writer.setContext(getContext());
+    writer.beginShard();
+    writer.beginSlice();
+    for (int group = groupsReturned; group < groupCount; group++) {
+      List<ByteBuffer> values = new ArrayList<>(table.getValues(group).size());
+      for (byte[] value : table.getValues(group)) {
+        values.add(ByteBuffer.wrap(value));
+      }
+      writer.write(KeyValue.of(table.getKey(group), values));
+    }
+    writer.endSlice();
+    writer.endShard();
+    log.info("Spilled " + (groupCount - groupsReturned) + " groups of partition " + partition
+        + " to " + file);
+    spill = new UnmarshallingInputReader<>(
+        new GoogleCloudStorageLevelDbInputReader(file, DEFAULT_IO_BUFFER_SIZE), SPILL_MARSHALLER);
+    spill.beginShard();
+  }
+
+  /**
+   * Deletes all the files in the spill directory of this reader.
+   */
+  private void deleteSpillFiles() {
+    try {
+      ListResult list = GCS_SERVICE.list(bucket,
+          new ListOptions.Builder().setPrefix(spillDir).setRecursive(true).build());
+      while (list.hasNext()) {
+        ListItem item = list.next();
+        if (!item.isDirectory()) {
+          delete(item.getName());
+        }
+      }
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not list the spill files in " + spillDir, ex);
+    }
+  }
+
+  private void delete(String name) {
+    try {
+      GCS_SERVICE.delete(new GcsFilename(bucket, name));
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not delete spill file " + name, ex);
+    }
+  }
+
+  /**
+   * Reads the current partition and groups the pairs of the current range, halving the range
+   * until its groups fit in memory or it holds a single key.
+   */
+  private HashGroupTable readRange() throws IOException {
+    while (true) {
+      HashGroupTable result = new HashGroupTable();
+      if (readRange(result)) {
+        return result;
+      }
+      rangeSize = Math.max(1, rangeSize / 2);
+      log.info("Groups of partition " + partition + " did not fit in " + maxMemory
+          + " bytes, reading keys with hash values in [" + rangeStart + ", "
+          + (rangeStart + rangeSize) + ") only");
+    }
+  }
+
+  /**
+   * @return false if the pairs of the current range were not all added, as they do not fit in
+   *         memory.
+   */
+  private boolean readRange(HashGroupTable result) throws IOException {
+    long rangeEnd = Math.min(HASH_RANGE, rangeStart + rangeSize);
+    for (InputReader<KeyValue<ByteBuffer, ByteBuffer>> prototype : partitions.get(partition)) {
+      InputReader<KeyValue<ByteBuffer, ByteBuffer>> in = SerializationUtil.clone(prototype);
+      in.setContext(getContext());
+      in.beginShard();
+      in.beginSlice();
+      try {
+        while (true) {
+          KeyValue<ByteBuffer, ByteBuffer> pair;
+          try {
+            pair = in.next();
+          } catch (NoSuchElementException e) {
+            break;
+          }
+          ByteBuffer key = pair.getKey();
+          int hash = HASH.hashBytes(SerializationUtil.getBytes(key)).asInt();
+          long unsignedHash = hash & 0xFFFFFFFFL;
+          if (unsignedHash < rangeStart || unsignedHash >= rangeEnd) {
+            continue;
+          }
+          result.add(hash, key, pair.getValue());
+          if (result.getMemoryUsed() > maxMemory && result.size() > 1 && rangeSize > 1) {
+            return false;
+          }
+        }
+      } finally {
+        in.endSlice();
+        in.endShard();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Double getProgress() {
+    if (partitions.isEmpty()) {
+      return 1.0;
+    }
+    double done = rangeStart;
+    if (rangeRead && groupCount > 0 && rangeStart < HASH_RANGE) {
+      done += (double) Math.min(rangeSize, HASH_RANGE - rangeStart) * groupsReturned
+          / groupCount;
+    }
+    return Math.min(1.0, (partition + done / HASH_RANGE) / partitions.size());
+  }
+
+  @Override
+  public long estimateMemoryRequirement() {
+    long inputMemory = 0;
+    for (List<InputReader<KeyValue<ByteBuffer, ByteBuffer>>> inputs : partitions) {
+      for (InputReader<?> in : inputs) {
+        inputMemory = Math.max(inputMemory, in.estimateMemoryRequirement());
+      }
+    }
+    // Spill files are read like the input, and written while the groups are held
+    long spillMemory = GoogleCloudStorageFileOutputWriter.MEMORY_REQUIRED_WITHOUT_SLICE_RETRY;
+    return maxMemory + Math.max(inputMemory, spillMemory);
+  }
+}
@@ -17,6 +17,7 @@ import com.google.appengine.tools.mapreduce.Output;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.Reducer;
 import com.google.appengine.tools.mapreduce.ReducerContext;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.InProcessShardedJobRunner;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.ShardedJobController;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.Status;
@@ -81,6 +82,7 @@ public class InProcessMapReduce<I, K, V, O, R> {
   private final Reducer<K, V, O> reducer;
   private final Output<O, R> output;
   private final int numReducers;
+  private final ValueOrdering<V> valueOrdering;
 
   @SuppressWarnings("unchecked")
   public InProcessMapReduce(String id, MapReduceSpecification<I, K, V, O, R> mrSpec) {
@@ -91,6 +93,7 @@ public class InProcessMapReduce<I, K, V, O, R> {
     reducer = InProcessUtil.getReducer(mrSpec);
     output = InProcessUtil.getOutput(mrSpec);
     numReducers = InProcessUtil.getNumReducers(mrSpec);
+    valueOrdering = InProcessUtil.getValueOrdering(mrSpec);
   }
 
   @Override
@@ -139,7 +142,7 @@ public class InProcessMapReduce<I, K, V, O, R> {
       List<List<KeyValue<K, V>>> mapperOutputs, int reduceShardCount) {
     log.info("Shuffle phase started");
     List<List<KeyValue<K, List<V>>>> out =
-        Shuffling.shuffle(mapperOutputs, keyMarshaller, reduceShardCount);
+        Shuffling.shuffle(mapperOutputs, keyMarshaller, valueOrdering, reduceShardCount);
     log.info("Shuffle phase completed");
     return out;
   }
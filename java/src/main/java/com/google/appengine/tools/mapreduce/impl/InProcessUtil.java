@@ -8,6 +8,7 @@ import com.google.appengine.tools.mapreduce.Mapper;
 import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Output;
 import com.google.appengine.tools.mapreduce.Reducer;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
 import com.google.common.base.Preconditions;
 
 import java.lang.reflect.Method;
@@ -85,4 +86,9 @@ public final class InProcessUtil {
   public static Integer getNumReducers(MapReduceSpecification spec) {
     return invoke(spec);
   }
+
+  @SuppressWarnings("rawtypes")
+  public static ValueOrdering getValueOrdering(MapReduceSpecification spec) {
+    return invoke(spec);
+  }
 }
@@ -36,13 +36,20 @@ public class KeyValuesMarshaller<K, V> extends Marshaller<KeyValue<K, ? extends
 
   @Override
   public ByteBuffer toBytes(KeyValue<K, ? extends Iterable<V>> keyValues) {
+    return ByteBuffer.wrap(toProto(keyMarshaller.toBytes(keyValues.getKey()), keyValues.getValue())
+        .toByteArray());
+  }
+
+  /**
+   * Returns the proto holding the provided (already marshalled) key and the marshalled values.
+   */
+  protected KeyValuePb.KeyValues toProto(ByteBuffer key, Iterable<V> values) {
     KeyValuePb.KeyValues.Builder b = KeyValuePb.KeyValues.newBuilder();
-    b.setKey(ByteString.copyFrom(keyMarshaller.toBytes(keyValues.getKey())));
-    Iterable<V> values = keyValues.getValue();
+    b.setKey(ByteString.copyFrom(key));
     for (V value : values) {
       b.addValue(ByteString.copyFrom(valueMarshaller.toBytes(value)));
     }
-    return ByteBuffer.wrap(b.build().toByteArray());
+    return b.build();
   }
 
   private final class ByteStringTranslatingIterator implements Iterable<V>, Serializable {
@@ -73,14 +80,27 @@ public class KeyValuesMarshaller<K, V> extends Marshaller<KeyValue<K, ? extends
 
   @Override
   public KeyValue<K, Iterable<V>> fromBytes(ByteBuffer input) {
-    KeyValuePb.KeyValues proto;
+    KeyValuePb.KeyValues proto = parseProto(input);
+    K key = keyMarshaller.fromBytes(proto.getKey().asReadOnlyByteBuffer());
+    return KeyValue.<K, Iterable<V>>of(key, getValues(proto));
+  }
+
+  /**
+   * Parses the remaining bytes of the provided buffer as a {@link KeyValuePb.KeyValues}.
+   */
+  protected static KeyValuePb.KeyValues parseProto(ByteBuffer input) {
     try {
-      proto = KeyValuePb.KeyValues.parseFrom(ByteString.copyFrom(input));
+      return KeyValuePb.KeyValues.parseFrom(ByteString.copyFrom(input));
     } catch (InvalidProtocolBufferException e) {
       throw new CorruptDataException(e);
     }
-    K key = keyMarshaller.fromBytes(proto.getKey().asReadOnlyByteBuffer());
+  }
+
+  /**
+   * Returns a lazily unmarshalled view of the values in the proto.
+   */
+  protected Iterable<V> getValues(KeyValuePb.KeyValues proto) {
     List<ByteString> values = proto.getValueList();
-    return KeyValue.<K, Iterable<V>>of(key, new ByteStringTranslatingIterator(values));
+    return new ByteStringTranslatingIterator(values);
   }
 }
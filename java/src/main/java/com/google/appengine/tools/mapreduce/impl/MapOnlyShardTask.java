@@ -42,6 +42,15 @@ public class MapOnlyShardTask<I, O> extends WorkerShardTask<I, O, MapOnlyMapperC
     fillContext();
   }
 
+  @Override
+  public void run() {
+    try {
+      super.run();
+    } finally {
+      context.releaseSideInputs();
+    }
+  }
+
   @Override
   protected void callWorker(I input) {
     mapper.map(input);
@@ -84,6 +93,11 @@ public class MapOnlyShardTask<I, O> extends WorkerShardTask<I, O, MapOnlyMapperC
     return (skipWriterCheck || out.allowSliceRetry()) && mapper.allowSliceRetry();
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return out.allowConcurrentSliceAttempts() && mapper.allowConcurrentSliceAttempts();
+  }
+
   @Override
   public void jobCompleted(Status status) {
     mapper = null;
@@ -23,6 +23,9 @@ public class MapReduceConstants {
   public static final String MERGE_OUTPUT_DIR_FORMAT =
       "MapReduce/%s/MergedOutput-%02d/ReduceShard-%04d/file-%%04d";
 
+  public static final String HASH_GROUP_SPILL_DIR_FORMAT =
+      "MapReduce/%s/HashGroupSpill/ReduceShard-%04d/";
+
   public static final int ASSUMED_BASE_MEMORY_PER_REQUEST = 16 * 1024 * 1024;
 
   /**
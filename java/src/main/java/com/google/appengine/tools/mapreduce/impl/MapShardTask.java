@@ -46,6 +46,15 @@ public class MapShardTask<I, K, V> extends WorkerShardTask<I, KeyValue<K, V>, Ma
     fillContext();
   }
 
+  @Override
+  public void run() {
+    try {
+      super.run();
+    } finally {
+      context.releaseSideInputs();
+    }
+  }
+
   @Override
   protected void callWorker(I input) {
     mapper.map(input);
@@ -88,6 +97,11 @@ public class MapShardTask<I, K, V> extends WorkerShardTask<I, KeyValue<K, V>, Ma
     return (skipWriterCheck || out.allowSliceRetry()) && mapper.allowSliceRetry();
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return out.allowConcurrentSliceAttempts() && mapper.allowConcurrentSliceAttempts();
+  }
+
   @Override
   public void jobCompleted(Status status) {
     mapper = null;
@@ -31,6 +31,9 @@ import java.util.PriorityQueue;
  * all values for a given key, but may be useful to disable for internal cases (Merge for instance)
  * where this processing is not needed.
  *
+ * If the keys are composite keys (see {@link CompositeKeys}), the values are combined by the keys
+ * they were encoded from, and are returned in the order of their sort keys.
+ *
  * @param <K> The type of the key to be returned in the key Value pair.
  * @param <V> The type of the value
  */
@@ -44,10 +47,17 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
   private transient PriorityQueue<PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>>>
       lowestReaderQueue;
   private final boolean combineValues;
+  private final boolean compositeKeys;
 
   MergingReader(List<PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>>> readers,
       Marshaller<K> keyMarshaller, boolean combineValues) {
+    this(readers, keyMarshaller, combineValues, false);
+  }
+
+  MergingReader(List<PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>>> readers,
+      Marshaller<K> keyMarshaller, boolean combineValues, boolean compositeKeys) {
     this.combineValues = combineValues;
+    this.compositeKeys = compositeKeys;
     this.readers = Preconditions.checkNotNull(readers);
     this.keyMarshaller = Preconditions.checkNotNull(keyMarshaller);
   }
@@ -108,7 +118,7 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
         PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>> reader =
             lowestReaderQueue.peek();
         KeyValue<ByteBuffer, ? extends Iterable<V>> kv = reader.peek();
-        if (compareBuffers(kv.getKey(), key) != 0) {
+        if (compareBuffers(getKey(kv), key) != 0) {
           break;
         }
         if (kv.getValue().iterator().hasNext()) {
@@ -129,7 +139,7 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
       }
       KeyValue<ByteBuffer, ? extends Iterable<V>> keyValue =
           (lowestReaderQueue.isEmpty()) ? null : lowestReaderQueue.peek().peek();
-      if (keyValue == null || compareBuffers(keyValue.getKey(), key) != 0) {
+      if (keyValue == null || compareBuffers(getKey(keyValue), key) != 0) {
         throw new NoSuchElementException();
       }
       consumePeekedValue(keyValue);
@@ -172,7 +182,7 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
     PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>> reader =
         lowestReaderQueue.remove();
     KeyValue<ByteBuffer, ? extends Iterable<V>> lowest = reader.next();
-    ByteBuffer lowestKey = lowest.getKey();
+    ByteBuffer lowestKey = getKey(lowest);
     addReaderToQueueIfNotEmpty(reader);
     lastKey = SerializableValue.of(getByteBufferMarshaller(), lowestKey);
     if (combineValues) {
@@ -184,6 +194,14 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
     }
   }
 
+  /**
+   * Returns the key that the values are combined by, which is the key that was encoded in the
+   * composite key of {@code keyValue} if using composite keys.
+   */
+  private ByteBuffer getKey(KeyValue<ByteBuffer, ?> keyValue) {
+    return compositeKeys ? CompositeKeys.decodeKey(keyValue.getKey()) : keyValue.getKey();
+  }
+
   private void addReaderToQueueIfNotEmpty(
       PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>> reader) {
     if (reader.hasNext()) {
@@ -216,7 +234,7 @@ final class MergingReader<K, V> extends InputReader<KeyValue<K, Iterator<V>>> {
       PeekingInputReader<KeyValue<ByteBuffer, ? extends Iterable<V>>> reader) {
     boolean itemSkipped = false;
     KeyValue<ByteBuffer, ? extends Iterable<V>> keyValue = reader.peek();
-    while (keyValue != null && compareBuffers(keyValue.getKey(), lastKey.getValue()) == 0) {
+    while (keyValue != null && compareBuffers(getKey(keyValue), lastKey.getValue()) == 0) {
       consumePeekedValueFromReader(keyValue, reader);
       itemSkipped = true;
       keyValue = reader.peek();
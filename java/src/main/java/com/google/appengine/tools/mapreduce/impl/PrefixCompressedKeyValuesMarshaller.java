@@ -0,0 +1,148 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.proto.KeyValuePb;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link KeyValuesMarshaller} for files whose records are sorted by key, such as the output of
+ * the sort and merge stages. Adjacent keys in such files tend to share long prefixes, so rather
+ * than storing every key in full, an encoding instance stores each key as the length of the prefix
+ * it shares with the previous key followed by the rest of the key. As in LevelDb's tables, every
+ * {@link #RESTART_INTERVAL} records the full key is stored (a restart point).
+ *
+ * A prefix compressed record consists of:
+ * <ul>
+ * <li>1 byte: {@link #MARKER}, which can not be the first byte of a serialized
+ * {@link KeyValuePb.KeyValues}, as 0 is not a valid protocol buffer tag</li>
+ * <li>varint: the length of the prefix shared with the previous key</li>
+ * <li>the serialized {@link KeyValuePb.KeyValues} whose key holds only the rest of the key</li>
+ * </ul>
+ *
+ * Because decoding a record depends on the previous one, an instance holds state and must be used
+ * for a single file. The state is serialized with the instance, so it remains correct across
+ * slices. Instances created by {@link #forReading} decode records in either format, so they can be
+ * used regardless of how a file was written. Their {@link #toBytes} writes the uncompressed format
+ * and does not change their state, which allows them to be used with
+ * {@link SerializableValue} (as
+ * {@link com.google.appengine.tools.mapreduce.inputs.PeekingInputReader} does).
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ *
+ * @param <V> value type
+ */
+public final class PrefixCompressedKeyValuesMarshaller<V>
+    extends KeyValuesMarshaller<ByteBuffer, V> {
+
+  private static final long serialVersionUID = -3086472931625018722L;
+
+  static final byte MARKER = 0;
+
+  static final int RESTART_INTERVAL = 16;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final boolean encode;
+  private byte[] previousKey = EMPTY;
+  private int recordsSinceRestart;
+
+  private PrefixCompressedKeyValuesMarshaller(Marshaller<V> valueMarshaller, boolean encode) {
+    super(Marshallers.getByteBufferMarshaller(), valueMarshaller);
+    this.encode = encode;
+  }
+
+  /**
+   * Returns a marshaller that writes prefix compressed records. A new one is needed for each file.
+   */
+  public static <V> PrefixCompressedKeyValuesMarshaller<V> forWriting(
+      Marshaller<V> valueMarshaller) {
+    return new PrefixCompressedKeyValuesMarshaller<>(valueMarshaller, true);
+  }
+
+  /**
+   * Returns a marshaller that reads both prefix compressed and uncompressed records. A new one is
+   * needed for each file.
+   */
+  public static <V> PrefixCompressedKeyValuesMarshaller<V> forReading(
+      Marshaller<V> valueMarshaller) {
+    return new PrefixCompressedKeyValuesMarshaller<>(valueMarshaller, false);
+  }
+
+  @Override
+  public ByteBuffer toBytes(KeyValue<ByteBuffer, ? extends Iterable<V>> keyValues) {
+    if (!encode) {
+      return super.toBytes(keyValues);
+    }
+    ByteBuffer key = keyValues.getKey().slice();
+    int shared = 0;
+    if (recordsSinceRestart < RESTART_INTERVAL) {
+      int max = Math.min(previousKey.length, key.remaining());
+      while (shared < max && previousKey[shared] == key.get(shared)) {
+        shared++;
+      }
+      recordsSinceRestart++;
+    } else {
+      recordsSinceRestart = 1;
+    }
+    byte[] keyBytes = new byte[key.remaining()];
+    key.get(keyBytes);
+    key.position(shared);
+    KeyValuePb.KeyValues proto = toProto(key, keyValues.getValue());
+    previousKey = keyBytes;
+    int protoSize = proto.getSerializedSize();
+    byte[] result = new byte[1 + CodedOutputStream.computeRawVarint32Size(shared) + protoSize];
+    CodedOutputStream out = CodedOutputStream.newInstance(result);
+    try {
+      out.writeRawByte(MARKER);
+      out.writeRawVarint32(shared);
+      proto.writeTo(out);
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write record of " + result.length + " bytes", e);
+    }
+    return ByteBuffer.wrap(result);
+  }
+
+  @Override
+  public KeyValue<ByteBuffer, Iterable<V>> fromBytes(ByteBuffer input) {
+    if (!input.hasRemaining() || input.get(input.position()) != MARKER) {
+      return super.fromBytes(input);
+    }
+    input.get();
+    int shared = readVarint(input);
+    if (shared > previousKey.length) {
+      throw new CorruptDataException("Shared key prefix of " + shared
+          + " bytes is longer than the previous key of " + previousKey.length + " bytes");
+    }
+    KeyValuePb.KeyValues proto = parseProto(input);
+    byte[] key = new byte[shared + proto.getKey().size()];
+    System.arraycopy(previousKey, 0, key, 0, shared);
+    proto.getKey().copyTo(key, shared);
+    previousKey = key;
+    return KeyValue.of(ByteBuffer.wrap(key).asReadOnlyBuffer(), getValues(proto));
+  }
+
+  private static int readVarint(ByteBuffer input) {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (!input.hasRemaining()) {
+        throw new CorruptDataException("Premature end of record in shared key prefix length");
+      }
+      byte b = input.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        if (result < 0) {
+          break;
+        }
+        return result;
+      }
+    }
+    throw new CorruptDataException("Invalid shared key prefix length");
+  }
+}
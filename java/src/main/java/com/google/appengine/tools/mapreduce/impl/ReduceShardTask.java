@@ -93,6 +93,11 @@ public class ReduceShardTask<K, V, O>
     return (skipWriterCheck || out.allowSliceRetry()) && reducer.allowSliceRetry();
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return out.allowConcurrentSliceAttempts() && reducer.allowConcurrentSliceAttempts();
+  }
+
   @Override
   public void jobCompleted(Status status) {
     reducer = null;
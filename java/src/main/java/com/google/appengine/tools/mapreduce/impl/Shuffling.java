@@ -7,6 +7,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Sharder;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
 import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
 import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
@@ -95,27 +96,45 @@ class Shuffling {
     return out;
   }
 
-  // Also turns the keys back from Bytes into K.
+  // Also turns the keys back from Bytes into K, and sorts the values if valueOrdering is not null.
   private static <K, V> List<KeyValue<K, List<V>>> multimapToList(
-      Marshaller<K> keyMarshaller, ListMultimap<Bytes, V> in) {
+      Marshaller<K> keyMarshaller, ValueOrdering<V> valueOrdering, ListMultimap<Bytes, V> in) {
     List<Bytes> keys = Ordering.natural().sortedCopy(in.keySet());
     ImmutableList.Builder<KeyValue<K, List<V>>> out = ImmutableList.builder();
     for (Bytes keyBytes : keys) {
       K key = keyMarshaller.fromBytes(ByteBuffer.wrap(keyBytes.bytes));
-      out.add(KeyValue.of(key, in.get(keyBytes)));
+      List<V> values = in.get(keyBytes);
+      if (valueOrdering != null) {
+        values = valueOrdering(valueOrdering).sortedCopy(values);
+      }
+      out.add(KeyValue.of(key, values));
     }
     return out.build();
   }
 
+  private static <V> Ordering<V> valueOrdering(final ValueOrdering<V> valueOrdering) {
+    return KEY_ORDERING.onResultOf(new Function<V, byte[]>() {
+      @Override public byte[] apply(V value) {
+        return SerializationUtil.getBytes(valueOrdering.getSortKey(value));
+      }
+    });
+  }
+
   public static <K, V> List<List<KeyValue<K, List<V>>>> shuffle(
       List<List<KeyValue<K, V>>> mapperOutputs,
       Marshaller<K> keyMarshaller, int reduceShardCount) {
+    return shuffle(mapperOutputs, keyMarshaller, null, reduceShardCount);
+  }
+
+  public static <K, V> List<List<KeyValue<K, List<V>>>> shuffle(
+      List<List<KeyValue<K, V>>> mapperOutputs, Marshaller<K> keyMarshaller,
+      ValueOrdering<V> valueOrdering, int reduceShardCount) {
     List<ListMultimap<Bytes, V>> buckets =
         groupByShardAndKey(keysToBytes(keyMarshaller, Iterables.concat(mapperOutputs)),
             reduceShardCount);
     ImmutableList.Builder<List<KeyValue<K, List<V>>>> out = ImmutableList.builder();
     for (int i = 0; i < reduceShardCount; i++) {
-      out.add(multimapToList(keyMarshaller, buckets.get(i)));
+      out.add(multimapToList(keyMarshaller, valueOrdering, buckets.get(i)));
     }
     return out.build();
   }
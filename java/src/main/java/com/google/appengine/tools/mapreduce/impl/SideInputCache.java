@@ -0,0 +1,316 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.SideInput;
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RecoverableException;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RejectRequestException;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * A JVM wide cache of the tables of {@link SideInput}s, by name. A table is read by the first
+ * slice that asks for it, while concurrent slices that ask for the same name and version wait for
+ * it, and is then shared by all of them. Each slice holds a {@link Reference} until it ends.
+ * <p>
+ * The memory of each table is claimed from the {@link MemoryLimiter} of the workers as it is
+ * read, including the memory it takes only while it is being built. Tables that are not
+ * referenced stay cached until that memory is needed by a request, or by another table, or until
+ * a slice asks for a newer version.
+ * <p>
+ * This class is thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class SideInputCache {
+
+  private static final Logger log = Logger.getLogger(SideInputCache.class.getName());
+
+  private static final SideInputCache INSTANCE = new SideInputCache(WorkerShardTask.LIMITER);
+
+  private final MemoryLimiter limiter;
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * A version of a table. Once loaded, it is guarded by the lock of the cache.
+   */
+  private static final class Entry {
+    private final String name;
+    private final String version;
+    private int references;
+    private boolean cached = true;
+    private SideInputTable table;
+    private long claimedMb;
+
+    private Entry(String name, String version) {
+      this.name = name;
+      this.version = version;
+    }
+
+    @Override
+    public String toString() {
+      return "SideInputCache.Entry(" + name + "@" + version + ", references=" + references + ")";
+    }
+  }
+
+  /**
+   * A slice's use of a table.
+   */
+  public final class Reference {
+    private final Entry entry;
+    private boolean released;
+
+    private Reference(Entry entry) {
+      this.entry = entry;
+    }
+
+    public SideInputTable getTable() {
+      checkState(!released, "%s was released", entry);
+      return entry.table;
+    }
+
+    /**
+     * Releases this reference. The table must not be used after that. Releasing a reference that
+     * was already released is a no-op.
+     */
+    public void release() {
+      if (!released) {
+        released = true;
+        SideInputCache.this.release(entry);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  SideInputCache(MemoryLimiter limiter) {
+    this.limiter = checkNotNull(limiter, "Null limiter");
+  }
+
+  public static SideInputCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns a reference to the current version of the table of {@code sideInput}, reading it if it
+   * is not cached.
+   *
+   * @throws RecoverableException if there is not enough memory for the table.
+   */
+  public Reference acquire(SideInput<?, ?> sideInput) throws IOException {
+    String version = checkNotNull(sideInput.getVersion(), "Null version of %s", sideInput);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(sideInput.getName());
+      if (entry == null || !entry.version.equals(version)) {
+        if (entry != null) {
+          uncache(entry);
+        }
+        entry = new Entry(sideInput.getName(), version);
+        entries.put(entry.name, entry);
+      }
+      entry.references++;
+    }
+    boolean loaded = false;
+    try {
+      synchronized (entry) {
+        if (entry.table == null) {
+          load(entry, sideInput);
+        }
+      }
+      loaded = true;
+    } finally {
+      if (!loaded) {
+        synchronized (this) {
+          if (entry.table == null) {
+            uncache(entry);
+          }
+        }
+        release(entry);
+      }
+    }
+    return new Reference(entry);
+  }
+
+  private void load(Entry entry, SideInput<?, ?> sideInput) throws IOException {
+    log.info("Reading " + sideInput + " version " + entry.version);
+    Claim claim = new Claim(sideInput);
+    SideInputTable table;
+    boolean built = false;
+    try {
+      table = SideInputTable.build(serializedEntries(sideInput), claim);
+      built = true;
+    } finally {
+      if (!built) {
+        limiter.release(claim.claimedMb);
+      }
+    }
+    log.info("Read " + table.size() + " entries of " + sideInput + " into "
+        + table.getMemoryUsed() + " bytes");
+    synchronized (this) {
+      entry.table = table;
+      entry.claimedMb = claim.claimedMb;
+    }
+  }
+
+  /**
+   * Claims the memory of a table from the {@link MemoryLimiter} as it is built, so that a table
+   * that does not fit is given up on as soon as that is known.
+   */
+  private final class Claim implements SideInputTable.Reservation {
+
+    private final SideInput<?, ?> sideInput;
+    private long reservedBytes;
+    private long claimedMb;
+
+    private Claim(SideInput<?, ?> sideInput) {
+      this.sideInput = sideInput;
+    }
+
+    private long neededMb() {
+      return (reservedBytes + (1 << 20) - 1) >> 20;
+    }
+
+    @Override
+    public void reserve(long bytes) {
+      reservedBytes += bytes;
+      long toClaimMb = neededMb() - claimedMb;
+      if (toClaimMb <= 0) {
+        return;
+      }
+      try {
+        claimedMb += limiter.claim(toClaimMb);
+      } catch (RejectRequestException e) {
+        if (evictUnused() == 0) {
+          throw new RecoverableException("Not enough memory to cache " + sideInput, e);
+        }
+        try {
+          claimedMb += limiter.claim(toClaimMb);
+        } catch (RejectRequestException again) {
+          throw new RecoverableException("Not enough memory to cache " + sideInput, again);
+        }
+      }
+    }
+
+    @Override
+    public void release(long bytes) {
+      reservedBytes -= bytes;
+      long toReleaseMb = claimedMb - neededMb();
+      if (toReleaseMb > 0) {
+        limiter.release(toReleaseMb);
+        claimedMb -= toReleaseMb;
+      }
+    }
+  }
+
+  private static <K, V> Iterator<KeyValue<ByteBuffer, ByteBuffer>> serializedEntries(
+      final SideInput<K, V> sideInput) throws IOException {
+    final InputReader<KeyValue<K, V>> reader = sideInput.createReader();
+    reader.beginShard();
+    reader.beginSlice();
+    return new Iterator<KeyValue<ByteBuffer, ByteBuffer>>() {
+      private KeyValue<K, V> next;
+      private boolean done;
+
+      @Override
+      public boolean hasNext() {
+        if (next == null && !done) {
+          try {
+            next = reader.next();
+          } catch (NoSuchElementException e) {
+            done = true;
+            try {
+              reader.endSlice();
+              reader.endShard();
+            } catch (IOException ex) {
+              throw new RuntimeException("Failed to close the reader of " + sideInput, ex);
+            }
+          } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + sideInput, e);
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public KeyValue<ByteBuffer, ByteBuffer> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        KeyValue<K, V> entry = next;
+        next = null;
+        return KeyValue.of(sideInput.getKeyMarshaller().toBytes(entry.getKey()),
+            sideInput.getValueMarshaller().toBytes(entry.getValue()));
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private synchronized void release(Entry entry) {
+    entry.references--;
+    if (entry.references == 0 && !entry.cached) {
+      free(entry);
+    }
+  }
+
+  /**
+   * Removes {@code entry} from the cache, so that no new references to it are handed out.
+   */
+  private void uncache(Entry entry) {
+    if (entries.get(entry.name) == entry) {
+      entries.remove(entry.name);
+    }
+    entry.cached = false;
+    if (entry.references == 0) {
+      free(entry);
+    }
+  }
+
+  private void free(Entry entry) {
+    if (entry.table != null) {
+      log.info("Evicting " + entry);
+      entry.table = null;
+      limiter.release(entry.claimedMb);
+      entry.claimedMb = 0;
+    }
+  }
+
+  /**
+   * Evicts all the tables that are not referenced.
+   *
+   * @return the number of megabytes that were released to the {@link MemoryLimiter}.
+   */
+  public synchronized long evictUnused() {
+    long released = 0;
+    Iterator<Entry> iter = entries.values().iterator();
+    while (iter.hasNext()) {
+      Entry entry = iter.next();
+      if (entry.references == 0 && entry.table != null) {
+        released += entry.claimedMb;
+        iter.remove();
+        entry.cached = false;
+        free(entry);
+      }
+    }
+    return released;
+  }
+
+  @VisibleForTesting
+  synchronized int getCachedCount() {
+    return entries.size();
+  }
+}
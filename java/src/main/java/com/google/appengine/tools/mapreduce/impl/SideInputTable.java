@@ -0,0 +1,307 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.appengine.tools.mapreduce.impl.sort.LexicographicalComparator.compareBuffers;
+
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only table of serialized keys and values, held in a single direct buffer outside of the
+ * Java heap. Each entry is stored as the length and bytes of its key followed by the length and
+ * bytes of its value, and is found by binary search over an array of the offsets of the entries
+ * sorted by key. This takes the size of the serialized data plus 12 bytes per entry, and no
+ * objects for the garbage collector to trace.
+ * <p>
+ * This class is thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class SideInputTable {
+
+  private static final int INITIAL_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  private final ByteBuffer data;
+  private final int[] offsets;
+
+  /**
+   * Accounts for the memory a table takes while it is built, so that it can be claimed before it
+   * is allocated rather than once the whole table has been read.
+   */
+  public interface Reservation {
+
+    /**
+     * Called before {@code bytes} more are allocated. Throws to stop building the table, in which
+     * case the caller is responsible for what was reserved so far.
+     */
+    void reserve(long bytes);
+
+    /**
+     * Called once {@code bytes} that were reserved are no longer used. When the table is built, the
+     * bytes that remain reserved are its {@link #getMemoryUsed}.
+     */
+    void release(long bytes);
+  }
+
+  private SideInputTable(ByteBuffer data, int[] offsets) {
+    this.data = data;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Builds a table from the serialized entries returned by {@code entries}, in any order. The
+   * entries are staged in heap chunks that are never copied as more are read, and then copied once
+   * to the direct buffer, so that at most twice the size of the data is used at a time.
+   *
+   * @throws IllegalArgumentException if a key appears more than once or if the entries do not fit
+   *         in a buffer.
+   */
+  public static SideInputTable build(Iterator<KeyValue<ByteBuffer, ByteBuffer>> entries,
+      Reservation reservation) {
+    List<ByteBuffer> chunks = new ArrayList<>();
+    ByteBuffer chunk = null;
+    int nextChunkSize = INITIAL_CHUNK_SIZE;
+    long stagedBytes = 0;
+    reservation.reserve(4L * 1024);
+    int[] offsets = new int[1024];
+    int count = 0;
+    long size = 0;
+    while (entries.hasNext()) {
+      KeyValue<ByteBuffer, ByteBuffer> entry = entries.next();
+      ByteBuffer key = entry.getKey().slice();
+      ByteBuffer value = entry.getValue().slice();
+      long needed = 8L + key.remaining() + value.remaining();
+      if (size + needed > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Side input does not fit in a buffer, it exceeds "
+            + Integer.MAX_VALUE + " bytes");
+      }
+      if (chunk == null || chunk.remaining() < needed) {
+        int capacity = (int) Math.max(needed, nextChunkSize);
+        nextChunkSize = Math.min(MAX_CHUNK_SIZE, nextChunkSize * 2);
+        reservation.reserve(capacity);
+        stagedBytes += capacity;
+        chunk = ByteBuffer.allocate(capacity);
+        chunks.add(chunk);
+      }
+      if (count == offsets.length) {
+        reservation.reserve(8L * count);
+        offsets = Arrays.copyOf(offsets, count * 2);
+        reservation.release(4L * count);
+      }
+      offsets[count++] = (int) size;
+      chunk.putInt(key.remaining()).put(key).putInt(value.remaining()).put(value);
+      size += needed;
+    }
+    reservation.reserve(size);
+    ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+    for (ByteBuffer staged : chunks) {
+      staged.flip();
+      data.put(staged);
+    }
+    chunks = null;
+    chunk = null;
+    reservation.release(stagedBytes);
+    if (count < offsets.length) {
+      reservation.reserve(4L * count);
+      int[] trimmed = Arrays.copyOf(offsets, count);
+      reservation.release(4L * offsets.length);
+      offsets = trimmed;
+    }
+    if (!isSorted(data, offsets)) {
+      reservation.reserve(4L * count);
+      sortByKey(data, offsets, new int[count]);
+      reservation.release(4L * count);
+    }
+    for (int i = 1; i < count; i++) {
+      if (compareBuffers(keyAt(data, offsets[i - 1]), keyAt(data, offsets[i])) == 0) {
+        throw new IllegalArgumentException("Duplicate key in side input at offset " + offsets[i]);
+      }
+    }
+    return new SideInputTable(data, offsets);
+  }
+
+  private static boolean isSorted(ByteBuffer data, int[] offsets) {
+    for (int i = 1; i < offsets.length; i++) {
+      if (compareBuffers(keyAt(data, offsets[i - 1]), keyAt(data, offsets[i])) > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sorts {@code offsets} by the keys of their entries, with a bottom-up merge sort that uses
+   * {@code temp} rather than boxing the offsets to sort them with a comparator.
+   */
+  private static void sortByKey(ByteBuffer data, int[] offsets, int[] temp) {
+    int[] from = offsets;
+    int[] to = temp;
+    for (int width = 1; width < offsets.length; width *= 2) {
+      for (int low = 0; low < offsets.length; low += 2 * width) {
+        int mid = Math.min(low + width, offsets.length);
+        int high = Math.min(low + 2 * width, offsets.length);
+        int left = low;
+        int right = mid;
+        for (int i = low; i < high; i++) {
+          if (right >= high || (left < mid
+              && compareBuffers(keyAt(data, from[left]), keyAt(data, from[right])) <= 0)) {
+            to[i] = from[left++];
+          } else {
+            to[i] = from[right++];
+          }
+        }
+      }
+      int[] swap = from;
+      from = to;
+      to = swap;
+    }
+    if (from != offsets) {
+      System.arraycopy(from, 0, offsets, 0, offsets.length);
+    }
+  }
+
+  private static ByteBuffer keyAt(ByteBuffer data, int offset) {
+    ByteBuffer key = data.duplicate();
+    key.limit(offset + 4 + data.getInt(offset)).position(offset + 4);
+    return key.slice();
+  }
+
+  private static ByteBuffer valueAt(ByteBuffer data, int offset) {
+    int valueOffset = offset + 4 + data.getInt(offset);
+    ByteBuffer value = data.duplicate();
+    value.limit(valueOffset + 4 + data.getInt(valueOffset)).position(valueOffset + 4);
+    return value.slice();
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  public int size() {
+    return offsets.length;
+  }
+
+  /**
+   * Returns the number of bytes used by this table.
+   */
+  public long getMemoryUsed() {
+    return data.capacity() + 4L * offsets.length;
+  }
+
+  /**
+   * Returns the serialized value of {@code key}, or {@code null} if there is none.
+   */
+  public ByteBuffer get(ByteBuffer key) {
+    int index = indexOf(key.slice());
+    return index < 0 ? null : valueAt(data, offsets[index]);
+  }
+
+  private int indexOf(ByteBuffer key) {
+    int low = 0;
+    int high = offsets.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int result = compareBuffers(keyAt(data, offsets[mid]), key);
+      if (result < 0) {
+        low = mid + 1;
+      } else if (result > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a read-only map view of this table, which serializes the keys it is queried with and
+   * deserializes the values it returns. {@code keyMarshaller} must serialize equal keys to the
+   * same bytes.
+   */
+  public <K, V> Map<K, V> asMap(Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) {
+    return new MapView<>(keyMarshaller, valueMarshaller);
+  }
+
+  private final class MapView<K, V> extends AbstractMap<K, V> {
+
+    private final Marshaller<K> keyMarshaller;
+    private final Marshaller<V> valueMarshaller;
+
+    private MapView(Marshaller<K> keyMarshaller, Marshaller<V> valueMarshaller) {
+      this.keyMarshaller = keyMarshaller;
+      this.valueMarshaller = valueMarshaller;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ByteBuffer lookup(Object key) {
+      try {
+        return SideInputTable.this.get(keyMarshaller.toBytes((K) key));
+      } catch (ClassCastException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public V get(Object key) {
+      ByteBuffer value = lookup(key);
+      return value == null ? null : valueMarshaller.fromBytes(value);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return lookup(key) != null;
+    }
+
+    @Override
+    public int size() {
+      return offsets.length;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+      return new AbstractSet<Entry<K, V>>() {
+        @Override
+        public int size() {
+          return offsets.length;
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+          return new Iterator<Entry<K, V>>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+              return index < offsets.length;
+            }
+
+            @Override
+            public Entry<K, V> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              int offset = offsets[index++];
+              return new SimpleImmutableEntry<>(keyMarshaller.fromBytes(keyAt(data, offset)),
+                  valueMarshaller.fromBytes(valueAt(data, offset)));
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+  }
+}
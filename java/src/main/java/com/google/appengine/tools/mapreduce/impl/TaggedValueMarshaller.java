@@ -0,0 +1,64 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Marshalls values tagged with the index of the input they come from, as done by a MapReduce that
+ * joins several inputs. The tag is written as a single unsigned byte before the value.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ *
+ * @param <V> type of the values being tagged
+ */
+public class TaggedValueMarshaller<V> extends Marshaller<KeyValue<Integer, V>> {
+
+  private static final long serialVersionUID = -8826013452372946812L;
+
+  /**
+   * The number of distinct tags.
+   */
+  public static final int MAX_TAGS = 256;
+
+  private final Marshaller<V> valueMarshaller;
+
+  public TaggedValueMarshaller(Marshaller<V> valueMarshaller) {
+    this.valueMarshaller = checkNotNull(valueMarshaller, "Null valueMarshaller");
+  }
+
+  /**
+   * Returns the serialized form of {@code tag}, which sorts the same way as the tags.
+   */
+  public static ByteBuffer encodeTag(int tag) {
+    checkArgument(tag >= 0 && tag < MAX_TAGS, "Invalid tag: %s", tag);
+    ByteBuffer result = ByteBuffer.allocate(1);
+    result.put(0, (byte) tag);
+    return result;
+  }
+
+  @Override
+  public ByteBuffer toBytes(KeyValue<Integer, V> taggedValue) {
+    ByteBuffer tag = encodeTag(taggedValue.getKey());
+    ByteBuffer value = valueMarshaller.toBytes(taggedValue.getValue());
+    ByteBuffer result = ByteBuffer.allocate(1 + value.remaining());
+    result.put(tag).put(value);
+    result.flip();
+    return result;
+  }
+
+  @Override
+  public KeyValue<Integer, V> fromBytes(ByteBuffer input) {
+    if (!input.hasRemaining()) {
+      throw new CorruptDataException("Missing tag");
+    }
+    ByteBuffer value = input.slice();
+    int tag = value.get() & 0xFF;
+    return KeyValue.of(tag, valueMarshaller.fromBytes(value.slice()));
+  }
+}
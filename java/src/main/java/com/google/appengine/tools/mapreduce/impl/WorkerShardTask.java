@@ -11,6 +11,7 @@ import com.google.appengine.tools.mapreduce.WorkerContext;
 import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.JobFailureException;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.RecoverableException;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RejectRequestException;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.ShardFailureException;
 import com.google.common.base.Stopwatch;
 
@@ -70,7 +71,15 @@ public abstract class WorkerShardTask<I, O, C extends WorkerContext<O>> implemen
 
   @Override
   public void prepare() {
-    claimedMemory = LIMITER.claim(estimateMemoryRequirement() / 1024 / 1024);
+    long neededMb = estimateMemoryRequirement() / 1024 / 1024;
+    try {
+      claimedMemory = LIMITER.claim(neededMb);
+    } catch (RejectRequestException e) {
+      if (SideInputCache.getInstance().evictUnused() + EntityCache.dropJvmInstance() == 0) {
+        throw e;
+      }
+      claimedMemory = LIMITER.claim(neededMb);
+    }
   }
 
   @Override
@@ -50,6 +50,13 @@ public interface IncrementalTask extends Serializable {
    */
   boolean allowSliceRetry(boolean abandon);
 
+  /**
+   * @return true if a second attempt of a slice may run while the previous attempt is still
+   *         running. Only the attempt that finishes first is committed, so the side effects of
+   *         the other attempt must be harmless.
+   */
+  boolean allowConcurrentSliceAttempts();
+
   /**
    * A job completed callback to allow resource cleanup and compaction of the finalized state.
    *
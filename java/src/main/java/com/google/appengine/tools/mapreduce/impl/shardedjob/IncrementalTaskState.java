@@ -39,10 +39,12 @@ public class IncrementalTaskState<T extends IncrementalTask> {
     private static final String REQUEST_ID = "com.google.appengine.runtime.request_log_id";
     private Long startTime;
     private String requestId;
+    private boolean speculative;
 
-    private LockInfo(Long startTime, String requestId) {
+    private LockInfo(Long startTime, String requestId, boolean speculative) {
       this.startTime = startTime;
       this.requestId = requestId;
+      this.speculative = speculative;
     }
 
     public boolean isLocked() {
@@ -57,19 +59,33 @@ public class IncrementalTaskState<T extends IncrementalTask> {
       return requestId;
     }
 
+    /**
+     * Returns true if the lock was taken over from a slow attempt of the same slice, which may
+     * still be running.
+     */
+    public boolean isSpeculative() {
+      return speculative;
+    }
+
     public void lock() {
+      lock(false);
+    }
+
+    public void lock(boolean speculative) {
       startTime = System.currentTimeMillis();
       requestId = (String) ApiProxy.getCurrentEnvironment().getAttributes().get(REQUEST_ID);
+      this.speculative = speculative;
     }
 
     public void unlock() {
       startTime = null;
       requestId = null;
+      speculative = false;
     }
 
     @Override
     public String toString() {
-      return getClass().getName() + "(" + startTime + ", " + requestId + ")";
+      return getClass().getName() + "(" + startTime + ", " + requestId + ", " + speculative + ")";
     }
   }
 
@@ -78,7 +94,7 @@ public class IncrementalTaskState<T extends IncrementalTask> {
    */
   static <T extends IncrementalTask> IncrementalTaskState<T> create(
       String taskId, String jobId, long createTime, T initialTask) {
-    return new IncrementalTaskState<>(taskId, jobId, createTime, new LockInfo(null, null),
+    return new IncrementalTaskState<>(taskId, jobId, createTime, new LockInfo(null, null, false),
         checkNotNull(initialTask), new Status(StatusCode.RUNNING));
   }
 
@@ -178,6 +194,7 @@ public class IncrementalTaskState<T extends IncrementalTask> {
     private static final String RETRY_COUNT_PROPERTY = "retryCount";
     private static final String SLICE_START_TIME = "sliceStartTime";
     private static final String SLICE_REQUEST_ID = "sliceRequestId";
+    private static final String SLICE_SPECULATIVE = "sliceSpeculative";
     private static final String NEXT_TASK_PROPERTY = "nextTask";
     private static final String STATUS_PROPERTY = "status";
 
@@ -197,6 +214,9 @@ public class IncrementalTaskState<T extends IncrementalTask> {
       if (in.getLockInfo().requestId != null) {
         taskState.setUnindexedProperty(SLICE_REQUEST_ID, in.getLockInfo().requestId);
       }
+      if (in.getLockInfo().speculative) {
+        taskState.setUnindexedProperty(SLICE_SPECULATIVE, true);
+      }
       taskState.setProperty(SEQUENCE_NUMBER_PROPERTY, in.getSequenceNumber());
       taskState.setProperty(RETRY_COUNT_PROPERTY, in.getRetryCount());
       serializeToDatastoreProperty(tx, taskState, NEXT_TASK_PROPERTY, in.getTask(), GZIP);
@@ -215,7 +235,7 @@ public class IncrementalTaskState<T extends IncrementalTask> {
           (String) in.getProperty(JOB_ID_PROPERTY),
           (Long) in.getProperty(MOST_RECENT_UPDATE_MILLIS_PROPERTY),
           new LockInfo((Long) in.getProperty(SLICE_START_TIME),
-              (String) in.getProperty(SLICE_REQUEST_ID)),
+              (String) in.getProperty(SLICE_REQUEST_ID), in.hasProperty(SLICE_SPECULATIVE)),
           in.hasProperty(NEXT_TASK_PROPERTY) ? SerializationUtil
               .<T>deserializeFromDatastoreProperty(in, NEXT_TASK_PROPERTY, lenient)
               : null,
@@ -94,8 +94,16 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
 
   private static final Logger log = Logger.getLogger(ShardedJobRunner.class.getName());
 
+  // A slice is never duplicated before it ran for this long.
+  private static final long MIN_SPECULATIVE_SLICE_MILLIS = 60_000;
+  // The number of completed slices needed for the median to be meaningful.
+  private static final int MIN_SPECULATIVE_SLICE_SAMPLES = 3;
+  // About how many slices of each round of slices of the job are counted in the job state.
+  private static final int SPECULATIVE_SLICE_SAMPLES_PER_ROUND = 8;
+
   static final DatastoreService DATASTORE = DatastoreServiceFactory.getDatastoreService();
   private static final LogService LOG_SERVICE = LogServiceFactory.getLogService();
+  private static final Random RANDOM = new Random();
 
   private static final RetryParams DATASTORE_RETRY_PARAMS = new RetryParams.Builder()
       .initialRetryDelayMillis(1000).maxRetryDelayMillis(30000).retryMinAttempts(5).build();
@@ -283,7 +291,9 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
       if (!taskState.getLockInfo().isLocked()) {
         return taskState;
       }
-      handleLockHeld(taskId, jobState, taskState);
+      if (handleLockHeld(taskId, jobState, taskState)) {
+        return taskState;
+      }
     } else {
       if (taskState.getSequenceNumber() > sequenceNumber) {
         log.info(taskId + ": Task sequence number " + sequenceNumber + " already completed: "
@@ -297,8 +307,11 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
 
   /**
    * Handle a locked slice case.
+   *
+   * @return true if the slice should be run again while the attempt holding the lock may still be
+   *         running (see {@link #shouldSpeculate}).
    */
-  private void handleLockHeld(String taskId, ShardedJobStateImpl<T> jobState,
+  private boolean handleLockHeld(String taskId, ShardedJobStateImpl<T> jobState,
       IncrementalTaskState<T> taskState) {
     long currentTime = System.currentTimeMillis();
     int sliceTimeoutMillis = jobState.getSettings().getSliceTimeoutMillis();
@@ -306,6 +319,11 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
     boolean wasRequestCompleted = wasRequestCompleted(taskState.getLockInfo().getRequestId());
 
     if (lockExpiration > currentTime && !wasRequestCompleted) {
+      if (shouldSpeculate(jobState, taskState, currentTime)) {
+        log.info("Lock for " + taskId + " is held for " + (currentTime
+            - taskState.getLockInfo().lockedSince()) + "ms, starting a speculative attempt");
+        return true;
+      }
       // if lock was not expired AND not abandon reschedule in 1 minute.
       long eta = Math.min(lockExpiration, currentTime + 60_000);
       scheduleWorkerTask(null, jobState.getSettings(), taskState, eta);
@@ -322,6 +340,55 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
       }
       updateTask(jobState, taskState, retryState, false);
     }
+    return false;
+  }
+
+  /**
+   * Returns true if a slice has been running much longer than the median slice of the job, and
+   * the task allows a second attempt to run while the current attempt may still be running. Both
+   * attempts start from the same task state, and only the first one to finish commits, as the
+   * other fails the sequence number check in {@link #updateTask}. A slice is only duplicated once.
+   */
+  private boolean shouldSpeculate(ShardedJobStateImpl<T> jobState,
+      IncrementalTaskState<T> taskState, long currentTime) {
+    double ratio = jobState.getSettings().getSpeculativeSliceRatio();
+    long elapsed = currentTime - taskState.getLockInfo().lockedSince();
+    if (ratio <= 0 || elapsed < MIN_SPECULATIVE_SLICE_MILLIS
+        || taskState.getLockInfo().isSpeculative()
+        || jobState.getSliceCount() < MIN_SPECULATIVE_SLICE_SAMPLES
+        || !taskState.getTask().allowConcurrentSliceAttempts()) {
+      return false;
+    }
+    return elapsed > jobState.getMedianSliceMillis() * ratio;
+  }
+
+  /**
+   * Counts a committed slice in the slice durations of the job state, which are used by
+   * {@link #shouldSpeculate}. Only a sample of the slices of large jobs is counted, to keep the
+   * job state from being written once per slice. This is best effort: the slice is not counted
+   * if the job state is being modified concurrently.
+   */
+  private void recordSliceMillis(ShardedJobStateImpl<T> jobState, long sliceMillis) {
+    if (jobState.getSettings().getSpeculativeSliceRatio() <= 0
+        || RANDOM.nextInt(jobState.getTotalTaskCount()) >= SPECULATIVE_SLICE_SAMPLES_PER_ROUND) {
+      return;
+    }
+    String jobId = jobState.getJobId();
+    Transaction tx = DATASTORE.beginTransaction();
+    try {
+      ShardedJobStateImpl<T> current = lookupJobState(tx, jobId);
+      if (current == null || !current.getStatus().isActive()) {
+        return;
+      }
+      current.recordSliceMillis(sliceMillis);
+      DATASTORE.put(tx, ShardedJobStateImpl.ShardedJobSerializer.toEntity(tx, current));
+      tx.commit();
+    } catch (ConcurrentModificationException | DatastoreFailureException
+        | DatastoreTimeoutException ex) {
+      log.log(Level.FINE, jobId + ": Failed to count a slice of " + sliceMillis + "ms", ex);
+    } finally {
+      rollbackIfActive(tx);
+    }
   }
 
   private static boolean wasRequestCompleted(String requestId) {
@@ -345,7 +412,8 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
   private boolean lockShard(Transaction tx, ShardedJobStateImpl<T> jobState,
       IncrementalTaskState<T> taskState) {
     boolean locked = false;
-    taskState.getLockInfo().lock();
+    // Still locked when a speculative attempt takes over the lock from the current attempt.
+    taskState.getLockInfo().lock(taskState.getLockInfo().isLocked());
     Entity entity = IncrementalTaskState.Serializer.toEntity(tx, taskState);
     try {
       DATASTORE.put(tx, entity);
@@ -396,6 +464,7 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
   private void runAndUpdateTask(final String jobId, final String taskId, final int sequenceNumber,
       final ShardedJobStateImpl<T> jobState, IncrementalTaskState<T> taskState) {
     ShardRetryState<T> retryState = null;
+    Long sliceMillis = null;
     try {
       String statusUrl = jobState.getSettings().getPipelineStatusUrl();
       log.info("Running task " + taskId + " (job " + jobId + "), sequence number " + sequenceNumber
@@ -406,7 +475,9 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
         taskState.setStatus(new Status(StatusCode.DONE));
       }
       taskState.clearRetryCount();
-      taskState.setMostRecentUpdateMillis(System.currentTimeMillis());
+      long now = System.currentTimeMillis();
+      sliceMillis = now - taskState.getLockInfo().lockedSince();
+      taskState.setMostRecentUpdateMillis(now);
     } catch (ShardFailureException ex) {
       retryState = handleShardFailure(jobState, taskState, ex);
     } catch (JobFailureException ex) {
@@ -420,13 +491,17 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
       retryState = handleShardFailure(jobState, taskState, new RuntimeException("Error", ex));
     }
 
+    boolean committed;
     try {
-      updateTask(jobState, taskState, retryState, true);
+      committed = updateTask(jobState, taskState, retryState, true);
     } catch (RetryHelperException ex) {
       log.severe("Failed to write end of slice for task: " + taskState.getTask());
       // TODO(user): consider what to do here when this fail (though options are limited)
       throw ex;
     }
+    if (committed && sliceMillis != null) {
+      recordSliceMillis(jobState, sliceMillis);
+    }
   }
 
   private ShardRetryState<T> handleSliceFailure(ShardedJobStateImpl<T> jobState,
@@ -465,25 +540,31 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
     taskState.incrementAndGetRetryCount(); // trigger saving the last task instead of current
   }
 
-  private void updateTask(final ShardedJobStateImpl<T> jobState,
+  /**
+   * @return false if the update was ignored, as the task is gone or another execution of the same
+   *         slice already updated it.
+   */
+  private boolean updateTask(final ShardedJobStateImpl<T> jobState,
       final IncrementalTaskState<T> taskState, /* Nullable */
       final ShardRetryState<T> shardRetryState, boolean aggresiveRetry) {
     taskState.setSequenceNumber(taskState.getSequenceNumber() + 1);
     taskState.getLockInfo().unlock();
     ExceptionHandler exceptionHandler =
         aggresiveRetry ? AGGRESIVE_EXCEPTION_HANDLER : EXCEPTION_HANDLER;
-    RetryHelper.runWithRetries(callable(new Runnable() {
+    return RetryHelper.runWithRetries(new Callable<Boolean>() {
       @Override
-      public void run() {
+      public Boolean call() {
         Transaction tx = DATASTORE.beginTransaction();
         try {
           String taskId = taskState.getTaskId();
           IncrementalTaskState<T> existing = lookupTaskState(tx, taskId);
           if (existing == null) {
             log.info(taskId + ": Ignoring an update, as task disappeared while processing");
+            return false;
           } else if (existing.getSequenceNumber() != taskState.getSequenceNumber() - 1) {
             log.warning(taskId + ": Ignoring an update, a concurrent execution changed it to: "
                 + existing);
+            return false;
           } else {
             if (existing.getRetryCount() < taskState.getRetryCount()) {
               // Slice retry, we need to reset state
@@ -492,6 +573,7 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
             writeTaskState(taskState, shardRetryState, tx);
             scheduleTask(jobState, taskState, tx);
             tx.commit();
+            return true;
           }
         } finally {
           rollbackIfActive(tx);
@@ -518,7 +600,7 @@ public class ShardedJobRunner<T extends IncrementalTask> implements ShardedJobHa
               jobState.getSettings());
         }
       }
-    }), DATASTORE_RETRY_FOREVER_PARAMS, exceptionHandler);
+    }, DATASTORE_RETRY_FOREVER_PARAMS, exceptionHandler);
   }
 
   public static String getTaskId(String jobId, int taskNumber) {
@@ -12,6 +12,7 @@ import static com.google.appengine.tools.mapreduce.MapSettings.WORKER_PATH;
 import static com.google.appengine.tools.mapreduce.MapSettings.CONTROLLER_PATH;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SHARD_RETRIES;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SLICE_RETRIES;
+import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SPECULATIVE_SLICE_RATIO;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -40,6 +41,8 @@ public final class ShardedJobSettings implements Serializable {
   private final int maxShardRetries;
   private final int maxSliceRetries;
   private final int sliceTimeoutMillis;
+  /** Only 0 if speculative slice execution is disabled or as a result of an old version. */
+  private final double speculativeSliceRatio;
 
   /**
    * ShardedJobSettings builder.
@@ -57,6 +60,7 @@ public final class ShardedJobSettings implements Serializable {
     private int maxShardRetries = DEFAULT_SHARD_RETRIES;
     private int maxSliceRetries = DEFAULT_SLICE_RETRIES;
     private int sliceTimeoutMillis = DEFAULT_SLICE_TIMEOUT_MILLIS;
+    private double speculativeSliceRatio = DEFAULT_SPECULATIVE_SLICE_RATIO;
 
     public Builder setPipelineStatusUrl(String pipelineStatusUrl) {
       this.pipelineStatusUrl = pipelineStatusUrl;
@@ -108,6 +112,11 @@ public final class ShardedJobSettings implements Serializable {
       return this;
     }
 
+    public Builder setSpeculativeSliceRatio(double speculativeSliceRatio) {
+      this.speculativeSliceRatio = speculativeSliceRatio;
+      return this;
+    }
+
     public Builder setMapReduceStatusUrl(String mrStatusUrl) {
       this.mrStatusUrl = mrStatusUrl;
       return this;
@@ -116,13 +125,14 @@ public final class ShardedJobSettings implements Serializable {
     public ShardedJobSettings build() {
       return new ShardedJobSettings(controllerPath, workerPath, mrStatusUrl, pipelineStatusUrl,
           backend, module, version, queueName, maxShardRetries, maxSliceRetries,
-          sliceTimeoutMillis);
+          sliceTimeoutMillis, speculativeSliceRatio);
     }
   }
 
   private ShardedJobSettings(String controllerPath, String workerPath, String mrStatusUrl,
       String pipelineStatusUrl, String backend, String module, String version, String queueName,
-      int maxShardRetries, int maxSliceRetries, int sliceTimeoutMillis) {
+      int maxShardRetries, int maxSliceRetries, int sliceTimeoutMillis,
+      double speculativeSliceRatio) {
     this.controllerPath = controllerPath;
     this.workerPath = workerPath;
     this.mrStatusUrl = mrStatusUrl;
@@ -134,6 +144,7 @@ public final class ShardedJobSettings implements Serializable {
     this.maxShardRetries = maxShardRetries;
     this.maxSliceRetries = maxSliceRetries;
     this.sliceTimeoutMillis = sliceTimeoutMillis;
+    this.speculativeSliceRatio = speculativeSliceRatio;
     target = resolveTaskQueueTarget();
   }
 
@@ -196,6 +207,14 @@ public final class ShardedJobSettings implements Serializable {
     return sliceTimeoutMillis;
   }
 
+  /**
+   * Returns how many times longer than the median slice of the job a slice has to run before a
+   * duplicate attempt of it is started, or 0 if that is never done.
+   */
+  public double getSpeculativeSliceRatio() {
+    return speculativeSliceRatio;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "("
@@ -210,6 +229,7 @@ public final class ShardedJobSettings implements Serializable {
         + module + ", "
         + version + ", "
         + target + ", "
-        + sliceTimeoutMillis + ")";
+        + sliceTimeoutMillis + ", "
+        + speculativeSliceRatio + ")";
   }
 }
@@ -25,6 +25,11 @@ import java.util.BitSet;
  */
 class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState {
 
+  // Slice durations are counted in buckets that grow by a factor of 2^(1/4), starting at a second.
+  private static final int SLICE_MILLIS_BUCKETS = 64;
+  private static final int SLICE_MILLIS_BUCKETS_PER_DOUBLING = 4;
+  private static final long MIN_SLICE_MILLIS_BUCKET = 1000;
+
   private final String jobId;
   private final ShardedJobController<T> controller;
   private final ShardedJobSettings settings;
@@ -33,6 +38,7 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
   private long mostRecentUpdateTimeMillis;
   private BitSet shardsCompleted;
   private Status status;
+  private long[] sliceMillisHistogram = new long[SLICE_MILLIS_BUCKETS];
 
 
   public static <T extends IncrementalTask> ShardedJobStateImpl<T> create(String jobId,
@@ -102,6 +108,51 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
     return this;
   }
 
+  /**
+   * Counts a completed slice that took {@code sliceMillis}.
+   */
+  void recordSliceMillis(long sliceMillis) {
+    int bucket = 0;
+    if (sliceMillis > MIN_SLICE_MILLIS_BUCKET) {
+      double doublings = Math.log((double) sliceMillis / MIN_SLICE_MILLIS_BUCKET) / Math.log(2);
+      bucket = (int) Math.ceil(doublings * SLICE_MILLIS_BUCKETS_PER_DOUBLING);
+    }
+    sliceMillisHistogram[Math.min(bucket, SLICE_MILLIS_BUCKETS - 1)]++;
+  }
+
+  /**
+   * Returns the number of slices counted by {@link #recordSliceMillis}.
+   */
+  long getSliceCount() {
+    long count = 0;
+    for (long bucketCount : sliceMillisHistogram) {
+      count += bucketCount;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the median duration of the slices counted by {@link #recordSliceMillis}, rounded up
+   * to the upper bound of its bucket, or null if no slice was counted.
+   */
+  Long getMedianSliceMillis() {
+    long count = getSliceCount();
+    long seen = 0;
+    for (int bucket = 0; bucket < SLICE_MILLIS_BUCKETS; bucket++) {
+      seen += sliceMillisHistogram[bucket];
+      if (seen > count / 2) {
+        return (long) (MIN_SLICE_MILLIS_BUCKET
+            * Math.pow(2, (double) bucket / SLICE_MILLIS_BUCKETS_PER_DOUBLING));
+      }
+    }
+    return null;
+  }
+
+  private ShardedJobStateImpl<T> setSliceMillisHistogram(long[] sliceMillisHistogram) {
+    this.sliceMillisHistogram = sliceMillisHistogram;
+    return this;
+  }
+
   @Override
   public Status getStatus() {
     return status;
@@ -132,6 +183,7 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
     private static final String MOST_RECENT_UPDATE_TIME_PROPERTY = "mostRecentUpdateTimeMillis";
     private static final String SHARDS_COMPLETED_PROPERTY = "activeShards";
     private static final String STATUS_PROPERTY = "status";
+    private static final String SLICE_MILLIS_HISTOGRAM_PROPERTY = "sliceMillisHistogram";
 
     static Key makeKey(String jobId) {
       return KeyFactory.createKey(ENTITY_KIND, jobId);
@@ -144,6 +196,8 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
       serializeToDatastoreProperty(tx, jobState, SETTINGS_PROPERTY, in.getSettings());
       serializeToDatastoreProperty(tx, jobState, SHARDS_COMPLETED_PROPERTY, in.shardsCompleted);
       serializeToDatastoreProperty(tx, jobState, STATUS_PROPERTY, in.getStatus());
+      serializeToDatastoreProperty(tx, jobState, SLICE_MILLIS_HISTOGRAM_PROPERTY,
+          in.sliceMillisHistogram);
       jobState.setUnindexedProperty(TOTAL_TASK_COUNT_PROPERTY, in.getTotalTaskCount());
       jobState.setUnindexedProperty(START_TIME_PROPERTY, in.getStartTimeMillis());
       jobState.setUnindexedProperty(MOST_RECENT_UPDATE_TIME_PROPERTY,
@@ -158,7 +212,7 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
     static <T extends IncrementalTask> ShardedJobStateImpl<T> fromEntity(
         Entity in, boolean lenient) {
       Preconditions.checkArgument(ENTITY_KIND.equals(in.getKind()), "Unexpected kind: %s", in);
-      return new ShardedJobStateImpl<>(in.getKey().getName(),
+      ShardedJobStateImpl<T> jobState = new ShardedJobStateImpl<>(in.getKey().getName(),
           SerializationUtil.<ShardedJobController<T>>deserializeFromDatastoreProperty(in,
               CONTROLLER_PROPERTY, lenient),
           SerializationUtil.<ShardedJobSettings>deserializeFromDatastoreProperty(
@@ -169,6 +223,11 @@ class ShardedJobStateImpl<T extends IncrementalTask> implements ShardedJobState
           .setMostRecentUpdateTimeMillis((Long) in.getProperty(MOST_RECENT_UPDATE_TIME_PROPERTY))
           .setShardsCompleted((BitSet) SerializationUtil.deserializeFromDatastoreProperty(in,
               SHARDS_COMPLETED_PROPERTY));
+      if (in.hasProperty(SLICE_MILLIS_HISTOGRAM_PROPERTY)) {
+        jobState.setSliceMillisHistogram((long[]) SerializationUtil
+            .deserializeFromDatastoreProperty(in, SLICE_MILLIS_HISTOGRAM_PROPERTY));
+      }
+      return jobState;
     }
   }
 }
@@ -131,4 +131,9 @@ public class MergeShardTask extends WorkerShardTask<KeyValue<ByteBuffer, Iterato
   public boolean allowSliceRetry(boolean abandon) {
     return out.allowSliceRetry() && worker.allowSliceRetry();
   }
+
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return out.allowConcurrentSliceAttempts() && worker.allowConcurrentSliceAttempts();
+  }
 }
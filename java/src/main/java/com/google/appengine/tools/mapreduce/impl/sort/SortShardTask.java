@@ -123,6 +123,11 @@ public class SortShardTask extends WorkerShardTask<KeyValue<ByteBuffer, ByteBuff
     return true;
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return false;
+  }
+
   @Override
   public void jobCompleted(Status status) {
     inMemSorter = null;
@@ -6,6 +6,7 @@ import com.google.appengine.tools.mapreduce.KeyValue;
 import com.google.appengine.tools.mapreduce.Worker;
 import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
 import com.google.appengine.tools.mapreduce.impl.shardedjob.RejectRequestException;
+import com.google.appengine.tools.mapreduce.impl.util.ByteBufferPool;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
@@ -23,8 +24,9 @@ import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
- * Sorts a set of keyValues by a lexicographical comparison of the bytes of the key. On beginSlice a
- * large buffer is allocated to store the data.
+ * Sorts a set of keyValues by a lexicographical comparison of the bytes of the key. On prepare a
+ * large buffer is taken from the {@link ByteBufferPool} to store the data, and it is returned to
+ * the pool on cleanup so that the next slice on the same instance can reuse it.
  * <p>
  * The data is stored in the values buffer. Once this is full the data is sorted in place and
  * written out. The class cannot be used again until beginSlice is called again.
@@ -103,6 +105,7 @@ public class SortWorker extends Worker<SortContext> {
   }
 
   void cleanup() {
+    ByteBufferPool.getInstance().release(memoryBuffer);
     memoryBuffer = null;
   }
 
@@ -372,7 +375,8 @@ public class SortWorker extends Worker<SortContext> {
   /**
    * This attempts to allocate as much memory as can be claimed for sorting. Ideally this should be
    * as large as possible. However because there may be multiple requests occurring on the same
-   * instance, several attempts may be made to allocate a large portion.
+   * instance, several attempts may be made to allocate a large portion. Buffers are obtained from
+   * the {@link ByteBufferPool} so a buffer released by a previous slice is reused when possible.
    *
    * @throws RuntimeException If we cannot allocate after several attempts.
    */
@@ -382,7 +386,7 @@ public class SortWorker extends Worker<SortContext> {
       for (int retries = 0; retries < MEMORY_ALLOCATION_ATTEMPTS; retries++) {
         int targetCapacity = getMemoryForSort(retries);
         try {
-          return ByteBuffer.allocateDirect(targetCapacity);
+          return ByteBufferPool.getInstance().allocateDirect(targetCapacity);
         } catch (OutOfMemoryError e) {
           log.info("Failed to allocate direct memory for sort: " + targetCapacity
               + " retrying with a smaller buffer.");
@@ -394,7 +398,7 @@ public class SortWorker extends Worker<SortContext> {
     try {
       if (targetCapacity < runtime.freeMemory() + (runtime.maxMemory() - runtime.totalMemory())) {
         log.info("Using indirect memory allocation.");
-        return ByteBuffer.allocate(targetCapacity);
+        return ByteBufferPool.getInstance().allocate(targetCapacity);
       } else {
         log.info("Skipping indirect memory allocation.");
       }
@@ -0,0 +1,121 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes the framing used for block compressed intermediate files. (Written by
+ * {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter} and read by
+ * {@link com.google.appengine.tools.mapreduce.inputs.BlockDecompressingReadableByteChannel})
+ *
+ * A compressed file is a sequence of frames, each of which holds up to {@link #MAX_FRAME_SIZE}
+ * bytes of the uncompressed data. A frame consists of a header followed by the payload:
+ * <ul>
+ * <li>6 bytes: {@link #MAGIC}</li>
+ * <li>1 byte: the {@link Codec} used for the payload</li>
+ * <li>1 byte: reserved, always 0</li>
+ * <li>4 bytes: big endian length of the payload</li>
+ * <li>4 bytes: big endian length of the uncompressed data</li>
+ * </ul>
+ *
+ * Because every frame carries its own header, the concatenation of compressed files (for example
+ * by a GCS compose) is itself a valid compressed file, and readers can tell compressed files from
+ * uncompressed ones without relying on metadata. The codec bytes are chosen so that they are never
+ * a valid {@link LevelDbConstants.RecordType}, which is found at the same offset in a LevelDb file.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class BlockCompression {
+
+  private BlockCompression() {}
+
+  /** "MRBLK" followed by the version of the format. */
+  private static final byte[] MAGIC = {'M', 'R', 'B', 'L', 'K', 1};
+
+  /** The length of the part of the header that identifies a compressed file. */
+  public static final int HEADER_PREFIX_LENGTH = MAGIC.length + 1;
+
+  public static final int HEADER_LENGTH = 16;
+
+  public static final int MAX_FRAME_SIZE = 2 * LevelDbConstants.BLOCK_SIZE;
+
+  /**
+   * The ways a frame's payload can be encoded.
+   */
+  public enum Codec {
+    /** The payload is the uncompressed data. Used when compression would not save space. */
+    STORED((byte) 0x80),
+    DEFLATE((byte) 0x81);
+
+    private final byte value;
+
+    Codec(byte value) {
+      this.value = value;
+    }
+
+    public byte value() {
+      return value;
+    }
+
+    /**
+     * Returns the codec with the provided value, or null if there is none.
+     */
+    public static Codec get(byte value) {
+      for (Codec codec : values()) {
+        if (codec.value == value) {
+          return codec;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Writes a frame header to the buffer at its current position.
+   */
+  public static void writeHeader(ByteBuffer buffer, Codec codec, int payloadLength,
+      int uncompressedLength) {
+    buffer.put(MAGIC);
+    buffer.put(codec.value());
+    buffer.put((byte) 0);
+    buffer.putInt(payloadLength);
+    buffer.putInt(uncompressedLength);
+  }
+
+  /**
+   * Returns the codec of the frame whose header starts at offset 0 of {@code header}, or null if
+   * it does not start with a frame header. Only the first {@link #HEADER_PREFIX_LENGTH} bytes are
+   * examined.
+   */
+  public static Codec readCodec(byte[] header) {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header[i] != MAGIC[i]) {
+        return null;
+      }
+    }
+    return Codec.get(header[MAGIC.length]);
+  }
+
+  /**
+   * Returns the payload length of a frame header that was validated with {@link #readCodec}.
+   */
+  public static int readPayloadLength(byte[] header) {
+    return readLength(header, 8);
+  }
+
+  /**
+   * Returns the uncompressed length of a frame header that was validated with {@link #readCodec}.
+   */
+  public static int readUncompressedLength(byte[] header) {
+    return readLength(header, 12);
+  }
+
+  private static int readLength(byte[] header, int offset) {
+    int length = ByteBuffer.wrap(header, offset, 4).getInt();
+    if (length < 0 || length > MAX_FRAME_SIZE) {
+      throw new CorruptDataException("Invalid frame length: " + length);
+    }
+    return length;
+  }
+}
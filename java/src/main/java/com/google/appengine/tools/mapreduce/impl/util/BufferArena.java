@@ -0,0 +1,183 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A fixed amount of memory in which several partitions buffer their output. The memory is divided
+ * in blocks that are handed out to the partitions as they need them. When no block is free, the
+ * partition that buffers the most bytes is flushed to its {@link Sink}, which returns its blocks
+ * to the arena. This way partitions that receive little data do not hold memory they do not use.
+ * <p>
+ * As each flush is written out on its own, flushing small partitions is costly. An arena of
+ * {@link #getBlockCount} blocks only flushes partitions that buffer at least a given number of
+ * bytes, whatever the distribution of the output among its partitions.
+ * <p>
+ * The memory is taken from the {@link ByteBufferPool} and returned to it by {@link #release}. This
+ * class is not thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class BufferArena {
+
+  /**
+   * Receives the output of a partition when it is flushed.
+   */
+  public interface Sink {
+
+    /**
+     * Writes the remaining bytes of {@code blocks}, in order. The blocks must not be used after
+     * this method returns.
+     */
+    void writeBlocks(List<ByteBuffer> blocks) throws IOException;
+  }
+
+  /**
+   * The output of one partition buffered in the arena.
+   */
+  public final class Partition {
+    private final Sink sink;
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private long bufferedBytes;
+
+    private Partition(Sink sink) {
+      this.sink = checkNotNull(sink, "Null sink");
+    }
+
+    /**
+     * Buffers the remaining bytes of {@code bytes}, flushing the largest partition whenever the
+     * arena has no free block.
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+      checkState(memory != null, "Arena was released");
+      while (bytes.hasRemaining()) {
+        ByteBuffer block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || !block.hasRemaining()) {
+          // This may flush this partition
+          block = allocateBlock();
+          blocks.add(block);
+        }
+        int count = Math.min(bytes.remaining(), block.remaining());
+        int limit = bytes.limit();
+        bytes.limit(bytes.position() + count);
+        block.put(bytes);
+        bytes.limit(limit);
+        bufferedBytes += count;
+      }
+    }
+
+    /**
+     * Writes the buffered bytes to the sink, and returns their blocks to the arena.
+     */
+    public void flush() throws IOException {
+      if (blocks.isEmpty()) {
+        return;
+      }
+      for (ByteBuffer block : blocks) {
+        block.flip();
+      }
+      sink.writeBlocks(Collections.unmodifiableList(blocks));
+      for (ByteBuffer block : blocks) {
+        block.clear();
+        freeBlocks.addLast(block);
+      }
+      blocks.clear();
+      bufferedBytes = 0;
+    }
+
+    public long getBufferedBytes() {
+      return bufferedBytes;
+    }
+  }
+
+  private ByteBuffer memory;
+  private final ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<>();
+  private final List<Partition> partitions = new ArrayList<>();
+
+  /**
+   * @param blockSize the size of the blocks handed out to the partitions
+   * @param blockCount the number of blocks of the arena
+   */
+  public BufferArena(int blockSize, int blockCount) {
+    checkArgument(blockSize > 0, "Invalid blockSize: %s", blockSize);
+    checkArgument(blockCount > 0, "Invalid blockCount: %s", blockCount);
+    checkArgument((long) blockSize * blockCount <= Integer.MAX_VALUE, "Arena is too large");
+    memory = ByteBufferPool.getInstance().allocate(blockSize * blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      memory.limit((i + 1) * blockSize);
+      memory.position(i * blockSize);
+      freeBlocks.addLast(memory.slice());
+    }
+    memory.clear();
+  }
+
+  /**
+   * Returns the number of blocks of {@code blockSize} bytes that an arena needs so that, shared by
+   * up to {@code partitions} partitions, it never flushes one that buffers fewer than
+   * {@code minFlushSize} bytes.
+   */
+  public static int getBlockCount(int blockSize, int partitions, int minFlushSize) {
+    checkArgument(blockSize > 0, "Invalid blockSize: %s", blockSize);
+    checkArgument(partitions >= 0, "Invalid partitions: %s", partitions);
+    checkArgument(minFlushSize >= 0, "Invalid minFlushSize: %s", minFlushSize);
+    // When no block is free, all the blocks but the last one of each partition are full, so the
+    // largest partition buffers at least the size of the arena, less a block per partition,
+    // divided by the number of partitions.
+    long size = partitions * ((long) minFlushSize + blockSize);
+    return (int) Math.max(1, (size + blockSize - 1) / blockSize);
+  }
+
+  /**
+   * Returns a new partition that flushes its output to {@code sink}.
+   */
+  public Partition newPartition(Sink sink) {
+    Partition partition = new Partition(sink);
+    partitions.add(partition);
+    return partition;
+  }
+
+  /**
+   * Returns a free block, after flushing the partition that buffers the most bytes if there is
+   * none.
+   */
+  private ByteBuffer allocateBlock() throws IOException {
+    if (freeBlocks.isEmpty()) {
+      Partition largest = null;
+      for (Partition partition : partitions) {
+        if (largest == null || partition.bufferedBytes > largest.bufferedBytes) {
+          largest = partition;
+        }
+      }
+      largest.flush();
+    }
+    return freeBlocks.removeFirst();
+  }
+
+  /**
+   * Flushes all the partitions.
+   */
+  public void flush() throws IOException {
+    for (Partition partition : partitions) {
+      partition.flush();
+    }
+  }
+
+  /**
+   * Returns the memory of the arena to the {@link ByteBufferPool}. Buffered bytes that were not
+   * flushed are dropped, and the arena and its partitions can no longer be used.
+   */
+  public void release() {
+    freeBlocks.clear();
+    partitions.clear();
+    ByteBufferPool.getInstance().release(memory);
+    memory = null;
+  }
+}
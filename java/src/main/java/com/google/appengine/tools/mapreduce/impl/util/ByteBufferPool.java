@@ -0,0 +1,196 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A JVM wide pool of {@link ByteBuffer}s. Buffers are handed out by {@link #allocate} and
+ * {@link #allocateDirect} and returned by {@link #release}. Released buffers are kept (up to a
+ * bounded number of bytes for each kind) and handed out again to a later request for a buffer of
+ * the same capacity. This way back to back slices on the same instance do not pay for allocating
+ * and zeroing large buffers, and reclaiming direct memory does not depend on the garbage collector.
+ * <p>
+ * Buffers returned by this class are cleared and have {@link ByteOrder#BIG_ENDIAN} order, but their
+ * content is not zeroed. A buffer must not be used after it was released, and slices or duplicates
+ * of a buffer must not be released.
+ * <p>
+ * This class is thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class ByteBufferPool {
+
+  private static final Logger log = Logger.getLogger(ByteBufferPool.class.getName());
+
+  private static final String MAX_RETAINED_DIRECT_BYTES_PROPERTY =
+      ByteBufferPool.class.getName() + ".max_retained_direct_bytes";
+  private static final String MAX_RETAINED_HEAP_BYTES_PROPERTY =
+      ByteBufferPool.class.getName() + ".max_retained_heap_bytes";
+
+  /**
+   * By default enough direct memory is retained to hold the largest sort buffer.
+   */
+  private static final long DEFAULT_MAX_RETAINED_DIRECT_BYTES =
+      MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB * 1024L * 1024L / 4;
+  private static final long DEFAULT_MAX_RETAINED_HEAP_BYTES = 8 * 1024 * 1024;
+
+  private static final ByteBufferPool INSTANCE = new ByteBufferPool(
+      Long.getLong(MAX_RETAINED_DIRECT_BYTES_PROPERTY, DEFAULT_MAX_RETAINED_DIRECT_BYTES),
+      Long.getLong(MAX_RETAINED_HEAP_BYTES_PROPERTY, DEFAULT_MAX_RETAINED_HEAP_BYTES));
+
+  private final RetainedBuffers direct;
+  private final RetainedBuffers heap;
+
+  /**
+   * The buffers of one kind (direct or heap) that are held for reuse, grouped by capacity.
+   */
+  private static final class RetainedBuffers {
+    private final long maxRetainedBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> byCapacity = new HashMap<>();
+    private long retainedBytes;
+
+    RetainedBuffers(long maxRetainedBytes) {
+      Preconditions.checkArgument(maxRetainedBytes >= 0);
+      this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    ByteBuffer poll(int capacity) {
+      ArrayDeque<ByteBuffer> buffers = byCapacity.get(capacity);
+      if (buffers == null) {
+        return null;
+      }
+      ByteBuffer result = buffers.pollLast();
+      if (buffers.isEmpty()) {
+        byCapacity.remove(capacity);
+      }
+      if (result != null) {
+        retainedBytes -= capacity;
+      }
+      return result;
+    }
+
+    boolean offer(ByteBuffer buffer) {
+      int capacity = buffer.capacity();
+      ArrayDeque<ByteBuffer> buffers = byCapacity.get(capacity);
+      if (buffers != null) {
+        for (ByteBuffer retained : buffers) {
+          Preconditions.checkArgument(retained != buffer, "Buffer was released twice");
+        }
+      }
+      if (retainedBytes + capacity > maxRetainedBytes) {
+        return false;
+      }
+      if (buffers == null) {
+        buffers = new ArrayDeque<>();
+        byCapacity.put(capacity, buffers);
+      }
+      buffers.addLast(buffer);
+      retainedBytes += capacity;
+      return true;
+    }
+
+    void clear() {
+      byCapacity.clear();
+      retainedBytes = 0;
+    }
+  }
+
+  @VisibleForTesting
+  ByteBufferPool(long maxRetainedDirectBytes, long maxRetainedHeapBytes) {
+    direct = new RetainedBuffers(maxRetainedDirectBytes);
+    heap = new RetainedBuffers(maxRetainedHeapBytes);
+  }
+
+  public static ByteBufferPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns a heap buffer with exactly the requested capacity.
+   */
+  public ByteBuffer allocate(int capacity) {
+    Preconditions.checkArgument(capacity >= 0);
+    ByteBuffer result;
+    synchronized (this) {
+      result = heap.poll(capacity);
+    }
+    if (result == null) {
+      return ByteBuffer.allocate(capacity);
+    }
+    return reset(result);
+  }
+
+  /**
+   * Returns a direct buffer with exactly the requested capacity.
+   *
+   * @throws OutOfMemoryError if the buffer could not be allocated even after dropping all the
+   *         retained direct buffers.
+   */
+  public ByteBuffer allocateDirect(int capacity) {
+    Preconditions.checkArgument(capacity >= 0);
+    ByteBuffer result;
+    synchronized (this) {
+      result = direct.poll(capacity);
+    }
+    if (result != null) {
+      return reset(result);
+    }
+    try {
+      return ByteBuffer.allocateDirect(capacity);
+    } catch (OutOfMemoryError e) {
+      synchronized (this) {
+        if (direct.retainedBytes == 0) {
+          throw e;
+        }
+        log.info("Dropping " + direct.retainedBytes + " bytes of retained direct buffers to "
+            + "allocate " + capacity + " bytes.");
+        direct.clear();
+      }
+      return ByteBuffer.allocateDirect(capacity);
+    }
+  }
+
+  /**
+   * Returns the buffer to the pool. The caller must not use the buffer (or any of its slices)
+   * afterwards. Passing {@code null} is a no-op, which makes it convenient to use in cleanup code.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.isReadOnly() || buffer.capacity() == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (buffer.isDirect()) {
+        direct.offer(buffer);
+      } else {
+        heap.offer(buffer);
+      }
+    }
+  }
+
+  /**
+   * Drops all the retained buffers.
+   */
+  public synchronized void clear() {
+    direct.clear();
+    heap.clear();
+  }
+
+  @VisibleForTesting
+  synchronized long getRetainedBytes() {
+    return direct.retainedBytes + heap.retainedBytes;
+  }
+
+  private static ByteBuffer reset(ByteBuffer buffer) {
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    return buffer;
+  }
+}
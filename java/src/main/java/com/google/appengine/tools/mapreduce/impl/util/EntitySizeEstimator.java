@@ -0,0 +1,192 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Estimates the size of entities and keys in the protocol buffer encoding used by the datastore,
+ * without building the protocol buffers. The estimates are within a few bytes per property of the
+ * real size, and are meant for limiting the size of batches.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class EntitySizeEstimator {
+
+  /**
+   * The tags and lengths that wrap a property, its name and its value.
+   */
+  private static final int PROPERTY_OVERHEAD = 8;
+
+  /**
+   * The tags and lengths of the application, namespace and path of a key.
+   */
+  private static final int KEY_OVERHEAD = 6;
+
+  /**
+   * The tags and lengths of an element of the path of a key.
+   */
+  private static final int PATH_ELEMENT_OVERHEAD = 4;
+
+  /**
+   * The size of values of types that are not known to this class.
+   */
+  private static final int UNKNOWN_VALUE_SIZE = 64;
+
+  private EntitySizeEstimator() {}
+
+  /**
+   * Returns the estimated size of the encoding of {@code entity}.
+   */
+  public static int estimateSize(Entity entity) {
+    Key key = entity.getKey();
+    Key root = key;
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    // The entity group is a path of the root element only
+    return estimateSize(key) + 2 + estimatePathElementSize(root)
+        + estimatePropertiesSize(entity.getProperties());
+  }
+
+  /**
+   * Returns the estimated size of the encoding of {@code key}.
+   */
+  public static int estimateSize(Key key) {
+    int size = KEY_OVERHEAD + utf8Length(key.getAppId());
+    if (key.getNamespace() != null) {
+      size += utf8Length(key.getNamespace());
+    }
+    for (Key element = key; element != null; element = element.getParent()) {
+      size += estimatePathElementSize(element);
+    }
+    return size;
+  }
+
+  private static int estimatePathElementSize(Key element) {
+    int size = PATH_ELEMENT_OVERHEAD + utf8Length(element.getKind());
+    if (element.getName() != null) {
+      size += utf8Length(element.getName());
+    } else {
+      size += varintSize(element.getId());
+    }
+    return size;
+  }
+
+  private static int estimatePropertiesSize(Map<String, Object> properties) {
+    int size = 0;
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      Object value = property.getValue();
+      int nameSize = PROPERTY_OVERHEAD + utf8Length(property.getKey());
+      if (value instanceof Collection) {
+        // Each value of a multi-valued property is a property of its own
+        for (Object element : (Collection<?>) value) {
+          size += nameSize + estimateValueSize(element);
+        }
+      } else {
+        size += nameSize + estimateValueSize(value);
+      }
+    }
+    return size;
+  }
+
+  private static int estimateValueSize(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return utf8Length((String) value);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return varintSize(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      return 8;
+    } else if (value instanceof Boolean) {
+      return 1;
+    } else if (value instanceof Date) {
+      return varintSize(((Date) value).getTime() * 1000);
+    } else if (value instanceof Text) {
+      return utf8Length(((Text) value).getValue());
+    } else if (value instanceof Blob) {
+      return ((Blob) value).getBytes().length;
+    } else if (value instanceof ShortBlob) {
+      return ((ShortBlob) value).getBytes().length;
+    } else if (value instanceof Key) {
+      return estimateSize((Key) value);
+    } else if (value instanceof EmbeddedEntity) {
+      EmbeddedEntity embedded = (EmbeddedEntity) value;
+      int size = estimatePropertiesSize(embedded.getProperties());
+      return embedded.getKey() == null ? size : size + estimateSize(embedded.getKey());
+    } else if (value instanceof GeoPt) {
+      return 20;
+    } else if (value instanceof User) {
+      User user = (User) value;
+      return 8 + utf8Length(user.getEmail()) + utf8Length(user.getAuthDomain())
+          + utf8Length(user.getUserId()) + utf8Length(user.getFederatedIdentity());
+    } else if (value instanceof Link) {
+      return utf8Length(((Link) value).getValue());
+    } else if (value instanceof Category) {
+      return utf8Length(((Category) value).getCategory());
+    } else if (value instanceof Email) {
+      return utf8Length(((Email) value).getEmail());
+    } else if (value instanceof PhoneNumber) {
+      return utf8Length(((PhoneNumber) value).getNumber());
+    } else if (value instanceof PostalAddress) {
+      return utf8Length(((PostalAddress) value).getAddress());
+    } else if (value instanceof IMHandle) {
+      return 1 + utf8Length(((IMHandle) value).getAddress())
+          + utf8Length(((IMHandle) value).getProtocol());
+    } else if (value instanceof BlobKey) {
+      return utf8Length(((BlobKey) value).getKeyString());
+    } else {
+      return UNKNOWN_VALUE_SIZE;
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the UTF-8 encoding of {@code string}, or 0 if it is null.
+   */
+  static int utf8Length(String string) {
+    if (string == null) {
+      return 0;
+    }
+    int length = string.length();
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c >= 0x800) {
+        // Surrogate pairs take 4 bytes for 2 chars
+        length += Character.isSurrogate(c) ? 1 : 2;
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes of the varint encoding of {@code value}.
+   */
+  static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,64 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers, for the life of the JVM, how much of a file's records had their checksums verified.
+ * This allows a reader to skip verifying data that was already verified when it is read again, as
+ * happens when a slice or shard that reads intermediate files is retried on the same instance.
+ *
+ * Files are identified by a key that must change whenever the content of the file changes (for
+ * example one that includes the generation or etag of the file). The verified part of a file is
+ * always a prefix, as records are verified in order.
+ *
+ * This class is thread safe.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class VerifiedChecksums {
+
+  private static final String FIRST_READ_ONLY_FOR_INTERMEDIATE_FILES_PROPERTY =
+      VerifiedChecksums.class.getName() + ".first_read_only_for_intermediate_files";
+
+  private static final boolean FIRST_READ_ONLY_FOR_INTERMEDIATE_FILES =
+      Boolean.getBoolean(FIRST_READ_ONLY_FOR_INTERMEDIATE_FILES_PROPERTY);
+
+  private static final int MAX_FILES = 10000;
+
+  private static final Cache<String, Long> VERIFIED_OFFSETS =
+      CacheBuilder.newBuilder().maximumSize(MAX_FILES).build();
+
+  private VerifiedChecksums() {}
+
+  /**
+   * Returns true if the intermediate files of a MapReduce (the map output and the output of the
+   * sort and merge stages) should only have their checksums verified the first time they are read
+   * on an instance. This is off unless enabled by a system property.
+   */
+  public static boolean isFirstReadOnlyForIntermediateFiles() {
+    return FIRST_READ_ONLY_FOR_INTERMEDIATE_FILES;
+  }
+
+  /**
+   * Returns the offset up to which the checksums of the file were verified, or 0 if unknown.
+   */
+  public static long getVerifiedOffset(String key) {
+    Long offset = VERIFIED_OFFSETS.getIfPresent(checkNotNull(key, "Null key"));
+    return offset == null ? 0L : offset;
+  }
+
+  /**
+   * Records that the checksums of the file were verified up to the provided offset. Offsets lower
+   * than the one already recorded are ignored.
+   */
+  public static synchronized void setVerifiedOffset(String key, long offset) {
+    checkNotNull(key, "Null key");
+    Long existing = VERIFIED_OFFSETS.getIfPresent(key);
+    if (existing == null || existing < offset) {
+      VERIFIED_OFFSETS.put(key, offset);
+    }
+  }
+}
@@ -26,14 +26,27 @@ abstract class BaseDatastoreInput<V, R extends BaseDatastoreInputReader<V>> exte
 
   private final Query originalQuery;
   private final int shardCount;
+  /** Only false if not prefetching or as a result of an old version. */
+  private final boolean prefetch;
 
   /**
    * @param originalQuery The original query before shard splitting
    * @param shardCount number of parallel shards for the input.
    */
   public BaseDatastoreInput(Query originalQuery, int shardCount) {
+    this(originalQuery, shardCount, false);
+  }
+
+  /**
+   * @param originalQuery The original query before shard splitting
+   * @param shardCount number of parallel shards for the input.
+   * @param prefetch if true the readers fetch the next batch of entities while the current one is
+   *        being mapped.
+   */
+  public BaseDatastoreInput(Query originalQuery, int shardCount, boolean prefetch) {
     this.originalQuery = originalQuery;
     this.shardCount = shardCount;
+    this.prefetch = prefetch;
   }
 
   @Override
@@ -71,6 +84,10 @@ abstract class BaseDatastoreInput<V, R extends BaseDatastoreInputReader<V>> exte
     return shardCount;
   }
 
+  protected boolean isPrefetch() {
+    return prefetch;
+  }
+
   static Query createQuery(String namespace, String kind) {
     String ns = NamespaceManager.get();
     try {
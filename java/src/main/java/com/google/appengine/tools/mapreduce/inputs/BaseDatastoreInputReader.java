@@ -2,8 +2,10 @@
 
 package com.google.appengine.tools.mapreduce.inputs;
 
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getAsyncDatastoreService;
 import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.appengine.api.datastore.Cursor;
@@ -11,47 +13,100 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Ticker;
 
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for Datastore input readers.
+ *
+ * By default entities are fetched in chunks of {@link #BATCH_SIZE} when they are needed, so the
+ * mapper waits for every round trip to the Datastore. In prefetching mode the entities are instead
+ * fetched in batches by separate queries, and the query for the next batch is started with
+ * {@link com.google.appengine.api.datastore.AsyncDatastoreService} as soon as the current batch
+ * arrives, so it runs while the current batch is being mapped. Whenever the next batch was not
+ * ready in time the batch size is doubled, up to a limit derived from
+ * {@link #getAvgElementSize}.
+ *
+ * A slice may end in the middle of a batch, for which no cursor is available. In that case the
+ * position is saved as the cursor at the start of the batch and the number of its entities that
+ * were already returned, which the next slice skips.
+ */
 abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
 
   private static final long serialVersionUID = -2057811460496378627L;
 
   private static final int BATCH_SIZE = 50;
+  private static final int MAX_PREFETCH_BATCH_SIZE = 1000;
+  private static final long MAX_PREFETCH_BATCH_BYTES = 8 * 1024 * 1024;
+  /** Waiting less than this for a prefetched batch is not considered a stall. */
+  private static final long MIN_STALL_NANOS = 1_000_000L;
 
   private final Query query;
   private final Function<Entity, V> transformFunc;
+  /** Only false if not prefetching or as a result of an old version. */
+  private final boolean prefetch;
 
   private Cursor cursor;
+  /** The number of entities after {@link #cursor} that were already read. */
+  private int skip;
+  /** The size of prefetched batches. Only 0 if not prefetching or as a result of an old version. */
+  private int batchSize;
   private transient ResultIterator iterator;
 
   private static Ticker ticker = Ticker.systemTicker();
 
-  private static class ResultIterator {
+  private interface ResultIterator {
+
+    /**
+     * @throws NoSuchElementException if there are no more entities.
+     */
+    Entity next();
+
+    /**
+     * Returns the cursor from which to continue reading, after skipping {@link #getSkip}
+     * entities.
+     */
+    Cursor getCursor();
+
+    int getSkip();
+  }
+
+  private static class QueryIterator implements ResultIterator {
 
     private long startTimeNanos;
     private long accessTimeNanos;
     private Query query;
     private Cursor cursor;
+    private int skip;
     private QueryResultIterator<Entity> iterator;
 
     private static final long MAX_TIME_NANOS = 60_000_000_000L;
     private static final long MAX_IDLE_NANOS = 15_000_000_000L;
 
-    ResultIterator(Query query, Cursor cursor) {
+    QueryIterator(Query query, Cursor cursor, int skip) {
       this.query = query;
       this.cursor = cursor;
+      this.skip = skip;
     }
 
-    Cursor getCursor() {
+    @Override
+    public Cursor getCursor() {
       return iterator != null ? iterator.getCursor() : cursor;
     }
 
-    Entity next() {
+    @Override
+    public int getSkip() {
+      return iterator != null ? 0 : skip;
+    }
+
+    @Override
+    public Entity next() {
       long nowNanos = ticker.read();
       if (iterator == null || !isUsable(nowNanos)) {
         FetchOptions options = withChunkSize(BATCH_SIZE);
@@ -59,6 +114,10 @@ abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
         if (cursor != null) {
           options.startCursor(cursor);
         }
+        int skip = getSkip();
+        if (skip > 0) {
+          options.offset(skip);
+        }
         iterator = getDatastoreService().prepare(query).asQueryResultIterator(options);
         startTimeNanos = nowNanos;
       }
@@ -74,9 +133,109 @@ abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
     }
   }
 
+  private static class PrefetchingIterator implements ResultIterator {
+
+    private final Query query;
+    private final int maxBatchSize;
+    private int batchSize;
+    /** Where the current batch starts. */
+    private Cursor batchCursor;
+    private int batchSkip;
+    /** Only null before the first call to next. */
+    private QueryResultList<Entity> batch;
+    private int batchLimit;
+    /** The number of entities of the current batch that were returned. */
+    private int position;
+    /** Only null if there is no next batch or before the first call to next. */
+    private QueryResultList<Entity> nextBatch;
+    private int nextBatchLimit;
+
+    PrefetchingIterator(Query query, Cursor cursor, int skip, int batchSize, int maxBatchSize) {
+      this.query = query;
+      this.batchCursor = cursor;
+      this.batchSkip = skip;
+      this.batchSize = batchSize;
+      this.maxBatchSize = maxBatchSize;
+    }
+
+    int getBatchSize() {
+      return batchSize;
+    }
+
+    @Override
+    public Cursor getCursor() {
+      if (batch != null && position == batch.size() && position > 0) {
+        return batch.getCursor();
+      }
+      return batchCursor;
+    }
+
+    @Override
+    public int getSkip() {
+      if (batch != null && position == batch.size() && position > 0) {
+        return 0;
+      }
+      return batchSkip + position;
+    }
+
+    /**
+     * Starts the query for a batch. The results of the async service are fetched in the
+     * background and the returned list blocks until they arrive.
+     */
+    private QueryResultList<Entity> fetch(Cursor cursor, int skip, int limit) {
+      FetchOptions options = withLimit(limit).chunkSize(limit).prefetchSize(limit);
+      if (cursor != null) {
+        options.startCursor(cursor);
+      }
+      if (skip > 0) {
+        options.offset(skip);
+      }
+      return getAsyncDatastoreService().prepare(query).asQueryResultList(options);
+    }
+
+    @Override
+    public Entity next() {
+      if (batch == null) {
+        batchLimit = batchSize;
+        batch = fetch(batchCursor, batchSkip, batchLimit);
+      }
+      while (position == batch.size()) {
+        if (batch.size() < batchLimit) {
+          throw new NoSuchElementException();
+        }
+        batchCursor = batch.getCursor();
+        batchSkip = 0;
+        position = 0;
+        long startNanos = ticker.read();
+        batch = nextBatch;
+        batchLimit = nextBatchLimit;
+        nextBatch = null;
+        // Blocks until the batch arrives
+        batch.size();
+        if (ticker.read() - startNanos >= MIN_STALL_NANOS) {
+          batchSize = Math.min(batchSize * 2, maxBatchSize);
+        }
+      }
+      if (nextBatch == null && batch.size() == batchLimit) {
+        nextBatchLimit = batchSize;
+        nextBatch = fetch(batch.getCursor(), 0, nextBatchLimit);
+      }
+      return batch.get(position++);
+    }
+  }
+
   BaseDatastoreInputReader(Query query, Function<Entity, V> transformFunc) {
+    this(query, transformFunc, false);
+  }
+
+  /**
+   * @param prefetch if true the next batch of entities is fetched while the current one is being
+   *        read, as described above.
+   */
+  BaseDatastoreInputReader(Query query, Function<Entity, V> transformFunc, boolean prefetch) {
     this.query = checkNotNull(query);
     this.transformFunc = checkNotNull(transformFunc);
+    this.prefetch = prefetch;
   }
 
   @Override
@@ -98,6 +257,10 @@ abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
   @Override
   public void endSlice() {
     cursor = iterator.getCursor();
+    skip = iterator.getSkip();
+    if (iterator instanceof PrefetchingIterator) {
+      batchSize = ((PrefetchingIterator) iterator).getBatchSize();
+    }
     iterator = null;
   }
 
@@ -105,11 +268,25 @@ abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
 
   public void beginSlice() {
     Preconditions.checkState(iterator == null, "%s: Already initialized: %s", this, iterator);
-    iterator = new ResultIterator(query, cursor);
+    if (prefetch) {
+      iterator = new PrefetchingIterator(query, cursor, skip,
+          batchSize > 0 ? batchSize : BATCH_SIZE, getMaxPrefetchBatchSize());
+    } else {
+      iterator = new QueryIterator(query, cursor, skip);
+    }
+  }
+
+  private int getMaxPrefetchBatchSize() {
+    long bySize = MAX_PREFETCH_BATCH_BYTES / Math.max(1, getAvgElementSize());
+    return (int) Math.max(BATCH_SIZE, Math.min(MAX_PREFETCH_BATCH_SIZE, bySize));
   }
 
   @Override
   public long estimateMemoryRequirement() {
+    if (prefetch) {
+      // The current batch and the next one
+      return 2L * getMaxPrefetchBatchSize() * getAvgElementSize();
+    }
     return BATCH_SIZE * getAvgElementSize();
   }
 
@@ -117,7 +294,8 @@ abstract class BaseDatastoreInputReader<V> extends InputReader<V> {
 
   @Override
   public String toString() {
-    return getClass().getName() + " [query=" + query + ", transformFunc=" + transformFunc + "]";
+    return getClass().getName() + " [query=" + query + ", transformFunc=" + transformFunc
+        + ", prefetch=" + prefetch + "]";
   }
 
   @VisibleForTesting
@@ -90,6 +90,6 @@ class BlobstoreInputReader extends InputReader<byte[]> {
 
   @Override
   public long estimateMemoryRequirement() {
-    return MapReduceConstants.DEFAULT_IO_BUFFER_SIZE;
+    return MapReduceConstants.DEFAULT_IO_BUFFER_SIZE + LineInputStream.BUFFER_SIZE;
   }
 }
@@ -0,0 +1,228 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.appengine.tools.mapreduce.impl.util.BlockCompression.HEADER_LENGTH;
+import static com.google.appengine.tools.mapreduce.impl.util.BlockCompression.HEADER_PREFIX_LENGTH;
+import static com.google.appengine.tools.mapreduce.impl.util.BlockCompression.MAX_FRAME_SIZE;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.impl.util.BlockCompression;
+import com.google.appengine.tools.mapreduce.impl.util.BlockCompression.Codec;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A Serializable {@link ReadableByteChannel} that reads data that may have been written by
+ * {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter}. If the data
+ * starts with a frame header (see {@link BlockCompression}) it is decompressed, otherwise it is
+ * passed through unchanged. This way readers do not need to know whether a file is compressed.
+ *
+ * The state required to reconstruct this class when it is serialized is the underlying channel
+ * and the part of the current frame that has not been read yet.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public final class BlockDecompressingReadableByteChannel implements ReadableByteChannel,
+    Serializable {
+
+  private static final long serialVersionUID = 2836462715604526398L;
+
+  private final ReadableByteChannel in;
+  /** Null until the first bytes were read. */
+  private Boolean compressed;
+  private long compressedBytesRead;
+
+  /**
+   * Holds the decompressed data of the current frame, or the bytes that were read to detect an
+   * uncompressed stream. Serialized in {@link #writeObject}.
+   */
+  private transient byte[] data;
+  private transient int dataPosition;
+  private transient int dataLimit;
+  private transient byte[] header;
+  private transient byte[] payload;
+  private transient Inflater inflater;
+
+  /**
+   * @param in A Serializable ReadableByteChannel.
+   */
+  public BlockDecompressingReadableByteChannel(ReadableByteChannel in) {
+    this.in = checkNotNull(in, "Null in");
+    this.data = new byte[0];
+  }
+
+  /**
+   * Returns the number of bytes read from the underlying channel, which is smaller than the number
+   * of bytes returned if the data is compressed.
+   */
+  public long getCompressedBytesRead() {
+    return compressedBytesRead;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (compressed == null) {
+      int headerBytesRead = detect();
+      if (compressed && !readFrame(headerBytesRead)) {
+        return -1;
+      }
+    }
+    if (dataPosition == dataLimit) {
+      if (!compressed) {
+        int read = in.read(dst);
+        if (read > 0) {
+          compressedBytesRead += read;
+        }
+        return read;
+      }
+      if (!readFrame(0)) {
+        return -1;
+      }
+    }
+    int length = Math.min(dst.remaining(), dataLimit - dataPosition);
+    dst.put(data, dataPosition, length);
+    dataPosition += length;
+    return length;
+  }
+
+  /**
+   * Reads the start of the stream to find out if it is compressed. If it is not, the bytes read are
+   * left in {@link #data} to be returned.
+   *
+   * @return the number of bytes of the first frame header that were read.
+   */
+  private int detect() throws IOException {
+    header = new byte[HEADER_LENGTH];
+    int read = readFully(header, 0, HEADER_PREFIX_LENGTH);
+    compressed = read == HEADER_PREFIX_LENGTH && BlockCompression.readCodec(header) != null;
+    if (!compressed) {
+      data = header;
+      dataPosition = 0;
+      dataLimit = read;
+      header = null;
+    }
+    return read;
+  }
+
+  /**
+   * Reads and decompresses the next frame into {@link #data}.
+   *
+   * @param headerBytesRead the number of bytes of the frame header that were already read into
+   *        {@link #header}.
+   * @return false if the end of the stream was reached.
+   */
+  private boolean readFrame(int headerBytesRead) throws IOException {
+    if (header == null) {
+      header = new byte[HEADER_LENGTH];
+    }
+    int read = readFully(header, headerBytesRead, HEADER_LENGTH - headerBytesRead);
+    if (headerBytesRead == 0 && read == 0) {
+      return false;
+    }
+    if (read != HEADER_LENGTH - headerBytesRead) {
+      throw new CorruptDataException("Premature end of file in a frame header");
+    }
+    Codec codec = BlockCompression.readCodec(header);
+    if (codec == null || header[HEADER_PREFIX_LENGTH] != 0) {
+      throw new CorruptDataException("Invalid frame header");
+    }
+    int payloadLength = BlockCompression.readPayloadLength(header);
+    int uncompressedLength = BlockCompression.readUncompressedLength(header);
+    if (data.length < MAX_FRAME_SIZE) {
+      data = new byte[MAX_FRAME_SIZE];
+    }
+    if (codec == Codec.STORED) {
+      if (payloadLength != uncompressedLength) {
+        throw new CorruptDataException("Invalid stored frame length: " + payloadLength);
+      }
+      readPayload(data, payloadLength);
+    } else {
+      if (payload == null) {
+        payload = new byte[MAX_FRAME_SIZE];
+      }
+      readPayload(payload, payloadLength);
+      inflate(payloadLength, uncompressedLength);
+    }
+    dataPosition = 0;
+    dataLimit = uncompressedLength;
+    return true;
+  }
+
+  private void readPayload(byte[] buffer, int length) throws IOException {
+    if (readFully(buffer, 0, length) != length) {
+      throw new CorruptDataException("Premature end of file in a frame");
+    }
+  }
+
+  private void inflate(int payloadLength, int uncompressedLength) {
+    if (inflater == null) {
+      inflater = new Inflater();
+    } else {
+      inflater.reset();
+    }
+    inflater.setInput(payload, 0, payloadLength);
+    try {
+      int inflated = 0;
+      while (!inflater.finished() && inflated < uncompressedLength) {
+        int count = inflater.inflate(data, inflated, uncompressedLength - inflated);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      if (!inflater.finished() || inflated != uncompressedLength) {
+        throw new CorruptDataException("Frame did not decompress to " + uncompressedLength
+            + " bytes");
+      }
+    } catch (DataFormatException e) {
+      throw new CorruptDataException("Frame could not be decompressed: " + e.getMessage());
+    }
+  }
+
+  private int readFully(byte[] buffer, int offset, int length) throws IOException {
+    ByteBuffer wrapped = ByteBuffer.wrap(buffer, offset, length);
+    while (wrapped.hasRemaining()) {
+      if (in.read(wrapped) == -1) {
+        break;
+      }
+    }
+    int read = wrapped.position() - offset;
+    compressedBytesRead += read;
+    return read;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return in.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+    in.close();
+  }
+
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    stream.defaultWriteObject();
+    stream.writeInt(dataLimit - dataPosition);
+    stream.write(data, dataPosition, dataLimit - dataPosition);
+  }
+
+  private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+    stream.defaultReadObject();
+    dataLimit = stream.readInt();
+    data = new byte[dataLimit];
+    stream.readFully(data, 0, dataLimit);
+    dataPosition = 0;
+  }
+}
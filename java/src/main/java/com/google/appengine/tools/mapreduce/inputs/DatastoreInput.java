@@ -34,11 +34,21 @@ public final class DatastoreInput extends BaseDatastoreInput<Entity, DatastoreIn
    * @param shardCount the number for parallel shards for the input.
    */
   public DatastoreInput(Query query, int shardCount) {
-    super(query, shardCount);
+    this(query, shardCount, false);
+  }
+
+  /**
+   * @param query the query to read from the datastore.
+   * @param shardCount the number for parallel shards for the input.
+   * @param prefetch if true the next batch of entities is fetched while the current one is being
+   *        mapped.
+   */
+  public DatastoreInput(Query query, int shardCount, boolean prefetch) {
+    super(query, shardCount, prefetch);
   }
 
   @Override
   protected DatastoreInputReader createReader(Query query) {
-    return new DatastoreInputReader(query);
+    return new DatastoreInputReader(query, isPrefetch());
   }
 }
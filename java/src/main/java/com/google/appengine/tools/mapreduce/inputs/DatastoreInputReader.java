@@ -15,7 +15,16 @@ public class DatastoreInputReader extends BaseDatastoreInputReader<Entity> {
   private static final long AVERAGE_ENTITY_SIZE = 100 * 1024;
 
   public DatastoreInputReader(Query query) {
-    super(query, Functions.<Entity>identity());
+    this(query, false);
+  }
+
+  /**
+   * @param query the query to read.
+   * @param prefetch if true the next batch of entities is fetched while the current one is being
+   *        mapped.
+   */
+  public DatastoreInputReader(Query query, boolean prefetch) {
+    super(query, Functions.<Entity>identity(), prefetch);
   }
 
   @Override
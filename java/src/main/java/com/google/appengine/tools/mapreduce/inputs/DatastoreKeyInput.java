@@ -33,11 +33,21 @@ public final class DatastoreKeyInput extends BaseDatastoreInput<Key, DatastoreKe
    * @param shardCount the number of parallel shards to divide the input into.
    */
   public DatastoreKeyInput(Query query, int shardCount) {
-    super(query.setKeysOnly(), shardCount);
+    this(query, shardCount, false);
+  }
+
+  /**
+   * @param query The query to map read from the datastore
+   * @param shardCount the number of parallel shards to divide the input into.
+   * @param prefetch if true the next batch of keys is fetched while the current one is being
+   *        mapped.
+   */
+  public DatastoreKeyInput(Query query, int shardCount, boolean prefetch) {
+    super(query.setKeysOnly(), shardCount, prefetch);
   }
 
   @Override
   protected DatastoreKeyInputReader createReader(Query query) {
-    return new DatastoreKeyInputReader(query);
+    return new DatastoreKeyInputReader(query, isPrefetch());
   }
 }
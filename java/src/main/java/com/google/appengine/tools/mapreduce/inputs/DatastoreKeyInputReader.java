@@ -26,7 +26,16 @@ public class DatastoreKeyInputReader extends BaseDatastoreInputReader<Key> {
   }
 
   public DatastoreKeyInputReader(Query query) {
-    super(query, EntityToKeyFunction.INSTANCE);
+    this(query, false);
+  }
+
+  /**
+   * @param query the keys only query to read.
+   * @param prefetch if true the next batch of keys is fetched while the current one is being
+   *        mapped.
+   */
+  public DatastoreKeyInputReader(Query query, boolean prefetch) {
+    super(query, EntityToKeyFunction.INSTANCE, prefetch);
     Preconditions.checkArgument(query.isKeysOnly());
   }
 
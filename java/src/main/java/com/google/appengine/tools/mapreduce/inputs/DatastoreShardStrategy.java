@@ -34,14 +34,17 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -52,8 +55,11 @@ import java.util.logging.Logger;
  * This is done in one of two ways:
  *
  *  1. If the query contains an inequality filter, the lower and upper bounds are determined (this
- * may involve querying the datastore) then the range is split naively. This works well when the
- * property that is being queried on is uniformly distributed.
+ * may involve querying the datastore). Then the values of the property are sampled from a random
+ * sample of the entities of the kind (see {@link #getScatterSplitPoints}), and the range is split
+ * at quantiles of the sample, so that each part holds about the same number of entities even when
+ * the values are skewed. If the sample is too small and the property is of a numeric or date type
+ * the range is split naively instead, which works well when the property is uniformly distributed.
  *
  *  2. If the query does not contain an inequality filter. The query will be partitioned by the
  * entity key. This is done by using the "__scatter__" property to get a random sample of the
@@ -62,7 +68,7 @@ import java.util.logging.Logger;
  * keyspace.
  *
  *  The following clauses are not supported by this class: An inequality filter of unsupported type.
- * (Only numeric and date types are currently supported:
+ * (Only numeric, date, string and key types are currently supported:
  * {@link "https://developers.google.com/appengine/docs/java/datastore/entities#Java_Properties_and_value_types"}
  * )
  *
@@ -172,6 +178,11 @@ public class DatastoreShardStrategy {
 
   private static final Logger logger = Logger.getLogger(DatastoreShardStrategy.class.getName());
 
+  /** Below this many values in range, a sample is not used to split numeric or date ranges. */
+  private static final int MIN_SAMPLE_SIZE = 20;
+  private static final int SAMPLES_PER_SEGMENT = 4;
+  private static final int MAX_SAMPLE_SIZE = 1000;
+
   private static final ExceptionHandler EXCEPTION_HANDLER = new ExceptionHandler.Builder().retryOn(
       ConcurrentModificationException.class, DatastoreTimeoutException.class,
       DatastoreFailureException.class).abortOn(EntityNotFoundException.class).build();
@@ -189,6 +200,23 @@ public class DatastoreShardStrategy {
           .put(Rating.class, new RatingSplitter())
           .build();
 
+  /** Types that can only be split by sampling. */
+  private static final Set<Class<?>> SAMPLED_TYPES =
+      ImmutableSet.<Class<?>>of(String.class, Key.class);
+
+  /**
+   * Orders values of the same type as the datastore does. Integral numbers are compared as longs
+   * and floating point numbers as doubles, as they are stored that way.
+   */
+  @VisibleForTesting
+  static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public int compare(Object a, Object b) {
+      return ((Comparable) normalize(a)).compareTo(normalize(b));
+    }
+  };
+
   private final DatastoreService datastore;
 
 
@@ -233,11 +261,84 @@ public class DatastoreShardStrategy {
         }
         range.setLowerBound(predicate);
       }
-      ranges = boundriesToRanges(range, getSplitter(range).getSplitPoints(range, numSegments));
+      Splitter<?> splitter = getSplitter(range);
+      List<Object> sample =
+          getSample(query.getNamespace(), query.getKind(), range, numSegments);
+      if (splitter == null || sample.size() >= MIN_SAMPLE_SIZE) {
+        ranges = boundriesToRanges(range, getQuantiles(sample, numSegments,
+            range.getLowerBound().getValue(), range.getUpperBound().getValue()));
+      } else {
+        ranges = boundriesToRanges(range,
+            new ArrayList<Object>(splitter.getSplitPoints(range, numSegments)));
+      }
     }
     return toQueries(query, equalityFilters, ranges);
   }
 
+  /**
+   * Returns the sorted values of the range property of the entities in a random sample of the
+   * kind (see {@link #getScatterSplitPoints}), leaving out the values that are not in the range.
+   */
+  private List<Object> getSample(String namespace, String kind, Range range, int numSegments) {
+    int sampleSize = (int) Math.min(MAX_SAMPLE_SIZE, (long) numSegments * SAMPLES_PER_SEGMENT);
+    Query query = createQuery(namespace, kind).addSort(SCATTER_RESERVED_PROPERTY);
+    String property = range.getPropertyName();
+    Object lower = range.getLowerBound().getValue();
+    Object upper = range.getUpperBound().getValue();
+    List<Object> result = new ArrayList<>();
+    for (Entity entity : runQuery(query, sampleSize)) {
+      Object value =
+          KEY_RESERVED_PROPERTY.equals(property) ? entity.getKey() : entity.getProperty(property);
+      if (isSameType(value, lower) && VALUE_ORDER.compare(value, lower) >= 0
+          && VALUE_ORDER.compare(value, upper) <= 0) {
+        result.add(value);
+      }
+    }
+    Collections.sort(result, VALUE_ORDER);
+    return result;
+  }
+
+  /**
+   * Picks the split points so that about the same number of the sampled values fall between each
+   * of them.
+   *
+   * @param sample the sampled values in range, sorted by {@link #VALUE_ORDER}.
+   * @return the boundaries of the ranges, starting with {@code lower} and ending with
+   *         {@code upper}. There may be fewer than {@code numSegments} ranges if the sample is
+   *         small or has repeated values.
+   */
+  @VisibleForTesting
+  static List<Object> getQuantiles(List<?> sample, int numSegments, Object lower, Object upper) {
+    List<Object> result = new ArrayList<>();
+    result.add(lower);
+    Object previous = lower;
+    for (int i = 1; i < numSegments && !sample.isEmpty(); i++) {
+      Object point = sample.get((int) ((long) i * sample.size() / numSegments));
+      if (VALUE_ORDER.compare(point, previous) > 0
+          && VALUE_ORDER.compare(point, upper) < 0) {
+        result.add(point);
+        previous = point;
+      }
+    }
+    result.add(upper);
+    return result;
+  }
+
+  private static Object normalize(Object value) {
+    if (value instanceof Float || value instanceof Double) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    return value;
+  }
+
+  private static boolean isSameType(Object value, Object other) {
+    return value != null && other != null
+        && normalize(value).getClass().equals(normalize(other).getClass());
+  }
+
   /**
    * Uses the scatter property to distribute ranges to segments.
    *
@@ -346,19 +447,21 @@ public class DatastoreShardStrategy {
     }
   }
 
+  /**
+   * @return the splitter for the type of the range, or null if it can only be split by sampling.
+   */
   private Splitter<?> getSplitter(Range range) {
     Object value = range.getLowerBound().getValue();
-    Object type = value == null ? null : value.getClass();
+    Class<?> type = value == null ? null : value.getClass();
     Splitter<?> splitter = typeMap.get(type);
-    if (splitter == null) {
+    if (splitter == null && !SAMPLED_TYPES.contains(type)) {
       throw new IllegalArgumentException("Unsupported value type for inequality filter: " + type);
     }
     return splitter;
   }
 
-  private static <T> List<Range> boundriesToRanges(Range orig, SortedSet<T> boundrySet) {
+  private static List<Range> boundriesToRanges(Range orig, List<?> boundries) {
     List<Range> result = new ArrayList<>();
-    List<T> boundries = new ArrayList<>(boundrySet);
     String property = orig.getPropertyName();
     FilterPredicate lower =
         new FilterPredicate(property, orig.getLowerBound().getOperator(), boundries.get(0));
@@ -387,7 +490,9 @@ public class DatastoreShardStrategy {
     }
     FilterOperator operator =
         direction == DESCENDING ? LESS_THAN_OR_EQUAL : GREATER_THAN_OR_EQUAL;
-    return new FilterPredicate(propertyName, operator, item.get(0).getProperty(propertyName));
+    Object value = KEY_RESERVED_PROPERTY.equals(propertyName) ? item.get(0).getKey()
+        : item.get(0).getProperty(propertyName);
+    return new FilterPredicate(propertyName, operator, value);
   }
 
   private List<Entity> runQuery(Query q, final int limit) {
@@ -0,0 +1,106 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.mapreduce.Input;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Reads the lines of gzip or zlib (deflate) compressed files in Cloud Storage. The files are
+ * selected by a prefix or a glob, as described in {@link GoogleCloudStorageMultiFileLineInput}.
+ *
+ * As compressed files cannot be split, each file is read by a single shard. The files are assigned
+ * to shards so that each shard reads about the same number of compressed bytes, largest files
+ * first. A shard reads its files one after another.
+ *
+ * Each slice decompresses its file again from the start, see
+ * {@link GoogleCloudStorageCompressedLineInputReader}. For large files, a higher
+ * {@code millisPerSlice} in the settings of the job reduces the number of slices, and so how many
+ * times the start of each file is decompressed.
+ */
+public class GoogleCloudStorageCompressedLineInput extends Input<byte[]> {
+
+  private static final long serialVersionUID = -5290744633693736329L;
+
+  private final String bucket;
+  private final String pattern;
+  private final byte separator;
+  private final int shardCount;
+  private final int bufferSize;
+
+  public GoogleCloudStorageCompressedLineInput(String bucket, String pattern, byte separator,
+      int shardCount) {
+    this(bucket, pattern, separator, shardCount, 0);
+  }
+
+  public GoogleCloudStorageCompressedLineInput(String bucket, String pattern, byte separator,
+      int shardCount, int bufferSize) {
+    this.bucket = checkNotNull(bucket, "Null bucket");
+    this.pattern = checkNotNull(pattern, "Null pattern");
+    checkArgument(shardCount > 0, "Invalid shardCount: %s", shardCount);
+    this.separator = separator;
+    this.shardCount = shardCount;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override
+  public List<? extends InputReader<byte[]>> createReaders() {
+    Map<GcsFilename, Long> fileSizes =
+        GoogleCloudStorageMultiFileLineInput.listFiles(bucket, pattern);
+    List<ConcatenatingInputReader<byte[]>> result = new ArrayList<>();
+    for (List<Entry<GcsFilename, Long>> files : assign(fileSizes, shardCount)) {
+      List<GoogleCloudStorageCompressedLineInputReader> readers = new ArrayList<>(files.size());
+      for (Entry<GcsFilename, Long> file : files) {
+        readers.add(new GoogleCloudStorageCompressedLineInputReader(file.getKey(),
+            file.getValue(), separator, bufferSize));
+      }
+      result.add(new ConcatenatingInputReader<>(readers));
+    }
+    return result;
+  }
+
+  /**
+   * Assigns each file to one of at most {@code shardCount} shards, by giving the largest file not
+   * yet assigned to the shard with the fewest bytes.
+   *
+   * @return the files of each shard, none of which is empty.
+   */
+  @VisibleForTesting
+  static List<List<Entry<GcsFilename, Long>>> assign(Map<GcsFilename, Long> fileSizes,
+      int shardCount) {
+    List<Entry<GcsFilename, Long>> files = new ArrayList<>(fileSizes.entrySet());
+    Collections.sort(files, new Comparator<Entry<GcsFilename, Long>>() {
+      @Override
+      public int compare(Entry<GcsFilename, Long> a, Entry<GcsFilename, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    shardCount = Math.min(shardCount, files.size());
+    List<List<Entry<GcsFilename, Long>>> result = new ArrayList<>(shardCount);
+    long[] shardSizes = new long[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      result.add(new ArrayList<Entry<GcsFilename, Long>>());
+    }
+    for (Entry<GcsFilename, Long> file : files) {
+      int smallest = 0;
+      for (int i = 1; i < shardCount; i++) {
+        if (shardSizes[i] < shardSizes[smallest]) {
+          smallest = i;
+        }
+      }
+      result.get(smallest).add(file);
+      shardSizes[smallest] += file.getValue();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,144 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.GCS_RETRY_PARAMETERS;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsServiceOptions;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a gzip or zlib (deflate) compressed file from Cloud Storage one line at a time. The format
+ * is detected from the first bytes of the file. Because these formats cannot be split, the whole
+ * file is read by one reader.
+ *
+ * The state of the decompressor cannot be serialized, so each slice decompresses the file from
+ * the start and skips the data that was returned by the previous slices. This re-reads and
+ * re-inflates everything before the position of the slice, so a file read in n slices is
+ * decompressed about n / 2 times over, and the time to begin a slice grows with its position in
+ * the file. That time is spent in {@link #beginSlice}, which does not count towards the time the
+ * slice reads for, so every slice still reads for the whole time it is given. But the slice lasts
+ * that much longer, and it must end before the slice times out.
+ */
+class GoogleCloudStorageCompressedLineInputReader extends InputReader<byte[]> {
+
+  private static final long serialVersionUID = 2290367718466468358L;
+
+  private static final GcsService GCS_SERVICE = GcsServiceFactory.createGcsService(
+      new GcsServiceOptions.Builder()
+          .setRetryParams(GCS_RETRY_PARAMETERS)
+          .setHttpHeaders(ImmutableMap.of("User-Agent", "App Engine MR"))
+          .build());
+
+  private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+  private static final int INFLATER_BUFFER_SIZE = 64 * 1024;
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private final GcsFilename file;
+  private final long compressedLength;
+  private final byte separator;
+  private final int bufferSize;
+  /** The number of uncompressed bytes returned by previous slices. */
+  private long offset;
+  private transient CountingInputStream compressedIn;
+  private transient LineInputStream in;
+
+  /**
+   * @param compressedLength the size of the file, used to report progress.
+   */
+  GoogleCloudStorageCompressedLineInputReader(GcsFilename file, long compressedLength,
+      byte separator, int bufferSize) {
+    this.file = checkNotNull(file, "Null file");
+    Preconditions.checkArgument(compressedLength >= 0);
+    this.compressedLength = compressedLength;
+    this.separator = separator;
+    this.bufferSize = (bufferSize > 0) ? bufferSize : DEFAULT_BUFFER_SIZE;
+  }
+
+  @Override
+  public Double getProgress() {
+    if (compressedLength == 0) {
+      return 1.0;
+    }
+    if (compressedIn == null) {
+      return null;
+    }
+    return Math.min(1.0, (double) compressedIn.getCount() / compressedLength);
+  }
+
+  @Override
+  public void beginShard() {
+    offset = 0;
+    in = null;
+  }
+
+  @Override
+  public void beginSlice() throws IOException {
+    Preconditions.checkState(in == null, "%s: Already initialized: %s", this, in);
+    compressedIn = new CountingInputStream(
+        Channels.newInputStream(GCS_SERVICE.openPrefetchingReadChannel(file, 0, bufferSize)));
+    InputStream decompressed = decompress(compressedIn);
+    ByteStreams.skipFully(decompressed, offset);
+    in = new LineInputStream(decompressed, Long.MAX_VALUE, separator);
+  }
+
+  /**
+   * Returns a stream of the decompressed content, detecting whether it is in the gzip or the zlib
+   * format. Empty input is returned as it is.
+   */
+  static InputStream decompress(InputStream compressed) throws IOException {
+    BufferedInputStream buffered = new BufferedInputStream(compressed, 2);
+    buffered.mark(2);
+    int first = buffered.read();
+    int second = buffered.read();
+    buffered.reset();
+    if (first == -1) {
+      return buffered;
+    }
+    if ((first | (second << 8)) == GZIP_MAGIC) {
+      return new GZIPInputStream(buffered, INFLATER_BUFFER_SIZE);
+    }
+    return new InflaterInputStream(buffered, new Inflater(), INFLATER_BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        // Not done by InflaterInputStream when it is given an Inflater.
+        inf.end();
+      }
+    };
+  }
+
+  @Override
+  public void endSlice() throws IOException {
+    offset += in.getBytesCount();
+    in.close();
+    in = null;
+    compressedIn = null;
+  }
+
+  @Override
+  public byte[] next() throws NoSuchElementException {
+    return in.next();
+  }
+
+  @Override
+  public long estimateMemoryRequirement() {
+    // Double buffered input, the line buffer and the inflater's buffer and window
+    return bufferSize * 2 + LineInputStream.BUFFER_SIZE + 2 * INFLATER_BUFFER_SIZE;
+  }
+}
@@ -24,6 +24,7 @@ public final class GoogleCloudStorageLevelDbInput extends Input<ByteBuffer> {
   private static final long serialVersionUID = -5135725511174133847L;
   private final GoogleCloudStorageFileSet files;
   private final int bufferSize;
+  private final boolean verifyOnFirstReadOnly;
 
   public GoogleCloudStorageLevelDbInput(GoogleCloudStorageFileSet files) {
     this(files, MapReduceConstants.DEFAULT_IO_BUFFER_SIZE);
@@ -34,8 +35,20 @@ public final class GoogleCloudStorageLevelDbInput extends Input<ByteBuffer> {
    * @param bufferSize The size of the buffer used for each file.
    */
   public GoogleCloudStorageLevelDbInput(GoogleCloudStorageFileSet files, int bufferSize) {
+    this(files, bufferSize, false);
+  }
+
+  /**
+   * @param files The set of files to create readers for. One reader per file.
+   * @param bufferSize The size of the buffer used for each file.
+   * @param verifyOnFirstReadOnly If true, checksums are only verified the first time a part of a
+   *        file is read in a JVM. See {@link GoogleCloudStorageLevelDbInputReader}.
+   */
+  public GoogleCloudStorageLevelDbInput(GoogleCloudStorageFileSet files, int bufferSize,
+      boolean verifyOnFirstReadOnly) {
     this.files = checkNotNull(files, "Null files");
     this.bufferSize = bufferSize;
+    this.verifyOnFirstReadOnly = verifyOnFirstReadOnly;
     checkArgument(bufferSize > 0, "Buffersize must be > 0");
   }
 
@@ -44,7 +57,8 @@ public final class GoogleCloudStorageLevelDbInput extends Input<ByteBuffer> {
   public List<InputReader<ByteBuffer>> createReaders() {
     List<InputReader<ByteBuffer>> result = new ArrayList<>();
     for (GcsFilename file : files.getFiles()) {
-      result.add(new GoogleCloudStorageLevelDbInputReader(file, bufferSize));
+      result.add(
+          new GoogleCloudStorageLevelDbInputReader(file, bufferSize, verifyOnFirstReadOnly));
     }
     return result;
   }
@@ -9,6 +9,7 @@ import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.GcsServiceOptions;
+import com.google.appengine.tools.mapreduce.impl.util.BlockCompression;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants;
 import com.google.common.collect.ImmutableMap;
 
@@ -17,6 +18,10 @@ import java.nio.channels.ReadableByteChannel;
 
 /**
  * A simple wrapper of LevelDb wrapper for GCS to provide getProgress() and do lazy initialization.
+ * Files that were block compressed by
+ * {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter} are
+ * decompressed transparently, unless only a range of the file is read. The offsets of a range
+ * refer to the stored bytes, so block compressed files cannot be split into ranges.
  */
 public final class GoogleCloudStorageLevelDbInputReader extends LevelDbInputReader {
 
@@ -30,20 +35,66 @@ public final class GoogleCloudStorageLevelDbInputReader extends LevelDbInputRead
 
   private final GcsFilename file;
   private final int bufferSize;
+  private final boolean verifyOnFirstReadOnly;
   private double length = -1;
+  /** Only null before beginShard, if a range is read or as a result of an old version. */
+  private BlockDecompressingReadableByteChannel channel;
 
   /**
    * @param file File to be read.
    * @param bufferSize The buffersize to be used by the Gcs prefetching read channel.
    */
   public GoogleCloudStorageLevelDbInputReader(GcsFilename file, int bufferSize) {
+    this(file, bufferSize, false);
+  }
+
+  /**
+   * @param file File to be read.
+   * @param bufferSize The buffersize to be used by the Gcs prefetching read channel.
+   * @param verifyOnFirstReadOnly If true the checksums of records that were already verified by
+   *        an earlier reader of the same file (with the same etag) in this JVM are not verified
+   *        again.
+   */
+  public GoogleCloudStorageLevelDbInputReader(GcsFilename file, int bufferSize,
+      boolean verifyOnFirstReadOnly) {
+    this.file = checkNotNull(file, "Null file");
+    this.bufferSize = bufferSize;
+    this.verifyOnFirstReadOnly = verifyOnFirstReadOnly;
+    checkArgument(bufferSize > 0, "Buffersize must be > 0");
+  }
+
+  /**
+   * Reads the records that start in a range of the file. See {@link LevelDbInputReader}.
+   *
+   * @param file File to be read.
+   * @param startOffset Where to start reading, a multiple of
+   *        {@link LevelDbConstants#BLOCK_SIZE}.
+   * @param endOffset Where the reader of the next range of the file starts.
+   * @param bufferSize The buffersize to be used by the Gcs prefetching read channel.
+   */
+  public GoogleCloudStorageLevelDbInputReader(GcsFilename file, long startOffset, long endOffset,
+      int bufferSize) {
+    super(startOffset, endOffset);
     this.file = checkNotNull(file, "Null file");
     this.bufferSize = bufferSize;
+    this.verifyOnFirstReadOnly = false;
     checkArgument(bufferSize > 0, "Buffersize must be > 0");
   }
 
+  GcsFilename getFile() {
+    return file;
+  }
+
+  private boolean isRange() {
+    return getEndOffset() != Long.MAX_VALUE;
+  }
+
   @Override
   public Double getProgress() {
+    if (isRange()) {
+      long rangeLength = getEndOffset() - getStartOffset();
+      return rangeLength == 0 ? 1.0 : Math.min(1.0, (double) getBytesRead() / rangeLength);
+    }
     if (length == -1) {
       GcsFileMetadata metadata = null;
       try {
@@ -59,17 +110,44 @@ public final class GoogleCloudStorageLevelDbInputReader extends LevelDbInputRead
     if (length == 0f) {
       return null;
     }
-    return getBytesRead() / length;
+    long bytesRead = channel == null ? getBytesRead() : channel.getCompressedBytesRead();
+    return bytesRead / length;
   }
 
   @Override
   public ReadableByteChannel createReadableByteChannel() {
     length = -1;
-    return gcsService.openPrefetchingReadChannel(file, 0, bufferSize);
+    if (isRange()) {
+      channel = null;
+      return gcsService.openPrefetchingReadChannel(file, getStartOffset(), bufferSize);
+    }
+    channel = new BlockDecompressingReadableByteChannel(
+        gcsService.openPrefetchingReadChannel(file, 0, bufferSize));
+    return channel;
+  }
+
+  @Override
+  protected String getVerificationKey() {
+    if (!verifyOnFirstReadOnly) {
+      return null;
+    }
+    GcsFileMetadata metadata;
+    try {
+      metadata = gcsService.getMetadata(file);
+    } catch (IOException e) {
+      // Verifying every record is always safe.
+      return null;
+    }
+    if (metadata == null || metadata.getEtag() == null) {
+      return null;
+    }
+    length = metadata.getLength();
+    return file + "@" + metadata.getEtag();
   }
 
   @Override
   public long estimateMemoryRequirement() {
-    return LevelDbConstants.BLOCK_SIZE + bufferSize * 2; // Double buffered
+    // Double buffered, plus the buffers used if the file is compressed.
+    return LevelDbConstants.BLOCK_SIZE + bufferSize * 2 + BlockCompression.MAX_FRAME_SIZE * 2;
   }
 }
@@ -0,0 +1,65 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.DEFAULT_IO_BUFFER_SIZE;
+import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.GCS_RETRY_PARAMETERS;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.SideInput;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * A {@link SideInput} read from a LevelDb file in Google Cloud Storage whose records are keys and
+ * values marshalled by {@link Marshallers#getKeyValueMarshaller}, such as a file written by
+ * {@link com.google.appengine.tools.mapreduce.outputs.MarshallingOutput} over a
+ * {@link com.google.appengine.tools.mapreduce.outputs.GoogleCloudStorageLevelDbOutput}. The version
+ * of the side input is the etag of the file, so a cached copy is reread once the file is
+ * overwritten.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public final class GoogleCloudStorageLevelDbSideInput<K, V> extends SideInput<K, V> {
+
+  private static final long serialVersionUID = -1625093478270143846L;
+
+  private static final GcsService gcsService =
+      GcsServiceFactory.createGcsService(GCS_RETRY_PARAMETERS);
+
+  private final GcsFilename file;
+
+  public GoogleCloudStorageLevelDbSideInput(GcsFilename file, Marshaller<K> keyMarshaller,
+      Marshaller<V> valueMarshaller) {
+    super("gs://" + checkNotNull(file, "Null file").getBucketName() + "/" + file.getObjectName(),
+        keyMarshaller, valueMarshaller);
+    this.file = file;
+  }
+
+  @Override
+  public String getVersion() throws IOException {
+    GcsFileMetadata metadata = gcsService.getMetadata(file);
+    if (metadata == null) {
+      throw new FileNotFoundException("Side input " + getName() + " does not exist");
+    }
+    if (metadata.getEtag() != null) {
+      return metadata.getEtag();
+    }
+    return metadata.getLength() + "@" + metadata.getLastModified().getTime();
+  }
+
+  @Override
+  public InputReader<KeyValue<K, V>> createReader() {
+    return new UnmarshallingInputReader<>(
+        new GoogleCloudStorageLevelDbInputReader(file, DEFAULT_IO_BUFFER_SIZE),
+        Marshallers.getKeyValueMarshaller(getKeyMarshaller(), getValueMarshaller()));
+  }
+}
@@ -109,6 +109,6 @@ class GoogleCloudStorageLineInputReader extends InputReader<byte[]> {
 
   @Override
   public long estimateMemoryRequirement() {
-    return bufferSize * 2; // Double buffered
+    return bufferSize * 2 + LineInputStream.BUFFER_SIZE; // Double buffered
   }
 }
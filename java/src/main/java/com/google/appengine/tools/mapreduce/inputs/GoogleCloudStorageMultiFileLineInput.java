@@ -0,0 +1,187 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
+import com.google.appengine.tools.mapreduce.Input;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.impl.MapReduceConstants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the lines of all the files in a Cloud Storage bucket whose names match a pattern. The
+ * pattern is either a prefix of the names, or (if it contains a wildcard) a glob, where {@code *}
+ * matches any sequence of characters other than {@code /}, {@code **} matches any sequence of
+ * characters and {@code ?} matches any character other than {@code /}.
+ *
+ * Rather than creating a shard per file, the files are treated as one sequence of bytes that is
+ * split evenly between the shards. So each shard reads about the same number of bytes, which may
+ * come from a part of a file, or from several files that are read one after another. As with
+ * {@link GoogleCloudStorageLineInput}, files are split on separator boundaries.
+ */
+public class GoogleCloudStorageMultiFileLineInput extends Input<byte[]> {
+
+  private static final long serialVersionUID = -1939373468420938582L;
+
+  private static final long MIN_SHARD_SIZE = 1024L;
+
+  private final String bucket;
+  private final String pattern;
+  private final byte separator;
+  private final int shardCount;
+  private final int bufferSize;
+
+  public GoogleCloudStorageMultiFileLineInput(String bucket, String pattern, byte separator,
+      int shardCount) {
+    this(bucket, pattern, separator, shardCount, 0);
+  }
+
+  public GoogleCloudStorageMultiFileLineInput(String bucket, String pattern, byte separator,
+      int shardCount, int bufferSize) {
+    this.bucket = checkNotNull(bucket, "Null bucket");
+    this.pattern = checkNotNull(pattern, "Null pattern");
+    checkArgument(shardCount > 0, "Invalid shardCount: %s", shardCount);
+    this.separator = separator;
+    this.shardCount = shardCount;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override
+  public List<? extends InputReader<byte[]>> createReaders() {
+    Map<GcsFilename, Long> fileSizes = listFiles(bucket, pattern);
+    List<ConcatenatingInputReader<byte[]>> result = new ArrayList<>();
+    for (List<GoogleCloudStorageLineInputReader> readers :
+        split(fileSizes, shardCount, separator, bufferSize)) {
+      result.add(new ConcatenatingInputReader<>(readers));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the sizes of the files in the bucket that match the pattern (as described above), in
+   * the order they are listed.
+   *
+   * @throws RuntimeException if there are none or they could not be listed.
+   */
+  static Map<GcsFilename, Long> listFiles(String bucket, String pattern) {
+    GcsService gcsService =
+        GcsServiceFactory.createGcsService(MapReduceConstants.GCS_RETRY_PARAMETERS);
+    int wildcard = indexOfWildcard(pattern);
+    String prefix = wildcard == -1 ? pattern : pattern.substring(0, wildcard);
+    Pattern regex = wildcard == -1 ? null : globToRegex(pattern);
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    try {
+      ListResult list = gcsService.list(bucket,
+          new ListOptions.Builder().setPrefix(prefix).setRecursive(true).build());
+      while (list.hasNext()) {
+        ListItem item = list.next();
+        if (!item.isDirectory() && (regex == null || regex.matcher(item.getName()).matches())) {
+          fileSizes.put(new GcsFilename(bucket, item.getName()), item.getLength());
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to list files matching " + pattern + " in " + bucket, e);
+    }
+    if (fileSizes.isEmpty()) {
+      throw new RuntimeException("No files match " + pattern + " in " + bucket);
+    }
+    return fileSizes;
+  }
+
+  private static int indexOfWildcard(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @VisibleForTesting
+  static Pattern globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int literalStart = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c != '*' && c != '?') {
+        continue;
+      }
+      if (literalStart < i) {
+        regex.append(Pattern.quote(glob.substring(literalStart, i)));
+      }
+      if (c == '?') {
+        regex.append("[^/]");
+      } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+        regex.append(".*");
+        i++;
+      } else {
+        regex.append("[^/]*");
+      }
+      literalStart = i + 1;
+    }
+    if (literalStart < glob.length()) {
+      regex.append(Pattern.quote(glob.substring(literalStart)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * Splits the concatenation of the files into {@code shardCount} (or fewer if the files are small)
+   * ranges of about the same size.
+   *
+   * @return for each shard, the readers for the parts of the files it covers, in order.
+   */
+  @VisibleForTesting
+  static List<List<GoogleCloudStorageLineInputReader>> split(Map<GcsFilename, Long> fileSizes,
+      int shardCount, byte separator, int bufferSize) {
+    long totalSize = 0;
+    for (long size : fileSizes.values()) {
+      checkArgument(size >= 0, "Invalid file size: %s", size);
+      totalSize += size;
+    }
+    // Sanity check
+    if (shardCount * MIN_SHARD_SIZE > totalSize) {
+      shardCount = (int) (totalSize / MIN_SHARD_SIZE) + 1;
+    }
+    List<List<GoogleCloudStorageLineInputReader>> result = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      result.add(new ArrayList<GoogleCloudStorageLineInputReader>());
+    }
+    // The offset of the current file in the concatenation of all files.
+    long fileStart = 0;
+    int shard = 0;
+    for (Entry<GcsFilename, Long> file : fileSizes.entrySet()) {
+      long fileEnd = fileStart + file.getValue();
+      long start = fileStart;
+      while (start < fileEnd) {
+        long shardEnd = ((shard + 1) * totalSize) / shardCount;
+        long end = Math.min(fileEnd, shardEnd);
+        if (start < end) {
+          result.get(shard).add(new GoogleCloudStorageLineInputReader(file.getKey(),
+              start - fileStart, end - fileStart, separator, bufferSize));
+        }
+        start = end;
+        if (end == shardEnd) {
+          shard++;
+        }
+      }
+      fileStart = fileEnd;
+    }
+    return result;
+  }
+}
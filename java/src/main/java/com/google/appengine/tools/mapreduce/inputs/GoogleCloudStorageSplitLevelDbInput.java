@@ -0,0 +1,157 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.mapreduce.GoogleCloudStorageFileSet;
+import com.google.appengine.tools.mapreduce.Input;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.impl.MapReduceConstants;
+import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Reads files written by {@link com.google.appengine.tools.mapreduce.outputs.LevelDbOutput} with a
+ * given number of shards, regardless of the number and the sizes of the files.
+ *
+ * Unlike {@link GoogleCloudStorageLevelDbInput}, which creates a reader per file, the files are
+ * treated as one sequence of bytes that is split evenly between the shards, as done by
+ * {@link GoogleCloudStorageMultiFileLineInput}. Files are split on
+ * {@link LevelDbConstants#BLOCK_SIZE} boundaries, so a file smaller than a block is never split.
+ *
+ * Files that were block compressed by
+ * {@link com.google.appengine.tools.mapreduce.outputs.BlockCompressingOutputWriter} cannot be
+ * split, and reading a part of one fails with a
+ * {@link com.google.appengine.tools.mapreduce.CorruptDataException}.
+ */
+public class GoogleCloudStorageSplitLevelDbInput extends Input<ByteBuffer> {
+
+  private static final long serialVersionUID = 4467238151096651470L;
+
+  private static final int BLOCK_SIZE = LevelDbConstants.BLOCK_SIZE;
+
+  private final GoogleCloudStorageFileSet files;
+  private final int shardCount;
+  private final int bufferSize;
+
+  public GoogleCloudStorageSplitLevelDbInput(GoogleCloudStorageFileSet files, int shardCount) {
+    this(files, shardCount, MapReduceConstants.DEFAULT_IO_BUFFER_SIZE);
+  }
+
+  /**
+   * @param files The files to read.
+   * @param shardCount The number of shards to create, or fewer if the files are small.
+   * @param bufferSize The size of the buffer used for each file.
+   */
+  public GoogleCloudStorageSplitLevelDbInput(GoogleCloudStorageFileSet files, int shardCount,
+      int bufferSize) {
+    this.files = checkNotNull(files, "Null files");
+    checkArgument(shardCount > 0, "Invalid shardCount: %s", shardCount);
+    checkArgument(bufferSize > 0, "Buffersize must be > 0");
+    this.shardCount = shardCount;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override
+  public List<? extends InputReader<ByteBuffer>> createReaders() {
+    GcsService gcsService =
+        GcsServiceFactory.createGcsService(MapReduceConstants.GCS_RETRY_PARAMETERS);
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    for (GcsFilename file : files.getFiles()) {
+      GcsFileMetadata metadata;
+      try {
+        metadata = gcsService.getMetadata(file);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to get the size of " + file, e);
+      }
+      if (metadata == null) {
+        throw new RuntimeException("File does not exist: " + file);
+      }
+      fileSizes.put(file, metadata.getLength());
+    }
+    List<ConcatenatingInputReader<ByteBuffer>> result = new ArrayList<>();
+    for (List<GoogleCloudStorageLevelDbInputReader> readers :
+        split(fileSizes, shardCount, bufferSize)) {
+      result.add(new ConcatenatingInputReader<>(readers));
+    }
+    return result;
+  }
+
+  /**
+   * Splits the concatenation of the files into {@code shardCount} (or fewer if the files are small)
+   * ranges of about the same size, moving each split point within a file back to the previous
+   * block boundary.
+   *
+   * @return for each shard, the readers for the parts of the files it covers, in order. None of
+   *         them is empty.
+   */
+  @VisibleForTesting
+  static List<List<GoogleCloudStorageLevelDbInputReader>> split(Map<GcsFilename, Long> fileSizes,
+      int shardCount, int bufferSize) {
+    long totalSize = 0;
+    for (long size : fileSizes.values()) {
+      checkArgument(size >= 0, "Invalid file size: %s", size);
+      totalSize += size;
+    }
+    // Sanity check
+    if (shardCount * (long) BLOCK_SIZE > totalSize) {
+      shardCount = (int) (totalSize / BLOCK_SIZE) + 1;
+    }
+    List<List<GoogleCloudStorageLevelDbInputReader>> result = new ArrayList<>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      result.add(new ArrayList<GoogleCloudStorageLevelDbInputReader>());
+    }
+    // The offset of the current file in the concatenation of all files.
+    long fileStart = 0;
+    int shard = 0;
+    for (Entry<GcsFilename, Long> file : fileSizes.entrySet()) {
+      long size = file.getValue();
+      long start = 0;
+      while (start < size) {
+        long shardEnd = ((shard + 1) * totalSize) / shardCount - fileStart;
+        if (shardEnd >= size) {
+          result.get(shard).add(createReader(file, start, size, bufferSize));
+          if (shardEnd == size) {
+            shard++;
+          }
+          break;
+        }
+        long end = shardEnd - shardEnd % BLOCK_SIZE;
+        if (end > start) {
+          result.get(shard).add(createReader(file, start, end, bufferSize));
+          start = end;
+        }
+        shard++;
+      }
+      fileStart += size;
+    }
+    List<List<GoogleCloudStorageLevelDbInputReader>> nonEmpty = new ArrayList<>(shardCount);
+    for (List<GoogleCloudStorageLevelDbInputReader> readers : result) {
+      if (!readers.isEmpty()) {
+        nonEmpty.add(readers);
+      }
+    }
+    return nonEmpty;
+  }
+
+  private static GoogleCloudStorageLevelDbInputReader createReader(Entry<GcsFilename, Long> file,
+      long start, long end, int bufferSize) {
+    if (start == 0 && end == file.getValue()) {
+      // Not split, so it may be block compressed.
+      return new GoogleCloudStorageLevelDbInputReader(file.getKey(), bufferSize);
+    }
+    return new GoogleCloudStorageLevelDbInputReader(file.getKey(), start, end, bufferSize);
+  }
+}
@@ -1,20 +1,23 @@
 package com.google.appengine.tools.mapreduce.inputs;
 
 import static com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants.HEADER_LENGTH;
+import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.appengine.tools.mapreduce.CorruptDataException;
 import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.appengine.tools.mapreduce.impl.util.Crc32c;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants.RecordType;
+import com.google.appengine.tools.mapreduce.impl.util.VerifiedChecksums;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -28,8 +31,25 @@ import java.util.NoSuchElementException;
  * padded regardless of how much data is in the block, rather than only if the block is within 6
  * bytes of full.
  *
- * Data is read in as needed, so the only state required to reconstruct this class when it is
- * serialized is the offset.
+ * Data is read a block at a time. Records that fit in a single block are returned as read-only
+ * slices of the block buffer, so no copy or allocation (other than the slice itself) is needed for
+ * them. Records that span multiple blocks are assembled in a scratch buffer that is reused for the
+ * life of the reader, and are then copied out once. A block buffer is only reused for the next
+ * block if none of its records were handed out, so the returned buffers remain valid after
+ * subsequent calls to {@link #next()}.
+ *
+ * The state required to reconstruct this class when it is serialized is the offset and the part of
+ * the current block that has not been consumed yet.
+ *
+ * A reader can be restricted to the records that start in a range of the file. As a block never
+ * starts in the middle of a header, reading can begin at any block boundary by skipping the
+ * fragments of a record that started in an earlier block. The last record that starts before the
+ * end of the range is read to its end, even if that is past the end of the range. So reading
+ * consecutive ranges returns each record once.
+ *
+ * By default the checksum of every record is verified. Subclasses that override
+ * {@link #getVerificationKey} only verify the checksums of records that were not verified by an
+ * earlier read of the same file in this JVM (see {@link VerifiedChecksums}).
  *
  * In the event that corrupt data is encountered a {@link CorruptDataException} is thrown. If this
  * occurs, do not continue to attempt to read. Behavior is not guaranteed.
@@ -40,11 +60,40 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
 
   private static final long serialVersionUID = -2949371665085068120L;
 
+  /** How far into the file records have been consumed. */
   private long offset = 0L;
 
   private final int blockSize;
-  /** A temp buffer that is used to hold contents and headers as they are read*/
-  private transient ByteBuffer tmpBuffer;
+  /** Where reading starts. A multiple of {@link #blockSize}. */
+  private final long startOffset;
+  /**
+   * Records that start at or after this offset are left to the reader of the next range. Only null
+   * if the whole file is read or as a result of an old version.
+   */
+  private final Long endOffset;
+  /** True until the first record that starts after {@link #startOffset} is found. */
+  private boolean skipFragments;
+  /**
+   * Holds the rest of the current block, from the next unconsumed byte up to the end of the block
+   * (or the end of the file). Serialized in {@link #writeObject}.
+   */
+  private transient ByteBuffer block;
+  /** True if a slice of {@link #block} was returned, in which case it must not be reused. */
+  private transient boolean blockShared;
+  /** Used to assemble records that span multiple blocks. */
+  private transient ByteBuffer scratch;
+  /** Absolute position in {@link #block} of the data of the last physical record read. */
+  private transient int recordPosition;
+  /** Length of the data of the last physical record read. */
+  private transient int recordLength;
+  /** Offset in the file of the header of the last physical record read. */
+  private transient long recordOffset;
+  private transient Crc32c crc;
+
+  /** Only null if checksums are always verified or as a result of an old version. */
+  private String verificationKey;
+  /** The checksums of all the records before this offset were verified. */
+  private long verifiedOffset;
 
   private long bytesRead;
   private ReadableByteChannel in;
@@ -55,8 +104,31 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
 
   @VisibleForTesting
   protected LevelDbInputReader(int blockSize) {
+    this(blockSize, 0, null);
+  }
+
+  /**
+   * Creates a reader for the records that start at or after {@code startOffset} and before
+   * {@code endOffset}. The channel returned by {@link #createReadableByteChannel} must begin at
+   * {@code startOffset}.
+   *
+   * @param startOffset where to start reading, a multiple of {@link LevelDbConstants#BLOCK_SIZE}.
+   * @param endOffset where the next reader starts.
+   */
+  protected LevelDbInputReader(long startOffset, long endOffset) {
+    this(LevelDbConstants.BLOCK_SIZE, startOffset, endOffset);
+  }
+
+  @VisibleForTesting
+  protected LevelDbInputReader(int blockSize, long startOffset, Long endOffset) {
     super();
+    checkArgument(startOffset >= 0 && startOffset % blockSize == 0,
+        "Start offset is not at a block boundary: %s", startOffset);
+    checkArgument(endOffset == null || endOffset >= startOffset,
+        "End offset %s is before start offset %s", endOffset, startOffset);
     this.blockSize = blockSize;
+    this.startOffset = startOffset;
+    this.endOffset = endOffset;
   }
 
   /**
@@ -85,11 +157,46 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
     return bytesRead;
   }
 
+  protected long getStartOffset() {
+    return startOffset;
+  }
+
+  /**
+   * @return Where the next reader starts, or {@link Long#MAX_VALUE} if the whole file is read.
+   */
+  protected long getEndOffset() {
+    return endOffset == null ? Long.MAX_VALUE : endOffset;
+  }
+
+  /**
+   * Returns a key that identifies the content of the file (and changes if the content changes) in
+   * order to verify the checksums of its records only the first time they are read in this JVM, or
+   * null to always verify them. Called from {@link #beginShard} after
+   * {@link #createReadableByteChannel}, unless reading does not start at the beginning of the file.
+   */
+  protected String getVerificationKey() {
+    return null;
+  }
+
   @Override
   public void beginShard() {
-    offset = 0;
+    offset = startOffset;
+    skipFragments = startOffset > 0;
     bytesRead = 0;
+    block = null;
+    blockShared = false;
     in = createReadableByteChannel();
+    // The verified offsets only cover records from the beginning of the file.
+    verificationKey = startOffset == 0 ? getVerificationKey() : null;
+    verifiedOffset =
+        verificationKey == null ? 0 : VerifiedChecksums.getVerifiedOffset(verificationKey);
+  }
+
+  @Override
+  public void endSlice() throws IOException {
+    if (verificationKey != null) {
+      VerifiedChecksums.setVerifiedOffset(verificationKey, verifiedOffset);
+    }
   }
 
   /**
@@ -100,35 +207,12 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
     in.close();
   }
 
-  @Override
-  public void beginSlice() {
-    tmpBuffer = allocate(blockSize);
-  }
-
   private static ByteBuffer allocate(int size) {
     ByteBuffer result = ByteBuffer.allocate(size);
     result.order(ByteOrder.LITTLE_ENDIAN);
     return result;
   }
 
-  private static final class Record {
-    private final ByteBuffer data;
-    private final RecordType type;
-
-    public Record(RecordType type, ByteBuffer data) {
-      this.type = type;
-      this.data = data;
-    }
-
-    public ByteBuffer data() {
-      return this.data;
-    }
-
-    public RecordType type() {
-      return this.type;
-    }
-  }
-
   /**
    * @return How far into the file has been read.
    */
@@ -141,102 +225,161 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
    */
   @Override
   public ByteBuffer next() throws IOException, NoSuchElementException {
-    Record record = readPhysicalRecord(true);
-    while (record.type().equals(RecordType.NONE)) {
-      validateBufferIsZeros(record.data());
-      record = readPhysicalRecord(true);
+    if (!skipFragments && offset >= getEndOffset()) {
+      throw new NoSuchElementException();
     }
-    if (record.type().equals(RecordType.FULL)) {
-      return record.data();
+    RecordType type = readPhysicalRecord(true);
+    while (type == RecordType.NONE || (skipFragments
+        && (type == RecordType.MIDDLE || type == RecordType.LAST))) {
+      if (type == RecordType.NONE) {
+        validateRecordIsZeros();
+      }
+      type = readPhysicalRecord(true);
     }
-    if (record.type().equals(RecordType.FIRST)) {
-      ArrayList<ByteBuffer> result = new ArrayList<>();
-      result.add(record.data());
-      record = readPhysicalRecord(false);
-      while (record.type().equals(RecordType.MIDDLE)) {
-        result.add(record.data());
-        record = readPhysicalRecord(false);
+    skipFragments = false;
+    if (recordOffset >= getEndOffset()) {
+      throw new NoSuchElementException();
+    }
+    if (type == RecordType.FULL) {
+      return sliceRecord();
+    }
+    if (type == RecordType.FIRST) {
+      if (scratch == null) {
+        scratch = allocate(blockSize);
       }
-      if (!record.type().equals(RecordType.LAST)) {
-        throw new CorruptDataException("Unterminated first block. Found: " + record.type.value());
+      scratch.clear();
+      appendRecordToScratch();
+      type = readPhysicalRecord(false);
+      while (type == RecordType.MIDDLE) {
+        appendRecordToScratch();
+        type = readPhysicalRecord(false);
       }
-      result.add(record.data());
-      return copyAll(result);
+      if (type != RecordType.LAST) {
+        throw new CorruptDataException("Unterminated first block. Found: " + type.value());
+      }
+      appendRecordToScratch();
+      scratch.flip();
+      ByteBuffer result = allocate(scratch.remaining());
+      result.put(scratch);
+      result.flip();
+      return result;
     }
-    throw new CorruptDataException("Unexpected RecordType: " + record.type.value());
+    throw new CorruptDataException("Unexpected RecordType: " + type.value());
   }
 
-  private void validateBufferIsZeros(ByteBuffer buffer) {
-    for (int i = buffer.position(); i < buffer.limit(); i++) {
-      byte b = buffer.get(i);
+  private void validateRecordIsZeros() {
+    for (int i = recordPosition; i < recordPosition + recordLength; i++) {
+      byte b = block.get(i);
       if (b != 0) {
         throw new CorruptDataException("Found a non-zero byte: " + b
-            + " before the end of the block " + i
+            + " before the end of the block " + (i - recordPosition)
             + " bytes after encountering a RecordType of NONE");
       }
     }
   }
 
   /**
-   * Reads the next record from the LevelDb data stream.
+   * Returns a read-only view of the data of the last physical record read. After this the block
+   * buffer is no longer reused.
+   */
+  private ByteBuffer sliceRecord() {
+    ByteBuffer result = block.duplicate();
+    result.limit(recordPosition + recordLength);
+    result.position(recordPosition);
+    blockShared = true;
+    return result.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Copies the data of the last physical record read into {@link #scratch}, growing it if needed.
+   */
+  private void appendRecordToScratch() {
+    if (scratch.remaining() < recordLength) {
+      int newCapacity = Math.max(scratch.capacity() * 2, scratch.position() + recordLength);
+      ByteBuffer grown = allocate(newCapacity);
+      scratch.flip();
+      grown.put(scratch);
+      scratch = grown;
+    }
+    scratch.put(block.array(), block.arrayOffset() + recordPosition, recordLength);
+  }
+
+  /**
+   * Reads the next record from the LevelDb data stream. The data of the record is located in
+   * {@link #block} at {@link #recordPosition} and is {@link #recordLength} bytes long.
    *
    * @param expectEnd if end of stream encountered will throw {@link NoSuchElementException} when
    *        true and {@link CorruptDataException} when false.
-   * @return Record data of the physical record read.
+   * @return Type of the physical record read.
    * @throws IOException
    */
-  private Record readPhysicalRecord(boolean expectEnd) throws IOException {
+  private RecordType readPhysicalRecord(boolean expectEnd) throws IOException {
     int bytesToBlockEnd = findBytesToBlockEnd();
     if (bytesToBlockEnd < HEADER_LENGTH) {
-      readToTmp(bytesToBlockEnd, expectEnd);
-      return createRecordFromTmp(RecordType.NONE);
+      consume(bytesToBlockEnd, expectEnd);
+      return RecordType.NONE;
     }
-    readToTmp(HEADER_LENGTH, expectEnd);
+    recordOffset = offset;
+    consume(HEADER_LENGTH, expectEnd);
 
-    int checksum = tmpBuffer.getInt();
-    int length = tmpBuffer.getShort();
+    int checksum = block.getInt(recordPosition);
+    int length = block.getShort(recordPosition + 4);
     if (length > bytesToBlockEnd || length < 0) {
       throw new CorruptDataException("Length is too large:" + length);
     }
-    RecordType type = RecordType.get(tmpBuffer.get());
+    RecordType type = RecordType.get(block.get(recordPosition + 6));
     if (type == RecordType.NONE && length == 0) {
       length = bytesToBlockEnd - HEADER_LENGTH;
     }
-    readToTmp(length, false);
+    consume(length, false);
 
-    if (!isValidCrc(checksum, tmpBuffer, type.value())) {
-      throw new CorruptDataException("Checksum doesn't validate.");
+    if (offset > verifiedOffset) {
+      if (!isValidCrc(checksum, type.value())) {
+        throw new CorruptDataException("Checksum doesn't validate.");
+      }
+      verifiedOffset = offset;
     }
-    return createRecordFromTmp(type);
+    return type;
   }
 
   /**
-   * Reads {@code length} number of bytes into {@link #tmpBuffer}. {@link #offset} is incremented
-   * and {@link #tmpBuffer} is flipped.
+   * Consumes {@code length} bytes from {@link #block}, reading the rest of the block from the
+   * channel first if all of the block was already consumed. {@link #recordPosition} and
+   * {@link #recordLength} are set to the consumed range and {@link #offset} is incremented.
    *
    * @param expectEnd if end of stream encountered will throw {@link NoSuchElementException} when
    *        true and {@link CorruptDataException} when false.
    */
-  private void readToTmp(int length, boolean expectEnd) throws IOException {
-    tmpBuffer.clear();
-    tmpBuffer.limit(length);
-    int read = read(tmpBuffer);
-    if (read == -1 && expectEnd) {
+  private void consume(int length, boolean expectEnd) throws IOException {
+    if (length > 0 && (block == null || !block.hasRemaining())) {
+      readBlock();
+    }
+    int available = block == null ? 0 : block.remaining();
+    if (available == 0 && length > 0 && expectEnd) {
       throw new NoSuchElementException();
     }
-    if (read != length) {
+    if (available < length) {
       throw new CorruptDataException("Premature end of file was expecting at least: "
-          + length + " but found only: " + read);
+          + length + " but found only: " + available);
     }
-    offset += read;
-    tmpBuffer.flip();
+    recordPosition = block.position();
+    recordLength = length;
+    block.position(recordPosition + length);
+    offset += length;
   }
 
-  private Record createRecordFromTmp(RecordType type) {
-    ByteBuffer data = allocate(tmpBuffer.remaining());
-    data.put(tmpBuffer);
-    data.flip();
-    return new Record(type, data);
+  /**
+   * Reads from the channel up to the end of the current block (or the end of the file).
+   */
+  private void readBlock() throws IOException {
+    if (block == null || blockShared) {
+      block = allocate(blockSize);
+      blockShared = false;
+    }
+    block.clear();
+    block.limit(findBytesToBlockEnd());
+    read(block);
+    block.flip();
   }
 
   private final int findBytesToBlockEnd() {
@@ -244,37 +387,49 @@ public abstract class LevelDbInputReader extends InputReader<ByteBuffer> {
   }
 
   /**
-   * Validates that the {@link Crc32c} validates.
+   * Validates that the {@link Crc32c} of the data of the last physical record read validates.
    *
    * @param checksum the checksum in the record.
-   * @param data the {@link ByteBuffer} of the data in the record.
    * @param type the byte representing the {@link RecordType} of the record.
    * @return true if the {@link Crc32c} validates.
    */
-  private static boolean isValidCrc(int checksum, ByteBuffer data, byte type) {
+  private boolean isValidCrc(int checksum, byte type) {
     if (checksum == 0 && type == 0) {
       return true;
     }
-    Crc32c crc = new Crc32c();
+    if (crc == null) {
+      crc = new Crc32c();
+    } else {
+      crc.reset();
+    }
     crc.update(type);
-    crc.update(data.array(), 0, data.limit());
+    crc.update(block, recordPosition, recordLength);
 
     return LevelDbConstants.unmaskCrc(checksum) == crc.getValue();
   }
 
-  /**
-   * Copies a list of byteBuffers into a single new byteBuffer.
-   */
-  private static ByteBuffer copyAll(List<ByteBuffer> buffers) {
-    int size = 0;
-    for (ByteBuffer b : buffers) {
-      size += b.remaining();
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    stream.defaultWriteObject();
+    int remaining = block == null ? 0 : block.remaining();
+    stream.writeInt(remaining);
+    if (remaining > 0) {
+      stream.write(block.array(), block.arrayOffset() + block.position(), remaining);
     }
-    ByteBuffer result = allocate(size);
-    for (ByteBuffer b : buffers) {
-      result.put(b);
+  }
+
+  private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+    stream.defaultReadObject();
+    int remaining;
+    try {
+      remaining = stream.readInt();
+    } catch (EOFException e) {
+      // Serialized by an old version which did not read ahead.
+      remaining = 0;
+    }
+    if (remaining > 0) {
+      block = allocate(blockSize);
+      stream.readFully(block.array(), block.arrayOffset(), remaining);
+      block.limit(remaining);
     }
-    result.flip();
-    return result;
   }
 }
@@ -16,12 +16,9 @@
 
 package com.google.appengine.tools.mapreduce.inputs;
 
-import com.google.common.io.CountingInputStream;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,54 +26,104 @@ import java.util.logging.Logger;
 /**
  * A reader to return one line at a time from an underlying input stream.
  *
+ * Data is read from the stream in bulk into a buffer, which is scanned for separators, so each
+ * record is copied only once (out of the buffer). Records longer than the buffer cause it to grow.
+ *
  * For internal use only. User code cannot safely depend on this class.
  *
  */
 class LineInputStream {
 
   private static final Logger log = Logger.getLogger(LineInputStream.class.getName());
-  private static final int INITIAL_BUFFER_SIZE = 10000;
+  static final int BUFFER_SIZE = 64 * 1024;
 
-  private final int separator;
-  private final CountingInputStream in;
+  private final byte separator;
+  private final InputStream in;
   private final long lengthToRead;
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  /** The start of the data in the buffer that was not returned yet. */
+  private int position;
+  /** The end of the data in the buffer. */
+  private int limit;
+  private boolean endOfStream;
+  /** The number of bytes of the input that were returned, including separators. */
+  private long bytesCount;
 
   LineInputStream(InputStream in, long lengthToRead, byte separator) {
-    this.in = new CountingInputStream(in);
+    this.in = in;
     this.lengthToRead = lengthToRead;
-    this.separator = (separator & 0xff);
+    this.separator = separator;
   }
 
   public byte[] next() {
     try {
       // we are reading one record after lengthToRead because the splits are not assumed to be
       // aligned to separators in the file.
-      long recordStart = in.getCount();
-      if (recordStart - 1 >= lengthToRead) {
+      if (bytesCount - 1 >= lengthToRead) {
         throw new NoSuchElementException();
       }
-      ByteArrayOutputStream tempBuffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
-      copyUntilNextRecord(tempBuffer);
-      return tempBuffer.toByteArray();
+      return readUntilNextRecord();
     } catch (IOException e) {
       log.log(Level.WARNING, "Failed to read next record", e);
       throw new RuntimeException("Failed to read next record", e);
     }
   }
 
+  /**
+   * Returns the number of bytes of the underlying stream that were consumed by the records
+   * returned. (More may have been read from it into the buffer)
+   */
   public long getBytesCount() {
-    return in.getCount();
+    return bytesCount;
+  }
+
+  private byte[] readUntilNextRecord() throws IOException {
+    // The number of bytes after position that are known not to contain a separator.
+    int scanned = 0;
+    while (true) {
+      for (int i = position + scanned; i < limit; i++) {
+        if (buffer[i] == separator) {
+          return takeRecord(i - position, 1);
+        }
+      }
+      scanned = limit - position;
+      if (endOfStream || !fill()) {
+        if (scanned == 0) {
+          throw new NoSuchElementException();
+        }
+        return takeRecord(scanned, 0);
+      }
+    }
+  }
+
+  private byte[] takeRecord(int length, int separatorLength) {
+    byte[] record = Arrays.copyOfRange(buffer, position, position + length);
+    position += length + separatorLength;
+    bytesCount += length + separatorLength;
+    return record;
   }
 
-  private void copyUntilNextRecord(OutputStream out) throws IOException {
-    int value = in.read();
-    if (value == -1) {
-      throw new NoSuchElementException();
+  /**
+   * Reads more data into the buffer, moving the unreturned data to its start or growing it as
+   * needed.
+   *
+   * @return false if the end of the stream was reached.
+   */
+  private boolean fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    } else if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
     }
-    while (value != separator && value != -1) {
-      out.write(value);
-      value = in.read();
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      endOfStream = true;
+      return false;
     }
+    limit += read;
+    return true;
   }
 
   public void close() throws IOException {
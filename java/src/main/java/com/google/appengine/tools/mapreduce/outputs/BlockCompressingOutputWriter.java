@@ -0,0 +1,114 @@
+package com.google.appengine.tools.mapreduce.outputs;
+
+import static com.google.appengine.tools.mapreduce.impl.util.BlockCompression.HEADER_LENGTH;
+import static com.google.appengine.tools.mapreduce.impl.util.BlockCompression.MAX_FRAME_SIZE;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.OutputWriter;
+import com.google.appengine.tools.mapreduce.impl.util.BlockCompression;
+import com.google.appengine.tools.mapreduce.impl.util.BlockCompression.Codec;
+import com.google.appengine.tools.mapreduce.impl.util.ByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link OutputWriter} that compresses the bytes written to it into frames, as described by
+ * {@link BlockCompression}, and writes the frames to its delegate. Each call to {@link #write}
+ * produces one or more frames, so no data is held between calls (or between slices). The output can
+ * be read by
+ * {@link com.google.appengine.tools.mapreduce.inputs.BlockDecompressingReadableByteChannel}.
+ *
+ * Data is compressed in the zlib format using {@link Deflater#BEST_SPEED}, as this is used for
+ * short lived intermediate files where throughput matters more than size.
+ *
+ * For internal use only. User code cannot safely depend on this class.
+ */
+public class BlockCompressingOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
+
+  private static final long serialVersionUID = -3409785323557254120L;
+
+  private final OutputWriter<ByteBuffer> delegate;
+  private transient Deflater deflater;
+  /** Holds the frame being written. */
+  private transient ByteBuffer frame;
+  /** Used to copy data that is not backed by an array, as required by {@link Deflater}. */
+  private transient byte[] input;
+
+  public BlockCompressingOutputWriter(OutputWriter<ByteBuffer> delegate) {
+    this.delegate = checkNotNull(delegate, "Null delegate");
+  }
+
+  @Override
+  protected OutputWriter<ByteBuffer> getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void beginSlice() throws IOException {
+    deflater = new Deflater(Deflater.BEST_SPEED);
+    frame = ByteBufferPool.getInstance().allocate(HEADER_LENGTH + MAX_FRAME_SIZE);
+    super.beginSlice();
+  }
+
+  @Override
+  public void write(ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      int length = Math.min(data.remaining(), MAX_FRAME_SIZE);
+      byte[] array;
+      int offset;
+      if (data.hasArray()) {
+        array = data.array();
+        offset = data.arrayOffset() + data.position();
+      } else {
+        if (input == null) {
+          input = new byte[MAX_FRAME_SIZE];
+        }
+        data.duplicate().get(input, 0, length);
+        array = input;
+        offset = 0;
+      }
+      writeFrame(array, offset, length);
+      data.position(data.position() + length);
+    }
+  }
+
+  private void writeFrame(byte[] array, int offset, int length) throws IOException {
+    deflater.reset();
+    deflater.setInput(array, offset, length);
+    deflater.finish();
+    byte[] out = frame.array();
+    int outOffset = frame.arrayOffset() + HEADER_LENGTH;
+    // Only use the compressed form if it is smaller.
+    int compressed = 0;
+    while (!deflater.finished() && compressed < length - 1) {
+      compressed += deflater.deflate(out, outOffset + compressed, length - 1 - compressed);
+    }
+    frame.clear();
+    if (deflater.finished()) {
+      BlockCompression.writeHeader(frame, Codec.DEFLATE, compressed, length);
+      frame.position(HEADER_LENGTH + compressed);
+    } else {
+      BlockCompression.writeHeader(frame, Codec.STORED, length, length);
+      frame.put(array, offset, length);
+    }
+    frame.flip();
+    delegate.write(frame);
+  }
+
+  @Override
+  public void endSlice() throws IOException {
+    deflater.end();
+    deflater = null;
+    ByteBufferPool.getInstance().release(frame);
+    frame = null;
+    input = null;
+    super.endSlice();
+  }
+
+  @Override
+  public long estimateMemoryRequirement() {
+    return delegate.estimateMemoryRequirement() + 2 * (HEADER_LENGTH + MAX_FRAME_SIZE);
+  }
+}
@@ -18,6 +18,11 @@ import java.util.List;
 /**
  * An {@link Output} that writes {@link Entity}s to the Datastore.
  *
+ * The {@link DatastoreMutationPool.Params#getWritesPerSecond writesPerSecond} of the pool params
+ * is the rate of the whole job: it is divided evenly among the shards, so that the total rate is
+ * bounded regardless of the number of shards. The time before which the mutations a shard sent
+ * use up its rate is kept by its writer between slices.
+ *
  */
 public class DatastoreOutput extends Output<Entity, Void> {
 
@@ -28,6 +33,7 @@ public class DatastoreOutput extends Output<Entity, Void> {
     private static final long serialVersionUID = -3329305174118090948L;
     private final DatastoreMutationPool.Params poolParams;
     private transient DatastoreMutationPool pool;
+    private long nextWriteTimeMillis;
 
     DatastoreOutputWriter(DatastoreMutationPool.Params poolParams) {
       this.poolParams = poolParams;
@@ -37,6 +43,7 @@ public class DatastoreOutput extends Output<Entity, Void> {
     public void beginSlice() {
       DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
       pool = DatastoreMutationPool.create(ds, poolParams);
+      pool.setNextWriteTimeMillis(nextWriteTimeMillis);
     }
 
     @Override
@@ -47,11 +54,15 @@ public class DatastoreOutput extends Output<Entity, Void> {
     @Override
     public void endSlice() {
       pool.flush();
+      nextWriteTimeMillis = pool.getNextWriteTimeMillis();
     }
 
     @Override
     public long estimateMemoryRequirement() {
-      return poolParams.getBytesLimit();
+      // Mutations held back because of their entity group take up to another batch
+      long batches = 1L + poolParams.getMaxInFlightBatches()
+          + (poolParams.getMaxMutationsPerEntityGroup() > 0 ? 1 : 0);
+      return poolParams.getBytesLimit() * batches;
     }
 
     @Override
@@ -72,9 +83,14 @@ public class DatastoreOutput extends Output<Entity, Void> {
 
   @Override
   public List<DatastoreOutputWriter> createWriters(int numShards) {
+    DatastoreMutationPool.Params shardParams = poolParams;
+    if (poolParams.getWritesPerSecond() > 0) {
+      shardParams = new DatastoreMutationPool.Params.Builder(poolParams)
+          .writesPerSecond(poolParams.getWritesPerSecond() / numShards).build();
+    }
     ImmutableList.Builder<DatastoreOutputWriter> out = ImmutableList.builder();
     for (int i = 0; i < numShards; i++) {
-      out.add(new DatastoreOutputWriter(poolParams));
+      out.add(new DatastoreOutputWriter(shardParams));
     }
     return out.build();
   }
@@ -56,4 +56,9 @@ public abstract class ForwardingOutputWriter<O> extends OutputWriter<O> {
   public boolean allowSliceRetry() {
     return getDelegate().allowSliceRetry();
   }
+
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return getDelegate().allowConcurrentSliceAttempts();
+  }
 }
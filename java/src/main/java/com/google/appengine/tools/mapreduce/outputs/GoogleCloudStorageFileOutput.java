@@ -27,6 +27,7 @@ public class GoogleCloudStorageFileOutput extends Output<ByteBuffer, GoogleCloud
   private final String fileNamePattern;
   private final String bucket;
   private final boolean supportSliceRetries;
+  private final int parallelStreams;
 
   /**
    * Creates output files who's names follow the provided pattern in the specified bucket.
@@ -48,14 +49,36 @@ public class GoogleCloudStorageFileOutput extends Output<ByteBuffer, GoogleCloud
    * @param mimeType The string to be passed as the mimeType to GCS.
    * @param supportSliceRetries indicates if slice retries should be supported by this writer.
    *        Slice retries are achieved by writing each slice to a temporary file
-   *        and copying it to its destination when processing the next slice.
+   *        and composing it with the previous slices when processing the next slice.
    */
   public GoogleCloudStorageFileOutput(String bucket, String fileNamePattern, String mimeType,
       boolean supportSliceRetries) {
+    this(bucket, fileNamePattern, mimeType, supportSliceRetries, 1);
+  }
+
+  /**
+   * Creates output files who's names follow the provided pattern in the specified bucket.
+   * This will construct an instance that supports slice retries, and whose writers upload the
+   * output of each shard with several parallel streams.
+   *
+   * @param fileNamePattern a Java format string {@link java.util.Formatter} containing one int
+   *        argument for the shard number.
+   * @param mimeType The string to be passed as the mimeType to GCS.
+   * @param parallelStreams the number of concurrent uploads of each writer, see
+   *        {@link GoogleCloudStorageFileOutputWriter}.
+   */
+  public GoogleCloudStorageFileOutput(String bucket, String fileNamePattern, String mimeType,
+      int parallelStreams) {
+    this(bucket, fileNamePattern, mimeType, true, parallelStreams);
+  }
+
+  private GoogleCloudStorageFileOutput(String bucket, String fileNamePattern, String mimeType,
+      boolean supportSliceRetries, int parallelStreams) {
     this.bucket = checkNotNull(bucket);
     this.mimeType = checkNotNull(mimeType, "Null mimeType");
     this.fileNamePattern = checkNotNull(fileNamePattern, "Null fileNamePattern");
     this.supportSliceRetries = supportSliceRetries;
+    this.parallelStreams = parallelStreams;
   }
 
   @Override
@@ -63,7 +86,11 @@ public class GoogleCloudStorageFileOutput extends Output<ByteBuffer, GoogleCloud
     ImmutableList.Builder<GoogleCloudStorageFileOutputWriter> out = ImmutableList.builder();
     for (int i = 0; i < numShards; i++) {
       GcsFilename file = new GcsFilename(bucket, String.format(fileNamePattern, i));
-      out.add(new GoogleCloudStorageFileOutputWriter(file, mimeType, supportSliceRetries));
+      if (parallelStreams > 1) {
+        out.add(new GoogleCloudStorageFileOutputWriter(file, mimeType, parallelStreams));
+      } else {
+        out.add(new GoogleCloudStorageFileOutputWriter(file, mimeType, supportSliceRetries));
+      }
     }
     return out.build();
   }
@@ -4,6 +4,7 @@ import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.DEFAU
 import static com.google.appengine.tools.mapreduce.impl.MapReduceConstants.GCS_RETRY_PARAMETERS;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
@@ -11,18 +12,27 @@ import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
 import com.google.appengine.tools.cloudstorage.GcsServiceOptions;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.impl.MapReduceConstants;
+import com.google.appengine.tools.mapreduce.impl.util.ByteBufferPool;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +41,19 @@ import java.util.logging.Logger;
  * output (usually on a per-shard basis). This format does not insert any separator characters, so
  * it by default cannot be read back with the CloudStorageLineInputReader.
  *
+ * When slice retries are supported, each slice is written to a file of its own. The slice files
+ * are composed server side, up to 32 at a time, into a composite file that holds the output of
+ * the previous slices, and into the output file when the shard ends, so no output is read back.
+ * A composite file is rewritten once its number of components reaches the limit of GCS.
+ *
+ * A writer created with more than one parallel stream fills buffers of 4 MB and uploads each of
+ * them as a part file from a thread of its own, with up to that many uploads at the same time, so
+ * that the bandwidth of a shard is not limited to that of a single upload. The part files are
+ * composed in the order they were filled, so the output is the same as with a single stream. Each
+ * stream needs a buffer of its own. As every part is a component of the output, the size of the
+ * parts doubles each time the output reaches another eighth of the components GCS allows, up to
+ * 32 MB, so that the composite file is only rewritten once a shard has written over 20 GB.
+ *
  */
 public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer> {
   private static final long serialVersionUID = -4019473590179157706L;
@@ -43,16 +66,31 @@ public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer>
           .setHttpHeaders(ImmutableMap.of("User-Agent", "App Engine MR"))
           .build());
   private static final Random RND = new SecureRandom();
+  private static final String MAX_COMPONENTS_PER_COMPOSE = "com.google.appengine.tools.mapreduce"
+      + ".outputs.GoogleCloudStorageFileOutputWriter.MAX_COMPONENTS_PER_COMPOSE";
+  private static final int MAX_FILES_PER_COMPOSE = 32;
+  private static final int PART_SIZE = MapReduceConstants.DEFAULT_IO_BUFFER_SIZE * 4;
+  private static final int MAX_PART_SIZE_DOUBLINGS = 3;
 
   public static final long MEMORY_REQUIRED_WITHOUT_SLICE_RETRY =
       MapReduceConstants.DEFAULT_IO_BUFFER_SIZE * 2;
-  public static final long MEMORY_REQUIRED = MapReduceConstants.DEFAULT_IO_BUFFER_SIZE * 3;
+  public static final long MEMORY_REQUIRED = MapReduceConstants.DEFAULT_IO_BUFFER_SIZE * 2;
 
   private final GcsFilename file;
   private final String mimeType;
   private final boolean supportSliceRetries;
+  private final int maxComponentsPerCompose;
+  private final int parallelStreams;
   private GcsOutputChannel channel;
   private GcsOutputChannel sliceChannel;
+  private final List<String> sliceParts = new ArrayList<>();
+  private String composite;
+  private int compositeComponents;
+  private boolean inShard;
+  private transient int partSize;
+  private transient ByteBuffer partBuffer;
+  private transient ExecutorService uploadExecutor;
+  private transient ArrayDeque<Future<?>> pendingUploads;
   private final List<String> toDelete = new ArrayList<>();
 
   public GoogleCloudStorageFileOutputWriter(GcsFilename file, String mimeType) {
@@ -61,13 +99,51 @@ public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer>
 
   public GoogleCloudStorageFileOutputWriter(GcsFilename file, String mimeType,
       boolean supportSliceRetries) {
+    this(file, mimeType, supportSliceRetries, 1);
+  }
+
+  /**
+   * Creates a writer that supports slice retries and uploads its output with
+   * {@code parallelStreams} parallel streams.
+   */
+  public GoogleCloudStorageFileOutputWriter(GcsFilename file, String mimeType,
+      int parallelStreams) {
+    this(file, mimeType, true, parallelStreams);
+  }
+
+  private GoogleCloudStorageFileOutputWriter(GcsFilename file, String mimeType,
+      boolean supportSliceRetries, int parallelStreams) {
+    Preconditions.checkArgument(parallelStreams > 0, "Invalid parallelStreams: %s",
+        parallelStreams);
     this.file = checkNotNull(file, "Null file");
     this.mimeType = checkNotNull(mimeType, "Null mimeType");
     this.supportSliceRetries = supportSliceRetries;
+    this.parallelStreams = parallelStreams;
+    maxComponentsPerCompose =
+        Integer.parseInt(System.getProperty(MAX_COMPONENTS_PER_COMPOSE, "1024"));
+    Preconditions.checkArgument(maxComponentsPerCompose > MAX_FILES_PER_COMPOSE);
   }
 
+  /**
+   * Deletes the temporary files of the writer, including those written by the attempts of its
+   * slices that were not committed, which are not referenced by its state.
+   */
   @Override
   public void cleanup() {
+    String prefix = file.getObjectName() + "~";
+    try {
+      ListResult list = GCS_SERVICE.list(file.getBucketName(),
+          new ListOptions.Builder().setPrefix(prefix).setRecursive(true).build());
+      while (list.hasNext()) {
+        toDelete.add(list.next().getName());
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Could not list the temporary files of " + file, ex);
+    }
+    deleteTempFiles();
+  }
+
+  private void deleteTempFiles() {
     for (String name : toDelete) {
       try {
         GCS_SERVICE.delete(new GcsFilename(file.getBucketName(), name));
@@ -78,33 +154,108 @@ public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer>
     toDelete.clear();
   }
 
+  /**
+   * Each attempt of a slice writes parts and composite files of its own, so the attempts that
+   * are not committed only leave temporary files, which are deleted by {@link #cleanup}. Both
+   * attempts of the last slice compose the output file, from the same content.
+   */
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return supportSliceRetries;
+  }
+
   @Override
   public void beginShard() throws IOException {
-    GcsFileOptions fileOptions = new GcsFileOptions.Builder().mimeType(mimeType).build();
-    GcsFilename dest = new GcsFilename(file.getBucketName(), file.getObjectName() + "~");
-    channel = GCS_SERVICE.createOrReplace(dest, fileOptions);
+    toDelete.addAll(sliceParts);
+    if (composite != null) {
+      toDelete.add(composite);
+    }
+    deleteTempFiles();
+    sliceParts.clear();
+    composite = null;
+    compositeComponents = 0;
     sliceChannel = null;
-    toDelete.clear();
+    inShard = true;
+    if (!supportSliceRetries) {
+      GcsFileOptions fileOptions = new GcsFileOptions.Builder().mimeType(mimeType).build();
+      GcsFilename dest = new GcsFilename(file.getBucketName(), file.getObjectName() + "~");
+      channel = GCS_SERVICE.createOrReplace(dest, fileOptions);
+    }
   }
 
   @Override
   public void beginSlice() throws IOException {
-    cleanup();
+    deleteTempFiles();
     if (supportSliceRetries) {
-      if (sliceChannel != null) {
-        copy(sliceChannel.getFilename(), channel);
-        toDelete.add(sliceChannel.getFilename().getObjectName());
+      // Leave room for the composite file in the compose
+      if (sliceParts.size() >= MAX_FILES_PER_COMPOSE - 1) {
+        composeSliceParts();
       }
-      GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
-      String name = file.getObjectName() + "~" + Math.abs(RND.nextLong());
-      sliceChannel = GCS_SERVICE.createOrReplace(new GcsFilename(file.getBucketName(), name), opt);
     } else {
       sliceChannel = channel;
     }
+    partSize = getPartSize();
+  }
+
+  /**
+   * Returns the size of the parts uploaded by the current slice, which grows with the number of
+   * components of the output so far.
+   */
+  private int getPartSize() {
+    int components = compositeComponents + sliceParts.size();
+    int doublings = components / Math.max(1, maxComponentsPerCompose / 8);
+    return PART_SIZE << Math.min(doublings, MAX_PART_SIZE_DOUBLINGS);
+  }
+
+  /**
+   * Composes the composite file and the slice parts into a new composite file, as many parts at a
+   * time as a compose takes. The sources are only deleted once the state of the writer that no
+   * longer refers to them was saved, so that a retried slice can compose them again.
+   */
+  private void composeSliceParts() throws IOException {
+    while (!sliceParts.isEmpty()) {
+      List<String> parts =
+          sliceParts.subList(0, Math.min(sliceParts.size(), MAX_FILES_PER_COMPOSE - 1));
+      if (compositeComponents + parts.size() > maxComponentsPerCompose) {
+        rewriteComposite();
+      }
+      List<String> sources = new ArrayList<>(parts.size() + 1);
+      if (composite != null) {
+        sources.add(composite);
+      }
+      sources.addAll(parts);
+      String target = generateTempFileName();
+      GCS_SERVICE.compose(sources, new GcsFilename(file.getBucketName(), target));
+      toDelete.addAll(sources);
+      compositeComponents += parts.size();
+      composite = target;
+      parts.clear();
+    }
+  }
+
+  /**
+   * Copies the composite file to a file of a single component. This is the only case where
+   * output is read back, once per {@code maxComponentsPerCompose} slices.
+   */
+  private void rewriteComposite() throws IOException {
+    GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
+    String target = generateTempFileName();
+    try (GcsOutputChannel toChannel =
+        GCS_SERVICE.createOrReplace(new GcsFilename(file.getBucketName(), target), opt)) {
+      copy(new GcsFilename(file.getBucketName(), composite), toChannel);
+    }
+    toDelete.add(composite);
+    composite = target;
+    compositeComponents = 1;
+  }
+
+  private String generateTempFileName() {
+    return file.getObjectName() + "~" + Math.abs(RND.nextLong());
   }
 
   private static void copy(GcsFilename from, GcsOutputChannel toChannel) throws IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(MapReduceConstants.DEFAULT_IO_BUFFER_SIZE);
+    ByteBuffer buffer =
+        ByteBufferPool.getInstance().allocate(MapReduceConstants.DEFAULT_IO_BUFFER_SIZE);
     try (GcsInputChannel fromChannel = GCS_SERVICE.openReadChannel(from, 0)) {
       while (fromChannel.read(buffer) >= 0) {
         buffer.flip();
@@ -113,46 +264,188 @@ public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer>
         }
         buffer.clear();
       }
+    } finally {
+      ByteBufferPool.getInstance().release(buffer);
     }
   }
 
   @Override
   public void write(ByteBuffer bytes) throws IOException {
+    if (parallelStreams > 1) {
+      writeParts(bytes);
+      return;
+    }
+    if (sliceChannel == null && supportSliceRetries) {
+      GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
+      GcsFilename sliceFile = new GcsFilename(file.getBucketName(), generateTempFileName());
+      sliceChannel = GCS_SERVICE.createOrReplace(sliceFile, opt);
+    }
     Preconditions.checkState(sliceChannel != null, "%s: channel was not created", this);
     while (bytes.hasRemaining()) {
       sliceChannel.write(bytes);
     }
   }
 
+  private void writeParts(ByteBuffer bytes) throws IOException {
+    boolean written = false;
+    try {
+      while (bytes.hasRemaining()) {
+        if (partBuffer == null) {
+          partBuffer = ByteBufferPool.getInstance().allocate(partSize);
+        }
+        int limit = bytes.limit();
+        bytes.limit(bytes.position() + Math.min(bytes.remaining(), partBuffer.remaining()));
+        partBuffer.put(bytes);
+        bytes.limit(limit);
+        if (!partBuffer.hasRemaining()) {
+          uploadPart();
+        }
+      }
+      written = true;
+    } finally {
+      if (!written) {
+        abortParts();
+      }
+    }
+  }
+
+  /**
+   * Stops the uploads of a slice that failed, which is retried from its saved state.
+   */
+  private void abortParts() {
+    ByteBufferPool.getInstance().release(partBuffer);
+    partBuffer = null;
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+      uploadExecutor = null;
+      pendingUploads = null;
+    }
+  }
+
+  /**
+   * Starts the upload of the part buffer, after waiting for the oldest upload if
+   * {@code parallelStreams} uploads are already in progress.
+   */
+  private void uploadPart() throws IOException {
+    final ByteBuffer buffer = partBuffer;
+    partBuffer = null;
+    buffer.flip();
+    if (uploadExecutor == null) {
+      uploadExecutor = Executors.newFixedThreadPool(parallelStreams,
+          ThreadManager.currentRequestThreadFactory());
+      pendingUploads = new ArrayDeque<>();
+    }
+    while (pendingUploads.size() >= parallelStreams) {
+      waitForUpload(pendingUploads.removeFirst());
+    }
+    final GcsFilename partFile = new GcsFilename(file.getBucketName(), generateTempFileName());
+    final GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
+    pendingUploads.addLast(uploadExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        try (GcsOutputChannel partChannel = GCS_SERVICE.createOrReplace(partFile, opt)) {
+          while (buffer.hasRemaining()) {
+            partChannel.write(buffer);
+          }
+        } finally {
+          ByteBufferPool.getInstance().release(buffer);
+        }
+        return null;
+      }
+    }));
+    sliceParts.add(partFile.getObjectName());
+  }
+
+  private static void waitForUpload(Future<?> upload) throws IOException {
+    try {
+      upload.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for an upload", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException("Upload failed", e.getCause());
+    }
+  }
+
+  /**
+   * Uploads the part being filled, and waits for all the uploads of the slice.
+   */
+  private void finishParts() throws IOException {
+    if (partBuffer != null && partBuffer.position() > 0) {
+      uploadPart();
+    }
+    ByteBufferPool.getInstance().release(partBuffer);
+    partBuffer = null;
+    if (uploadExecutor != null) {
+      try {
+        while (!pendingUploads.isEmpty()) {
+          waitForUpload(pendingUploads.removeFirst());
+        }
+      } finally {
+        uploadExecutor.shutdown();
+        uploadExecutor = null;
+        pendingUploads = null;
+      }
+    }
+  }
+
   @Override
   public void endSlice() throws IOException {
+    if (parallelStreams > 1) {
+      finishParts();
+      return;
+    }
     if (supportSliceRetries) {
-      sliceChannel.close();
+      if (sliceChannel != null) {
+        sliceChannel.close();
+        sliceParts.add(sliceChannel.getFilename().getObjectName());
+        sliceChannel = null;
+      }
+    } else {
+      channel.waitForOutstandingWrites();
     }
-    channel.waitForOutstandingWrites();
   }
 
   @Override
   public void endShard() throws IOException {
-    if (channel == null) {
+    if (!inShard) {
       return;
     }
-    channel.close();
-    if (supportSliceRetries && sliceChannel != null) {
-      // compose temporary destination and last slice to final destination
-      List<String> source = ImmutableList.of(channel.getFilename().getObjectName(),
-          sliceChannel.getFilename().getObjectName());
-      GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
-      GCS_SERVICE.compose(source, file);
-      GCS_SERVICE.update(file, opt);
-      toDelete.add(sliceChannel.getFilename().getObjectName());
-      sliceChannel = null;
+    inShard = false;
+    GcsFileOptions opt = new GcsFileOptions.Builder().mimeType(mimeType).build();
+    if (supportSliceRetries) {
+      if (sliceParts.size() > MAX_FILES_PER_COMPOSE - 1
+          || compositeComponents + sliceParts.size() > maxComponentsPerCompose) {
+        composeSliceParts();
+      }
+      List<String> sources = new ArrayList<>(sliceParts.size() + 1);
+      if (composite != null) {
+        sources.add(composite);
+      }
+      sources.addAll(sliceParts);
+      if (sources.isEmpty()) {
+        GCS_SERVICE.createOrReplace(file, opt).close();
+      } else {
+        if (sources.size() == 1) {
+          GCS_SERVICE.copy(new GcsFilename(file.getBucketName(), sources.get(0)), file);
+        } else {
+          GCS_SERVICE.compose(sources, file);
+        }
+        // Composite files do not carry the mime type
+        GCS_SERVICE.update(file, opt);
+      }
+      toDelete.addAll(sources);
+      sliceParts.clear();
+      composite = null;
+      compositeComponents = 0;
     } else {
+      channel.close();
       // rename temporary destination to final destination
       GCS_SERVICE.copy(channel.getFilename(), file);
+      toDelete.add(channel.getFilename().getObjectName());
+      channel = null;
     }
-    toDelete.add(channel.getFilename().getObjectName());
-    channel = null;
   }
 
   public GcsFilename getFile() {
@@ -163,11 +456,19 @@ public class GoogleCloudStorageFileOutputWriter extends OutputWriter<ByteBuffer>
   public String toString() {
     return "GoogleCloudStorageFileOutputWriter [file=" + file + ", mimeType=" + mimeType
         + ", channel=" + channel + ", supportSliceRetries= " + supportSliceRetries
-        + ", sliceChannel=" + sliceChannel + ", toDelete=" + toDelete + "]";
+        + ", parallelStreams=" + parallelStreams
+        + ", sliceChannel=" + sliceChannel + ", sliceParts=" + sliceParts + ", composite="
+        + composite + ", compositeComponents=" + compositeComponents + ", toDelete=" + toDelete
+        + "]";
   }
 
   @Override
   public long estimateMemoryRequirement() {
-    return MEMORY_REQUIRED;
+    if (parallelStreams > 1) {
+      // The part being filled, and the ones being uploaded with the buffers of their channels
+      return MEMORY_REQUIRED + (parallelStreams + 1L) * getPartSize()
+          + parallelStreams * (long) DEFAULT_IO_BUFFER_SIZE;
+    }
+    return supportSliceRetries ? MEMORY_REQUIRED : MEMORY_REQUIRED_WITHOUT_SLICE_RETRY;
   }
 }
@@ -28,6 +28,6 @@ public class GoogleCloudStorageLevelDbOutputWriter extends LevelDbOutputWriter {
     while ((getNumBlocksWritten() * BLOCK_SIZE) % GCS_IO_BLOCK_SIZE != 0) {
       padAndWriteBlock(true);
     }
-    getDelegate().endSlice();
+    super.endSlice();
   }
 }
@@ -53,6 +53,11 @@ public class InMemoryOutputWriter<O> extends OutputWriter<O> {
     return true;
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return true;
+  }
+
   public List<O> getResult() {
     return accu;
   }
@@ -57,6 +57,11 @@ public abstract class ItemSegmentingOutputWriter<O> extends ForwardingOutputWrit
     return false;
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return false;
+  }
+
   @Override
   public void setContext(ShardContext context) {
     this.context = context;
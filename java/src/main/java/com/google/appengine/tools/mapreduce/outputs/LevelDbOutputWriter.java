@@ -3,6 +3,7 @@ package com.google.appengine.tools.mapreduce.outputs;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.appengine.tools.mapreduce.OutputWriter;
+import com.google.appengine.tools.mapreduce.impl.util.ByteBufferPool;
 import com.google.appengine.tools.mapreduce.impl.util.Crc32c;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants.RecordType;
@@ -69,6 +70,7 @@ public class LevelDbOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
   }
 
   private transient ByteBuffer writeBuffer;
+  private transient Crc32c crc;
   private final OutputWriter<ByteBuffer> delegate;
   private final int blockSize;
   private int numBlocksWritten = 0;
@@ -86,7 +88,7 @@ public class LevelDbOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
 
   @Override
   public void beginSlice() throws IOException {
-    writeBuffer = ByteBuffer.allocate(blockSize);
+    writeBuffer = ByteBufferPool.getInstance().allocate(blockSize);
     writeBuffer.order(ByteOrder.LITTLE_ENDIAN);
     super.beginSlice();
   }
@@ -95,6 +97,8 @@ public class LevelDbOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
   public void endSlice() throws IOException {
     // Pad the block so that the underlying file is always complete blocks
     padAndWriteBlock(false);
+    ByteBufferPool.getInstance().release(writeBuffer);
+    writeBuffer = null;
     super.endSlice();
   }
 
@@ -180,8 +184,7 @@ public class LevelDbOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
    *        which data to write.
    */
   private void writePhysicalRecord(ByteBuffer data, Record record) {
-    writeBuffer.putInt(generateCrc(data.array(), data.position(), record.getBytes(),
-        record.getType()));
+    writeBuffer.putInt(generateCrc(data, data.position(), record.getBytes(), record.getType()));
     writeBuffer.putShort((short) record.getBytes());
     writeBuffer.put(record.getType().value());
     int oldLimit = data.limit();
@@ -206,14 +209,18 @@ public class LevelDbOutputWriter extends ForwardingOutputWriter<ByteBuffer> {
    * Generates a CRC32C checksum using {@link Crc32c} for a specific record.
    *
    * @param data The user data over which the checksum will be generated.
-   * @param off The offset into the user data at which to begin the computation.
+   * @param off The absolute position in the user data at which to begin the computation.
    * @param len The length of user data to use in the computation.
    * @param type The {@link RecordType} of the record, which is included in the
    *        checksum.
    * @return the masked checksum.
    */
-  private int generateCrc(byte[] data, int off, int len, RecordType type) {
-    Crc32c crc = new Crc32c();
+  private int generateCrc(ByteBuffer data, int off, int len, RecordType type) {
+    if (crc == null) {
+      crc = new Crc32c();
+    } else {
+      crc.reset();
+    }
     crc.update(type.value());
     crc.update(data, off, len);
     return (int) LevelDbConstants.maskCrc(crc.getValue());
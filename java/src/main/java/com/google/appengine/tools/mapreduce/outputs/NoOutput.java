@@ -36,6 +36,11 @@ public class NoOutput<O, R> extends Output<O, R> {
     public boolean allowSliceRetry() {
       return true;
     }
+
+    @Override
+    public boolean allowConcurrentSliceAttempts() {
+      return true;
+    }
   }
 
   @Override
@@ -100,4 +100,14 @@ public abstract class ShardingOutputWriter<K, V, WriterT extends OutputWriter<Ke
     }
     return true;
   }
+
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    for (OutputWriter<KeyValue<K, V>> writer : writers.values()) {
+      if (!writer.allowConcurrentSliceAttempts()) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package com.google.appengine.tools.mapreduce.reducers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Reducer;
+import com.google.appengine.tools.mapreduce.ReducerInput;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reducer of a MapReduce that joins several inputs, built with
+ * {@link com.google.appengine.tools.mapreduce.MapReduceSpecification.JoinBuilder}. The values of
+ * each key are passed to {@link #join} as one {@link ReducerInput} per input.
+ *
+ * The values of all the inputs are read from a single stream in which they are sorted by input.
+ * So the inputs must be read in order: reading from an input skips the values that were not read
+ * from the inputs before it, which can then no longer be read. To combine the values of an input
+ * with the ones of the inputs after it, it can be buffered with {@link #bufferValues}. Adding the
+ * input with the most values per key last lets it be streamed.
+ *
+ * @param <K> type of intermediate keys
+ * @param <V> type of intermediate values
+ * @param <O> type of output values produced
+ */
+public abstract class JoinReducer<K, V, O> extends Reducer<K, KeyValue<Integer, V>, O> {
+
+  private static final long serialVersionUID = -4530853264018463658L;
+
+  private final int inputCount;
+
+  /**
+   * @param inputCount the number of inputs being joined.
+   */
+  protected JoinReducer(int inputCount) {
+    checkArgument(inputCount > 0, "Invalid inputCount: %s", inputCount);
+    this.inputCount = inputCount;
+  }
+
+  public int getInputCount() {
+    return inputCount;
+  }
+
+  /**
+   * Processes the values for a given key. {@code values} holds a {@link ReducerInput} for each
+   * input, in the order the inputs were added, which enumerates the values that the mapper of
+   * that input produced for the key. Some of them may be empty, but not all.
+   */
+  public abstract void join(K key, List<ReducerInput<V>> values);
+
+  @Override
+  public final void reduce(K key, ReducerInput<KeyValue<Integer, V>> values) {
+    PeekingIterator<KeyValue<Integer, V>> taggedValues = Iterators.peekingIterator(values);
+    List<ReducerInput<V>> inputs = new ArrayList<>(inputCount);
+    for (int tag = 0; tag < inputCount; tag++) {
+      inputs.add(new InputValues<>(tag, taggedValues));
+    }
+    join(key, inputs);
+  }
+
+  /**
+   * Reads the values that are left in {@code values} into memory, in their serialized form, so
+   * that they can be iterated over several times.
+   *
+   * @param marshaller used to serialize the values, and to deserialize them again on each
+   *        iteration.
+   * @param maxBytes the maximum size of the serialized values.
+   * @throws IllegalStateException if the size of the serialized values exceeds {@code maxBytes}.
+   */
+  protected static <V> Iterable<V> bufferValues(Iterator<V> values,
+      final Marshaller<V> marshaller, long maxBytes) {
+    checkNotNull(marshaller, "Null marshaller");
+    final List<byte[]> buffer = new ArrayList<>();
+    long bytes = 0;
+    while (values.hasNext()) {
+      byte[] value = SerializationUtil.getBytes(marshaller.toBytes(values.next()));
+      bytes += value.length;
+      if (bytes > maxBytes) {
+        throw new IllegalStateException("Values exceed " + maxBytes + " bytes");
+      }
+      buffer.add(value);
+    }
+    return new Iterable<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        final Iterator<byte[]> serialized = buffer.iterator();
+        return new Iterator<V>() {
+          @Override
+          public boolean hasNext() {
+            return serialized.hasNext();
+          }
+
+          @Override
+          public V next() {
+            return marshaller.fromBytes(ByteBuffer.wrap(serialized.next()));
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * The values of one input, read from the stream of the values of all inputs.
+   */
+  private static final class InputValues<V> extends ReducerInput<V> {
+
+    private final int tag;
+    private final PeekingIterator<KeyValue<Integer, V>> taggedValues;
+
+    private InputValues(int tag, PeekingIterator<KeyValue<Integer, V>> taggedValues) {
+      this.tag = tag;
+      this.taggedValues = taggedValues;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (taggedValues.hasNext() && taggedValues.peek().getKey() < tag) {
+        taggedValues.next();
+      }
+      return taggedValues.hasNext() && taggedValues.peek().getKey() == tag;
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return taggedValues.next().getValue();
+    }
+
+    @Override
+    public String toString() {
+      return "JoinReducer.InputValues(" + tag + ")";
+    }
+  }
+}
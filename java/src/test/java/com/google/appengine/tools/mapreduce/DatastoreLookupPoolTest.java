@@ -0,0 +1,152 @@
+package com.google.appengine.tools.mapreduce;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.mapreduce.impl.CountersImpl;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Tests {@link DatastoreLookupPool}.
+ */
+public class DatastoreLookupPoolTest extends TestCase {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private final Counters counters = new CountersImpl();
+  private final ShardContext context = new ShardContext() {
+    @Override
+    public String getJobId() {
+      return "job";
+    }
+
+    @Override
+    public int getShardCount() {
+      return 1;
+    }
+
+    @Override
+    public int getShardNumber() {
+      return 0;
+    }
+
+    @Override
+    public Counters getCounters() {
+      return counters;
+    }
+
+    @Override
+    public Counter getCounter(String name) {
+      return counters.getCounter(name);
+    }
+
+    @Override
+    public void incrementCounter(String name, long delta) {
+      getCounter(name).increment(delta);
+    }
+
+    @Override
+    public void incrementCounter(String name) {
+      incrementCounter(name, 1);
+    }
+  };
+
+  private List<Key> keys;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    keys = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      Entity entity = new Entity("Foo", i + 1);
+      entity.setProperty("value", i);
+      keys.add(ds.put(entity));
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private DatastoreLookupPool makeLookupPool(int countLimit, int cacheSize) {
+    return DatastoreLookupPool.create(DatastoreServiceFactory.getAsyncDatastoreService(),
+        new DatastoreLookupPool.Params.Builder().countLimit(countLimit).cacheSize(cacheSize)
+            .maxPendingBatches(2).build(), context);
+  }
+
+  private long getCount(String name) {
+    return counters.getCounter(name).getValue();
+  }
+
+  public void testFutures() throws Exception {
+    DatastoreLookupPool pool = makeLookupPool(2, 0);
+    List<Future<Entity>> futures = new ArrayList<>();
+    for (Key key : keys) {
+      futures.add(pool.get(key));
+    }
+    Future<Entity> missing = pool.get(KeyFactory.createKey("Foo", 100));
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(i, ((Number) futures.get(i).get().getProperty("value")).intValue());
+      assertTrue(futures.get(i).isDone());
+    }
+    assertTrue(missing.get() == null);
+    assertEquals(3, getCount(CounterNames.DATASTORE_LOOKUP_CALLS));
+  }
+
+  public void testCallbacks() {
+    DatastoreLookupPool pool = makeLookupPool(3, 0);
+    final List<Key> results = new ArrayList<>();
+    DatastoreLookupPool.Callback callback = new DatastoreLookupPool.Callback() {
+      @Override
+      public void onResult(Key key, Entity entity) {
+        assertEquals(key, entity.getKey());
+        results.add(key);
+      }
+    };
+    for (Key key : keys) {
+      pool.get(key, callback);
+    }
+    // The same key is looked up once while in flight
+    pool.get(keys.get(0), callback);
+    pool.flush();
+    assertEquals(keys.size() + 1, results.size());
+    assertTrue(results.containsAll(keys));
+    assertEquals(2, getCount(CounterNames.DATASTORE_LOOKUP_CALLS));
+  }
+
+  public void testCache() throws Exception {
+    DatastoreLookupPool pool = makeLookupPool(10, 3);
+    for (Key key : keys) {
+      pool.get(key);
+    }
+    pool.flush();
+    assertEquals(0, getCount(CounterNames.DATASTORE_LOOKUP_CACHE_HITS));
+    assertEquals(5, getCount(CounterNames.DATASTORE_LOOKUP_CACHE_MISSES));
+    // Only the 3 most recent results are cached
+    for (Key key : Lists.reverse(keys)) {
+      Entity entity = pool.get(key).get();
+      entity.setProperty("value", -1);
+    }
+    pool.flush();
+    assertEquals(3, getCount(CounterNames.DATASTORE_LOOKUP_CACHE_HITS));
+    assertEquals(7, getCount(CounterNames.DATASTORE_LOOKUP_CACHE_MISSES));
+    // Entities that were handed out can be modified without changing the cache
+    assertEquals(2, ((Number) pool.get(keys.get(2)).get().getProperty("value")).intValue());
+    assertEquals(4, getCount(CounterNames.DATASTORE_LOOKUP_CACHE_HITS));
+  }
+}
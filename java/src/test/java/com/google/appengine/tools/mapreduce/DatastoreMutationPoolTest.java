@@ -20,13 +20,17 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.mapreduce.impl.util.EntitySizeEstimator;
 
 import junit.framework.TestCase;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Tests {@link DatastoreMutationPool}.
  *
@@ -90,14 +94,89 @@ public class DatastoreMutationPoolTest extends TestCase {
 
   public void testSizeFlush() {
     DatastoreMutationPool putPool = makeMutationPool(1000,
-        EntityTranslator.convertToPb(entities[0]).getSerializedSize() + 1);
+        EntitySizeEstimator.estimateSize(entities[0]) + 1);
     checkFlushOnNthPutOutOfThree(putPool, 1, -1);
     putPool.flush();
     DatastoreMutationPool deletePool = makeMutationPool(1000,
-        KeyFactory.keyToString(entities[0].getKey()).length() + 1);
+        EntitySizeEstimator.estimateSize(entities[0].getKey()) + 1);
     checkFlushOnNthDeleteOutOfThree(deletePool, 1, -1);
   }
 
+  public void testAsyncFlush() throws Exception {
+    DatastoreMutationPool pool = DatastoreMutationPool.create(ds,
+        new DatastoreMutationPool.Params.Builder().countLimit(1).maxInFlightBatches(2).build());
+    List<Entity> many = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      Entity entity = new Entity("Foo", i + 1);
+      many.add(entity);
+      pool.put(entity);
+    }
+    pool.flush();
+    for (Entity entity : many) {
+      assertEquals(entity, ds.get(entity.getKey()));
+    }
+  }
+
+  public void testAsyncOrderOfSameKey() {
+    DatastoreMutationPool pool = DatastoreMutationPool.create(ds,
+        new DatastoreMutationPool.Params.Builder().countLimit(1).maxInFlightBatches(5).build());
+    Entity entity = new Entity("Foo", 1);
+    pool.put(entity);
+    pool.delete(entity.getKey());
+    pool.put(entity);
+    pool.delete(entity.getKey());
+    pool.flush();
+    try {
+      ds.get(entity.getKey());
+      fail("Mutations of the same key were reordered.");
+    } catch (EntityNotFoundException expected) {
+    }
+  }
+
+  public void testEntityGroupSpreading() throws Exception {
+    DatastoreMutationPool pool = DatastoreMutationPool.create(ds,
+        new DatastoreMutationPool.Params.Builder().countLimit(2).maxMutationsPerEntityGroup(1)
+            .build());
+    Key parent = KeyFactory.createKey("Parent", 1);
+    Entity first = new Entity("Foo", 1, parent);
+    Entity second = new Entity("Foo", 2, parent);
+    Entity other = new Entity("Foo", 3);
+    pool.put(first);
+    pool.put(second);
+    pool.put(other);
+    // The second entity of the group was held back from the batch of the other two
+    assertEquals(first, ds.get(first.getKey()));
+    assertEquals(other, ds.get(other.getKey()));
+    try {
+      ds.get(second.getKey());
+      fail("Entity of the same group was put in the same batch.");
+    } catch (EntityNotFoundException expected) {
+    }
+    pool.flush();
+    assertEquals(second, ds.get(second.getKey()));
+  }
+
+  public void testWriteRateCarriedOver() {
+    DatastoreMutationPool.Params params = new DatastoreMutationPool.Params.Builder()
+        .countLimit(10).writesPerSecond(10).build();
+    DatastoreMutationPool pool = DatastoreMutationPool.create(ds, params);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      pool.put(new Entity("Foo", i + 1));
+    }
+    pool.flush();
+    // The first batch is sent right away, and charged to the mutations sent after it
+    assertTrue(pool.getNextWriteTimeMillis() >= start + 1000);
+    // Such as those of the pool of the next slice
+    DatastoreMutationPool next = DatastoreMutationPool.create(ds, params);
+    next.setNextWriteTimeMillis(pool.getNextWriteTimeMillis());
+    for (int i = 10; i < 20; i++) {
+      next.put(new Entity("Foo", i + 1));
+    }
+    next.flush();
+    assertTrue(System.currentTimeMillis() >= start + 1000);
+  }
+
   private DatastoreMutationPool makeMutationPool(int countLimit, int bytesLimit) {
     return DatastoreMutationPool.create(ds, new DatastoreMutationPool.Params.Builder()
         .countLimit(countLimit).bytesLimit(bytesLimit).build());
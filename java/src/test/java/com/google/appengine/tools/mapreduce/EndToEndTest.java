@@ -43,6 +43,7 @@ import com.google.appengine.tools.mapreduce.outputs.MarshallingOutput;
 import com.google.appengine.tools.mapreduce.outputs.NoOutput;
 import com.google.appengine.tools.mapreduce.outputs.SizeSegmentedGoogleCloudStorageFileOutput;
 import com.google.appengine.tools.mapreduce.outputs.StringOutput;
+import com.google.appengine.tools.mapreduce.reducers.JoinReducer;
 import com.google.appengine.tools.mapreduce.reducers.KeyProjectionReducer;
 import com.google.appengine.tools.mapreduce.reducers.NoReducer;
 import com.google.appengine.tools.mapreduce.reducers.ValueProjectionReducer;
@@ -1079,6 +1080,202 @@ public class EndToEndTest extends EndToEndTestCase {
     });
   }
 
+  @Test
+  public void testPipelinedSort() throws Exception {
+    MapReduceSpecification.Builder<Long, String, Long, String, List<List<String>>> builder =
+        new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    builder.setInput(new ConsecutiveLongInput(-10000, 10000, 10));
+    builder.setMapper(new Mod37Mapper());
+    builder.setKeyMarshaller(Marshallers.getStringMarshaller());
+    builder.setValueMarshaller(Marshallers.getLongMarshaller());
+    builder.setReducer(KeyProjectionReducer.<String, Long>create());
+    builder.setOutput(new InMemoryOutput<String>());
+    builder.setNumReducers(5);
+    runWithPipeline(new MapReduceSettings.Builder().setPipelinedSortBatches(3).build(),
+        builder.build(), new Verifier<List<List<String>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<String>>> result) throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(20000, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(20000, counters.getCounter(CounterNames.SORT_CALLS).getValue());
+            assertEquals(37, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+
+            List<List<String>> actualOutput = result.getOutputResult();
+            assertEquals(5, actualOutput.size());
+            Set<String> allKeys = new HashSet<>();
+            for (List<String> shard : actualOutput) {
+              for (String key : shard) {
+                assertTrue("Duplicate key " + key, allKeys.add(key));
+              }
+            }
+            assertEquals(37, allKeys.size());
+          }
+        });
+  }
+
+  @Test
+  public void testValueOrdering() throws Exception {
+    MapReduceSpecification.Builder<Long, String, Long, KeyValue<String, List<Long>>,
+        List<List<KeyValue<String, List<Long>>>>> builder = new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    builder.setInput(new ConsecutiveLongInput(-10000, 10000, 10));
+    builder.setMapper(new Mod37Mapper());
+    builder.setKeyMarshaller(Marshallers.getStringMarshaller());
+    builder.setValueMarshaller(Marshallers.getLongMarshaller());
+    builder.setReducer(new TestReducer());
+    builder.setOutput(new InMemoryOutput<KeyValue<String, List<Long>>>());
+    builder.setNumReducers(5);
+    builder.setValueOrdering(new DescendingLongOrdering());
+    runWithPipeline(new MapReduceSettings.Builder().build(), builder.build(),
+        new Verifier<List<List<KeyValue<String, List<Long>>>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<KeyValue<String, List<Long>>>>> result)
+              throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(20000, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(37, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+
+            Set<String> allKeys = new HashSet<>();
+            int values = 0;
+            for (List<KeyValue<String, List<Long>>> shard : result.getOutputResult()) {
+              String previousKey = null;
+              for (KeyValue<String, List<Long>> group : shard) {
+                assertTrue("Duplicate key " + group.getKey(), allKeys.add(group.getKey()));
+                // Keys are still sorted
+                assertTrue(previousKey == null || previousKey.compareTo(group.getKey()) < 0);
+                previousKey = group.getKey();
+                long previous = Long.MAX_VALUE;
+                for (long value : group.getValue()) {
+                  assertEquals(group.getKey(), String.valueOf(Math.abs(value) % 37));
+                  assertTrue(previous + " before " + value, value < previous);
+                  previous = value;
+                  values++;
+                }
+              }
+            }
+            assertEquals(37, allKeys.size());
+            assertEquals(20000, values);
+          }
+        });
+  }
+
+  @Test
+  public void testHashGrouping() throws Exception {
+    MapReduceSpecification.Builder<Long, String, Long, KeyValue<String, List<Long>>,
+        List<List<KeyValue<String, List<Long>>>>> builder = new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    builder.setInput(new ConsecutiveLongInput(-10000, 10000, 10));
+    builder.setMapper(new Mod37Mapper());
+    builder.setKeyMarshaller(Marshallers.getStringMarshaller());
+    builder.setValueMarshaller(Marshallers.getLongMarshaller());
+    builder.setReducer(new UnsortedTestReducer());
+    builder.setOutput(new InMemoryOutput<KeyValue<String, List<Long>>>());
+    builder.setNumReducers(5);
+    // Small enough for the groups of a shard to need several passes
+    runWithPipeline(new MapReduceSettings.Builder().setMaxSortMemory(64 * 1024L).build(),
+        builder.build(), new Verifier<List<List<KeyValue<String, List<Long>>>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<KeyValue<String, List<Long>>>>> result)
+              throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(20000, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(0, counters.getCounter(CounterNames.SORT_CALLS).getValue());
+            assertEquals(37, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+
+            List<List<KeyValue<String, List<Long>>>> actualOutput = result.getOutputResult();
+            assertEquals(5, actualOutput.size());
+            Set<String> allKeys = new HashSet<>();
+            int values = 0;
+            for (List<KeyValue<String, List<Long>>> shard : actualOutput) {
+              for (KeyValue<String, List<Long>> group : shard) {
+                assertTrue("Duplicate key " + group.getKey(), allKeys.add(group.getKey()));
+                for (long value : group.getValue()) {
+                  assertEquals(group.getKey(), String.valueOf(Math.abs(value) % 37));
+                  values++;
+                }
+              }
+            }
+            assertEquals(37, allKeys.size());
+            assertEquals(20000, values);
+          }
+        });
+  }
+
+  @Test
+  public void testJoin() throws Exception {
+    MapReduceSpecification.JoinBuilder<String, Long, KeyValue<Long, Long>,
+        List<List<KeyValue<Long, Long>>>> builder = new MapReduceSpecification.JoinBuilder<>();
+    builder.setJobName("Test join");
+    builder.addInput(new ConsecutiveLongInput(0, 20, 2), new Mod37Mapper());
+    builder.addInput(new ConsecutiveLongInput(-10000, 10000, 10), new Mod37Mapper());
+    builder.setKeyMarshaller(Marshallers.getStringMarshaller());
+    builder.setValueMarshaller(Marshallers.getLongMarshaller());
+    builder.setReducer(new InnerJoinReducer());
+    builder.setOutput(new InMemoryOutput<KeyValue<Long, Long>>());
+    builder.setNumReducers(5);
+    runWithPipeline(new MapReduceSettings.Builder().build(), builder.build(),
+        new Verifier<List<List<KeyValue<Long, Long>>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<KeyValue<Long, Long>>>> result)
+              throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(20020, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(37, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+
+            int expected = 0;
+            for (long value = -10000; value < 10000; value++) {
+              if (Math.abs(value) % 37 < 20) {
+                expected++;
+              }
+            }
+            int pairs = 0;
+            for (List<KeyValue<Long, Long>> shard : result.getOutputResult()) {
+              for (KeyValue<Long, Long> pair : shard) {
+                assertEquals(pair.getKey().longValue(), Math.abs(pair.getValue()) % 37);
+                pairs++;
+              }
+            }
+            assertEquals(expected, pairs);
+          }
+        });
+  }
+
+  @Test
+  public void testSideInput() throws Exception {
+    MapReduceSpecification.Builder<Long, String, Long, KeyValue<String, List<Long>>,
+        List<List<KeyValue<String, List<Long>>>>> builder = new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    builder.setInput(new ConsecutiveLongInput(-10000, 10000, 10));
+    builder.setMapper(new SquareLookupMapper());
+    builder.setKeyMarshaller(Marshallers.getStringMarshaller());
+    builder.setValueMarshaller(Marshallers.getLongMarshaller());
+    builder.setReducer(new TestReducer());
+    builder.setOutput(new InMemoryOutput<KeyValue<String, List<Long>>>());
+    builder.setNumReducers(3);
+    runWithPipeline(new MapReduceSettings.Builder().build(), builder.build(),
+        new Verifier<List<List<KeyValue<String, List<Long>>>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<KeyValue<String, List<Long>>>>> result)
+              throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(20000, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(37, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+            int values = 0;
+            for (List<KeyValue<String, List<Long>>> shard : result.getOutputResult()) {
+              for (KeyValue<String, List<Long>> group : shard) {
+                long key = Long.parseLong(group.getKey());
+                for (long value : group.getValue()) {
+                  assertEquals(key * key, value);
+                  values++;
+                }
+              }
+            }
+            assertEquals(20000, values);
+          }
+        });
+  }
+
   /**
    * Makes sure the same key is not dupped, nor does the reduce go into an infinite loop if it
    * ignores the values.
@@ -1149,6 +1346,70 @@ public class EndToEndTest extends EndToEndTestCase {
         });
   }
 
+  @Test
+  public void testManySortOutputFilesCompressed() throws Exception {
+    MapReduceSpecification.Builder<Long, Long, String, Long, List<List<Long>>> builder =
+        new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    final long sortMem = 1000;
+    final long inputItems = 10 * sortMem / 100; // Forces 3 levels of merging
+    builder.setInput(new RandomLongInput(inputItems, 1));
+    builder.setMapper(new DummyValueMapper(100));
+    builder.setKeyMarshaller(Marshallers.getLongMarshaller());
+    builder.setValueMarshaller(Marshallers.getStringMarshaller());
+    builder.setReducer(KeyProjectionReducer.<Long, String>create());
+    builder.setOutput(new InMemoryOutput<Long>());
+    builder.setNumReducers(1);
+    runWithPipeline(new MapReduceSettings.Builder().setMaxSortMemory(sortMem).setMergeFanin(2)
+        .setCompressIntermediateData(true).build(),
+        builder.build(), new Verifier<List<List<Long>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<Long>>> result) throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(inputItems, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(inputItems, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+            assertEquals(inputItems, counters.getCounter(CounterNames.SORT_CALLS).getValue());
+            assertEquals(inputItems * 3, counters.getCounter(CounterNames.MERGE_CALLS).getValue());
+
+            List<List<Long>> actualOutput = result.getOutputResult();
+            assertEquals(1, actualOutput.size());
+            assertEquals(inputItems, actualOutput.get(0).size());
+          }
+        });
+  }
+
+  @Test
+  public void testManySortOutputFilesPrefixCompressedKeys() throws Exception {
+    MapReduceSpecification.Builder<Long, Long, String, Long, List<List<Long>>> builder =
+        new MapReduceSpecification.Builder<>();
+    builder.setJobName("Test MR");
+    final long sortMem = 1000;
+    final long inputItems = 10 * sortMem / 100; // Forces 3 levels of merging
+    builder.setInput(new RandomLongInput(inputItems, 1));
+    builder.setMapper(new DummyValueMapper(100));
+    builder.setKeyMarshaller(Marshallers.getLongMarshaller());
+    builder.setValueMarshaller(Marshallers.getStringMarshaller());
+    builder.setReducer(KeyProjectionReducer.<Long, String>create());
+    builder.setOutput(new InMemoryOutput<Long>());
+    builder.setNumReducers(1);
+    runWithPipeline(new MapReduceSettings.Builder().setMaxSortMemory(sortMem).setMergeFanin(2)
+        .setPrefixCompressSortedKeys(true).build(),
+        builder.build(), new Verifier<List<List<Long>>>() {
+          @Override
+          public void verify(MapReduceResult<List<List<Long>>> result) throws Exception {
+            Counters counters = result.getCounters();
+            assertEquals(inputItems, counters.getCounter(CounterNames.MAPPER_CALLS).getValue());
+            assertEquals(inputItems, counters.getCounter(CounterNames.REDUCER_CALLS).getValue());
+            assertEquals(inputItems, counters.getCounter(CounterNames.SORT_CALLS).getValue());
+            assertEquals(inputItems * 3, counters.getCounter(CounterNames.MERGE_CALLS).getValue());
+
+            List<List<Long>> actualOutput = result.getOutputResult();
+            assertEquals(1, actualOutput.size());
+            assertEquals(inputItems, actualOutput.get(0).size());
+          }
+        });
+  }
+
   @Test
   public void testSlicingJob() throws Exception {
     MapReduceSpecification.Builder<Long, String, Long, String, List<List<String>>> builder =
@@ -1321,4 +1582,82 @@ public class EndToEndTest extends EndToEndTestCase {
       emit(KeyValue.of(property, values));
     }
   }
+
+  @SuppressWarnings("serial")
+  static class DescendingLongOrdering extends ValueOrdering<Long> {
+    @Override
+    public ByteBuffer getSortKey(Long value) {
+      return ValueOrdering.toSortKey(-value);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class SquaresSideInput extends SideInput<String, Long> {
+
+    SquaresSideInput() {
+      super("squares", Marshallers.getStringMarshaller(), Marshallers.getLongMarshaller());
+    }
+
+    @Override
+    public String getVersion() {
+      return "1";
+    }
+
+    @Override
+    public InputReader<KeyValue<String, Long>> createReader() {
+      return new InputReader<KeyValue<String, Long>>() {
+        private long next;
+
+        @Override
+        public KeyValue<String, Long> next() {
+          if (next == 37) {
+            throw new NoSuchElementException();
+          }
+          KeyValue<String, Long> result = KeyValue.of(String.valueOf(next), next * next);
+          next++;
+          return result;
+        }
+      };
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class SquareLookupMapper extends Mapper<Long, String, Long> {
+
+    private final SquaresSideInput squares = new SquaresSideInput();
+
+    @Override
+    public void map(Long input) {
+      String mod37 = String.valueOf(Math.abs(input) % 37);
+      emit(mod37, getContext().getSideInput(squares).get(mod37));
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class InnerJoinReducer extends JoinReducer<String, Long, KeyValue<Long, Long>> {
+
+    InnerJoinReducer() {
+      super(2);
+    }
+
+    @Override
+    public void join(String key, List<ReducerInput<Long>> values) {
+      Iterable<Long> left = bufferValues(values.get(0), Marshallers.getLongMarshaller(), 1024);
+      ReducerInput<Long> right = values.get(1);
+      while (right.hasNext()) {
+        Long value = right.next();
+        for (Long leftValue : left) {
+          emit(KeyValue.of(leftValue, value));
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("serial")
+  static class UnsortedTestReducer extends TestReducer {
+    @Override
+    public boolean requiresSortedKeys() {
+      return false;
+    }
+  }
 }
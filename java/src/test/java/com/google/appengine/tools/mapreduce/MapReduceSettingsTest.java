@@ -4,6 +4,7 @@ package com.google.appengine.tools.mapreduce;
 
 import static com.google.appengine.tools.mapreduce.MapReduceSettings.DEFAULT_MAP_FANOUT;
 import static com.google.appengine.tools.mapreduce.MapReduceSettings.DEFAULT_MERGE_FANIN;
+import static com.google.appengine.tools.mapreduce.MapReduceSettings.DEFAULT_PIPELINED_SORT_BATCHES;
 import static com.google.appengine.tools.mapreduce.MapReduceSettings.DEFAULT_SORT_BATCH_PER_EMIT_BYTES;
 import static com.google.appengine.tools.mapreduce.MapReduceSettings.DEFAULT_SORT_READ_TIME_MILLIS;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_BASE_URL;
@@ -49,6 +50,9 @@ public class MapReduceSettingsTest extends TestCase {
     assertEquals(DEFAULT_SORT_BATCH_PER_EMIT_BYTES, mrSettings.getSortBatchPerEmitBytes());
     assertEquals(DEFAULT_SORT_READ_TIME_MILLIS, mrSettings.getSortReadTimeMillis());
     assertNull(mrSettings.getWorkerQueueName());
+    assertFalse(mrSettings.isCompressIntermediateData());
+    assertFalse(mrSettings.isPrefixCompressSortedKeys());
+    assertEquals(DEFAULT_PIPELINED_SORT_BATCHES, mrSettings.getPipelinedSortBatches());
   }
 
   public void testNonDefaultSettings() {
@@ -112,7 +116,15 @@ public class MapReduceSettingsTest extends TestCase {
     }
     builder = builder.setSortReadTimeMillis(6);
     builder = builder.setWorkerQueueName("queue1");
-
+    builder = builder.setCompressIntermediateData(true);
+    builder = builder.setPrefixCompressSortedKeys(true);
+    try {
+      builder.setPipelinedSortBatches(0);
+      fail("Expected exception to be thrown");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+    builder = builder.setPipelinedSortBatches(4);
 
     MapReduceSettings mrSettings = builder.build();
     assertEquals("b1", mrSettings.getBackend());
@@ -128,6 +140,10 @@ public class MapReduceSettingsTest extends TestCase {
     assertEquals(5, mrSettings.getSortBatchPerEmitBytes());
     assertEquals(6, mrSettings.getSortReadTimeMillis());
     assertEquals("queue1", mrSettings.getWorkerQueueName());
+    assertTrue(mrSettings.isCompressIntermediateData());
+    assertTrue(mrSettings.isPrefixCompressSortedKeys());
+    assertEquals(4, mrSettings.getPipelinedSortBatches());
+    assertEquals(4, new MapReduceSettings.Builder(mrSettings).build().getPipelinedSortBatches());
 
     builder = new MapReduceSettings.Builder().setModule("m1");
     try {
@@ -6,6 +6,7 @@ import static com.google.appengine.tools.mapreduce.MapSettings.CONTROLLER_PATH;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_BASE_URL;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_MILLIS_PER_SLICE;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SLICE_TIMEOUT_RATIO;
+import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SPECULATIVE_SLICE_RATIO;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SHARD_RETRIES;
 import static com.google.appengine.tools.mapreduce.MapSettings.DEFAULT_SLICE_RETRIES;
 import static com.google.appengine.tools.mapreduce.MapSettings.WORKER_PATH;
@@ -74,6 +75,7 @@ public class MapSettingsTest extends TestCase {
     assertEquals(DEFAULT_SHARD_RETRIES, mrSettings.getMaxShardRetries());
     assertEquals(DEFAULT_SLICE_RETRIES, mrSettings.getMaxSliceRetries());
     assertEquals(DEFAULT_SLICE_TIMEOUT_RATIO, mrSettings.getSliceTimeoutRatio());
+    assertEquals(DEFAULT_SPECULATIVE_SLICE_RATIO, mrSettings.getSpeculativeSliceRatio());
   }
 
   public void testNonDefaultSettings() {
@@ -100,6 +102,13 @@ public class MapSettingsTest extends TestCase {
     } catch (IllegalArgumentException ex) {
       //expected
     }
+    builder.setSpeculativeSliceRatio(0);
+    try {
+      builder.setSpeculativeSliceRatio(0.5);
+      fail("Expected exception to be thrown");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
     builder.setMaxShardRetries(1);
     try {
       builder.setMillisPerSlice(-1);
@@ -118,6 +127,7 @@ public class MapSettingsTest extends TestCase {
     assertEquals("queue1", settings.getWorkerQueueName());
     assertEquals("base-url", settings.getBaseUrl());
     assertEquals(10, settings.getMillisPerSlice());
+    assertEquals(0.0, settings.getSpeculativeSliceRatio());
     assertEquals(1, settings.getMaxShardRetries());
     assertEquals(0, settings.getMaxSliceRetries());
     builder.setModule("m1");
@@ -153,6 +163,7 @@ public class MapSettingsTest extends TestCase {
         .setMaxShardRetries(10)
         .setMaxSliceRetries(20)
         .setMillisPerSlice(30)
+        .setSpeculativeSliceRatio(2)
         .setWorkerQueueName("good-queue")
         .build();
     settings = new MapSettings.Builder(settings).build();
@@ -162,6 +173,7 @@ public class MapSettingsTest extends TestCase {
     assertEquals(10, settings.getMaxShardRetries());
     assertEquals(20, settings.getMaxSliceRetries());
     assertEquals(30, settings.getMillisPerSlice());
+    assertEquals(2.0, settings.getSpeculativeSliceRatio());
     assertEquals("good-queue", settings.getWorkerQueueName());
   }
 
@@ -179,6 +191,7 @@ public class MapSettingsTest extends TestCase {
     assertEquals(makeViewerUrl(key, key), sjSettings.getPipelineStatusUrl());
     assertEquals(settings.getMaxShardRetries(), sjSettings.getMaxShardRetries());
     assertEquals(settings.getMaxSliceRetries(), sjSettings.getMaxSliceRetries());
+    assertEquals(settings.getSpeculativeSliceRatio(), sjSettings.getSpeculativeSliceRatio());
 
     settings = new MapSettings.Builder(settings).setModule(null).setBackend("b1").build();
     sjSettings = settings.toShardedJobSettings("job1", key);
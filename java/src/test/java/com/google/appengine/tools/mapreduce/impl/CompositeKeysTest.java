@@ -0,0 +1,76 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import static com.google.appengine.tools.mapreduce.impl.sort.LexicographicalComparator.compareBuffers;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.ValueOrdering;
+import com.google.appengine.tools.mapreduce.impl.sort.LexicographicalComparator;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link CompositeKeys} and {@link CompositeKeySharder}.
+ */
+public class CompositeKeysTest extends TestCase {
+
+  private static final byte[][] KEYS = {
+      {}, {0}, {0, 0}, {0, 1}, {0, (byte) 0xFF}, {1}, {1, 0}, {1, 0, 0}, {1, 1}, {(byte) 0xFF}};
+  private static final long[] SORT_KEYS = {Long.MIN_VALUE, -5, -1, 0, 1, 7, Long.MAX_VALUE};
+
+  public void testRoundTrip() {
+    for (byte[] key : KEYS) {
+      for (long sortKey : SORT_KEYS) {
+        ByteBuffer composite =
+            CompositeKeys.encode(ByteBuffer.wrap(key), ValueOrdering.toSortKey(sortKey));
+        assertEquals(ByteBuffer.wrap(key), CompositeKeys.decodeKey(composite));
+        assertEquals(0, composite.position());
+      }
+    }
+  }
+
+  public void testOrder() {
+    // KEYS and SORT_KEYS are in order, so their combinations are too.
+    List<ByteBuffer> expected = new ArrayList<>();
+    for (byte[] key : KEYS) {
+      for (long sortKey : SORT_KEYS) {
+        expected.add(CompositeKeys.encode(ByteBuffer.wrap(key), ValueOrdering.toSortKey(sortKey)));
+      }
+    }
+    List<ByteBuffer> sorted = new ArrayList<>(expected);
+    Collections.reverse(sorted);
+    Collections.sort(sorted, new LexicographicalComparator());
+    assertEquals(expected, sorted);
+    for (int i = 1; i < expected.size(); i++) {
+      assertTrue(compareBuffers(expected.get(i - 1), expected.get(i)) < 0);
+    }
+  }
+
+  public void testInvalidKey() {
+    for (byte[] invalid : new byte[][] {{}, {1, 2}, {0}, {0, 2, 0, 1}}) {
+      try {
+        CompositeKeys.decodeKey(ByteBuffer.wrap(invalid));
+        fail();
+      } catch (CorruptDataException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testSharder() {
+    HashingSharder sharder = new HashingSharder(7);
+    CompositeKeySharder compositeSharder = new CompositeKeySharder(sharder);
+    assertEquals(7, compositeSharder.getNumShards());
+    for (byte[] key : KEYS) {
+      int shard = sharder.getShardForKey(ByteBuffer.wrap(key));
+      for (long sortKey : SORT_KEYS) {
+        assertEquals(shard, compositeSharder.getShardForKey(
+            CompositeKeys.encode(ByteBuffer.wrap(key), ValueOrdering.toSortKey(sortKey))));
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link EntityCache}.
+ */
+public class EntityCacheTest extends TestCase {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    EntityCache.dropJvmInstance();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    EntityCache.dropJvmInstance();
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private static Entity newEntity(long id, int bytes) {
+    Entity entity = new Entity("Foo", id);
+    entity.setUnindexedProperty("value", new Text(Strings.repeat("x", bytes)));
+    return entity;
+  }
+
+  public void testBoundedByCount() {
+    EntityCache cache = new EntityCache(3, 1024 * 1024);
+    for (int i = 1; i <= 5; i++) {
+      cache.put("job", KeyFactory.createKey("Foo", i), newEntity(i, 10));
+    }
+    assertEquals(3, cache.size());
+    assertNull(cache.get("job", KeyFactory.createKey("Foo", 2)));
+    assertTrue(cache.get("job", KeyFactory.createKey("Foo", 3)).isPresent());
+  }
+
+  public void testBoundedByBytes() {
+    EntityCache cache = new EntityCache(1000, 10 * 1000);
+    for (int i = 1; i <= 20; i++) {
+      cache.put("job", KeyFactory.createKey("Foo", i), newEntity(i, 1000));
+    }
+    assertTrue(cache.size() < 10);
+    assertTrue(cache.getBytes() <= 10 * 1000);
+    assertNull(cache.get("job", KeyFactory.createKey("Foo", 1)));
+    assertTrue(cache.get("job", KeyFactory.createKey("Foo", 20)).isPresent());
+    // Larger than the whole cache
+    cache.put("job", KeyFactory.createKey("Foo", 21), newEntity(21, 20 * 1000));
+    assertNull(cache.get("job", KeyFactory.createKey("Foo", 21)));
+    assertTrue(cache.get("job", KeyFactory.createKey("Foo", 20)).isPresent());
+  }
+
+  public void testScopedByJob() {
+    EntityCache cache = new EntityCache(10, 1024 * 1024);
+    Key key = KeyFactory.createKey("Foo", 1);
+    cache.put("job1", key, newEntity(1, 10));
+    cache.put("job1", KeyFactory.createKey("Foo", 2), null);
+    assertTrue(cache.get("job1", key).isPresent());
+    assertEquals(Optional.<Entity>absent(), cache.get("job1", KeyFactory.createKey("Foo", 2)));
+    assertNull(cache.get("job2", key));
+  }
+
+  public void testJvmInstance() {
+    MemoryLimiter limiter = new MemoryLimiter();
+    EntityCache cache = EntityCache.getJvmInstance(limiter, 10, 1024 * 1024);
+    // Grown to the larger bounds of a later pool rather than ignoring them
+    assertSame(cache, EntityCache.getJvmInstance(limiter, 100, 3 * 1024 * 1024));
+    assertSame(cache, EntityCache.getJvmInstance(limiter, 10, 1024 * 1024));
+    for (int i = 1; i <= 50; i++) {
+      cache.put("job", KeyFactory.createKey("Foo", i), newEntity(i, 10));
+    }
+    assertEquals(50, cache.size());
+    assertEquals(3, EntityCache.dropJvmInstance());
+    assertEquals(0, EntityCache.dropJvmInstance());
+    assertEquals(0, cache.size());
+    // Pools that still use a dropped cache no longer add to it
+    cache.put("job", KeyFactory.createKey("Foo", 1), newEntity(1, 10));
+    assertEquals(0, cache.size());
+    assertNotSame(cache, EntityCache.getJvmInstance(limiter, 10, 1024 * 1024));
+  }
+
+  public void testJvmInstanceWithoutMemory() {
+    MemoryLimiter limiter = new MemoryLimiter();
+    long claimed = limiter.claim(MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB);
+    assertNull(EntityCache.getJvmInstance(limiter, 10, 1024 * 1024));
+    limiter.release(claimed);
+    assertNotNull(EntityCache.getJvmInstance(limiter, 10, 1024 * 1024));
+  }
+}
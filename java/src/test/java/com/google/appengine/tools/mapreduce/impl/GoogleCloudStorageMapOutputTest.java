@@ -1,6 +1,10 @@
 // Copyright 2011 Google Inc. All Rights Reserved.
 package com.google.appengine.tools.mapreduce.impl;
 
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.mapreduce.InputReader;
 import com.google.appengine.tools.mapreduce.KeyValue;
@@ -8,6 +12,9 @@ import com.google.appengine.tools.mapreduce.Marshaller;
 import com.google.appengine.tools.mapreduce.Marshallers;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.Sharder;
+import com.google.appengine.tools.mapreduce.impl.util.BufferArena;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.common.collect.ImmutableList;
 
 import junit.framework.TestCase;
 
@@ -16,10 +23,12 @@ import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * Test class for {@link GoogleCloudStorageMapOutput}.
@@ -74,6 +83,85 @@ public class GoogleCloudStorageMapOutputTest extends TestCase {
     writeAndVerifyContent(SliceData.of(COMPONENTS_PER_COMPOSE * 3, 100, 100));
   }
 
+  public void testSlicesLargerThanBufferArena() throws IOException {
+    // With a single sort shard the arena holds 1 MB, so these slices are written in several parts
+    writeAndVerifyContent(SliceData.of(3, 4000, 2000));
+  }
+
+  public void testConcurrentSliceAttempts() throws IOException {
+    GoogleCloudStorageMapOutput<Long, String> output = createOutput();
+    OutputWriter<KeyValue<Long, String>> writer = output.createWriters(1).get(0);
+    assertTrue(writer.allowConcurrentSliceAttempts());
+    List<KeyValue<Long, String>> values = new ArrayList<>();
+    writer.beginShard();
+    for (int i = 0; i < 3; i++) {
+      writer.beginSlice();
+      KeyValue<Long, String> value = new KeyValue<>((long) i, "value" + i);
+      writer.write(value);
+      values.add(value);
+      writer.endSlice();
+      writer = SerializationUtil.clone(writer);
+    }
+    KeyValue<Long, String> last = new KeyValue<>(-1L, "last");
+    values.add(last);
+    OutputWriter<KeyValue<Long, String>> loser = SerializationUtil.clone(writer);
+    for (OutputWriter<KeyValue<Long, String>> attempt : ImmutableList.of(writer, loser)) {
+      attempt.beginSlice();
+      attempt.write(last);
+      attempt.endSlice();
+      attempt.endShard();
+    }
+    FilesByShard filesByShard =
+        output.finish(ImmutableList.<OutputWriter<KeyValue<Long, String>>>of(writer));
+    writer.cleanup();
+    assertContent(filesByShard, values);
+    Set<String> expectedFiles = new HashSet<>();
+    for (GcsFilename file : filesByShard.getFilesForShard(0).getFiles()) {
+      expectedFiles.add(file.getObjectName());
+    }
+    Set<String> remainingFiles = new HashSet<>();
+    ListResult list = GcsServiceFactory.createGcsService().list(BUCKET, ListOptions.DEFAULT);
+    while (list.hasNext()) {
+      remainingFiles.add(list.next().getName());
+    }
+    assertEquals(expectedFiles, remainingFiles);
+  }
+
+  public void testPartSizeUnderHighFanout() throws IOException {
+    int sortShards = 128;
+    BufferArena arena = new BufferArena(GoogleCloudStorageMapOutputWriter.ARENA_BLOCK_SIZE,
+        GoogleCloudStorageMapOutputWriter.getArenaBlockCount(sortShards));
+    final List<Integer> partSizes = new ArrayList<>();
+    List<BufferArena.Partition> partitions = new ArrayList<>();
+    for (int i = 0; i < sortShards; i++) {
+      partitions.add(arena.newPartition(new BufferArena.Sink() {
+        @Override
+        public void writeBlocks(List<ByteBuffer> blocks) {
+          int size = 0;
+          for (ByteBuffer block : blocks) {
+            size += block.remaining();
+          }
+          partSizes.add(size);
+        }
+      }));
+    }
+    // Records spread evenly among the sort shards, the worst case for the size of the parts
+    long total = 100L * 1024 * 1024;
+    byte[] record = new byte[100];
+    for (long written = 0; written < total; written += record.length) {
+      partitions.get(RND.nextInt(sortShards)).write(ByteBuffer.wrap(record));
+    }
+    int partsBeforeEndOfSlice = partSizes.size();
+    arena.flush();
+    arena.release();
+    assertTrue(partsBeforeEndOfSlice > 0);
+    for (int i = 0; i < partsBeforeEndOfSlice; i++) {
+      assertTrue(partSizes.get(i) >= GoogleCloudStorageMapOutputWriter.MIN_PART_SIZE);
+    }
+    assertTrue(partsBeforeEndOfSlice <= total / GoogleCloudStorageMapOutputWriter.MIN_PART_SIZE);
+    assertTrue(partSizes.size() <= partsBeforeEndOfSlice + sortShards);
+  }
+
   private List<KeyValue<Long, String>> createRandomValues(int maxValues, int maxValueSize) {
     if (maxValues == 0) {
       return Collections.emptyList();
@@ -108,9 +196,9 @@ public class GoogleCloudStorageMapOutputTest extends TestCase {
     }
   }
 
-  private void writeAndVerifyContent(SliceData... sliceData) throws IOException  {
-    GoogleCloudStorageMapOutput<Long, String> output = new GoogleCloudStorageMapOutput<>(BUCKET,
-        JOB, KEY_MARSHALLER, VALUE_MARSHALLER, new Sharder() {
+  private static GoogleCloudStorageMapOutput<Long, String> createOutput() {
+    return new GoogleCloudStorageMapOutput<>(BUCKET, JOB, KEY_MARSHALLER, VALUE_MARSHALLER,
+        new Sharder() {
           private static final long serialVersionUID = 1L;
 
           @Override
@@ -123,6 +211,10 @@ public class GoogleCloudStorageMapOutputTest extends TestCase {
             return 0;
           }
         });
+  }
+
+  private void writeAndVerifyContent(SliceData... sliceData) throws IOException  {
+    GoogleCloudStorageMapOutput<Long, String> output = createOutput();
     List<? extends OutputWriter<KeyValue<Long, String>>> writers = output.createWriters(1);
     assertEquals(1, writers.size());
     List<KeyValue<Long, String>> values = new ArrayList<>();
@@ -147,11 +239,16 @@ public class GoogleCloudStorageMapOutputTest extends TestCase {
     writer.endShard();
     FilesByShard filesByShard = output.finish(writers);
     assertEquals(1, filesByShard.getShardCount());
+    int expectedFiles = (int) Math.ceil((double) sliceCount / COMPONENTS_PER_COMPOSE);
+    assertEquals(expectedFiles, filesByShard.getFilesForShard(0).getNumFiles());
+    assertContent(filesByShard, values);
+  }
+
+  private void assertContent(FilesByShard filesByShard, List<KeyValue<Long, String>> values)
+      throws IOException {
     List<? extends InputReader<KeyValue<ByteBuffer, ByteBuffer>>> input =
         new GoogleCloudStorageSortInput(filesByShard).createReaders();
     assertEquals(1, input.size());
-    int expectedFiles = (int) Math.ceil((double) sliceCount / COMPONENTS_PER_COMPOSE);
-    assertEquals(expectedFiles, filesByShard.getFilesForShard(0).getNumFiles());
     Iterator<KeyValue<Long, String>> shardValues = values.iterator();
     InputReader<KeyValue<ByteBuffer, ByteBuffer>> reader = input.get(0);
     reader.beginShard();
@@ -0,0 +1,276 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link HashGroupingReader} and {@link HashGroupTable}.
+ */
+public class HashGroupingReaderTest extends TestCase {
+
+  private static final Marshaller<String> STRING_MARSHALLER = Marshallers.getStringMarshaller();
+  private static final Marshaller<Long> LONG_MARSHALLER = Marshallers.getLongMarshaller();
+  private static final String BUCKET = "HashGroupingReaderTest";
+  private static final String SPILL_DIR = "spill/";
+
+  // The number of pairs read by all the instances of PairReader.
+  private static int pairsRead;
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  /**
+   * Reads the key-value pairs {@code ("key-" + i % keys, i)} for i in [start, end), whose key
+   * belongs to the given one of a number of partitions.
+   */
+  private static class PairReader extends InputReader<KeyValue<ByteBuffer, ByteBuffer>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int start;
+    private final int end;
+    private final int keys;
+    private final int partitions;
+    private final int partition;
+    private int current;
+
+    PairReader(int start, int end, int keys, int partitions, int partition) {
+      this.start = start;
+      this.end = end;
+      this.keys = keys;
+      this.partitions = partitions;
+      this.partition = partition;
+    }
+
+    @Override
+    public void beginShard() {
+      current = start;
+    }
+
+    @Override
+    public KeyValue<ByteBuffer, ByteBuffer> next() {
+      while (current < end && current % keys % partitions != partition) {
+        current++;
+      }
+      if (current >= end) {
+        throw new NoSuchElementException();
+      }
+      int i = current++;
+      pairsRead++;
+      return KeyValue.of(STRING_MARSHALLER.toBytes("key-" + i % keys),
+          LONG_MARSHALLER.toBytes((long) i));
+    }
+  }
+
+  private static List<List<PairReader>> createInputs(int keys, int partitions) {
+    List<List<PairReader>> result = new ArrayList<>();
+    for (int partition = 0; partition < partitions; partition++) {
+      List<PairReader> inputs = new ArrayList<>();
+      inputs.add(new PairReader(0, 1000, keys, partitions, partition));
+      inputs.add(new PairReader(1000, 1000, keys, partitions, partition));
+      inputs.add(new PairReader(1000, 2500, keys, partitions, partition));
+      result.add(inputs);
+    }
+    return result;
+  }
+
+  private static List<List<PairReader>> createInputs(int keys) {
+    return createInputs(keys, 1);
+  }
+
+  private static HashGroupingReader<String, Long> newReader(List<List<PairReader>> inputs,
+      long maxMemory) {
+    return new HashGroupingReader<>(inputs, STRING_MARSHALLER, LONG_MARSHALLER, maxMemory, BUCKET,
+        SPILL_DIR);
+  }
+
+  private static boolean hasSpillFiles() throws IOException {
+    return GcsServiceFactory.createGcsService().list(BUCKET,
+        new ListOptions.Builder().setPrefix(SPILL_DIR).setRecursive(true).build()).hasNext();
+  }
+
+  private static Map<String, List<Long>> readAll(HashGroupingReader<String, Long> reader,
+      int groupsPerSlice) throws IOException {
+    return readAll(reader, groupsPerSlice, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Reads all the groups, serializing the reader every {@code groupsPerSlice} groups, and fails if
+   * a slice reads more than {@code maxPairsPerSlice} pairs.
+   */
+  private static Map<String, List<Long>> readAll(HashGroupingReader<String, Long> reader,
+      int groupsPerSlice, int maxPairsPerSlice) throws IOException {
+    reader.beginShard();
+    return readRest(reader, groupsPerSlice, maxPairsPerSlice, new HashMap<String, List<Long>>());
+  }
+
+  /**
+   * Reads the groups left in a shard that was started, adding them to {@code result}.
+   */
+  private static Map<String, List<Long>> readRest(HashGroupingReader<String, Long> reader,
+      int groupsPerSlice, int maxPairsPerSlice, Map<String, List<Long>> result)
+      throws IOException {
+    boolean done = false;
+    while (!done) {
+      reader = SerializationUtil.clone(reader);
+      pairsRead = 0;
+      reader.beginSlice();
+      done = readGroups(reader, groupsPerSlice, result);
+      reader.endSlice();
+      assertTrue(pairsRead + " pairs read in a slice", pairsRead <= maxPairsPerSlice);
+    }
+    assertEquals(1.0, reader.getProgress(), 0.0);
+    reader.endShard();
+    assertFalse(hasSpillFiles());
+    return result;
+  }
+
+  /**
+   * Reads up to {@code groups} groups into {@code result}.
+   *
+   * @return true if there are no more groups.
+   */
+  private static boolean readGroups(HashGroupingReader<String, Long> reader, int groups,
+      Map<String, List<Long>> result) throws IOException {
+    for (int i = 0; i < groups; i++) {
+      KeyValue<String, Iterator<Long>> group;
+      try {
+        group = reader.next();
+      } catch (NoSuchElementException e) {
+        return true;
+      }
+      List<Long> values = new ArrayList<>();
+      while (group.getValue().hasNext()) {
+        values.add(group.getValue().next());
+      }
+      assertTrue("Duplicate key " + group.getKey(), result.put(group.getKey(), values) == null);
+    }
+    return false;
+  }
+
+  private static void assertGroups(int keys, Map<String, List<Long>> groups) {
+    assertEquals(keys, groups.size());
+    int total = 0;
+    for (Map.Entry<String, List<Long>> group : groups.entrySet()) {
+      long previous = -1;
+      for (long value : group.getValue()) {
+        assertEquals(group.getKey(), "key-" + value % keys);
+        // Values of a key are in the order they were read
+        assertTrue(value > previous);
+        previous = value;
+        total++;
+      }
+    }
+    assertEquals(2500, total);
+  }
+
+  public void testGroupsInMemory() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(37), 1024 * 1024);
+    assertGroups(37, readAll(reader, Integer.MAX_VALUE));
+  }
+
+  public void testGroupsAcrossSlices() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(37), 1024 * 1024);
+    assertGroups(37, readAll(reader, 5));
+  }
+
+  public void testGroupsInSeveralPasses() throws Exception {
+    // Far too little memory for all the groups at once
+    HashGroupingReader<String, Long> reader = newReader(createInputs(500), 20 * 1024);
+    assertGroups(500, readAll(reader, 7));
+  }
+
+  public void testSpilledGroups() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(37), 1024 * 1024);
+    Map<String, List<Long>> groups = new HashMap<>();
+    reader.beginShard();
+    reader.beginSlice();
+    readGroups(reader, 5, groups);
+    reader.endSlice();
+    assertTrue(hasSpillFiles());
+    // The later slices read the groups that were spilled rather than the input
+    assertGroups(37, readRest(reader, 4, 0, groups));
+  }
+
+  public void testRetriedSliceAfterSpill() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(37), 1024 * 1024);
+    reader.beginShard();
+    HashGroupingReader<String, Long> retry = SerializationUtil.clone(reader);
+    reader.beginSlice();
+    readGroups(reader, 5, new HashMap<String, List<Long>>());
+    reader.endSlice();
+    // The spill file of the failed attempt is deleted at the end of the shard
+    assertGroups(37, readRest(retry, 4, Integer.MAX_VALUE, new HashMap<String, List<Long>>()));
+  }
+
+  public void testGroupsOfPartitions() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(40, 4), 1024 * 1024);
+    // A slice reads the 625 pairs of its partition, and those of the next one when it gets to it,
+    // rather than all 2500 pairs of the shard.
+    assertGroups(40, readAll(reader, 3, 2 * 625));
+  }
+
+  public void testGroupsOfPartitionsInSeveralPasses() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(500, 5), 10 * 1024);
+    assertGroups(500, readAll(reader, 7));
+  }
+
+  public void testEmptyPartitions() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(2, 5), 1024 * 1024);
+    assertGroups(2, readAll(reader, 1));
+  }
+
+  public void testKeyLargerThanMemory() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(createInputs(1), 1024);
+    assertGroups(1, readAll(reader, 1));
+  }
+
+  public void testNoInput() throws Exception {
+    HashGroupingReader<String, Long> reader = newReader(new ArrayList<List<PairReader>>(), 1024);
+    assertTrue(readAll(reader, 3).isEmpty());
+  }
+
+  public void testTable() {
+    HashGroupTable table = new HashGroupTable();
+    long memory = table.getMemoryUsed();
+    for (int i = 0; i < 1000; i++) {
+      ByteBuffer key = STRING_MARSHALLER.toBytes("key-" + i % 100);
+      // A poor hash, so that probe sequences collide
+      table.add(i % 100 % 7, key, LONG_MARSHALLER.toBytes((long) i));
+    }
+    assertEquals(100, table.size());
+    assertTrue(table.getMemoryUsed() > memory);
+    for (int group = 0; group < 100; group++) {
+      assertEquals("key-" + group, STRING_MARSHALLER.fromBytes(table.getKey(group)));
+      assertEquals(10, table.getValues(group).size());
+    }
+  }
+}
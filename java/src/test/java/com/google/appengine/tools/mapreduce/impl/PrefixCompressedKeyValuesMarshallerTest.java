@@ -0,0 +1,131 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.mapreduce.CorruptDataException;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshaller;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Tests for {@link PrefixCompressedKeyValuesMarshaller}
+ */
+public class PrefixCompressedKeyValuesMarshallerTest extends TestCase {
+
+  private final Marshaller<ByteBuffer> identity = Marshallers.getByteBufferMarshaller();
+
+  private static List<ByteBuffer> sortedKeys(int count) {
+    TreeSet<String> keys = new TreeSet<>();
+    for (int i = 0; i < count; i++) {
+      keys.add("http://www.example.com/path/to/page/" + (i * 7919 % 1000) + "/" + i);
+    }
+    keys.add("");
+    keys.add("http://www.example.com/path/to/page/1");
+    List<ByteBuffer> result = new ArrayList<>();
+    for (String key : keys) {
+      result.add(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)));
+    }
+    return result;
+  }
+
+  private static KeyValue<ByteBuffer, List<ByteBuffer>> keyValues(ByteBuffer key) {
+    return KeyValue.<ByteBuffer, List<ByteBuffer>>of(key,
+        ImmutableList.of(key.duplicate(), ByteBuffer.wrap(new byte[] {1, 2, 3})));
+  }
+
+  private static void assertKeyValues(ByteBuffer key,
+      KeyValue<ByteBuffer, ? extends Iterable<ByteBuffer>> actual) {
+    assertEquals(key, actual.getKey());
+    Iterator<ByteBuffer> values = actual.getValue().iterator();
+    assertEquals(key, values.next());
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), values.next());
+    assertFalse(values.hasNext());
+  }
+
+  public void testRoundTrip() {
+    List<ByteBuffer> keys = sortedKeys(1000);
+    PrefixCompressedKeyValuesMarshaller<ByteBuffer> writer =
+        PrefixCompressedKeyValuesMarshaller.forWriting(identity);
+    KeyValuesMarshaller<ByteBuffer, ByteBuffer> plain =
+        new KeyValuesMarshaller<>(identity, identity);
+    List<ByteBuffer> records = new ArrayList<>();
+    long compressedSize = 0;
+    long plainSize = 0;
+    for (ByteBuffer key : keys) {
+      ByteBuffer record = writer.toBytes(keyValues(key));
+      assertEquals(PrefixCompressedKeyValuesMarshaller.MARKER, record.get(0));
+      compressedSize += record.remaining();
+      plainSize += plain.toBytes(keyValues(key)).remaining();
+      records.add(record);
+    }
+    assertTrue(compressedSize < plainSize * 2 / 3);
+
+    PrefixCompressedKeyValuesMarshaller<ByteBuffer> reader =
+        PrefixCompressedKeyValuesMarshaller.forReading(identity);
+    for (int i = 0; i < keys.size(); i++) {
+      KeyValue<ByteBuffer, Iterable<ByteBuffer>> value = reader.fromBytes(records.get(i));
+      assertKeyValues(keys.get(i), value);
+      // Used by PeekingInputReader to serialize the peeked value, so must not change the state.
+      ByteBuffer bytes = reader.toBytes(value);
+      assertKeyValues(keys.get(i), reader.fromBytes(bytes));
+      if (i % 100 == 0) {
+        reader = SerializationUtil.clone(reader);
+      }
+    }
+  }
+
+  public void testRestartPoints() {
+    PrefixCompressedKeyValuesMarshaller<ByteBuffer> writer =
+        PrefixCompressedKeyValuesMarshaller.forWriting(identity);
+    ByteBuffer key = ByteBuffer.wrap(new byte[100]);
+    int restarts = 0;
+    for (int i = 0; i < 10 * PrefixCompressedKeyValuesMarshaller.RESTART_INTERVAL; i++) {
+      // The shared prefix length is the byte that follows the marker.
+      if (writer.toBytes(keyValues(key)).get(1) == 0) {
+        assertEquals(0, i % PrefixCompressedKeyValuesMarshaller.RESTART_INTERVAL);
+        restarts++;
+      }
+    }
+    assertEquals(10, restarts);
+  }
+
+  public void testReadsUncompressedRecords() {
+    KeyValuesMarshaller<ByteBuffer, ByteBuffer> plain =
+        new KeyValuesMarshaller<>(identity, identity);
+    PrefixCompressedKeyValuesMarshaller<ByteBuffer> reader =
+        PrefixCompressedKeyValuesMarshaller.forReading(identity);
+    for (ByteBuffer key : sortedKeys(100)) {
+      assertKeyValues(key, reader.fromBytes(plain.toBytes(keyValues(key))));
+    }
+  }
+
+  public void testThrowsCorruptDataException() {
+    PrefixCompressedKeyValuesMarshaller<ByteBuffer> writer =
+        PrefixCompressedKeyValuesMarshaller.forWriting(identity);
+    writer.toBytes(keyValues(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})));
+    ByteBuffer record = writer.toBytes(keyValues(ByteBuffer.wrap(new byte[] {1, 2, 3, 5})));
+    try {
+      // Decoding without the previous key.
+      PrefixCompressedKeyValuesMarshaller.forReading(identity).fromBytes(record);
+      fail();
+    } catch (CorruptDataException e) {
+      // Expected
+    }
+    try {
+      PrefixCompressedKeyValuesMarshaller.forReading(identity).fromBytes(
+          ByteBuffer.wrap(new byte[] {PrefixCompressedKeyValuesMarshaller.MARKER, (byte) 0x80}));
+      fail();
+    } catch (CorruptDataException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.google.appengine.tools.mapreduce.impl;
+
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.SideInput;
+import com.google.appengine.tools.mapreduce.impl.handlers.MemoryLimiter;
+import com.google.appengine.tools.mapreduce.impl.shardedjob.RecoverableException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link SideInputCache} and {@link SideInputTable}.
+ */
+public class SideInputCacheTest extends TestCase {
+
+  @SuppressWarnings("serial")
+  private static class TestSideInput extends SideInput<String, Long> {
+
+    private final Map<String, Long> entries;
+    private final List<String> keyOrder;
+    private String version = "1";
+    private int reads;
+    private int entriesRead;
+
+    TestSideInput(Map<String, Long> entries, List<String> keyOrder) {
+      super("test", Marshallers.getStringMarshaller(), Marshallers.getLongMarshaller());
+      this.entries = entries;
+      this.keyOrder = keyOrder;
+    }
+
+    @Override
+    public String getVersion() {
+      return version;
+    }
+
+    @Override
+    public InputReader<KeyValue<String, Long>> createReader() {
+      reads++;
+      final Iterator<String> keys = keyOrder.iterator();
+      return new InputReader<KeyValue<String, Long>>() {
+        @Override
+        public KeyValue<String, Long> next() {
+          if (!keys.hasNext()) {
+            throw new NoSuchElementException();
+          }
+          String key = keys.next();
+          entriesRead++;
+          return KeyValue.of(key, entries.get(key));
+        }
+      };
+    }
+  }
+
+  private static TestSideInput newSideInput(int size, boolean sorted) {
+    ImmutableMap.Builder<String, Long> entries = ImmutableMap.builder();
+    List<String> keyOrder = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      // Zero padded keys are marshalled in order
+      String key = String.format("%06d", sorted ? i : (i * 7919) % size);
+      entries.put(key, (long) i * i);
+      keyOrder.add(key);
+    }
+    return new TestSideInput(entries.build(), keyOrder);
+  }
+
+  public void testLookup() throws Exception {
+    for (boolean sorted : new boolean[] {true, false}) {
+      TestSideInput sideInput = newSideInput(10000, sorted);
+      SideInputCache cache = new SideInputCache(new MemoryLimiter());
+      SideInputCache.Reference reference = cache.acquire(sideInput);
+      Map<String, Long> map = reference.getTable().asMap(
+          sideInput.getKeyMarshaller(), sideInput.getValueMarshaller());
+      assertEquals(sideInput.entries, map);
+      for (Map.Entry<String, Long> entry : sideInput.entries.entrySet()) {
+        assertEquals(entry.getValue(), map.get(entry.getKey()));
+      }
+      assertTrue(map.get("x") == null);
+      assertFalse(map.containsKey("010000"));
+      assertFalse(map.containsKey(5L));
+      reference.release();
+    }
+  }
+
+  public void testEmpty() throws Exception {
+    TestSideInput sideInput = newSideInput(0, true);
+    SideInputCache cache = new SideInputCache(new MemoryLimiter());
+    SideInputCache.Reference reference = cache.acquire(sideInput);
+    assertEquals(0, reference.getTable().size());
+    assertTrue(reference.getTable().asMap(
+        sideInput.getKeyMarshaller(), sideInput.getValueMarshaller()).isEmpty());
+    reference.release();
+  }
+
+  public void testDuplicateKey() throws Exception {
+    TestSideInput sideInput = new TestSideInput(ImmutableMap.of("a", 1L, "b", 2L),
+        ImmutableList.of("b", "a", "b"));
+    SideInputCache cache = new SideInputCache(new MemoryLimiter());
+    try {
+      cache.acquire(sideInput);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(0, cache.getCachedCount());
+  }
+
+  public void testSharedAndEvicted() throws Exception {
+    TestSideInput sideInput = newSideInput(1000, true);
+    SideInputCache cache = new SideInputCache(new MemoryLimiter());
+    SideInputCache.Reference first = cache.acquire(sideInput);
+    SideInputCache.Reference second = cache.acquire(sideInput);
+    assertEquals(1, sideInput.reads);
+    assertSame(first.getTable(), second.getTable());
+    first.release();
+    first.release();
+    assertEquals(0, cache.evictUnused());
+    second.release();
+    try {
+      second.getTable();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // Still cached while unused
+    SideInputCache.Reference third = cache.acquire(sideInput);
+    assertEquals(1, sideInput.reads);
+    third.release();
+    assertEquals(1, cache.evictUnused());
+    assertEquals(0, cache.getCachedCount());
+    cache.acquire(sideInput).release();
+    assertEquals(2, sideInput.reads);
+  }
+
+  public void testMemoryClaimedWhileReading() throws Exception {
+    MemoryLimiter limiter = new MemoryLimiter();
+    long othersMb = limiter.claim(MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB - 2);
+    // About 4MB of serialized entries
+    TestSideInput sideInput = newSideInput(200000, false);
+    SideInputCache cache = new SideInputCache(limiter);
+    try {
+      cache.acquire(sideInput);
+      fail();
+    } catch (RecoverableException e) {
+      // expected
+    }
+    // Given up on once the memory ran out, rather than after reading everything
+    assertTrue(sideInput.entriesRead < 200000);
+    assertEquals(0, cache.getCachedCount());
+    limiter.release(othersMb);
+    // The memory claimed for the partial read was released
+    long all = limiter.claim(MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB);
+    assertEquals(MemoryLimiter.TOTAL_CLAIMABLE_MEMORY_SIZE_MB, all);
+    limiter.release(all);
+    SideInputCache.Reference reference = cache.acquire(sideInput);
+    assertEquals(200000, reference.getTable().size());
+    reference.release();
+  }
+
+  public void testNewVersion() throws Exception {
+    TestSideInput sideInput = newSideInput(1000, true);
+    SideInputCache cache = new SideInputCache(new MemoryLimiter());
+    SideInputCache.Reference old = cache.acquire(sideInput);
+    sideInput.version = "2";
+    SideInputCache.Reference current = cache.acquire(sideInput);
+    assertEquals(2, sideInput.reads);
+    assertNotSame(old.getTable(), current.getTable());
+    assertEquals(1, cache.getCachedCount());
+    old.release();
+    current.release();
+    cache.acquire(sideInput).release();
+    assertEquals(2, sideInput.reads);
+  }
+}
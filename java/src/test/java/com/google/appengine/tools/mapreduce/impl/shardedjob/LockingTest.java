@@ -6,6 +6,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.tools.mapreduce.EndToEndTestCase;
 import com.google.apphosting.api.ApiProxy;
@@ -20,6 +23,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.BlockJUnit4ClassRunner;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -52,7 +56,11 @@ public class LockingTest extends EndToEndTestCase {
     static Semaphore finishRun = new Semaphore(0);
 
     public StaticBlockingTask(int result) {
-      super(1, 1, result, 1);
+      this(result, 1);
+    }
+
+    public StaticBlockingTask(int result, int numSlices) {
+      super(1, 1, result, numSlices);
     }
 
     @Override
@@ -72,6 +80,22 @@ public class LockingTest extends EndToEndTestCase {
     }
   }
 
+  /**
+   * A {@link StaticBlockingTask} whose slices may be attempted concurrently.
+   */
+  @SuppressWarnings("serial")
+  private static class StaticSpeculativeTask extends StaticBlockingTask {
+
+    public StaticSpeculativeTask(int result, int numSlices) {
+      super(result, numSlices);
+    }
+
+    @Override
+    public boolean allowConcurrentSliceAttempts() {
+      return true;
+    }
+  }
+
   @After
   @Before
   public void cleanup() {
@@ -119,10 +143,15 @@ public class LockingTest extends EndToEndTestCase {
 
 
   private String startNewTask(ShardedJobSettings settings) {
+    return startNewTask(settings, new StaticBlockingTask(1), 1);
+  }
+
+  private String startNewTask(ShardedJobSettings settings, StaticBlockingTask task,
+      int expectedResult) {
     String jobId = "job1";
     assertNull(service.getJobState(jobId));
-    StaticBlockingTask task = new StaticBlockingTask(1);
-    service.startJob(jobId, ImmutableList.<TestTask>of(task), new TestController(1), settings);
+    service.startJob(jobId, ImmutableList.<TestTask>of(task), new TestController(expectedResult),
+        settings);
     ShardedJobState state = service.getJobState(jobId);
     assertEquals(new Status(RUNNING), state.getStatus());
     assertEquals(1, state.getActiveTaskCount());
@@ -237,6 +266,116 @@ public class LockingTest extends EndToEndTestCase {
     assertDone(jobId);
   }
 
+  /**
+   * Tests that a slice running much longer than the median slice of the job is attempted again
+   * while the first attempt is still running, and that only one of the attempts is committed.
+   */
+  @Test
+  public void testSpeculativeAttemptOfSlowSlice() throws Exception {
+    ShardedJobSettings settings = new ShardedJobSettings.Builder()
+        .setSliceTimeoutMillis(3_600_000).setSpeculativeSliceRatio(2).build();
+    final String jobId = startNewTask(settings, new StaticSpeculativeTask(1, 4), 4);
+    runQuickSlices(jobId, 3);
+
+    //Start the last slice
+    final TaskStateInfo taskFromQueue = grabNextTaskFromQueue(queueName);
+    SettableFuture<Void> first = runInNewThread(taskFromQueue);
+    assertEquals(4, StaticBlockingTask.timesRun.get());
+
+    //Duplicate task shortly after the slice started waits for it
+    executeTask(queueName, taskFromQueue);
+    assertEquals(4, StaticBlockingTask.timesRun.get());
+    assertTrue(grabNextTaskFromQueue(queueName).getEtaDelta() > 0);
+
+    //Duplicate task after the slice ran for minutes starts a speculative attempt
+    backdateLock(taskFromQueue, 300_000);
+    IncrementalTaskState<IncrementalTask> taskState = lookupTaskState(taskFromQueue);
+    SettableFuture<Void> second = runInNewThread(taskFromQueue);
+    assertEquals(5, StaticBlockingTask.timesRun.get());
+    assertTrue(lookupTaskState(taskFromQueue).getLockInfo().isSpeculative());
+
+    //The attempt that completes first commits
+    StaticBlockingTask.finishRun.release();
+    awaitAny(first, second);
+    IncrementalTaskState<IncrementalTask> committed = lookupTaskState(taskFromQueue);
+    assertEquals(taskState.getSequenceNumber() + 1, committed.getSequenceNumber());
+    assertEquals(new Status(DONE), committed.getStatus());
+    assertEquals(4, ((TestTask) committed.getTask()).getResult().intValue());
+
+    //The update of the other attempt is discarded
+    StaticBlockingTask.finishRun.release();
+    first.get();
+    second.get();
+    assertAreEqual(committed, lookupTaskState(taskFromQueue));
+    assertEquals(5, StaticBlockingTask.timesRun.get());
+
+    //Finish by calling callback.
+    executeTasksUntilEmpty();
+    assertDone(jobId);
+  }
+
+  /**
+   * Tests that a slow slice is not attempted again while it runs if the task does not allow
+   * concurrent attempts.
+   */
+  @Test
+  public void testNoSpeculativeAttemptWithoutOptIn() throws Exception {
+    ShardedJobSettings settings = new ShardedJobSettings.Builder()
+        .setSliceTimeoutMillis(3_600_000).setSpeculativeSliceRatio(2).build();
+    final String jobId = startNewTask(settings, new StaticBlockingTask(1, 4), 4);
+    runQuickSlices(jobId, 3);
+
+    final TaskStateInfo taskFromQueue = grabNextTaskFromQueue(queueName);
+    SettableFuture<Void> result = runInNewThread(taskFromQueue);
+    backdateLock(taskFromQueue, 300_000);
+    executeTask(queueName, taskFromQueue);
+    assertEquals(4, StaticBlockingTask.timesRun.get());
+    assertTrue(grabNextTaskFromQueue(queueName).getEtaDelta() > 0);
+
+    StaticBlockingTask.finishRun.release();
+    result.get();
+    executeTasksUntilEmpty();
+    assertDone(jobId);
+  }
+
+  /**
+   * Runs {@code count} slices that complete immediately, which are counted in the slice durations
+   * of the job.
+   */
+  private void runQuickSlices(String jobId, int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      StaticBlockingTask.finishRun.release();
+      executeTask(queueName, grabNextTaskFromQueue(queueName));
+    }
+    StaticBlockingTask.runStarted.drainPermits();
+    ShardedJobStateImpl<?> state = (ShardedJobStateImpl<?>) service.getJobState(jobId);
+    assertEquals(count, state.getSliceCount());
+    assertEquals(count, StaticBlockingTask.timesRun.get());
+  }
+
+  /**
+   * Moves the start of the slice currently holding the lock of the task {@code millis} back.
+   */
+  private void backdateLock(TaskStateInfo taskFromQueue, long millis) throws Exception {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Entity entity =
+        datastore.get(IncrementalTaskState.Serializer.makeKey(getTaskId(taskFromQueue)));
+    entity.setUnindexedProperty("sliceStartTime",
+        (Long) entity.getProperty("sliceStartTime") - millis);
+    datastore.put(entity);
+  }
+
+  private static void awaitAny(Future<?>... futures) throws InterruptedException {
+    while (true) {
+      for (Future<?> future : futures) {
+        if (future.isDone()) {
+          return;
+        }
+      }
+      Thread.sleep(10);
+    }
+  }
+
   private void assertAreEqual(IncrementalTaskState<IncrementalTask> a,
       IncrementalTaskState<IncrementalTask> b) {
     assertEquals(a.getJobId(), b.getJobId());
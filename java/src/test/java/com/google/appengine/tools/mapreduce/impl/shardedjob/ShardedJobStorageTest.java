@@ -2,6 +2,7 @@ package com.google.appengine.tools.mapreduce.impl.shardedjob;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.appengine.api.datastore.DatastoreService;
@@ -46,6 +47,22 @@ public class ShardedJobStorageTest extends EndToEndTestCase {
     assertEquals(job.getController(), fromEntity.getController());
   }
 
+  @Test
+  public void testRoundTripSliceDurations() throws EntityNotFoundException {
+    ShardedJobStateImpl<TestTask> job = createGenericJobState();
+    assertNull(job.getMedianSliceMillis());
+    job.recordSliceMillis(500);
+    job.recordSliceMillis(1_001);
+    job.recordSliceMillis(2_000);
+    Entity entity = ShardedJobStateImpl.ShardedJobSerializer.toEntity(null, job);
+    DATASTORE.put(entity);
+    ShardedJobStateImpl<TestTask> fromEntity =
+        ShardedJobStateImpl.ShardedJobSerializer.fromEntity(DATASTORE.get(entity.getKey()));
+    assertEquals(3, fromEntity.getSliceCount());
+    // The median is rounded up to the bucket above a second
+    assertEquals(1_189L, fromEntity.getMedianSliceMillis().longValue());
+  }
+
   @Test
   public void testExpectedFields() {
     ShardedJobStateImpl<TestTask> job = createGenericJobState();
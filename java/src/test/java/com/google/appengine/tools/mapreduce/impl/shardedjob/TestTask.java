@@ -63,6 +63,11 @@ public class TestTask implements IncrementalTaskWithContext {
     return false;
   }
 
+  @Override
+  public boolean allowConcurrentSliceAttempts() {
+    return false;
+  }
+
   @Override
   public void jobCompleted(Status status) {
     initialPayload = null;
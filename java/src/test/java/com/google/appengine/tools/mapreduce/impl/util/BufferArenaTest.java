@@ -0,0 +1,99 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link BufferArena}
+ */
+public class BufferArenaTest extends TestCase {
+
+  private static class RecordingSink implements BufferArena.Sink {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final List<Integer> flushSizes = new ArrayList<>();
+
+    @Override
+    public void writeBlocks(List<ByteBuffer> blocks) {
+      int size = 0;
+      for (ByteBuffer block : blocks) {
+        size += block.remaining();
+        while (block.hasRemaining()) {
+          written.write(block.get());
+        }
+      }
+      flushSizes.add(size);
+    }
+  }
+
+  private static byte[] bytes(int start, int count) {
+    byte[] result = new byte[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = (byte) (start + i);
+    }
+    return result;
+  }
+
+  public void testWritesAcrossBlocks() throws Exception {
+    BufferArena arena = new BufferArena(10, 4);
+    RecordingSink sink = new RecordingSink();
+    BufferArena.Partition partition = arena.newPartition(sink);
+    partition.write(ByteBuffer.wrap(bytes(0, 7)));
+    partition.write(ByteBuffer.wrap(bytes(7, 25)));
+    assertEquals(32, partition.getBufferedBytes());
+    assertTrue(sink.flushSizes.isEmpty());
+    arena.flush();
+    assertEquals(0, partition.getBufferedBytes());
+    assertEquals(1, sink.flushSizes.size());
+    assertEquals(ByteBuffer.wrap(bytes(0, 32)), ByteBuffer.wrap(sink.written.toByteArray()));
+    arena.release();
+  }
+
+  public void testFlushesLargestPartition() throws Exception {
+    BufferArena arena = new BufferArena(10, 4);
+    RecordingSink small = new RecordingSink();
+    RecordingSink large = new RecordingSink();
+    BufferArena.Partition smallPartition = arena.newPartition(small);
+    BufferArena.Partition largePartition = arena.newPartition(large);
+    smallPartition.write(ByteBuffer.wrap(bytes(0, 5)));
+    largePartition.write(ByteBuffer.wrap(bytes(0, 30)));
+    // The arena is full, so this flushes the large partition
+    smallPartition.write(ByteBuffer.wrap(bytes(5, 10)));
+    assertTrue(small.flushSizes.isEmpty());
+    assertEquals(1, large.flushSizes.size());
+    assertEquals(30, large.flushSizes.get(0).intValue());
+    assertEquals(15, smallPartition.getBufferedBytes());
+    assertEquals(0, largePartition.getBufferedBytes());
+    largePartition.write(ByteBuffer.wrap(bytes(30, 10)));
+    arena.flush();
+    assertEquals(ByteBuffer.wrap(bytes(0, 15)), ByteBuffer.wrap(small.written.toByteArray()));
+    assertEquals(ByteBuffer.wrap(bytes(0, 40)), ByteBuffer.wrap(large.written.toByteArray()));
+    arena.release();
+  }
+
+  public void testPartitionLargerThanArena() throws Exception {
+    BufferArena arena = new BufferArena(10, 2);
+    RecordingSink sink = new RecordingSink();
+    BufferArena.Partition partition = arena.newPartition(sink);
+    partition.write(ByteBuffer.wrap(bytes(0, 55)));
+    arena.flush();
+    assertEquals(3, sink.flushSizes.size());
+    assertEquals(20, sink.flushSizes.get(0).intValue());
+    assertEquals(ByteBuffer.wrap(bytes(0, 55)), ByteBuffer.wrap(sink.written.toByteArray()));
+    arena.release();
+  }
+
+  public void testReleased() throws Exception {
+    BufferArena arena = new BufferArena(10, 2);
+    BufferArena.Partition partition = arena.newPartition(new RecordingSink());
+    arena.release();
+    try {
+      partition.write(ByteBuffer.wrap(bytes(0, 1)));
+      fail("Wrote to a released arena");
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
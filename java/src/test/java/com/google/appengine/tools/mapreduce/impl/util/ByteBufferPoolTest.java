@@ -0,0 +1,74 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tests for {@link ByteBufferPool}
+ */
+public class ByteBufferPoolTest extends TestCase {
+
+  public void testReusesReleasedBuffers() {
+    ByteBufferPool pool = new ByteBufferPool(1024, 1024);
+    ByteBuffer heap = pool.allocate(100);
+    ByteBuffer direct = pool.allocateDirect(100);
+    assertFalse(heap.isDirect());
+    assertTrue(direct.isDirect());
+    heap.order(ByteOrder.LITTLE_ENDIAN).putInt(1);
+    pool.release(heap);
+    pool.release(direct);
+    assertEquals(200, pool.getRetainedBytes());
+
+    ByteBuffer reusedHeap = pool.allocate(100);
+    assertSame(heap, reusedHeap);
+    assertEquals(0, reusedHeap.position());
+    assertEquals(100, reusedHeap.limit());
+    assertEquals(ByteOrder.BIG_ENDIAN, reusedHeap.order());
+    assertSame(direct, pool.allocateDirect(100));
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testOnlyReusesMatchingCapacity() {
+    ByteBufferPool pool = new ByteBufferPool(1024, 1024);
+    ByteBuffer buffer = pool.allocate(100);
+    pool.release(buffer);
+    assertNotSame(buffer, pool.allocate(101));
+    assertNotSame(buffer, pool.allocateDirect(100));
+    assertSame(buffer, pool.allocate(100));
+  }
+
+  public void testRetentionIsBounded() {
+    ByteBufferPool pool = new ByteBufferPool(0, 150);
+    ByteBuffer a = pool.allocate(100);
+    ByteBuffer b = pool.allocate(100);
+    pool.release(a);
+    pool.release(b);
+    assertEquals(100, pool.getRetainedBytes());
+    pool.release(pool.allocateDirect(10));
+    assertEquals(100, pool.getRetainedBytes());
+    pool.clear();
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testIgnoresUnpoolableBuffers() {
+    ByteBufferPool pool = new ByteBufferPool(1024, 1024);
+    pool.release(null);
+    pool.release(ByteBuffer.allocate(0));
+    pool.release(ByteBuffer.allocate(10).asReadOnlyBuffer());
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  public void testDoubleReleaseFails() {
+    ByteBufferPool pool = new ByteBufferPool(1024, 1024);
+    ByteBuffer buffer = pool.allocate(10);
+    pool.release(buffer);
+    try {
+      pool.release(buffer);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
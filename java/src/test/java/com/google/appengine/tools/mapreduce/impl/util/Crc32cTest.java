@@ -0,0 +1,106 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Tests for {@link Crc32c}
+ */
+public class Crc32cTest extends TestCase {
+
+  /**
+   * Computes the checksum one bit at a time, as a reference for the table driven implementations.
+   */
+  private static long bitwiseCrc(byte[] data, int off, int len) {
+    int crc = ~0;
+    for (int i = off; i < off + len; i++) {
+      crc ^= data[i] & 0xff;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+      }
+    }
+    return ~crc & 0xffffffffL;
+  }
+
+  public void testKnownValues() {
+    for (boolean useJdk : new boolean[] {false, true}) {
+      Crc32c crc = new Crc32c(useJdk);
+      assertEquals(0L, crc.getValue());
+      byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+      crc.update(data, 0, data.length);
+      assertEquals(0xe3069283L, crc.getValue());
+      crc.reset();
+      crc.update(new byte[32], 0, 32);
+      assertEquals(0x8a9136aaL, crc.getValue());
+      crc.reset();
+      for (byte b : data) {
+        crc.update(b);
+      }
+      assertEquals(0xe3069283L, crc.getValue());
+    }
+  }
+
+  public void testMatchesReference() {
+    Random random = new Random(0);
+    byte[] data = new byte[1000];
+    random.nextBytes(data);
+    for (int i = 0; i < 500; i++) {
+      int off = random.nextInt(data.length);
+      int len = random.nextInt(data.length - off);
+      long expected = bitwiseCrc(data, off, len);
+      for (boolean useJdk : new boolean[] {false, true}) {
+        Crc32c crc = new Crc32c(useJdk);
+        crc.update(data, off, len);
+        assertEquals(expected, crc.getValue());
+
+        crc.reset();
+        int split = random.nextInt(len + 1);
+        crc.update(data, off, split);
+        crc.update(data, off + split, len - split);
+        assertEquals(expected, crc.getValue());
+      }
+    }
+  }
+
+  public void testByteBuffers() {
+    Random random = new Random(1);
+    byte[] data = new byte[300];
+    random.nextBytes(data);
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data);
+    direct.flip();
+    ByteBuffer[] buffers = {ByteBuffer.wrap(data), ByteBuffer.wrap(data).asReadOnlyBuffer(),
+        direct, direct.asReadOnlyBuffer()};
+    for (int i = 0; i < 100; i++) {
+      int off = random.nextInt(data.length);
+      int len = random.nextInt(data.length - off);
+      long expected = bitwiseCrc(data, off, len);
+      for (boolean useJdk : new boolean[] {false, true}) {
+        for (ByteBuffer buffer : buffers) {
+          Crc32c crc = new Crc32c(useJdk);
+          buffer.clear();
+          crc.update(buffer, off, len);
+          assertEquals(expected, crc.getValue());
+          assertEquals(0, buffer.position());
+          assertEquals(data.length, buffer.limit());
+
+          crc.reset();
+          buffer.limit(off + len);
+          buffer.position(off);
+          crc.update(buffer);
+          assertEquals(expected, crc.getValue());
+          assertEquals(off + len, buffer.position());
+
+          crc.reset();
+          buffer.limit(off + len);
+          buffer.position(off);
+          crc.update(buffer.slice());
+          assertEquals(expected, crc.getValue());
+        }
+      }
+    }
+  }
+}
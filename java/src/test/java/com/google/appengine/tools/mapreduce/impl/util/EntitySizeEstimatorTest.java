@@ -0,0 +1,94 @@
+package com.google.appengine.tools.mapreduce.impl.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+/**
+ * Tests for {@link EntitySizeEstimator}.
+ */
+public class EntitySizeEstimatorTest extends TestCase {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private static void assertCloseToSerializedSize(Entity entity) {
+    int actual = EntityTranslator.convertToPb(entity).getSerializedSize();
+    int estimate = EntitySizeEstimator.estimateSize(entity);
+    assertTrue("Estimate " + estimate + " for actual size " + actual + " of " + entity,
+        Math.abs(estimate - actual) <= 8 + actual / 8);
+  }
+
+  public void testUtf8Length() {
+    for (String string : new String[] {"", "abc", "\u00e9t\u00e9", "\u20ac", "\ud83d\ude00x"}) {
+      assertEquals(string.getBytes(UTF_8).length,
+          EntitySizeEstimator.utf8Length(string));
+    }
+    assertEquals(0, EntitySizeEstimator.utf8Length(null));
+  }
+
+  public void testVarintSize() {
+    assertEquals(1, EntitySizeEstimator.varintSize(0));
+    assertEquals(1, EntitySizeEstimator.varintSize(127));
+    assertEquals(2, EntitySizeEstimator.varintSize(128));
+    assertEquals(3, EntitySizeEstimator.varintSize(1 << 14));
+    assertEquals(10, EntitySizeEstimator.varintSize(-1));
+  }
+
+  public void testKeyOnly() {
+    Key parent = KeyFactory.createKey("Parent", "some-name");
+    assertCloseToSerializedSize(new Entity("Foo", 12345, parent));
+    assertCloseToSerializedSize(new Entity("Foo", "name"));
+  }
+
+  public void testProperties() {
+    Entity entity = new Entity("Foo", 1);
+    entity.setProperty("string", "a string value of some length");
+    entity.setProperty("long", 1234567890123L);
+    entity.setProperty("double", 1.5);
+    entity.setProperty("boolean", true);
+    entity.setProperty("date", new Date(1400000000000L));
+    entity.setUnindexedProperty("text", new Text(new String(new char[1000]).replace('\0', 'x')));
+    entity.setUnindexedProperty("blob", new Blob(new byte[500]));
+    entity.setProperty("key", KeyFactory.createKey("Other", 42));
+    entity.setProperty("geo", new GeoPt(1.5f, -2.5f));
+    entity.setProperty("list", ImmutableList.of("one", "two", "three"));
+    entity.setProperty("null", null);
+    assertCloseToSerializedSize(entity);
+  }
+
+  public void testEmbeddedEntity() {
+    EmbeddedEntity embedded = new EmbeddedEntity();
+    embedded.setProperty("inner", "value");
+    embedded.setProperty("number", 7L);
+    Entity entity = new Entity("Foo", 1);
+    entity.setProperty("embedded", embedded);
+    assertCloseToSerializedSize(entity);
+  }
+}
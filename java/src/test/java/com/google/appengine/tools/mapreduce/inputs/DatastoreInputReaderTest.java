@@ -121,8 +121,17 @@ public class DatastoreInputReaderTest extends TestCase {
     validateReadAllData(namespaceQuery, keys);
   }
 
+  public void testReadAllDataPrefetching() throws Exception {
+    List<Key> keys = populateData(1000, null);
+    validateReadAllData(all, keys, true);
+  }
+
   private void validateReadAllData(Query query, List<Key> keys) {
-    DatastoreInputReader reader = new DatastoreInputReader(query);
+    validateReadAllData(query, keys, false);
+  }
+
+  private void validateReadAllData(Query query, List<Key> keys, boolean prefetch) {
+    DatastoreInputReader reader = new DatastoreInputReader(query, prefetch);
     List<Key> readKeys = readAllFromReader(reader);
     assertEquals(keys.size(), readKeys.size());
     assertEquals(keys, readKeys);
@@ -160,11 +169,19 @@ public class DatastoreInputReaderTest extends TestCase {
   }
 
   public void testSerialization() throws Exception {
+    validateSerialization(false);
+  }
+
+  public void testSerializationPrefetching() throws Exception {
+    validateSerialization(true);
+  }
+
+  private void validateSerialization(boolean prefetch) throws Exception {
     List<Key> keys = populateData(300, null);
     List<Key> readKeys = new ArrayList<>();
     Query query =
         createQuery(null, ENTITY_KIND_NAME, KEY_RESERVED_PROPERTY, keys.get(100), keys.get(200));
-    DatastoreInputReader reader = new DatastoreInputReader(query);
+    DatastoreInputReader reader = new DatastoreInputReader(query, prefetch);
     reader.beginSlice();
     while (true) {
       try {
@@ -8,6 +8,7 @@ import static com.google.appengine.tools.mapreduce.inputs.DatastoreShardStrategy
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
 import com.google.appengine.api.datastore.Query.Filter;
@@ -94,6 +95,47 @@ public class DatastoreShardStrategyTest extends TestCase {
         longRanges(0, 20, 40, 60, 80, 100));
   }
 
+  public void testQuantiles() {
+    List<Long> sample = new ArrayList<>();
+    for (long i = 0; i < 90; i++) {
+      sample.add(i);
+    }
+    for (long i = 0; i < 10; i++) {
+      sample.add(1000 + i * 1000);
+    }
+    // Most of the values are near the lower bound, so most split points are too.
+    assertEquals(Arrays.<Object>asList(0L, 20L, 40L, 60L, 80L, 10000L),
+        DatastoreShardStrategy.getQuantiles(sample, 5, 0L, 10000L));
+    // Repeated values and values at the bounds do not create empty ranges.
+    assertEquals(Arrays.<Object>asList(0, 5L, 10),
+        DatastoreShardStrategy.getQuantiles(Arrays.asList(0L, 5L, 5L, 5L, 5L, 10L), 4, 0, 10));
+    assertEquals(Arrays.<Object>asList("a", "z"),
+        DatastoreShardStrategy.getQuantiles(new ArrayList<String>(), 4, "a", "z"));
+  }
+
+  public void testValueOrder() {
+    assertTrue(DatastoreShardStrategy.VALUE_ORDER.compare(1, 2L) < 0);
+    assertTrue(DatastoreShardStrategy.VALUE_ORDER.compare(2.5f, 2.0) > 0);
+    assertEquals(0, DatastoreShardStrategy.VALUE_ORDER.compare((short) 3, 3L));
+    assertTrue(DatastoreShardStrategy.VALUE_ORDER.compare("ab", "b") < 0);
+  }
+
+  public void testStringRange() {
+    String kind = ENTITY_KIND_NAME + "_StringRange";
+    for (int i = 0; i < 100; i++) {
+      Entity entity = new Entity(kind);
+      entity.setProperty("name", "name" + i);
+      ds.put(entity);
+    }
+    Query query = BaseDatastoreInput.createQuery(null, kind)
+        .setFilter(new FilterPredicate("name", GREATER_THAN_OR_EQUAL, "name"));
+    int count = 0;
+    for (Query subQuery : strategy.splitQuery(query, SHARD_COUNT)) {
+      count += ds.prepare(subQuery).countEntities(FetchOptions.Builder.withDefaults());
+    }
+    assertEquals(100, count);
+  }
+
   public void testFindingLowerBound() throws Exception {
     Calendar cal =  Calendar.getInstance();
     Date upperBound = cal.getTime();
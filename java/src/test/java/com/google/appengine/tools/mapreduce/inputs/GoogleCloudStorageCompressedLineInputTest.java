@@ -0,0 +1,130 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.mapreduce.InputReader;
+import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit test for {@link GoogleCloudStorageCompressedLineInput}.
+ */
+public class GoogleCloudStorageCompressedLineInputTest extends GoogleCloudStorageLineInputTestCase {
+
+  private static final String BUCKET = "CompressedLineInputTestBucket";
+  private static final int[] RECORD_COUNTS = {5000, 3, 0, 700, 1200};
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < RECORD_COUNTS.length; i++) {
+      createCompressedFile(new GcsFilename(BUCKET, "logs/" + i + ".gz"), RECORD_COUNTS[i],
+          i % 2 == 0);
+    }
+  }
+
+  private static byte[] compress(int records, boolean gzip) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out =
+        gzip ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+      for (int i = 0; i < records; i++) {
+        out.write(("record-" + i + "\n").getBytes());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void createCompressedFile(GcsFilename filename, int records, boolean gzip)
+      throws IOException {
+    GcsService gcsService = GcsServiceFactory.createGcsService();
+    try (GcsOutputChannel writeChannel = gcsService.createOrReplace(
+        filename, new GcsFileOptions.Builder().mimeType("application/x-gzip").build())) {
+      writeChannel.write(ByteBuffer.wrap(compress(records, gzip)));
+    }
+  }
+
+  public void testReadAllWithSerialization() throws Exception {
+    GoogleCloudStorageCompressedLineInput input =
+        new GoogleCloudStorageCompressedLineInput(BUCKET, "logs/*.gz", (byte) '\n', 3);
+    List<? extends InputReader<byte[]>> readers = input.createReaders();
+    assertEquals(3, readers.size());
+    int total = 0;
+    for (InputReader<byte[]> reader : readers) {
+      reader.beginShard();
+      boolean done = false;
+      while (!done) {
+        reader = SerializationUtil.clone(reader);
+        reader.beginSlice();
+        for (int i = 0; i < 100; i++) {
+          try {
+            assertTrue(new String(reader.next()).startsWith("record-"));
+            total++;
+          } catch (NoSuchElementException e) {
+            done = true;
+            break;
+          }
+        }
+        reader.endSlice();
+      }
+      assertEquals(1.0, reader.getProgress(), 0.0);
+      reader.endShard();
+    }
+    int expected = 0;
+    for (int count : RECORD_COUNTS) {
+      expected += count;
+    }
+    assertEquals(expected, total);
+  }
+
+  public void testDecompress() throws Exception {
+    for (boolean gzip : new boolean[] {true, false}) {
+      byte[] content = ByteStreams.toByteArray(GoogleCloudStorageCompressedLineInputReader
+          .decompress(new ByteArrayInputStream(compress(2, gzip))));
+      assertEquals("record-0\nrecord-1\n", new String(content));
+    }
+    assertEquals(-1, GoogleCloudStorageCompressedLineInputReader
+        .decompress(new ByteArrayInputStream(new byte[0])).read());
+  }
+
+  public void testAssign() {
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    long[] sizes = {10, 500, 70, 300, 200, 0, 100};
+    for (int i = 0; i < sizes.length; i++) {
+      fileSizes.put(new GcsFilename(BUCKET, "file-" + i), sizes[i]);
+    }
+    List<List<Entry<GcsFilename, Long>>> shards =
+        GoogleCloudStorageCompressedLineInput.assign(fileSizes, 3);
+    assertEquals(3, shards.size());
+    long[] expected = {500, 370, 310};
+    int files = 0;
+    for (int i = 0; i < shards.size(); i++) {
+      long shardSize = 0;
+      for (Entry<GcsFilename, Long> file : shards.get(i)) {
+        shardSize += file.getValue();
+        files++;
+      }
+      assertEquals(expected[i], shardSize);
+    }
+    assertEquals(sizes.length, files);
+    // No more shards than files
+    fileSizes = new LinkedHashMap<>();
+    fileSizes.put(new GcsFilename(BUCKET, "file"), 10L);
+    assertEquals(1, GoogleCloudStorageCompressedLineInput.assign(fileSizes, 2).size());
+  }
+}
@@ -21,6 +21,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -154,6 +157,68 @@ public class GoogleCloudStorageLevelDbInputReaderTest extends TestCase {
     reader.endSlice();
   }
 
+  public void testReadingRanges() throws IOException {
+    writeData(filename, new ByteBufferGenerator(1000));
+    long length = GcsServiceFactory.createGcsService().getMetadata(filename).getLength();
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    fileSizes.put(filename, length);
+    List<List<GoogleCloudStorageLevelDbInputReader>> shards =
+        GoogleCloudStorageSplitLevelDbInput.split(fileSizes, 7, BLOCK_SIZE * 2);
+    assertEquals(7, shards.size());
+    ByteBufferGenerator expected = new ByteBufferGenerator(1000);
+    for (List<GoogleCloudStorageLevelDbInputReader> shard : shards) {
+      assertEquals(1, shard.size());
+      GoogleCloudStorageLevelDbInputReader reader = shard.get(0);
+      reader.beginShard();
+      try {
+        while (true) {
+          reader = SerializationUtil.clone(reader);
+          reader.beginSlice();
+          ByteBuffer read = reader.next();
+          assertEquals(expected.next(), read);
+          reader.endSlice();
+        }
+      } catch (NoSuchElementException e) {
+        // used a break
+      }
+      assertEquals(1.0, reader.getProgress(), 0.0);
+      reader.endSlice();
+      reader.endShard();
+    }
+    assertFalse(expected.hasNext());
+  }
+
+  public void testSplit() {
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    long[] sizes = {BLOCK_SIZE * 100L, 10, 0, BLOCK_SIZE * 50L + 7, BLOCK_SIZE - 1};
+    long total = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      fileSizes.put(new GcsFilename("Bucket", "file-" + i), sizes[i]);
+      total += sizes[i];
+    }
+    List<List<GoogleCloudStorageLevelDbInputReader>> shards =
+        GoogleCloudStorageSplitLevelDbInput.split(fileSizes, 6, BLOCK_SIZE);
+    assertEquals(6, shards.size());
+    long covered = 0;
+    for (List<GoogleCloudStorageLevelDbInputReader> shard : shards) {
+      long shardSize = 0;
+      for (GoogleCloudStorageLevelDbInputReader reader : shard) {
+        assertEquals(0, reader.getStartOffset() % BLOCK_SIZE);
+        long end = reader.getEndOffset() == Long.MAX_VALUE
+            ? fileSizes.get(reader.getFile()) : reader.getEndOffset();
+        assertTrue(end > reader.getStartOffset());
+        shardSize += end - reader.getStartOffset();
+      }
+      assertTrue(Math.abs(shardSize - total / 6) <= BLOCK_SIZE);
+      covered += shardSize;
+    }
+    assertEquals(total, covered);
+    // Files smaller than a block are not split
+    fileSizes = new LinkedHashMap<>();
+    fileSizes.put(new GcsFilename("Bucket", "small"), BLOCK_SIZE - 1L);
+    assertEquals(1, GoogleCloudStorageSplitLevelDbInput.split(fileSizes, 3, BLOCK_SIZE).size());
+  }
+
   private void verifyEmpty(GoogleCloudStorageLevelDbInputReader reader) throws IOException {
     try {
       reader.next();
@@ -0,0 +1,121 @@
+package com.google.appengine.tools.mapreduce.inputs;
+
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.mapreduce.InputReader;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Unit test for {@link GoogleCloudStorageMultiFileLineInput}.
+ */
+public class GoogleCloudStorageMultiFileLineInputTest extends GoogleCloudStorageLineInputTestCase {
+
+  private static final String BUCKET = "MultiFileLineInputTestBucket";
+  private static final String RECORD = "01234567890\n";
+  private static final int[] RECORD_COUNTS = {1000, 7, 0, 250, 1, 3000};
+
+  private int totalRecords;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < RECORD_COUNTS.length; i++) {
+      createFile(new GcsFilename(BUCKET, "logs/day-" + i + ".txt"), RECORD, RECORD_COUNTS[i]);
+      totalRecords += RECORD_COUNTS[i];
+    }
+    createFile(new GcsFilename(BUCKET, "logs/old/day-0.txt"), RECORD, 10);
+    createFile(new GcsFilename(BUCKET, "logs/day-0.csv"), RECORD, 10);
+  }
+
+  public void testGlob() throws Exception {
+    assertEquals(totalRecords, readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/day-*.txt", (byte) '\n', 5)));
+    assertEquals(totalRecords + 20, readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/**", (byte) '\n', 3)));
+    assertEquals(totalRecords, readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/day-?.txt", (byte) '\n', 2)));
+    assertEquals(RECORD_COUNTS[1], readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/day-1.tx?", (byte) '\n', 2)));
+  }
+
+  public void testPrefix() throws Exception {
+    assertEquals(totalRecords + 20, readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/", (byte) '\n', 4)));
+    assertEquals(RECORD_COUNTS[3], readAll(
+        new GoogleCloudStorageMultiFileLineInput(BUCKET, "logs/day-3", (byte) '\n', 4)));
+  }
+
+  public void testGlobToRegex() {
+    assertTrue(GoogleCloudStorageMultiFileLineInput.globToRegex("a/*.txt").matcher("a/b.txt")
+        .matches());
+    assertFalse(GoogleCloudStorageMultiFileLineInput.globToRegex("a/*.txt").matcher("a/b/c.txt")
+        .matches());
+    assertTrue(GoogleCloudStorageMultiFileLineInput.globToRegex("a/**.txt").matcher("a/b/c.txt")
+        .matches());
+    assertTrue(GoogleCloudStorageMultiFileLineInput.globToRegex("a.(?)").matcher("a.(b)")
+        .matches());
+    assertFalse(GoogleCloudStorageMultiFileLineInput.globToRegex("a.(?)").matcher("ab(b)")
+        .matches());
+  }
+
+  public void testSplitIsBalanced() {
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    long[] sizes = {100000, 10, 0, 50000, 3000, 250000, 7};
+    long total = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      fileSizes.put(new GcsFilename(BUCKET, "file-" + i), sizes[i]);
+      total += sizes[i];
+    }
+    List<List<GoogleCloudStorageLineInputReader>> shards =
+        GoogleCloudStorageMultiFileLineInput.split(fileSizes, 7, (byte) '\n', 0);
+    assertEquals(7, shards.size());
+    long covered = 0;
+    for (List<GoogleCloudStorageLineInputReader> shard : shards) {
+      long shardSize = 0;
+      for (GoogleCloudStorageLineInputReader reader : shard) {
+        assertTrue(reader.endOffset > reader.startOffset);
+        shardSize += reader.endOffset - reader.startOffset;
+      }
+      assertTrue(Math.abs(shardSize - total / 7) <= 1);
+      covered += shardSize;
+    }
+    assertEquals(total, covered);
+    // The first shard only covers part of the first file, the next one covers the rest of it and
+    // the beginning of the following files.
+    assertEquals(1, shards.get(0).size());
+    assertEquals(3, shards.get(1).size());
+    assertEquals(shards.get(0).get(0).endOffset, shards.get(1).get(0).startOffset);
+  }
+
+  public void testSplitSmallFiles() {
+    Map<GcsFilename, Long> fileSizes = new LinkedHashMap<>();
+    fileSizes.put(new GcsFilename(BUCKET, "a"), 10L);
+    fileSizes.put(new GcsFilename(BUCKET, "b"), 0L);
+    List<List<GoogleCloudStorageLineInputReader>> shards =
+        GoogleCloudStorageMultiFileLineInput.split(fileSizes, 10, (byte) '\n', 0);
+    assertEquals(1, shards.size());
+    assertEquals(1, shards.get(0).size());
+  }
+
+  private static int readAll(GoogleCloudStorageMultiFileLineInput input) throws Exception {
+    int count = 0;
+    for (InputReader<byte[]> reader : input.createReaders()) {
+      reader.beginShard();
+      reader.beginSlice();
+      try {
+        while (true) {
+          assertEquals(RECORD.substring(0, RECORD.length() - 1), new String(reader.next()));
+          count++;
+        }
+      } catch (NoSuchElementException e) {
+        // Used as break
+      }
+      reader.endSlice();
+      reader.endShard();
+    }
+    return count;
+  }
+}
@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -157,6 +158,39 @@ public class LineInputReaderTest extends TestCase {
     }
   }
 
+  /** Tests records that span reads from the stream, including ones longer than the buffer. */
+  public void testLongRecords() throws Exception {
+    int[] lengths = {LineInputStream.BUFFER_SIZE - 1, 1, 0, 3 * LineInputStream.BUFFER_SIZE + 7,
+        LineInputStream.BUFFER_SIZE, 5};
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (int i = 0; i < lengths.length; i++) {
+      for (int j = 0; j < lengths[i]; j++) {
+        bytes.write('a' + i);
+      }
+      bytes.write('\n');
+    }
+    bytes.write('z');
+    LineInputStream iterator = new LineInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()), bytes.size(), (byte) '\n');
+    long count = 0;
+    for (int i = 0; i < lengths.length; i++) {
+      byte[] record = iterator.next();
+      assertEquals(lengths[i], record.length);
+      for (byte b : record) {
+        assertEquals('a' + i, b);
+      }
+      count += record.length + 1;
+      assertEquals(count, iterator.getBytesCount());
+    }
+    assertEquals("z", new String(iterator.next()));
+    assertEquals(bytes.size(), iterator.getBytesCount());
+    try {
+      iterator.next();
+      fail();
+    } catch (NoSuchElementException expected) {
+    }
+  }
+
   private void test(long start, long end, boolean skipFirstTerminator, int expectedIndexStart,
       int expectedIndexEnd) throws IOException {
     input.skip(start);
@@ -169,7 +203,8 @@ public class LineInputReaderTest extends TestCase {
         byte[] record = iterator.next();
         assertEquals(content.get(totalCount + expectedIndexStart), new String(record));
         assertEquals(byteContentOffsets.get(totalCount + expectedIndexStart).longValue(),
-            countingInputStream.getCount() - record.length - 1 + start);
+            iterator.getBytesCount() - record.length - 1 + start);
+        assertTrue(countingInputStream.getCount() >= iterator.getBytesCount());
         totalCount++;
       }
     } catch (NoSuchElementException e) {
@@ -224,5 +259,22 @@ public class LineInputReaderTest extends TestCase {
         return inputStream.read();
       }
     }
+
+    /**
+     * Reads a single byte, so that bulk reads fail after the same number of bytes as
+     * {@link #read()}.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int value = read();
+      if (value == -1) {
+        return -1;
+      }
+      b[off] = (byte) value;
+      return 1;
+    }
   }
 }
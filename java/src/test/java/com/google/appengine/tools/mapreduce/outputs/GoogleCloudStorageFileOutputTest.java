@@ -3,9 +3,12 @@ package com.google.appengine.tools.mapreduce.outputs;
 import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.mapreduce.GoogleCloudStorageFileSet;
 import com.google.appengine.tools.mapreduce.OutputWriter;
+import com.google.common.collect.ImmutableList;
 
 import junit.framework.TestCase;
 
@@ -129,6 +132,122 @@ public class GoogleCloudStorageFileOutputTest extends TestCase {
     }
   }
 
+  public void testManySlices() throws IOException, ClassNotFoundException {
+    String property = "com.google.appengine.tools.mapreduce.outputs"
+        + ".GoogleCloudStorageFileOutputWriter.MAX_COMPONENTS_PER_COMPOSE";
+    // A low component limit makes the writer rewrite its composite file
+    System.setProperty(property, "40");
+    try {
+      GoogleCloudStorageFileOutput creator =
+          new GoogleCloudStorageFileOutput(BUCKET, FILE_NAME_PATTERN, MIME_TYPE);
+      OutputWriter<ByteBuffer> out = creator.createWriters(1).get(0);
+      out.beginShard();
+      int slices = 100;
+      ByteBuffer expectedContent = ByteBuffer.allocate(slices * SMALL_CONTENT.length);
+      for (int i = 0; i < slices; i++) {
+        out.beginSlice();
+        // Empty slices do not add components
+        if (i % 10 != 5) {
+          out.write(ByteBuffer.wrap(SMALL_CONTENT));
+          expectedContent.put(SMALL_CONTENT);
+        }
+        out.endSlice();
+        out = reconstruct(out);
+      }
+      out.endShard();
+      out.cleanup();
+      expectedContent.flip();
+      GoogleCloudStorageFileSet files =
+          creator.finish(ImmutableList.<OutputWriter<ByteBuffer>>of(out));
+      GcsFileMetadata metadata = gcsService.getMetadata(files.getFile(0));
+      assertEquals(expectedContent.remaining(), metadata.getLength());
+      assertEquals(MIME_TYPE, metadata.getOptions().getMimeType());
+      ByteBuffer actualContent = ByteBuffer.allocate(expectedContent.remaining() + 1);
+      try (ReadableByteChannel readChannel = gcsService.openReadChannel(files.getFile(0), 0)) {
+        while (readChannel.read(actualContent) >= 0) {
+          // read everything
+        }
+      }
+      actualContent.flip();
+      assertEquals(expectedContent, actualContent);
+    } finally {
+      System.clearProperty(property);
+    }
+  }
+
+  public void testParallelStreams() throws IOException, ClassNotFoundException {
+    GoogleCloudStorageFileOutput creator =
+        new GoogleCloudStorageFileOutput(BUCKET, FILE_NAME_PATTERN, MIME_TYPE, 3);
+    OutputWriter<ByteBuffer> out = creator.createWriters(1).get(0);
+    // Larger than several parts
+    byte[] content = new byte[9 * 1024 * 1024 + 17];
+    new Random(1).nextBytes(content);
+    out.beginShard();
+    for (int i = 0; i < 2; i++) {
+      out.beginSlice();
+      out.write(ByteBuffer.wrap(content));
+      out.endSlice();
+      out = reconstruct(out);
+    }
+    out.endShard();
+    out.cleanup();
+    GoogleCloudStorageFileSet files =
+        creator.finish(ImmutableList.<OutputWriter<ByteBuffer>>of(out));
+    GcsFileMetadata metadata = gcsService.getMetadata(files.getFile(0));
+    assertEquals(content.length * 2, metadata.getLength());
+    assertEquals(MIME_TYPE, metadata.getOptions().getMimeType());
+    ByteBuffer expectedContent = ByteBuffer.allocate(content.length * 2);
+    expectedContent.put(content);
+    expectedContent.put(content);
+    expectedContent.flip();
+    ByteBuffer actualContent = ByteBuffer.allocate(content.length * 2 + 1);
+    try (ReadableByteChannel readChannel = gcsService.openReadChannel(files.getFile(0), 0)) {
+      while (readChannel.read(actualContent) >= 0) {
+        // read everything
+      }
+    }
+    actualContent.flip();
+    assertEquals(expectedContent, actualContent);
+  }
+
+  public void testConcurrentSliceAttempts() throws IOException, ClassNotFoundException {
+    GoogleCloudStorageFileOutput creator =
+        new GoogleCloudStorageFileOutput(BUCKET, FILE_NAME_PATTERN, MIME_TYPE);
+    OutputWriter<ByteBuffer> out = creator.createWriters(1).get(0);
+    assertTrue(out.allowConcurrentSliceAttempts());
+    out.beginShard();
+    out.beginSlice();
+    out.write(ByteBuffer.wrap(SMALL_CONTENT));
+    out.endSlice();
+    out = reconstruct(out);
+    OutputWriter<ByteBuffer> loser = reconstruct(out);
+    for (OutputWriter<ByteBuffer> attempt : ImmutableList.of(out, loser)) {
+      attempt.beginSlice();
+      attempt.write(ByteBuffer.wrap(LARGE_CONTENT));
+      attempt.endSlice();
+      attempt.endShard();
+    }
+    out.cleanup();
+    GoogleCloudStorageFileSet files =
+        creator.finish(ImmutableList.<OutputWriter<ByteBuffer>>of(out));
+    ByteBuffer expectedContent = ByteBuffer.allocate(SMALL_CONTENT.length + LARGE_CONTENT.length);
+    expectedContent.put(SMALL_CONTENT);
+    expectedContent.put(LARGE_CONTENT);
+    expectedContent.flip();
+    ByteBuffer actualContent = ByteBuffer.allocate(expectedContent.remaining() + 1);
+    try (ReadableByteChannel readChannel = gcsService.openReadChannel(files.getFile(0), 0)) {
+      while (readChannel.read(actualContent) >= 0) {
+        // read everything
+      }
+    }
+    actualContent.flip();
+    assertEquals(expectedContent, actualContent);
+    // The parts of both attempts were deleted
+    ListResult list = gcsService.list(BUCKET, ListOptions.DEFAULT);
+    assertEquals(files.getFile(0).getObjectName(), list.next().getName());
+    assertFalse(list.hasNext());
+  }
+
   private OutputWriter<ByteBuffer> reconstruct(OutputWriter<ByteBuffer> writer) throws IOException,
       ClassNotFoundException {
     ByteArrayOutputStream bout = new ByteArrayOutputStream();
@@ -6,6 +6,7 @@ import com.google.appengine.tools.mapreduce.CorruptDataException;
 import com.google.appengine.tools.mapreduce.OutputWriter;
 import com.google.appengine.tools.mapreduce.impl.util.LevelDbConstants;
 import com.google.appengine.tools.mapreduce.impl.util.SerializationUtil;
+import com.google.appengine.tools.mapreduce.inputs.BlockDecompressingReadableByteChannel;
 import com.google.appengine.tools.mapreduce.inputs.LevelDbInputReader;
 
 import junit.framework.TestCase;
@@ -45,12 +46,35 @@ public class LevelDbTest extends TestCase {
       this.channel = channel;
     }
 
+    TestLevelDbInputReader(ReadableByteChannel channel, int blockSize, long startOffset,
+        long endOffset) {
+      super(blockSize, startOffset, endOffset);
+      this.channel = channel;
+    }
+
     @Override
     public ReadableByteChannel createReadableByteChannel() {
       return channel;
     }
   }
 
+  @SuppressWarnings("serial")
+  private static class VerifyOnFirstReadLevelDbInputReader extends TestLevelDbInputReader {
+
+    private final String verificationKey;
+
+    VerifyOnFirstReadLevelDbInputReader(ReadableByteChannel channel, int blockSize,
+        String verificationKey) {
+      super(channel, blockSize);
+      this.verificationKey = verificationKey;
+    }
+
+    @Override
+    protected String getVerificationKey() {
+      return verificationKey;
+    }
+  }
+
   /**
    * Writes to an in memory byte array for testing.
    *
@@ -112,6 +136,34 @@ public class LevelDbTest extends TestCase {
     }
   }
 
+  public void testVerifyOnFirstReadOnly() throws IOException {
+    Random r = new Random(0);
+    int overriddenBlockSize = 100;
+    ByteArrayOutputWriter arrayOutputWriter = new ByteArrayOutputWriter();
+    LevelDbOutputWriter writer = new LevelDbOutputWriter(arrayOutputWriter, overriddenBlockSize);
+    writer.beginShard();
+    List<byte[]> written = writeRandomItems(r, writer, 11, 10); // Bigger than one block
+    writer.endShard();
+    byte[] writtenData = arrayOutputWriter.toByteArray();
+    String key = "LevelDbTest.testVerifyOnFirstReadOnly";
+    verifyWrittenData(written, new VerifyOnFirstReadLevelDbInputReader(
+        Channels.newChannel(new ByteArrayInputStream(writtenData)), overriddenBlockSize, key));
+
+    // Corrupt the data of the first record, which is after its header.
+    writtenData[LevelDbConstants.HEADER_LENGTH] ^= 1;
+    written.get(0)[0] ^= 1;
+    verifyWrittenData(written, new VerifyOnFirstReadLevelDbInputReader(
+        Channels.newChannel(new ByteArrayInputStream(writtenData)), overriddenBlockSize, key));
+    try {
+      verifyWrittenData(written, new VerifyOnFirstReadLevelDbInputReader(
+          Channels.newChannel(new ByteArrayInputStream(writtenData)), overriddenBlockSize,
+          key + ".changed"));
+      fail();
+    } catch (CorruptDataException e) {
+      // Expected
+    }
+  }
+
   /**
    * This really does not test much since levelDb explicitly tolerates truncation at record
    * boundaries. So all it really validates is that we don't throw some weird error.
@@ -220,6 +272,136 @@ public class LevelDbTest extends TestCase {
     verifyWrittenData(written, reader);
   }
 
+  public void testCompressedRoundTrip() throws IOException {
+    Random r = new Random(0);
+    ByteArrayOutputWriter arrayOutputWriter = new ByteArrayOutputWriter();
+    LevelDbOutputWriter writer =
+        new LevelDbOutputWriter(new BlockCompressingOutputWriter(arrayOutputWriter));
+    writer.beginShard();
+    List<byte[]> written = new ArrayList<>();
+    // Compressible items, followed by incompressible ones, written in separate slices.
+    for (int i = 0; i < 1000; i++) {
+      byte[] data = new byte[r.nextInt(200)];
+      Arrays.fill(data, (byte) (i % 7));
+      written.add(data);
+    }
+    writer.beginSlice();
+    for (byte[] data : written) {
+      writer.write(ByteBuffer.wrap(data));
+    }
+    writer.endSlice();
+    written.addAll(writeRandomItems(r, writer, 20, BLOCK_SIZE * 3));
+    writer.endShard();
+    byte[] writtenData = arrayOutputWriter.toByteArray();
+    int uncompressedSize = 0;
+    for (byte[] data : written) {
+      uncompressedSize += data.length;
+    }
+    assertTrue(writtenData.length < uncompressedSize);
+
+    ByteArrayInputStream arrayInputStream = new ByteArrayInputStream(writtenData);
+    LevelDbInputReader reader = new TestLevelDbInputReader(
+        new BlockDecompressingReadableByteChannel(Channels.newChannel(arrayInputStream)));
+    verifyWrittenData(written, reader);
+
+    // Concatenated files, as produced by GCS compose, are also readable.
+    byte[] concatenated = Arrays.copyOf(writtenData, writtenData.length * 2);
+    System.arraycopy(writtenData, 0, concatenated, writtenData.length, writtenData.length);
+    List<byte[]> expected = new ArrayList<>(written);
+    expected.addAll(written);
+    arrayInputStream = new ByteArrayInputStream(concatenated);
+    reader = new TestLevelDbInputReader(
+        new BlockDecompressingReadableByteChannel(Channels.newChannel(arrayInputStream)));
+    verifyWrittenData(expected, reader);
+  }
+
+  public void testDecompressingChannelPassesThroughUncompressedData() throws IOException {
+    Random r = new Random(0);
+    for (int size : new int[] {0, 1, 10, 1000}) {
+      ByteArrayOutputWriter arrayOutputWriter = new ByteArrayOutputWriter();
+      LevelDbOutputWriter writer = new LevelDbOutputWriter(arrayOutputWriter);
+      writer.beginShard();
+      List<byte[]> written = writeRandomItems(r, writer, 10, size);
+      writer.endShard();
+      ByteArrayInputStream arrayInputStream =
+          new ByteArrayInputStream(arrayOutputWriter.toByteArray());
+      LevelDbInputReader reader = new TestLevelDbInputReader(
+          new BlockDecompressingReadableByteChannel(Channels.newChannel(arrayInputStream)));
+      verifyWrittenData(written, reader);
+    }
+  }
+
+  public void testCompressedDataCorruption() throws IOException {
+    Random r = new Random(0);
+    ByteArrayOutputWriter arrayOutputWriter = new ByteArrayOutputWriter();
+    LevelDbOutputWriter writer =
+        new LevelDbOutputWriter(new BlockCompressingOutputWriter(arrayOutputWriter), 100);
+    writer.beginShard();
+    List<byte[]> written = writeRandomItems(r, writer, 11, 10);
+    writer.endShard();
+    byte[] writtenData = arrayOutputWriter.toByteArray();
+    for (int i = 0; i < writtenData.length; i++) {
+      writtenData[i] = (byte) (writtenData[i] ^ 1);
+      ByteArrayInputStream arrayInputStream = new ByteArrayInputStream(writtenData);
+      LevelDbInputReader reader = new TestLevelDbInputReader(
+          new BlockDecompressingReadableByteChannel(Channels.newChannel(arrayInputStream)), 100);
+      try {
+        verifyWrittenData(written, reader);
+        fail();
+      } catch (CorruptDataException e) {
+        // Expected
+      }
+      writtenData[i] = (byte) (writtenData[i] ^ 1);
+    }
+  }
+
+  public void testReadingRanges() throws IOException {
+    Random r = new Random(0);
+    int overriddenBlockSize = 100;
+    ByteArrayOutputWriter arrayOutputWriter = new ByteArrayOutputWriter();
+    LevelDbOutputWriter writer = new LevelDbOutputWriter(arrayOutputWriter, overriddenBlockSize);
+    writer.beginShard();
+    List<byte[]> written = new ArrayList<>();
+    for (int size : new int[] {0, 10, 93, 94, 250, 1000}) {
+      written.addAll(writeRandomItems(r, writer, 5, size));
+    }
+    writer.endShard();
+    byte[] writtenData = arrayOutputWriter.toByteArray();
+    for (int step = overriddenBlockSize; step < writtenData.length; step += overriddenBlockSize) {
+      List<byte[]> read = new ArrayList<>();
+      for (int start = 0; start < writtenData.length; start += step) {
+        ByteArrayInputStream arrayInputStream =
+            new ByteArrayInputStream(writtenData, start, writtenData.length - start);
+        LevelDbInputReader reader = new TestLevelDbInputReader(
+            Channels.newChannel(arrayInputStream), overriddenBlockSize, start, start + step);
+        reader.beginShard();
+        reader.beginSlice();
+        try {
+          while (true) {
+            read.add(SerializationUtil.getBytes(reader.next()));
+          }
+        } catch (NoSuchElementException e) {
+          // Used as break
+        }
+        reader.endSlice();
+        reader.endShard();
+      }
+      assertEquals(written.size(), read.size());
+      for (int i = 0; i < written.size(); i++) {
+        assertArrayEquals(written.get(i), read.get(i));
+      }
+    }
+  }
+
+  public void testRangeMustStartAtBlockBoundary() {
+    try {
+      new TestLevelDbInputReader(null, 100, 150, 200);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
   static void verifyWrittenData(List<byte[]> written, LevelDbInputReader reader)
       throws IOException {
     reader.beginShard();
@@ -0,0 +1,117 @@
+package com.google.appengine.tools.mapreduce.reducers;
+
+import com.google.appengine.tools.mapreduce.KeyValue;
+import com.google.appengine.tools.mapreduce.Marshallers;
+import com.google.appengine.tools.mapreduce.ReducerInput;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Tests for {@link JoinReducer}.
+ */
+public class JoinReducerTest extends TestCase {
+
+  @SuppressWarnings("serial")
+  private static class CollectingJoinReducer extends JoinReducer<String, Long, Void> {
+
+    private final List<Integer> inputsToRead;
+    private final List<List<Long>> valuesByInput = new ArrayList<>();
+
+    CollectingJoinReducer(int inputCount, Integer... inputsToRead) {
+      super(inputCount);
+      this.inputsToRead = ImmutableList.copyOf(inputsToRead);
+    }
+
+    @Override
+    public void join(String key, List<ReducerInput<Long>> values) {
+      assertEquals(getInputCount(), values.size());
+      for (int input : inputsToRead) {
+        valuesByInput.add(Lists.newArrayList(values.get(input)));
+      }
+    }
+  }
+
+  private static ReducerInput<KeyValue<Integer, Long>> taggedValues(long... tagsAndValues) {
+    List<KeyValue<Integer, Long>> values = new ArrayList<>();
+    for (int i = 0; i < tagsAndValues.length; i += 2) {
+      values.add(KeyValue.of((int) tagsAndValues[i], tagsAndValues[i + 1]));
+    }
+    final Iterator<KeyValue<Integer, Long>> iterator = values.iterator();
+    return new ReducerInput<KeyValue<Integer, Long>>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public KeyValue<Integer, Long> next() {
+        return iterator.next();
+      }
+    };
+  }
+
+  public void testInvalidInputCount() {
+    try {
+      new CollectingJoinReducer(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testReadInputsInOrder() {
+    CollectingJoinReducer reducer = new CollectingJoinReducer(3, 0, 1, 2);
+    reducer.reduce("key", taggedValues(0, 1, 0, 2, 2, 5, 2, 6));
+    assertEquals(ImmutableList.of(ImmutableList.of(1L, 2L), ImmutableList.<Long>of(),
+        ImmutableList.of(5L, 6L)), reducer.valuesByInput);
+  }
+
+  public void testSkipUnreadInputs() {
+    CollectingJoinReducer reducer = new CollectingJoinReducer(3, 1, 0, 2);
+    reducer.reduce("key", taggedValues(0, 1, 1, 3, 1, 4, 2, 5));
+    assertEquals(ImmutableList.of(ImmutableList.of(3L, 4L), ImmutableList.<Long>of(),
+        ImmutableList.of(5L)), reducer.valuesByInput);
+  }
+
+  public void testNextAfterEndOfInput() {
+    final List<ReducerInput<Long>> inputs = new ArrayList<>();
+    @SuppressWarnings("serial")
+    JoinReducer<String, Long, Void> reducer = new JoinReducer<String, Long, Void>(2) {
+      @Override
+      public void join(String key, List<ReducerInput<Long>> values) {
+        inputs.addAll(values);
+      }
+    };
+    reducer.reduce("key", taggedValues(0, 1, 1, 2));
+    assertEquals(1L, inputs.get(0).next().longValue());
+    try {
+      inputs.get(0).next();
+      fail();
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+    assertEquals(2L, inputs.get(1).next().longValue());
+    assertFalse(inputs.get(1).hasNext());
+  }
+
+  public void testBufferValues() {
+    Iterable<Long> buffered = JoinReducer.bufferValues(
+        ImmutableList.of(1L, 2L, 3L).iterator(), Marshallers.getLongMarshaller(), 24);
+    assertEquals(ImmutableList.of(1L, 2L, 3L), Lists.newArrayList(buffered));
+    assertEquals(ImmutableList.of(1L, 2L, 3L), Lists.newArrayList(buffered));
+    try {
+      JoinReducer.bufferValues(
+          ImmutableList.of(1L, 2L, 3L).iterator(), Marshallers.getLongMarshaller(), 23);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}